@@ -0,0 +1,279 @@
+/*
+ ============================================================================
+ Name        : AclCounters.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Shared Memory ACL Hit Counters
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped per-rule counters for the compiled ACL, written by the
+ * native tunnel and read by the UI, like StatsRegion.
+ *
+ * Layout (native byte order):
+ *   0  u32 magic
+ *   4  u32 version
+ *   8  u8  table hash[32] (source hash of the AclTable counted)
+ *  40  u32 rule slots (AclTable.getRuleSlots())
+ *  44  u32 pattern count (AclTable.getPatternCount())
+ *  48  u32 stripe count
+ *  52  u32 sample shift (1 lookup in 2^shift is timed)
+ *  56  u64 create time (ms)
+ *  64  stripe[stripe count], each 64-byte aligned:
+ *        u64 lookups
+ *        u64 sampled lookups
+ *        u64 stage ns[STAGE_COUNT], summed over the sampled lookups
+ *        u64 hits[rule slots], by rule id
+ *        u64 pattern ns[pattern count], summed over the sampled lookups
+ *
+ * Every worker thread adds to its own stripe with plain stores, so
+ * counting costs no atomics and no shared cache lines; readers sum the
+ * stripes and may be a few lookups behind. A rule is counted only when
+ * its action decided the connection, so an allow rule shadowed by a block
+ * rule stays at zero. Timing every lookup would cost more than most
+ * lookups, so only one in 2^shift is timed.
+ *
+ * The counters belong to one table: a region whose hash differs from the
+ * table's was made for an older acl.txt and is reset, not reused.
+ */
+public class AclCounters {
+	public static final String FILE_NAME = "acl.shm";
+
+	public static final int MAGIC = 0x484c4341;
+	public static final int VERSION = 1;
+
+	/* Stage indexes */
+	public static final int STAGE_DOMAIN = 0;
+	public static final int STAGE_PATTERNS = 1;
+	public static final int STAGE_IPV4 = 2;
+	public static final int STAGE_IPV6 = 3;
+	public static final int STAGE_PORTS = 4;
+	public static final int STAGE_TOTAL = 5;
+	public static final int STAGE_COUNT = 6;
+
+	public static final int MAX_STRIPES = 4;
+	public static final int SAMPLE_SHIFT = 6;
+
+	private static final int OFF_MAGIC = 0;
+	private static final int OFF_VERSION = 4;
+	private static final int OFF_TABLE_HASH = 8;
+	private static final int OFF_RULE_SLOTS = 40;
+	private static final int OFF_PATTERN_COUNT = 44;
+	private static final int OFF_STRIPE_COUNT = 48;
+	private static final int OFF_SAMPLE_SHIFT = 52;
+	private static final int OFF_CREATE_TIME = 56;
+	private static final int OFF_STRIPES = 64;
+	private static final int HASH_SIZE = 32;
+
+	/* Offsets in a stripe */
+	private static final int STRIPE_LOOKUPS = 0;
+	private static final int STRIPE_SAMPLED = 8;
+	private static final int STRIPE_STAGES = 16;
+	private static final int STRIPE_HITS = STRIPE_STAGES + STAGE_COUNT * 8;
+
+	/* Volatile accesses on ART emit the barriers publishing needs. */
+	private static volatile int fence;
+
+	private final MappedByteBuffer buffer;
+	private final int slots;
+	private final int patterns;
+	private final int stripes;
+	private final int stripeSize;
+
+	private AclCounters(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		buffer.order(ByteOrder.nativeOrder());
+		slots = buffer.getInt(OFF_RULE_SLOTS);
+		patterns = buffer.getInt(OFF_PATTERN_COUNT);
+		stripes = buffer.getInt(OFF_STRIPE_COUNT);
+		stripeSize = stripeSize(slots, patterns);
+	}
+
+	/**
+	 * Map the counters of table for writing, keeping the counts of an
+	 * earlier session with the same table and starting over otherwise.
+	 * Called by the service; the file is sized sparse, so untouched rules
+	 * cost no memory.
+	 */
+	public static AclCounters create(File dir, AclTable table) throws IOException {
+		File file = new File(dir, FILE_NAME);
+		if (file.length() >= OFF_STRIPES && file.length() <= Integer.MAX_VALUE) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				AclCounters counters = new AclCounters(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+				if (counters.isValid() && counters.isFor(table))
+				  return counters;
+			} finally {
+				raf.close();
+			}
+		}
+
+		int slots = table.getRuleSlots();
+		int patterns = table.getPatternCount();
+		int stripes = Math.max(1, Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+		long size = OFF_STRIPES + (long) stripes * stripeSize(slots, patterns);
+		if (size > Integer.MAX_VALUE)
+		  throw new IOException("too many ACL rules to count");
+
+		// A new file renamed over the old one: a reader may still map the
+		// old one, and truncating it under the reader would fault
+		File tmp = new File(dir, FILE_NAME + ".tmp");
+		tmp.delete();
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buf.order(ByteOrder.nativeOrder());
+			buf.putInt(OFF_VERSION, VERSION);
+			buf.position(OFF_TABLE_HASH);
+			buf.put(table.getSourceHash());
+			buf.putInt(OFF_RULE_SLOTS, slots);
+			buf.putInt(OFF_PATTERN_COUNT, patterns);
+			buf.putInt(OFF_STRIPE_COUNT, stripes);
+			buf.putInt(OFF_SAMPLE_SHIFT, SAMPLE_SHIFT);
+			buf.putLong(OFF_CREATE_TIME, System.currentTimeMillis());
+			fullFence();
+			buf.putInt(OFF_MAGIC, MAGIC);
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("rename " + tmp + " failed");
+			}
+			return new AclCounters(buf);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Map existing counters read-only. Returns null if there are none or
+	 * they were written by an incompatible version.
+	 */
+	public static AclCounters open(File dir) {
+		File file = new File(dir, FILE_NAME);
+		if (file.length() < OFF_STRIPES || file.length() > Integer.MAX_VALUE)
+		  return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				AclCounters counters = new AclCounters(buf);
+				if (!counters.isValid())
+				  return null;
+				return counters;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The mapped memory, handed to the native tunnel so it can count
+	 * directly into the region.
+	 */
+	public MappedByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public boolean isValid() {
+		return buffer.getInt(OFF_MAGIC) == MAGIC &&
+		       buffer.getInt(OFF_VERSION) == VERSION &&
+		       slots >= 0 && patterns >= 0 && stripes > 0 &&
+		       OFF_STRIPES + (long) stripes * stripeSize == buffer.capacity();
+	}
+
+	/* The counters were made for table, so rule ids line up */
+	public boolean isFor(AclTable table) {
+		return slots == table.getRuleSlots() && patterns == table.getPatternCount() &&
+		       Arrays.equals(getTableHash(), table.getSourceHash());
+	}
+
+	public byte[] getTableHash() {
+		byte[] hash = new byte[HASH_SIZE];
+		for (int i = 0; i < HASH_SIZE; i++)
+		  hash[i] = buffer.get(OFF_TABLE_HASH + i);
+		return hash;
+	}
+
+	public int getRuleSlots() {
+		return slots;
+	}
+
+	public int getPatternCount() {
+		return patterns;
+	}
+
+	public long getCreateTime() {
+		return buffer.getLong(OFF_CREATE_TIME);
+	}
+
+	public long getLookups() {
+		return sum(STRIPE_LOOKUPS);
+	}
+
+	/* Lookups the stage and pattern times were taken from */
+	public long getSampled() {
+		return sum(STRIPE_SAMPLED);
+	}
+
+	/**
+	 * @param stage one of the STAGE_ indexes
+	 * @return ns spent in stage over the sampled lookups
+	 */
+	public long getStageNanos(int stage) {
+		return sum(STRIPE_STAGES + stage * 8);
+	}
+
+	/**
+	 * Copy the hits of the first out.length rules into out, by rule id.
+	 */
+	public void readHits(long[] out) {
+		sum(STRIPE_HITS, Math.min(out.length, slots), out);
+	}
+
+	/**
+	 * Copy the ns each pattern took over the sampled lookups into out, in
+	 * AclTable pattern order.
+	 */
+	public void readPatternNanos(long[] out) {
+		sum(STRIPE_HITS + slots * 8, Math.min(out.length, patterns), out);
+	}
+
+	private long sum(int off) {
+		long total = 0;
+		for (int s = 0; s < stripes; s++)
+		  total += buffer.getLong(OFF_STRIPES + s * stripeSize + off);
+		return total;
+	}
+
+	private void sum(int off, int count, long[] out) {
+		Arrays.fill(out, 0, count, 0);
+		for (int s = 0; s < stripes; s++) {
+			int base = OFF_STRIPES + s * stripeSize + off;
+			for (int i = 0; i < count; i++)
+			  out[i] += buffer.getLong(base + i * 8);
+		}
+	}
+
+	private static int stripeSize(int slots, int patterns) {
+		long size = STRIPE_HITS + ((long) slots + patterns) * 8;
+		return (int) Math.min(Integer.MAX_VALUE, (size + 63) & ~63L);
+	}
+
+	private static void fullFence() {
+		fence = 0;
+		int ignored = fence;
+	}
+}
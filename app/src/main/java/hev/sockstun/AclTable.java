@@ -0,0 +1,882 @@
+/*
+ ============================================================================
+ Name        : AclTable.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Compiled ACL Tries and Port Bitmaps
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.IDN;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * acl.txt compiled into lookup structures the native side can mmap, so a
+ * connection is checked without walking the rule list.
+ *
+ * Layout (native byte order):
+ *   0  u32 magic
+ *   4  u16 version
+ *   6  u16 header size
+ *   8  u8  source hash[32] (SHA-256 of the text file)
+ *  40  u32 rules read from the source
+ *  44  u32 rule slots (lines in the source; a rule id is its line, from 0)
+ *  48  u32 domain automaton size (nd, a multiple of 8)
+ *  52  u32 domain keys (nk)
+ *  56  u32 IPv4 node count (n4)
+ *  60  u32 IPv6 node count (n6)
+ *  64  u32 pattern count (np)
+ *  68  u32 port rule count (npr)
+ *  72  u32 string pool size
+ *  76  u32 reserved
+ *  80  u8  allow port bitmap[8192]
+ *      u8  block port bitmap[8192]
+ *      port rule[npr]   u32 port << 1 | 1 if block, u32 rule, ascending
+ *      u8  domain automaton[nd], see DomainDafsa
+ *      u32 key rule[nk], padded to a multiple of 8 bytes
+ *      IPv4 node[n4]    u32 key, u8 length, u8 actions, u16 pad,
+ *                       u32 child[2], u32 allow rule, u32 block rule
+ *      IPv6 node[n6]    u64 key[2] (high half first), u8 length,
+ *                       u8 actions, u16 pad, u32 child[2],
+ *                       u32 allow rule, u32 block rule, u32 pad
+ *      pattern[np]      u32 offset, u16 length, u8 action, u8 pad,
+ *                       u32 rule
+ *      u8  string pool
+ *
+ * Exact and "*." domains live in a minimal automaton over the names
+ * spelled backwards, so a lookup reads the name once from the TLD and a
+ * block list of 500k names maps in a few megabytes. "*.example.com"
+ * matches every name below example.com but not example.com. Addresses live
+ * in path-compressed binary tries (child index 0 means none, as the root
+ * is never a child). Every structure reports all the actions it matched
+ * and block wins, so one pass over the domain's bytes, the address bits
+ * and the port bit decides a connection however many rules there are.
+ *
+ * Domains with a '*' anywhere but a leading "*." label are kept as glob
+ * patterns and tried one by one; they are the only part whose cost grows
+ * with the rule count.
+ *
+ * Every structure also keeps the rule id behind each match (NO_RULE for
+ * none; of duplicate rules the first line is kept), so the match methods
+ * taking a Hits can say which lines decided a connection. The port rules
+ * are only searched for that; the bitmaps answer the plain lookups.
+ */
+public class AclTable {
+	public static final String FILE_NAME = "acl.bin";
+
+	public static final int MAGIC = 0x314c4341;
+	public static final int VERSION = 3;
+	public static final int HEADER_SIZE = 80;
+
+	/* Action bits */
+	public static final int ALLOW = 1;
+	public static final int BLOCK = 2;
+
+	/* Rule id of a node no rule of that action ends at */
+	public static final int NO_RULE = -1;
+
+	private static final int OFF_MAGIC = 0;
+	private static final int OFF_VERSION = 4;
+	private static final int OFF_HEADER_SIZE = 6;
+	private static final int OFF_SOURCE_HASH = 8;
+	private static final int OFF_SOURCE_RULES = 40;
+	private static final int OFF_RULE_SLOTS = 44;
+	private static final int OFF_DOMAIN_SIZE = 48;
+	private static final int OFF_DOMAIN_KEYS = 52;
+	private static final int OFF_V4_COUNT = 56;
+	private static final int OFF_V6_COUNT = 60;
+	private static final int OFF_PATTERN_COUNT = 64;
+	private static final int OFF_PORT_RULE_COUNT = 68;
+	private static final int OFF_POOL_SIZE = 72;
+	private static final int HASH_SIZE = 32;
+
+	private static final int PORT_BITMAP_SIZE = 65536 / 8;
+	private static final int PORT_RULE_SIZE = 8;
+	private static final int V4_NODE_SIZE = 24;
+	private static final int V6_NODE_SIZE = 40;
+	private static final int PATTERN_SIZE = 12;
+
+	private final ByteBuffer buffer;
+	private final int domainSize;
+	private final int domainKeys;
+	private final int v4Count;
+	private final int v6Count;
+	private final int patternCount;
+	private final int portRuleCount;
+	private final int portRules;
+	private final int domains;
+	private final int keyRules;
+	private final int v4Nodes;
+	private final int v6Nodes;
+	private final int patterns;
+	private final int pool;
+
+	private AclTable(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		buffer.order(ByteOrder.nativeOrder());
+		if (buffer.capacity() < HEADER_SIZE ||
+		    buffer.getInt(OFF_MAGIC) != MAGIC ||
+		    buffer.getShort(OFF_VERSION) != VERSION ||
+		    buffer.getShort(OFF_HEADER_SIZE) != HEADER_SIZE)
+		  throw new IOException("not an ACL table");
+
+		domainSize = buffer.getInt(OFF_DOMAIN_SIZE);
+		domainKeys = buffer.getInt(OFF_DOMAIN_KEYS);
+		v4Count = buffer.getInt(OFF_V4_COUNT);
+		v6Count = buffer.getInt(OFF_V6_COUNT);
+		patternCount = buffer.getInt(OFF_PATTERN_COUNT);
+		portRuleCount = buffer.getInt(OFF_PORT_RULE_COUNT);
+		int poolSize = buffer.getInt(OFF_POOL_SIZE);
+		if (domainSize < 1 || (domainSize & 7) != 0 || domainKeys < 0 || v4Count < 1 || v6Count < 1 ||
+		    patternCount < 0 || portRuleCount < 0 || poolSize < 0 || buffer.getInt(OFF_RULE_SLOTS) < 0)
+		  throw new IOException("corrupt ACL table");
+
+		portRules = HEADER_SIZE + 2 * PORT_BITMAP_SIZE;
+		domains = portRules + portRuleCount * PORT_RULE_SIZE;
+		keyRules = domains + domainSize;
+		v4Nodes = keyRules + ((domainKeys * 4 + 7) & ~7);
+		v6Nodes = v4Nodes + v4Count * V4_NODE_SIZE;
+		patterns = v6Nodes + v6Count * V6_NODE_SIZE;
+		pool = patterns + patternCount * PATTERN_SIZE;
+		if ((long) pool + poolSize != buffer.capacity())
+		  throw new IOException("truncated ACL table");
+	}
+
+	/**
+	 * Map a compiled table read-only.
+	 */
+	public static AclTable load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new AclTable(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Bring table up to date with text, keyed by the hash of the text
+	 * like RouteTable. Invalid lines are skipped; ConfigValidator reports
+	 * them.
+	 */
+	public static AclTable compile(File text, File table) throws IOException {
+		byte[] content = Files.readAllBytes(text.toPath());
+		byte[] hash = sha256(content);
+		if (table.exists()) {
+			try {
+				AclTable cached = load(table);
+				if (Arrays.equals(cached.getSourceHash(), hash))
+				  return cached;
+			} catch (IOException e) {
+				// Rebuilt below
+			}
+		}
+
+		Builder builder = new Builder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+		String line;
+		for (int n = 0; (line = reader.readLine()) != null; n++) {
+			int hashPos = line.indexOf('#');
+			if (hashPos >= 0)
+			  line = line.substring(0, hashPos);
+			line = line.trim();
+			if (!line.isEmpty())
+			  builder.add(n, line);
+		}
+
+		AclTable compiled = builder.build(hash);
+		compiled.write(table);
+		return compiled;
+	}
+
+	/**
+	 * Addresses and CIDRs of the block rules in text, as written. The
+	 * kernel bypass keeps them in the tunnel so the rules still apply.
+	 */
+	public static List<String> readBlockedAddresses(File text) throws IOException {
+		ArrayList<String> blocked = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new ByteArrayInputStream(Files.readAllBytes(text.toPath())), StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int hashPos = line.indexOf('#');
+			if (hashPos >= 0)
+			  line = line.substring(0, hashPos);
+			String[] tokens = line.trim().split("\\s+");
+			if (tokens.length < 2 || tokens.length > 3 || !tokens[0].equals("block"))
+			  continue;
+			String value = tokens[tokens.length - 1];
+			String type = tokens.length == 3 ? tokens[1] : "";
+			if (type.equals("cidr") || (type.isEmpty() && (value.indexOf('/') >= 0 ||
+			    ConfigValidator.parseIpv4(value) >= 0 || ConfigValidator.parseIpv6(value) != null)))
+			  blocked.add(value);
+		}
+		return blocked;
+	}
+
+	/**
+	 * Write the table to file through a temporary file and a rename, so
+	 * a reader never maps a partial table. The temporary file is unique:
+	 * the service, the UI and the simulator compile from two processes.
+	 */
+	public void write(File file) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		FileOutputStream fos = new FileOutputStream(tmp, false);
+		try {
+			ByteBuffer src = buffer.duplicate();
+			src.clear();
+			fos.getChannel().write(src);
+			fos.getFD().sync();
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("rename " + tmp + " failed");
+		}
+	}
+
+	public byte[] getSourceHash() {
+		byte[] hash = new byte[HASH_SIZE];
+		ByteBuffer src = buffer.duplicate();
+		src.position(OFF_SOURCE_HASH);
+		src.get(hash);
+		return hash;
+	}
+
+	/* Valid rules in the source */
+	public int getSourceRules() {
+		return buffer.getInt(OFF_SOURCE_RULES);
+	}
+
+	/* Lines in the source, the bound of every rule id */
+	public int getRuleSlots() {
+		return buffer.getInt(OFF_RULE_SLOTS);
+	}
+
+	/* Bytes of the mapped table holding exact and "*." domains */
+	public int getDomainSize() {
+		return domainSize;
+	}
+
+	public int getPatternCount() {
+		return patternCount;
+	}
+
+	/* Rule id of pattern i, in the order they are tried */
+	public int getPatternRule(int i) {
+		return buffer.getInt(patterns + i * PATTERN_SIZE + 8);
+	}
+
+	public int getSize() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Block wins over allow.
+	 * @param actions action bits from the match methods
+	 * @return BLOCK, ALLOW, or 0 if no rule matched
+	 */
+	public static int decide(int actions) {
+		if ((actions & BLOCK) != 0)
+		  return BLOCK;
+		return actions & ALLOW;
+	}
+
+	/**
+	 * Decide a connection.
+	 * @param domain requested name, or null
+	 * @param addr 4 or 16 destination address bytes, or null
+	 * @param port destination port, or -1
+	 * @return BLOCK, ALLOW, or 0 if no rule matched
+	 */
+	public int match(String domain, byte[] addr, int port) {
+		return match(domain, addr, port, null);
+	}
+
+	/**
+	 * Decide a connection and collect every rule that matched it, the
+	 * losing action's too.
+	 * @param hits receives the matching rules, or null
+	 */
+	public int match(String domain, byte[] addr, int port, Hits hits) {
+		int actions = 0;
+		if (domain != null)
+		  actions |= matchDomain(domain, hits);
+		if (addr != null && addr.length == 4)
+		  actions |= matchIpv4(ByteBuffer.wrap(addr).getInt() & 0xffffffffL, hits);
+		else if (addr != null && addr.length == 16)
+		  actions |= matchIpv6(ByteBuffer.wrap(addr).getLong(), ByteBuffer.wrap(addr).getLong(8), hits);
+		if (port >= 0)
+		  actions |= matchPort(port, hits);
+		return decide(actions);
+	}
+
+	public int matchPort(int port) {
+		return matchPort(port, null);
+	}
+
+	public int matchPort(int port, Hits hits) {
+		if (port < 0 || port > 65535)
+		  return 0;
+		int byteOff = HEADER_SIZE + (port >>> 3);
+		int bit = 1 << (port & 7);
+		int actions = 0;
+		if ((buffer.get(byteOff) & bit) != 0)
+		  actions |= ALLOW;
+		if ((buffer.get(byteOff + PORT_BITMAP_SIZE) & bit) != 0)
+		  actions |= BLOCK;
+		if (hits != null) {
+			for (int action = ALLOW; action <= BLOCK; action++) {
+				int rule = portRule(port << 1 | (action == BLOCK ? 1 : 0));
+				if ((actions & action) != 0 && rule != NO_RULE)
+				  hits.add(rule, action);
+			}
+		}
+		return actions;
+	}
+
+	/* Rule behind a port bitmap bit, by binary search */
+	private int portRule(int key) {
+		int lo = 0;
+		int hi = portRuleCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int k = buffer.getInt(portRules + mid * PORT_RULE_SIZE);
+			if (k == key)
+			  return buffer.getInt(portRules + mid * PORT_RULE_SIZE + 4);
+			if (k < key)
+			  lo = mid + 1;
+			else
+			  hi = mid - 1;
+		}
+		return NO_RULE;
+	}
+
+	/**
+	 * @return action bits of every domain rule matching name
+	 */
+	public int matchDomain(String name) {
+		return matchDomain(name, null);
+	}
+
+	public int matchDomain(String name, Hits hits) {
+		byte[] host = normalizeDomain(name);
+		if (host == null)
+		  return 0;
+
+		int actions = DomainDafsa.match(buffer, domains, keyRules, host, hits);
+		for (int i = 0; i < patternCount; i++) {
+			int off = patterns + i * PATTERN_SIZE;
+			int patternAction = buffer.get(off + 6);
+			// Without hits a pattern only matters if it adds an action
+			if (hits == null && (actions & patternAction) != 0)
+			  continue;
+			if (glob(pool + buffer.getInt(off), buffer.getShort(off + 4) & 0xffff, host)) {
+				actions |= patternAction;
+				if (hits != null)
+				  hits.add(buffer.getInt(off + 8), patternAction);
+			}
+		}
+		return actions;
+	}
+
+	/**
+	 * @param addr address as an unsigned 32-bit value
+	 * @return action bits of every prefix holding addr
+	 */
+	public int matchIpv4(long addr) {
+		return matchIpv4(addr, null);
+	}
+
+	public int matchIpv4(long addr, Hits hits) {
+		int actions = 0;
+		int node = 0;
+		do {
+			int off = v4Nodes + node * V4_NODE_SIZE;
+			long key = buffer.getInt(off) & 0xffffffffL;
+			int len = buffer.get(off + 4) & 0xff;
+			long mask = len == 0 ? 0 : (0xffffffffL << (32 - len)) & 0xffffffffL;
+			if (((addr ^ key) & mask) != 0)
+			  break;
+			int nodeActions = buffer.get(off + 5);
+			actions |= nodeActions;
+			if (hits != null)
+			  addHits(hits, nodeActions, off + 16);
+			if (len == 32)
+			  break;
+			node = buffer.getInt(off + 8 + (int) ((addr >>> (31 - len)) & 1) * 4);
+		} while (node != 0);
+		return actions;
+	}
+
+	public int matchIpv6(long hi, long lo) {
+		return matchIpv6(hi, lo, null);
+	}
+
+	public int matchIpv6(long hi, long lo, Hits hits) {
+		int actions = 0;
+		int node = 0;
+		do {
+			int off = v6Nodes + node * V6_NODE_SIZE;
+			int len = buffer.get(off + 16) & 0xff;
+			if (prefixLength(buffer.getLong(off), buffer.getLong(off + 8), hi, lo) < len)
+			  break;
+			int nodeActions = buffer.get(off + 17);
+			actions |= nodeActions;
+			if (hits != null)
+			  addHits(hits, nodeActions, off + 28);
+			if (len == 128)
+			  break;
+			node = buffer.getInt(off + 20 + bit(hi, lo, len) * 4);
+		} while (node != 0);
+		return actions;
+	}
+
+	/* rules holds the allow rule, then the block rule of a trie node */
+	private void addHits(Hits hits, int nodeActions, int rules) {
+		if ((nodeActions & ALLOW) != 0)
+		  hits.add(buffer.getInt(rules), ALLOW);
+		if ((nodeActions & BLOCK) != 0)
+		  hits.add(buffer.getInt(rules + 4), BLOCK);
+	}
+
+	/* '*' matches any run of characters, dots included */
+	private boolean glob(int s, int len, byte[] host) {
+		int p = 0;
+		int h = 0;
+		int starP = -1;
+		int starH = 0;
+		while (h < host.length) {
+			if (p < len && buffer.get(s + p) == '*') {
+				starP = p++;
+				starH = h;
+			} else if (p < len && buffer.get(s + p) == host[h]) {
+				p++;
+				h++;
+			} else if (starP >= 0) {
+				p = starP + 1;
+				h = ++starH;
+			} else {
+				return false;
+			}
+		}
+		while (p < len && buffer.get(s + p) == '*')
+		  p++;
+		return p == len;
+	}
+
+	/**
+	 * Lower case, punycode and no trailing dot, as rules are stored.
+	 * @return null if name is not a usable domain
+	 */
+	static byte[] normalizeDomain(String name) {
+		String s = name.trim();
+		if (s.endsWith("."))
+		  s = s.substring(0, s.length() - 1);
+		if (s.isEmpty())
+		  return null;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80) {
+				try {
+					s = IDN.toASCII(s, IDN.ALLOW_UNASSIGNED);
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+				break;
+			}
+		}
+		return s.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/* Bit index of the 128-bit value hi:lo, from the top */
+	private static int bit(long hi, long lo, int index) {
+		return (int) ((index < 64 ? hi >>> (63 - index) : lo >>> (127 - index)) & 1);
+	}
+
+	/* Leading bits a and b share */
+	private static int prefixLength(long aHi, long aLo, long bHi, long bLo) {
+		if (aHi != bHi)
+		  return Long.numberOfLeadingZeros(aHi ^ bHi);
+		return 64 + Long.numberOfLeadingZeros(aLo ^ bLo);
+	}
+
+	private static byte[] sha256(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Rules a match was made of, in the order they were found.
+	 */
+	public static class Hits {
+		private int[] rules = new int[16];
+		private int[] actions = new int[16];
+		private int size = 0;
+
+		void add(int rule, int action) {
+			if (size == rules.length) {
+				rules = Arrays.copyOf(rules, size * 2);
+				actions = Arrays.copyOf(actions, size * 2);
+			}
+			rules[size] = rule;
+			actions[size] = action;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/* Line of hit i in the source, from 0 */
+		public int getRule(int i) {
+			return rules[i];
+		}
+
+		/* ALLOW or BLOCK */
+		public int getAction(int i) {
+			return actions[i];
+		}
+
+		public void clear() {
+			size = 0;
+		}
+	}
+
+	/**
+	 * Collects rules in any order; build() lays out the tries.
+	 */
+	public static class Builder {
+		private final byte[][] ports = new byte[2][PORT_BITMAP_SIZE];
+		private final HashMap<Integer, Integer> portRuleMap = new HashMap<Integer, Integer>();
+		private final DomainDafsa.Builder domainRules = new DomainDafsa.Builder();
+		private final ArrayList<String> patternTexts = new ArrayList<String>();
+		private final ArrayList<Integer> patternActions = new ArrayList<Integer>();
+		private final ArrayList<Integer> patternRules = new ArrayList<Integer>();
+		// IPv4 keys are kept in the high half, left-aligned
+		private final PrefixNode v4Root = new PrefixNode(0, 0, 0);
+		private final PrefixNode v6Root = new PrefixNode(0, 0, 0);
+		private int rules = 0;
+		private int slots = 0;
+
+		/**
+		 * @param line rule id, the line of rule in the source from 0;
+		 *             lines must be added in ascending order
+		 * @param rule "<allow|block> [port|cidr] <value>", comment removed
+		 * @return 1 if rule is valid, 0 if it was a CIDR with host bits
+		 *         set (they are cleared), -1 if it is malformed and was
+		 *         skipped
+		 */
+		public int add(int line, String rule) {
+			slots = Math.max(slots, line + 1);
+			String[] tokens = rule.trim().split("\\s+");
+			if (tokens.length < 2 || tokens.length > 3)
+			  return -1;
+			int action;
+			if (tokens[0].equals("allow"))
+			  action = ALLOW;
+			else if (tokens[0].equals("block"))
+			  action = BLOCK;
+			else
+			  return -1;
+
+			String value = tokens[tokens.length - 1];
+			String type = tokens.length == 3 ? tokens[1] : "";
+			int result;
+			if (type.equals("port")) {
+				result = addPort(line, action, ConfigValidator.parsePort(value)) ? 1 : -1;
+			} else if (type.equals("cidr") || (type.isEmpty() && value.indexOf('/') >= 0)) {
+				result = addCidr(line, action, value);
+			} else if (!type.isEmpty()) {
+				result = -1;
+			} else if (ConfigValidator.parseIpv4(value) >= 0 || ConfigValidator.parseIpv6(value) != null) {
+				result = addCidr(line, action, value + (value.indexOf(':') >= 0 ? "/128" : "/32"));
+			} else {
+				result = ConfigValidator.isDomainPattern(value) && addDomain(line, action, value) ? 1 : -1;
+			}
+			if (result >= 0)
+			  rules++;
+			return result;
+		}
+
+		public boolean addPort(int line, int action, int port) {
+			if (port < 1 || port > 65535)
+			  return false;
+			int b = action == BLOCK ? 1 : 0;
+			ports[b][port >>> 3] |= (byte) (1 << (port & 7));
+			if (!portRuleMap.containsKey(port << 1 | b))
+			  portRuleMap.put(port << 1 | b, line);
+			return true;
+		}
+
+		/**
+		 * "example.com" matches that name, "*.example.com" every name
+		 * below it, and any other '*' is a glob.
+		 */
+		public boolean addDomain(int line, int action, String pattern) {
+			byte[] bytes = normalizeDomain(pattern);
+			if (bytes == null || bytes.length > 0xffff)
+			  return false;
+			String name = new String(bytes, StandardCharsets.US_ASCII);
+			boolean wildcard = name.equals("*") || name.startsWith("*.");
+			String rest = name.equals("*") ? "" : wildcard ? name.substring(2) : name;
+			// One entry a line, so each pattern's cost is its own
+			if (rest.indexOf('*') >= 0) {
+				patternTexts.add(name);
+				patternActions.add(action);
+				patternRules.add(line);
+				return true;
+			}
+
+			int marker;
+			if (wildcard)
+			  marker = action == BLOCK ? DomainDafsa.WILDCARD_BLOCK : DomainDafsa.WILDCARD_ALLOW;
+			else
+			  marker = action == BLOCK ? DomainDafsa.EXACT_BLOCK : DomainDafsa.EXACT_ALLOW;
+			domainRules.add(rest.getBytes(StandardCharsets.US_ASCII), marker, line);
+			return true;
+		}
+
+		/**
+		 * @return 1 if cidr is valid, 0 if it had host bits set, -1 if
+		 *         it is malformed
+		 */
+		public int addCidr(int line, int action, String cidr) {
+			int slash = cidr.indexOf('/');
+			if (slash < 0)
+			  return -1;
+			String addr = cidr.substring(0, slash);
+			int prefix = ConfigValidator.parsePrefix(cidr.substring(slash + 1));
+			long v4 = ConfigValidator.parseIpv4(addr);
+			if (v4 >= 0) {
+				if (prefix < 0 || prefix > 32)
+				  return -1;
+				long key = v4 << 32;
+				long masked = prefix == 0 ? 0 : key & (-1L << (64 - prefix));
+				insert(v4Root, masked, 0, prefix, action, line);
+				return masked == key ? 1 : 0;
+			}
+			byte[] v6 = ConfigValidator.parseIpv6(addr);
+			if (v6 == null || prefix < 0 || prefix > 128)
+			  return -1;
+			ByteBuffer b = ByteBuffer.wrap(v6);
+			long hi = b.getLong();
+			long lo = b.getLong();
+			long maskHi = prefix == 0 ? 0 : prefix >= 64 ? -1L : -1L << (64 - prefix);
+			long maskLo = prefix <= 64 ? 0 : prefix == 128 ? -1L : -1L << (128 - prefix);
+			insert(v6Root, hi & maskHi, lo & maskLo, prefix, action, line);
+			return (hi & ~maskHi) == 0 && (lo & ~maskLo) == 0 ? 1 : 0;
+		}
+
+		/* Valid rules added so far */
+		public int size() {
+			return rules;
+		}
+
+		private static void insert(PrefixNode node, long hi, long lo, int len, int action, int line) {
+			while (true) {
+				if (node.len == len) {
+					node.with(action, line);
+					return;
+				}
+				int b = bit(hi, lo, node.len);
+				PrefixNode child = node.children[b];
+				if (child == null) {
+					node.children[b] = new PrefixNode(hi, lo, len).with(action, line);
+					return;
+				}
+				int common = Math.min(prefixLength(child.hi, child.lo, hi, lo), Math.min(child.len, len));
+				if (common == child.len) {
+					node = child;
+					continue;
+				}
+				PrefixNode split;
+				if (common == len) {
+					split = new PrefixNode(hi, lo, len).with(action, line);
+				} else {
+					long maskHi = common == 0 ? 0 : common >= 64 ? -1L : -1L << (64 - common);
+					long maskLo = common <= 64 ? 0 : -1L << (128 - common);
+					split = new PrefixNode(hi & maskHi, lo & maskLo, common);
+					split.children[bit(hi, lo, common)] = new PrefixNode(hi, lo, len).with(action, line);
+				}
+				split.children[bit(child.hi, child.lo, common)] = child;
+				node.children[b] = split;
+				return;
+			}
+		}
+
+		public AclTable build(byte[] sourceHash) {
+			ByteArrayBuilder strings = new ByteArrayBuilder();
+			HashMap<String, Integer> interned = new HashMap<String, Integer>();
+
+			byte[] automaton = domainRules.build();
+			int[] keyRules = domainRules.getKeyRules();
+			// Padded so the IPv6 keys stay 8-byte aligned
+			int domainSize = (automaton.length + 7) & ~7;
+			int keyRulesSize = (keyRules.length * 4 + 7) & ~7;
+			Integer[] portKeys = portRuleMap.keySet().toArray(new Integer[0]);
+			Arrays.sort(portKeys);
+			ArrayList<PrefixNode> v4Order = flatten(v4Root);
+			ArrayList<PrefixNode> v6Order = flatten(v6Root);
+			int[] patternOffsets = new int[patternTexts.size()];
+			for (int i = 0; i < patternTexts.size(); i++)
+			  patternOffsets[i] = intern(patternTexts.get(i), strings, interned);
+
+			int size = HEADER_SIZE + 2 * PORT_BITMAP_SIZE + portKeys.length * PORT_RULE_SIZE +
+				domainSize + keyRulesSize + v4Order.size() * V4_NODE_SIZE +
+				v6Order.size() * V6_NODE_SIZE + patternTexts.size() * PATTERN_SIZE + strings.size();
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			buf.order(ByteOrder.nativeOrder());
+			buf.putInt(OFF_MAGIC, MAGIC);
+			buf.putShort(OFF_VERSION, (short) VERSION);
+			buf.putShort(OFF_HEADER_SIZE, (short) HEADER_SIZE);
+			buf.position(OFF_SOURCE_HASH);
+			buf.put(sourceHash, 0, HASH_SIZE);
+			buf.putInt(OFF_SOURCE_RULES, rules);
+			buf.putInt(OFF_RULE_SLOTS, slots);
+			buf.putInt(OFF_DOMAIN_SIZE, domainSize);
+			buf.putInt(OFF_DOMAIN_KEYS, keyRules.length);
+			buf.putInt(OFF_V4_COUNT, v4Order.size());
+			buf.putInt(OFF_V6_COUNT, v6Order.size());
+			buf.putInt(OFF_PATTERN_COUNT, patternTexts.size());
+			buf.putInt(OFF_PORT_RULE_COUNT, portKeys.length);
+			buf.putInt(OFF_POOL_SIZE, strings.size());
+
+			buf.position(HEADER_SIZE);
+			buf.put(ports[0]).put(ports[1]);
+			for (Integer key : portKeys)
+			  buf.putInt(key).putInt(portRuleMap.get(key));
+			buf.put(automaton);
+			buf.position(buf.position() + domainSize - automaton.length);
+			for (int rule : keyRules)
+			  buf.putInt(rule);
+			buf.position(buf.position() + keyRulesSize - keyRules.length * 4);
+			for (PrefixNode node : v4Order) {
+				buf.putInt((int) (node.hi >>> 32)).put((byte) node.len).put((byte) node.actions).putShort((short) 0)
+				   .putInt(node.index(0)).putInt(node.index(1)).putInt(node.allowRule).putInt(node.blockRule);
+			}
+			for (PrefixNode node : v6Order) {
+				buf.putLong(node.hi).putLong(node.lo).put((byte) node.len).put((byte) node.actions).putShort((short) 0)
+				   .putInt(node.index(0)).putInt(node.index(1)).putInt(node.allowRule).putInt(node.blockRule).putInt(0);
+			}
+			for (int i = 0; i < patternTexts.size(); i++) {
+				buf.putInt(patternOffsets[i]).putShort((short) patternTexts.get(i).length())
+				   .put((byte) (int) patternActions.get(i)).put((byte) 0).putInt(patternRules.get(i));
+			}
+			buf.put(strings.array(), 0, strings.size());
+
+			try {
+				return new AclTable(buf);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/* Nodes in pre-order with their indexes assigned, root first */
+		private static ArrayList<PrefixNode> flatten(PrefixNode root) {
+			ArrayList<PrefixNode> order = new ArrayList<PrefixNode>();
+			ArrayDeque<PrefixNode> stack = new ArrayDeque<PrefixNode>();
+			stack.push(root);
+			while (!stack.isEmpty()) {
+				PrefixNode node = stack.pop();
+				node.index = order.size();
+				order.add(node);
+				for (int b = 1; b >= 0; b--) {
+					if (node.children[b] != null)
+					  stack.push(node.children[b]);
+				}
+			}
+			return order;
+		}
+
+		private static int intern(String s, ByteArrayBuilder strings, Map<String, Integer> interned) {
+			Integer off = interned.get(s);
+			if (off == null) {
+				off = strings.size();
+				strings.append(s.getBytes(StandardCharsets.US_ASCII));
+				interned.put(s, off);
+			}
+			return off;
+		}
+	}
+
+	private static class PrefixNode {
+		final long hi;
+		final long lo;
+		final int len;
+		int actions;
+		final PrefixNode[] children = new PrefixNode[2];
+		int allowRule = NO_RULE;
+		int blockRule = NO_RULE;
+		int index;
+
+		PrefixNode(long hi, long lo, int len) {
+			this.hi = hi;
+			this.lo = lo;
+			this.len = len;
+		}
+
+		/* The first line of a prefix and action keeps the credit */
+		PrefixNode with(int action, int line) {
+			actions |= action;
+			if (action == ALLOW && allowRule == NO_RULE)
+			  allowRule = line;
+			if (action == BLOCK && blockRule == NO_RULE)
+			  blockRule = line;
+			return this;
+		}
+
+		int index(int b) {
+			return children[b] == null ? 0 : children[b].index;
+		}
+	}
+
+	private static class ByteArrayBuilder {
+		private byte[] bytes = new byte[256];
+		private int size = 0;
+
+		void append(byte[] b) {
+			if (size + b.length > bytes.length)
+			  bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + b.length));
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+		}
+
+		int size() {
+			return size;
+		}
+
+		byte[] array() {
+			return bytes;
+		}
+	}
+}
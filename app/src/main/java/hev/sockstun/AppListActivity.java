@@ -10,9 +10,11 @@
 package hev.sockstun;
 
 import java.util.Set;
+import java.util.Map;
 import java.util.List;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Comparator;
 import java.util.Collections;
@@ -20,11 +22,14 @@ import java.util.ArrayList;
 
 import android.Manifest;
 import android.os.Bundle;
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.LayoutInflater;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.ImageView;
 import android.widget.ListView;
@@ -33,9 +38,12 @@ import android.widget.EditText;
 import android.widget.RadioGroup;
 import android.widget.RadioButton;
 import android.widget.LinearLayout;
+import android.widget.Toast;
 import android.text.TextWatcher;
 import android.text.Editable;
 import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.ApplicationInfo;
@@ -44,18 +52,24 @@ public class AppListActivity extends ListActivity {
 	private Preferences prefs;
 	private AppArrayAdapter adapter;
 	private boolean isChanged = false;
+	private boolean isPolicyChanged = false;
+	private Map<String, AppPolicy> policies;
 	private TextView statsView;
 	private boolean isGlobalMode;
+	private UidTraffic uidTraffic;
+	private static final int TOP_TALKERS = 3;
 
 	private class Package {
 		public PackageInfo info;
 		public boolean selected;
 		public String label;
+		public AppPolicy policy;
 
-		public Package(PackageInfo info, boolean selected, String label) {
+		public Package(PackageInfo info, boolean selected, String label, AppPolicy policy) {
 			this.info = info;
 			this.selected = selected;
 			this.label = label;
+			this.policy = policy;
 		}
 	}
 
@@ -168,30 +182,111 @@ public class AppListActivity extends ListActivity {
 			imageView.setImageDrawable(appinfo.loadIcon(pm));
 			textView.setText(appinfo.loadLabel(pm).toString());
 			packageNameView.setText(pkg.info.packageName);
-			packageUidView.setText(getString(R.string.uid_prefix) + appinfo.uid);
+			packageUidView.setText(getString(R.string.uid_prefix) + appinfo.uid + getTrafficText(appinfo.uid));
 			checkBox.setChecked(pkg.selected);
+			setStatus(proxyStatusView, pkg);
 
-			// Set proxy status text
-			if (isGlobalMode) {
-				// Global mode: selected = excluded, unselected = proxied
-				if (pkg.selected) {
-					proxyStatusView.setText(getString(R.string.app_status_excluded));
-					proxyStatusView.setTextColor(0xFFFF6B6B);
-				} else {
-					proxyStatusView.setText("");
-				}
-			} else {
-				// Per-app mode: selected = proxy only, unselected = bypass
-				if (pkg.selected) {
-					proxyStatusView.setText(getString(R.string.app_status_proxy_only));
-					proxyStatusView.setTextColor(0xFF4CAF50);
-				} else {
-					proxyStatusView.setText("");
-				}
+			return rowView;
+		}
+	}
+
+	private void setStatus(TextView view, Package pkg) {
+		String status = "";
+		if (isGlobalMode) {
+			// Global mode: selected = excluded, unselected = proxied
+			if (pkg.selected) {
+				status = getString(R.string.app_status_excluded);
+				view.setTextColor(0xFFFF6B6B);
+			}
+		} else {
+			// Per-app mode: selected = proxy only, unselected = bypass
+			if (pkg.selected) {
+				status = getString(R.string.app_status_proxy_only);
+				view.setTextColor(0xFF4CAF50);
 			}
+		}
 
-			return rowView;
+		// The policy only matters while the app is inside the tunnel
+		boolean tunneled = isGlobalMode != pkg.selected;
+		if (pkg.policy != null && !pkg.policy.isDefault() && tunneled) {
+			String policy = getPolicyText(pkg.policy);
+			status = status.isEmpty() ? policy : status + " · " + policy;
+			view.setTextColor(pkg.policy.getAction() == AppPolicy.BLOCK ? 0xFFFF6B6B : 0xFF2196F3);
 		}
+		view.setText(status);
+	}
+
+	private String getPolicyText(AppPolicy policy) {
+		String text;
+		switch (policy.getAction()) {
+		case AppPolicy.PROXY:
+			text = getString(R.string.app_policy_proxy);
+			break;
+		case AppPolicy.DIRECT:
+			text = getString(R.string.app_policy_direct);
+			break;
+		case AppPolicy.BLOCK:
+			text = getString(R.string.app_policy_block);
+			break;
+		default:
+			text = "";
+			break;
+		}
+		if (!policy.getProfile().isEmpty())
+		  text = text.isEmpty() ? policy.getProfile() : text + " / " + policy.getProfile();
+		return text;
+	}
+
+	private void showPolicyDialog(final Package pkg, final TextView statusView) {
+		View view = getLayoutInflater().inflate(R.layout.app_policy, null);
+		final RadioGroup actionGroup = (RadioGroup) view.findViewById(R.id.app_policy_action);
+		final EditText profileText = (EditText) view.findViewById(R.id.app_policy_profile);
+		Button editButton = (Button) view.findViewById(R.id.app_policy_edit_profile);
+		final int[] actionIds = { R.id.app_policy_default, R.id.app_policy_proxy,
+		                          R.id.app_policy_direct, R.id.app_policy_block };
+
+		AppPolicy current = pkg.policy;
+		actionGroup.check(actionIds[current == null ? AppPolicy.DEFAULT : current.getAction()]);
+		profileText.setText(current == null ? "" : current.getProfile());
+		editButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				String profile = profileText.getText().toString().trim();
+				if (!AppPolicy.isValidProfile(profile)) {
+					Toast.makeText(AppListActivity.this, R.string.app_policy_invalid_profile, Toast.LENGTH_SHORT).show();
+					return;
+				}
+				Intent intent = new Intent(AppListActivity.this, RuleEditorActivity.class);
+				intent.putExtra(RuleEditorActivity.EXTRA_FILE_NAME,
+					AppPolicy.getProfileFile(getCacheDir(), profile).getName());
+				startActivity(intent);
+			}
+		});
+
+		new AlertDialog.Builder(this)
+			.setTitle(getString(R.string.app_policy_title, pkg.label))
+			.setView(view)
+			.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					String profile = profileText.getText().toString().trim();
+					if (!profile.isEmpty() && !AppPolicy.isValidProfile(profile)) {
+						Toast.makeText(AppListActivity.this, R.string.app_policy_invalid_profile, Toast.LENGTH_SHORT).show();
+						return;
+					}
+					int action = AppPolicy.DEFAULT;
+					for (int i = 0; i < actionIds.length; i++) {
+						if (actionIds[i] == actionGroup.getCheckedRadioButtonId())
+						  action = i;
+					}
+					pkg.policy = new AppPolicy(pkg.info.packageName, action, profile);
+					policies.put(pkg.info.packageName, pkg.policy);
+					setStatus(statusView, pkg);
+					isPolicyChanged = true;
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
 	}
 
 	private void updateStats() {
@@ -199,10 +294,63 @@ public class AppListActivity extends ListActivity {
 			int total = adapter.getAllPackages().size();
 			int visible = adapter.getCount();
 			int selected = adapter.getSelectedCount();
-			statsView.setText(getString(R.string.filter_total) + total + getString(R.string.filter_showing) + visible + getString(R.string.filter_selected) + selected);
+			statsView.setText(getString(R.string.filter_total) + total + getString(R.string.filter_showing) + visible + getString(R.string.filter_selected) + selected + getTopTalkersText() +
+			                  "\n" + getString(R.string.app_policy_hint));
 		}
 	}
 
+	/**
+	 * Load the per-UID counters the service publishes into the shared
+	 * stats region. Leaves uidTraffic null when the tunnel is not running.
+	 */
+	private void loadUidTraffic() {
+		if (!prefs.getEnable())
+		  return;
+		StatsRegion region = StatsRegion.open(getCacheDir());
+		if (region == null)
+		  return;
+		UidTraffic traffic = new UidTraffic(StatsRegion.UID_CAPACITY);
+		int count = region.readUidEntries(traffic.getEntries());
+		if (count <= 0)
+		  return;
+		traffic.aggregate(count);
+		uidTraffic = traffic;
+	}
+
+	private String getTrafficText(int uid) {
+		if (uidTraffic == null)
+		  return "";
+		int idx = uidTraffic.indexOfUid(uid);
+		if (idx < 0)
+		  return "";
+		return "  ↑ " + TrafficFormat.formatBytes(uidTraffic.getTxBytes(idx)) +
+		       "  ↓ " + TrafficFormat.formatBytes(uidTraffic.getRxBytes(idx));
+	}
+
+	private String getTopTalkersText() {
+		if (uidTraffic == null || uidTraffic.getUidCount() == 0)
+		  return "";
+		StringBuilder sb = new StringBuilder("\n").append(getString(R.string.app_traffic_top));
+		int top = Math.min(TOP_TALKERS, uidTraffic.getTopCount());
+		for (int r = 0; r < top; r++) {
+			int i = uidTraffic.getTop(r);
+			int uid = uidTraffic.getUid(i);
+			String label = getString(R.string.uid_prefix) + uid;
+			for (Package p : adapter.getAllPackages()) {
+				if (p.info.applicationInfo.uid == uid) {
+					label = p.label;
+					break;
+				}
+			}
+			if (r > 0)
+			  sb.append(", ");
+			sb.append(label).append(" (")
+			  .append(TrafficFormat.formatBytes(uidTraffic.getTxBytes(i) + uidTraffic.getRxBytes(i)))
+			  .append(")");
+		}
+		return sb.toString();
+	}
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -213,7 +361,11 @@ public class AppListActivity extends ListActivity {
 
 		prefs = new Preferences(this);
 		isGlobalMode = prefs.getGlobal();
+		loadUidTraffic();
 		Set<String> apps = prefs.getApps();
+		policies = new HashMap<String, AppPolicy>();
+		for (AppPolicy policy : prefs.getAppPolicies())
+		  policies.put(policy.getPackageName(), policy);
 		PackageManager pm = getPackageManager();
 		adapter = new AppArrayAdapter(this);
 
@@ -226,7 +378,7 @@ public class AppListActivity extends ListActivity {
 			  continue;
 			boolean selected = apps.contains(info.packageName);
 			String label = info.applicationInfo.loadLabel(pm).toString();
-			Package pkg = new Package(info, selected, label);
+			Package pkg = new Package(info, selected, label, policies.get(info.packageName));
 			adapter.add(pkg);
 		}
 
@@ -246,6 +398,14 @@ public class AppListActivity extends ListActivity {
 		setListAdapter(adapter);
 		updateStats();
 
+		getListView().setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+			@Override
+			public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+				showPolicyDialog(adapter.getItem(position), (TextView) view.findViewById(R.id.proxy_status));
+				return true;
+			}
+		});
+
 		searchBox.addTextChangedListener(new TextWatcher() {
 			@Override
 			public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
@@ -290,6 +450,17 @@ public class AppListActivity extends ListActivity {
 
 			prefs.setApps(apps);
 		}
+		if (isPolicyChanged) {
+			// Packages not listed here keep their policies
+			prefs.setAppPolicies(policies.values());
+			if (prefs.getEnable()) {
+				Intent intent = new Intent(this, TProxyService.class);
+				ArrayList<String> changed = new ArrayList<String>();
+				changed.add(Preferences.APP_POLICIES);
+				intent.putStringArrayListExtra(TProxyService.EXTRA_CHANGED_KEYS, changed);
+				startService(intent.setAction(TProxyService.ACTION_RELOAD));
+			}
+		}
 
 		super.onDestroy();
 	}
@@ -304,23 +475,8 @@ public class AppListActivity extends ListActivity {
 
 		// Update proxy status text
 		TextView proxyStatusView = (TextView) v.findViewById(R.id.proxy_status);
-		if (proxyStatusView != null) {
-			if (isGlobalMode) {
-				if (pkg.selected) {
-					proxyStatusView.setText(getString(R.string.app_status_excluded));
-					proxyStatusView.setTextColor(0xFFFF6B6B);
-				} else {
-					proxyStatusView.setText("");
-				}
-			} else {
-				if (pkg.selected) {
-					proxyStatusView.setText(getString(R.string.app_status_proxy_only));
-					proxyStatusView.setTextColor(0xFF4CAF50);
-				} else {
-					proxyStatusView.setText("");
-				}
-			}
-		}
+		if (proxyStatusView != null)
+			setStatus(proxyStatusView, pkg);
 
 		isChanged = true;
 		updateStats();
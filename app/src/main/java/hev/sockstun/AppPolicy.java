@@ -0,0 +1,117 @@
+/*
+ ============================================================================
+ Name        : AppPolicy.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Per-App Routing Policy
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.File;
+
+/**
+ * Routing policy of one package inside the tunnel: an action that
+ * overrides chnroutes and smart proxy, and an optional ACL profile used
+ * instead of acl.txt for its connections.
+ *
+ * Stored as "package|action|profile" in Preferences.APP_POLICIES; an
+ * empty profile means the global acl.txt.
+ */
+public class AppPolicy {
+	/* Actions, also the values of BinaryConfig.APP_POLICY_ACTION */
+	public static final int DEFAULT = 0;
+	public static final int PROXY = 1;
+	public static final int DIRECT = 2;
+	public static final int BLOCK = 3;
+
+	private static final String[] ACTION_NAMES = { "default", "proxy", "direct", "block" };
+
+	public static final int MAX_PROFILE_LENGTH = 32;
+
+	private final String packageName;
+	private final int action;
+	private final String profile;
+
+	public AppPolicy(String packageName, int action, String profile) {
+		this.packageName = packageName;
+		this.action = action;
+		this.profile = profile == null ? "" : profile;
+	}
+
+	/**
+	 * @return the policy, or null if entry is malformed
+	 */
+	public static AppPolicy parse(String entry) {
+		String[] parts = entry.split("\\|", -1);
+		if (parts.length != 3 || parts[0].isEmpty())
+		  return null;
+		int action = parseAction(parts[1]);
+		if (action < 0)
+		  return null;
+		if (!parts[2].isEmpty() && !isValidProfile(parts[2]))
+		  return null;
+		return new AppPolicy(parts[0], action, parts[2]);
+	}
+
+	@Override
+	public String toString() {
+		return packageName + "|" + ACTION_NAMES[action] + "|" + profile;
+	}
+
+	public static int parseAction(String name) {
+		for (int i = 0; i < ACTION_NAMES.length; i++) {
+			if (ACTION_NAMES[i].equals(name))
+			  return i;
+		}
+		return -1;
+	}
+
+	public static String getActionName(int action) {
+		return ACTION_NAMES[action];
+	}
+
+	/**
+	 * Profile names end up in file names: lowercase letters, digits, '-'
+	 * and '_' only.
+	 */
+	public static boolean isValidProfile(String name) {
+		if (name.isEmpty() || name.length() > MAX_PROFILE_LENGTH)
+		  return false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if ((c < 'a' || c > 'z') && (c < '0' || c > '9') && c != '-' && c != '_')
+			  return false;
+		}
+		return true;
+	}
+
+	/* Rules of profile, edited like acl.txt */
+	public static File getProfileFile(File dir, String profile) {
+		return new File(dir, "acl-" + profile + ".txt");
+	}
+
+	/* Compiled rules of profile, see AclTable */
+	public static File getProfileTableFile(File dir, String profile) {
+		return new File(dir, "acl-" + profile + ".bin");
+	}
+
+	public String getPackageName() {
+		return packageName;
+	}
+
+	public int getAction() {
+		return action;
+	}
+
+	/* The ACL profile, or "" for acl.txt */
+	public String getProfile() {
+		return profile;
+	}
+
+	/* Nothing to store, the app follows the global rules */
+	public boolean isDefault() {
+		return action == DEFAULT && profile.isEmpty();
+	}
+}
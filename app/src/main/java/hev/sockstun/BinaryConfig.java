@@ -0,0 +1,297 @@
+/*
+ ============================================================================
+ Name        : BinaryConfig.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Binary Configuration Encoder
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Compact, versioned binary form of the tunnel configuration, handed to
+ * the native side in a direct ByteBuffer so it can start without a YAML
+ * parser.
+ *
+ * Layout (native byte order):
+ *   0  u32 magic
+ *   4  u16 version
+ *   6  u16 header size
+ *   8  u32 total size
+ *  12  u32 entry count
+ *  16  entries[]:
+ *        u16 key (section << 8 | field)
+ *        u8  type
+ *        u8  reserved
+ *        u32 payload length
+ *        payload, padded to 4 bytes
+ *
+ * TYPE_BOOL and TYPE_INT payloads are an i32; TYPE_STRING is UTF-8
+ * without a terminator. List values (foreign DNS servers, probe ports)
+ * repeat their key once per item, in order. The app-policy lists are
+ * parallel: the n-th APP_POLICY_UID goes with the n-th action and
+ * profile, and a profile is an index into the APP_POLICY_ACL_FILE and
+ * APP_POLICY_ACL_TABLE lists or -1 for the global ACL. Readers skip unknown keys,
+ * so new fields only need a version bump when their meaning changes.
+ */
+public class BinaryConfig {
+	public static final int MAGIC = 0x43545348;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+
+	public static final int TYPE_BOOL = 1;
+	public static final int TYPE_INT = 2;
+	public static final int TYPE_STRING = 3;
+
+	/* tunnel */
+	public static final int TUNNEL_MTU = 0x0101;
+	/* socks5.tcp */
+	public static final int SOCKS5_TCP_PORT = 0x0201;
+	public static final int SOCKS5_TCP_ADDRESS = 0x0202;
+	public static final int SOCKS5_TCP_USERNAME = 0x0203;
+	public static final int SOCKS5_TCP_PASSWORD = 0x0204;
+	/* socks5.udp */
+	public static final int SOCKS5_UDP_PORT = 0x0301;
+	public static final int SOCKS5_UDP_ADDRESS = 0x0302;
+	public static final int SOCKS5_UDP_USERNAME = 0x0303;
+	public static final int SOCKS5_UDP_PASSWORD = 0x0304;
+	public static final int SOCKS5_UDP_RELAY = 0x0305;
+	/* dns-split-tunnel */
+	public static final int DNS_SPLIT_TUNNEL_ENABLED = 0x0401;
+	public static final int DNS_SPLIT_TUNNEL_FOREIGN_DNS = 0x0402;
+	/* dns-forwarder */
+	public static final int DNS_FORWARDER_ENABLED = 0x0501;
+	public static final int DNS_FORWARDER_VIRTUAL_IP4 = 0x0502;
+	public static final int DNS_FORWARDER_TARGET_IP4 = 0x0503;
+	public static final int DNS_FORWARDER_VIRTUAL_IP6 = 0x0504;
+	public static final int DNS_FORWARDER_TARGET_IP6 = 0x0505;
+	/* mapdns */
+	public static final int MAPDNS_ADDRESS = 0x0601;
+	public static final int MAPDNS_ADDRESS6 = 0x0602;
+	public static final int MAPDNS_PORT = 0x0603;
+	public static final int MAPDNS_NETWORK = 0x0604;
+	public static final int MAPDNS_NETMASK = 0x0605;
+	public static final int MAPDNS_NETWORK6 = 0x0606;
+	public static final int MAPDNS_PREFIXLEN = 0x0607;
+	public static final int MAPDNS_CACHE_SIZE = 0x0608;
+	/* dns-latency-optimize */
+	public static final int DNS_LATENCY_OPTIMIZE_ENABLED = 0x0701;
+	public static final int DNS_LATENCY_OPTIMIZE_TIMEOUT_MS = 0x0702;
+	/* smart-proxy */
+	public static final int SMART_PROXY_ENABLED = 0x0801;
+	public static final int SMART_PROXY_TIMEOUT_MS = 0x0802;
+	public static final int SMART_PROXY_BLOCKED_IP_EXPIRY_MINUTES = 0x0803;
+	public static final int SMART_PROXY_PROBE_PORT = 0x0804;
+	/* chnroutes */
+	public static final int CHNROUTES_ENABLED = 0x0901;
+	public static final int CHNROUTES_FILE_PATH = 0x0902;
+	public static final int CHNROUTES_TABLE_PATH = 0x0903;
+	/* acl */
+	public static final int ACL_ENABLED = 0x0a01;
+	public static final int ACL_FILE_PATH = 0x0a02;
+	public static final int ACL_TABLE_PATH = 0x0a03;
+	/* misc */
+	public static final int MISC_TASK_STACK_SIZE = 0x0b01;
+	public static final int MISC_TCP_BUFFER_SIZE = 0x0b02;
+	public static final int MISC_UDP_RECV_BUFFER_SIZE = 0x0b03;
+	public static final int MISC_UDP_COPY_BUFFER_NUMS = 0x0b04;
+	public static final int MISC_MAX_SESSION_COUNT = 0x0b05;
+	public static final int MISC_CONNECT_TIMEOUT = 0x0b06;
+	public static final int MISC_TCP_READ_WRITE_TIMEOUT = 0x0b07;
+	public static final int MISC_UDP_READ_WRITE_TIMEOUT = 0x0b08;
+	public static final int MISC_LOG_FILE = 0x0b09;
+	public static final int MISC_LOG_LEVEL = 0x0b0a;
+	/* app-policy, parallel lists: one UID, action and profile per app */
+	public static final int APP_POLICY_UID = 0x0c01;
+	public static final int APP_POLICY_ACTION = 0x0c02;
+	public static final int APP_POLICY_PROFILE = 0x0c03;
+	public static final int APP_POLICY_ACL_FILE = 0x0c04;
+	public static final int APP_POLICY_ACL_TABLE = 0x0c05;
+
+	/* Sections that can be reloaded as a whole */
+	public static final int SECTION_DNS_SPLIT_TUNNEL = DNS_SPLIT_TUNNEL_ENABLED >> 8;
+	public static final int SECTION_SMART_PROXY = SMART_PROXY_ENABLED >> 8;
+	public static final int SECTION_CHNROUTES = CHNROUTES_ENABLED >> 8;
+	public static final int SECTION_ACL = ACL_ENABLED >> 8;
+	public static final int SECTION_APP_POLICY = APP_POLICY_UID >> 8;
+
+	/* diff() result bit: a changed key can't be applied to a running tunnel */
+	public static final int DIFF_COLD = 1 << 31;
+
+	private static final int ENTRY_HEADER_SIZE = 8;
+
+	private ByteBuffer buffer;
+	private int entryCount;
+
+	public BinaryConfig() {
+		buffer = ByteBuffer.allocate(2048);
+		buffer.order(ByteOrder.nativeOrder());
+		reset();
+	}
+
+	public void reset() {
+		buffer.clear();
+		buffer.position(HEADER_SIZE);
+		entryCount = 0;
+	}
+
+	public void putBool(int key, boolean value) {
+		putEntry(key, TYPE_BOOL, 4);
+		buffer.putInt(value ? 1 : 0);
+	}
+
+	public void putInt(int key, int value) {
+		putEntry(key, TYPE_INT, 4);
+		buffer.putInt(value);
+	}
+
+	public void putString(int key, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		putEntry(key, TYPE_STRING, bytes.length);
+		buffer.put(bytes);
+		while ((buffer.position() & 3) != 0)
+		  buffer.put((byte) 0);
+	}
+
+	private void putEntry(int key, int type, int length) {
+		ensureCapacity(ENTRY_HEADER_SIZE + ((length + 3) & ~3));
+		buffer.putShort((short) key);
+		buffer.put((byte) type);
+		buffer.put((byte) 0);
+		buffer.putInt(length);
+		entryCount++;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (buffer.remaining() >= extra)
+		  return;
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+		grown.order(ByteOrder.nativeOrder());
+		buffer.flip();
+		grown.put(buffer);
+		buffer = grown;
+	}
+
+	/**
+	 * Finish the header and copy the encoded config into a new direct
+	 * buffer, ready for JNI.
+	 */
+	public ByteBuffer toDirectBuffer() {
+		int size = buffer.position();
+		buffer.putInt(0, MAGIC);
+		buffer.putShort(4, (short) VERSION);
+		buffer.putShort(6, (short) HEADER_SIZE);
+		buffer.putInt(8, size);
+		buffer.putInt(12, entryCount);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(size);
+		direct.order(ByteOrder.nativeOrder());
+		ByteBuffer src = buffer.duplicate();
+		src.position(0);
+		src.limit(size);
+		direct.put(src);
+		direct.flip();
+		return direct;
+	}
+
+	public static int sectionOf(int key) {
+		return key >> 8;
+	}
+
+	/**
+	 * Keys the native side can apply with TProxyReloadConfig without
+	 * touching live sessions: whole DNS split-tunnel, smart-proxy,
+	 * chnroutes, ACL and app-policy sections plus the session timeouts.
+	 */
+	public static boolean isHotSwappable(int key) {
+		switch (sectionOf(key)) {
+		case SECTION_DNS_SPLIT_TUNNEL:
+		case SECTION_SMART_PROXY:
+		case SECTION_CHNROUTES:
+		case SECTION_ACL:
+		case SECTION_APP_POLICY:
+			return true;
+		}
+		return key == MISC_CONNECT_TIMEOUT ||
+		       key == MISC_TCP_READ_WRITE_TIMEOUT ||
+		       key == MISC_UDP_READ_WRITE_TIMEOUT;
+	}
+
+	/**
+	 * Compare two encoded configs.
+	 * @return bit (1 << section) set for every section with a changed
+	 *         key, plus DIFF_COLD if any changed key is not hot-swappable
+	 */
+	public static int diff(ByteBuffer a, ByteBuffer b) {
+		HashMap<Integer, List<ByteBuffer>> oldEntries = entries(a);
+		HashMap<Integer, List<ByteBuffer>> newEntries = entries(b);
+		HashSet<Integer> keys = new HashSet<Integer>(oldEntries.keySet());
+		keys.addAll(newEntries.keySet());
+
+		int mask = 0;
+		for (int key : keys) {
+			List<ByteBuffer> o = oldEntries.get(key);
+			List<ByteBuffer> n = newEntries.get(key);
+			if (o != null && o.equals(n))
+			  continue;
+			mask |= 1 << sectionOf(key);
+			if (!isHotSwappable(key))
+			  mask |= DIFF_COLD;
+		}
+		return mask;
+	}
+
+	/* Payloads from entries() are big-endian slices, values are native */
+	public static int intValue(ByteBuffer payload) {
+		return payload.duplicate().order(ByteOrder.nativeOrder()).getInt(0);
+	}
+
+	public static String stringValue(ByteBuffer payload) {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Payloads of each key, in order. A malformed buffer yields no
+	 * entries, which makes every key of the other side differ.
+	 */
+	static HashMap<Integer, List<ByteBuffer>> entries(ByteBuffer config) {
+		HashMap<Integer, List<ByteBuffer>> map = new HashMap<Integer, List<ByteBuffer>>();
+		ByteBuffer buf = config.duplicate();
+		buf.order(ByteOrder.nativeOrder());
+		int size = buf.limit();
+		if (size < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getShort(4) != VERSION)
+		  return map;
+
+		int pos = buf.getShort(6);
+		while (pos + ENTRY_HEADER_SIZE <= size) {
+			int key = buf.getShort(pos) & 0xffff;
+			int length = buf.getInt(pos + 4);
+			int start = pos + ENTRY_HEADER_SIZE;
+			if (length < 0 || start + length > size)
+			  break;
+
+			ByteBuffer payload = buf.duplicate();
+			payload.position(start);
+			payload.limit(start + length);
+			List<ByteBuffer> list = map.get(key);
+			if (list == null) {
+				list = new ArrayList<ByteBuffer>();
+				map.put(key, list);
+			}
+			list.add(payload.slice());
+			pos = start + ((length + 3) & ~3);
+		}
+		return map;
+	}
+}
@@ -3,30 +3,54 @@
  Name        : ConfigGenerator.java
  Author      : hev <r@hev.cc>
  Copyright   : Copyright (c) 2024 xyz
- Description : YAML Configuration Generator for hev-socks5-tunnel
+ Description : Configuration Generator for hev-socks5-tunnel
  ============================================================================
  */
 
 package hev.sockstun;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
- * Generates YAML configuration for hev-socks5-tunnel.
- * This class handles all configuration file generation logic.
+ * Generates configuration for hev-socks5-tunnel.
+ * The tunnel is started from the binary form (see BinaryConfig); YAML
+ * remains for older native libraries and for display/export.
  */
 public class ConfigGenerator {
 
-    private final Preferences prefs;
+    /* First line of a written config file, followed by its hash */
+    public static final String HASH_PREFIX = "# sha256: ";
+
+    private final Settings settings;
     private final File logFile;
     private final File cacheDir;
     private final StringBuilder config;
+    private final BinaryConfig binary;
+    private UidPolicyTable uidPolicies = UidPolicyTable.EMPTY;
+    private String hash;
 
-    public ConfigGenerator(Preferences prefs, File logFile, File cacheDir) {
-        this.prefs = prefs;
+    public ConfigGenerator(Settings settings, File logFile, File cacheDir) {
+        this.settings = settings;
         this.logFile = logFile;
         this.cacheDir = cacheDir;
         this.config = new StringBuilder();
+        this.binary = new BinaryConfig();
+    }
+
+    /**
+     * Per-app policies to emit, resolved by the caller since UIDs need a
+     * PackageManager. Without them the app-policy section is empty.
+     */
+    public void setUidPolicies(UidPolicyTable uidPolicies) {
+        this.uidPolicies = uidPolicies;
     }
 
     /**
@@ -45,14 +69,220 @@ public class ConfigGenerator {
         appendSmartProxySection();
         appendChnroutesSection();
         appendAclSection();
+        appendAppPolicySection();
         appendMiscSection();
 
-        return config.toString();
+        String yaml = config.toString();
+        hash = sha256(yaml.getBytes(StandardCharsets.UTF_8));
+        return yaml;
+    }
+
+    /**
+     * Content hash of the last generate() output.
+     * @return lowercase hex SHA-256, or null before generate()
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Generate the YAML configuration and write it to file, prefixed by a
+     * HASH_PREFIX line. An existing file with the same hash is left alone;
+     * otherwise the new content goes to a temp file that is synced and
+     * renamed over the old one, so readers never see a partial config.
+     * @return true if the file was rewritten
+     */
+    public boolean writeIfChanged(File file) throws IOException {
+        byte[] content = generate().getBytes(StandardCharsets.UTF_8);
+        String header = HASH_PREFIX + hash;
+        if (header.equals(readFirstLine(file))) {
+            return false;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp, false);
+        try {
+            fos.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+            fos.write(content);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename " + tmp + " failed");
+        }
+        return true;
+    }
+
+    private static String readFirstLine(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md.digest(data);
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+              .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generate the binary configuration with the same content as generate().
+     * @return direct buffer in BinaryConfig layout
+     */
+    public ByteBuffer generateBinary() {
+        binary.reset();
+
+        binary.putInt(BinaryConfig.TUNNEL_MTU, settings.getTunnelMtu());
+
+        binary.putInt(BinaryConfig.SOCKS5_TCP_PORT, settings.getSocksPort());
+        binary.putString(BinaryConfig.SOCKS5_TCP_ADDRESS, settings.getSocksAddress());
+        putAuthentication(BinaryConfig.SOCKS5_TCP_USERNAME, BinaryConfig.SOCKS5_TCP_PASSWORD,
+                          settings.getSocksUsername(), settings.getSocksPassword());
+        binary.putString(BinaryConfig.SOCKS5_UDP_ADDRESS, getUdpAddress());
+        binary.putInt(BinaryConfig.SOCKS5_UDP_PORT, getUdpPort());
+        binary.putString(BinaryConfig.SOCKS5_UDP_RELAY, getUdpRelay());
+        putAuthentication(BinaryConfig.SOCKS5_UDP_USERNAME, BinaryConfig.SOCKS5_UDP_PASSWORD,
+                          getUdpUsername(), getUdpPassword());
+
+        binary.putBool(BinaryConfig.DNS_SPLIT_TUNNEL_ENABLED, settings.getDnsSplitTunnelEnabled());
+        for (String server : settings.getDnsForeignServersList()) {
+            if (!server.isEmpty()) {
+                binary.putString(BinaryConfig.DNS_SPLIT_TUNNEL_FOREIGN_DNS, server);
+            }
+        }
+
+        binary.putBool(BinaryConfig.DNS_FORWARDER_ENABLED, settings.getDnsForwarderEnabled());
+        if (!settings.getDnsVirtualIp4().isEmpty() && !settings.getDnsTargetIp4().isEmpty()) {
+            binary.putString(BinaryConfig.DNS_FORWARDER_VIRTUAL_IP4, settings.getDnsVirtualIp4());
+            binary.putString(BinaryConfig.DNS_FORWARDER_TARGET_IP4, settings.getDnsTargetIp4());
+        }
+        if (!settings.getDnsVirtualIp6().isEmpty() && !settings.getDnsTargetIp6().isEmpty()) {
+            binary.putString(BinaryConfig.DNS_FORWARDER_VIRTUAL_IP6, settings.getDnsVirtualIp6());
+            binary.putString(BinaryConfig.DNS_FORWARDER_TARGET_IP6, settings.getDnsTargetIp6());
+        }
+
+        binary.putString(BinaryConfig.MAPDNS_ADDRESS, settings.getMapdnsAddress());
+        binary.putString(BinaryConfig.MAPDNS_ADDRESS6, settings.getMapdnsAddress6());
+        binary.putInt(BinaryConfig.MAPDNS_PORT, settings.getMapdnsPort());
+        binary.putString(BinaryConfig.MAPDNS_NETWORK, settings.getMapdnsNetwork());
+        binary.putString(BinaryConfig.MAPDNS_NETMASK, settings.getMapdnsNetmask());
+        binary.putString(BinaryConfig.MAPDNS_NETWORK6, settings.getMapdnsNetwork6());
+        binary.putInt(BinaryConfig.MAPDNS_PREFIXLEN, settings.getMapdnsPrefixlen());
+        binary.putInt(BinaryConfig.MAPDNS_CACHE_SIZE, settings.getMapdnsCacheSize());
+
+        binary.putBool(BinaryConfig.DNS_LATENCY_OPTIMIZE_ENABLED, settings.getDnsLatencyOptimizeEnabled());
+        binary.putInt(BinaryConfig.DNS_LATENCY_OPTIMIZE_TIMEOUT_MS, settings.getDnsLatencyOptimizeTimeout());
+
+        binary.putBool(BinaryConfig.SMART_PROXY_ENABLED, settings.getSmartProxyEnabled());
+        binary.putInt(BinaryConfig.SMART_PROXY_TIMEOUT_MS, settings.getSmartProxyTimeout());
+        binary.putInt(BinaryConfig.SMART_PROXY_BLOCKED_IP_EXPIRY_MINUTES, settings.getSmartProxyBlockedIpExpiry());
+        for (int port : settings.getSmartProxyProbePortsList()) {
+            binary.putInt(BinaryConfig.SMART_PROXY_PROBE_PORT, port);
+        }
+
+        binary.putBool(BinaryConfig.CHNROUTES_ENABLED, settings.getChnroutesEnabled());
+        binary.putString(BinaryConfig.CHNROUTES_FILE_PATH, new File(cacheDir, "chnroutes.txt").getAbsolutePath());
+        binary.putString(BinaryConfig.CHNROUTES_TABLE_PATH, new File(cacheDir, RouteTable.FILE_NAME).getAbsolutePath());
+        binary.putBool(BinaryConfig.ACL_ENABLED, settings.getAclEnabled());
+        binary.putString(BinaryConfig.ACL_FILE_PATH, new File(cacheDir, "acl.txt").getAbsolutePath());
+        binary.putString(BinaryConfig.ACL_TABLE_PATH, new File(cacheDir, AclTable.FILE_NAME).getAbsolutePath());
+
+        for (int i = 0; i < uidPolicies.size(); i++) {
+            binary.putInt(BinaryConfig.APP_POLICY_UID, uidPolicies.getUid(i));
+            binary.putInt(BinaryConfig.APP_POLICY_ACTION, uidPolicies.getAction(i));
+            binary.putInt(BinaryConfig.APP_POLICY_PROFILE, uidPolicies.getProfileIndex(i));
+        }
+        for (String profile : uidPolicies.getProfiles()) {
+            binary.putString(BinaryConfig.APP_POLICY_ACL_FILE, AppPolicy.getProfileFile(cacheDir, profile).getAbsolutePath());
+            binary.putString(BinaryConfig.APP_POLICY_ACL_TABLE, AppPolicy.getProfileTableFile(cacheDir, profile).getAbsolutePath());
+        }
+
+        binary.putInt(BinaryConfig.MISC_TASK_STACK_SIZE, settings.getTaskStackSize());
+        binary.putInt(BinaryConfig.MISC_TCP_BUFFER_SIZE, settings.getTcpBufferSize());
+        binary.putInt(BinaryConfig.MISC_UDP_RECV_BUFFER_SIZE, settings.getUdpRecvBufferSize());
+        binary.putInt(BinaryConfig.MISC_UDP_COPY_BUFFER_NUMS, settings.getUdpCopyBufferNums());
+        if (settings.getMaxSessionCount() > 0) {
+            binary.putInt(BinaryConfig.MISC_MAX_SESSION_COUNT, settings.getMaxSessionCount());
+        }
+        binary.putInt(BinaryConfig.MISC_CONNECT_TIMEOUT, settings.getConnectTimeout());
+        binary.putInt(BinaryConfig.MISC_TCP_READ_WRITE_TIMEOUT, settings.getTcpReadWriteTimeout());
+        binary.putInt(BinaryConfig.MISC_UDP_READ_WRITE_TIMEOUT, settings.getUdpReadWriteTimeout());
+        binary.putString(BinaryConfig.MISC_LOG_FILE, logFile.getAbsolutePath());
+        binary.putString(BinaryConfig.MISC_LOG_LEVEL, settings.getLogLevel());
+
+        return binary.toDirectBuffer();
+    }
+
+    /**
+     * Put authentication if both username and password are provided.
+     */
+    private void putAuthentication(int userKey, int passKey, String username, String password) {
+        if (!username.isEmpty() && !password.isEmpty()) {
+            binary.putString(userKey, username);
+            binary.putString(passKey, password);
+        }
+    }
+
+    // UDP address (fallback to TCP address if not set)
+    private String getUdpAddress() {
+        String udpAddr = settings.getSocksUdpAddress();
+        if (udpAddr.isEmpty()) {
+            udpAddr = settings.getSocksAddress();
+        }
+        return udpAddr;
+    }
+
+    // UDP port (fallback to TCP port if not set)
+    private int getUdpPort() {
+        int udpPort = settings.getSocksUdpPort();
+        if (udpPort == 0) {
+            udpPort = settings.getSocksPort();
+        }
+        return udpPort;
+    }
+
+    private String getUdpRelay() {
+        return settings.getUdpInTcp() ? "tcp" : "udp";
+    }
+
+    // UDP authentication (use TCP credentials if not set)
+    private boolean hasUdpCredentials() {
+        return !settings.getSocksUdpUsername().isEmpty() || !settings.getSocksUdpPassword().isEmpty();
+    }
+
+    private String getUdpUsername() {
+        return hasUdpCredentials() ? settings.getSocksUdpUsername() : settings.getSocksUsername();
+    }
+
+    private String getUdpPassword() {
+        return hasUdpCredentials() ? settings.getSocksUdpPassword() : settings.getSocksPassword();
     }
 
     private void appendTunnelSection() {
         config.append("tunnel:\n");
-        config.append("  mtu: ").append(prefs.getTunnelMtu()).append("\n");
+        config.append("  mtu: ").append(settings.getTunnelMtu()).append("\n");
     }
 
     private void appendSocks5Section() {
@@ -64,41 +294,18 @@ public class ConfigGenerator {
 
     private void appendTcpConfig() {
         config.append("  tcp:\n");
-        config.append("    port: ").append(prefs.getSocksPort()).append("\n");
-        config.append("    address: '").append(prefs.getSocksAddress()).append("'");
+        config.append("    port: ").append(settings.getSocksPort()).append("\n");
+        config.append("    address: '").append(settings.getSocksAddress()).append("'");
 
-        appendAuthentication(prefs.getSocksUsername(), prefs.getSocksPassword());
+        appendAuthentication(settings.getSocksUsername(), settings.getSocksPassword());
     }
 
     private void appendUdpConfig() {
         config.append("  udp:\n");
-
-        // UDP address (fallback to TCP address if not set)
-        String udpAddr = prefs.getSocksUdpAddress();
-        if (udpAddr.isEmpty()) {
-            udpAddr = prefs.getSocksAddress();
-        }
-        config.append("    address: '").append(udpAddr).append("'\n");
-
-        // UDP port (fallback to TCP port if not set)
-        int udpPort = prefs.getSocksUdpPort();
-        if (udpPort == 0) {
-            udpPort = prefs.getSocksPort();
-        }
-        config.append("    port: ").append(udpPort).append("\n");
-
-        // UDP relay mode
-        String udpRelay = prefs.getUdpInTcp() ? "tcp" : "udp";
-        config.append("    udp-relay: '").append(udpRelay).append("'");
-
-        // UDP authentication (use TCP credentials if not set)
-        String udpUser = prefs.getSocksUdpUsername();
-        String udpPass = prefs.getSocksUdpPassword();
-        if (udpUser.isEmpty() && udpPass.isEmpty()) {
-            udpUser = prefs.getSocksUsername();
-            udpPass = prefs.getSocksPassword();
-        }
-        appendAuthentication(udpUser, udpPass);
+        config.append("    address: '").append(getUdpAddress()).append("'\n");
+        config.append("    port: ").append(getUdpPort()).append("\n");
+        config.append("    udp-relay: '").append(getUdpRelay()).append("'");
+        appendAuthentication(getUdpUsername(), getUdpPassword());
     }
 
     /**
@@ -115,11 +322,11 @@ public class ConfigGenerator {
 
     private void appendDnsSplitTunnelSection() {
         config.append("dns-split-tunnel:\n");
-        config.append("  enabled: ").append(prefs.getDnsSplitTunnelEnabled() ? "true" : "false").append("\n");
+        config.append("  enabled: ").append(settings.getDnsSplitTunnelEnabled() ? "true" : "false").append("\n");
         config.append("  foreign-dns:\n");
 
         // Get DNS servers list (can contain both IPv4 and IPv6)
-        java.util.List<String> servers = prefs.getDnsForeignServersList();
+        java.util.List<String> servers = settings.getDnsForeignServersList();
         for (String server : servers) {
             if (!server.isEmpty()) {
                 config.append("    - \"").append(server).append("\"\n");
@@ -129,13 +336,13 @@ public class ConfigGenerator {
 
     private void appendDnsForwarderSection() {
         config.append("dns-forwarder:\n");
-        config.append("  enabled: ").append(prefs.getDnsForwarderEnabled() ? "true" : "false").append("\n");
+        config.append("  enabled: ").append(settings.getDnsForwarderEnabled() ? "true" : "false").append("\n");
 
         // Check if any dns-forwarder options are set
-        String virtualIp4 = prefs.getDnsVirtualIp4();
-        String virtualIp6 = prefs.getDnsVirtualIp6();
-        String targetIp4 = prefs.getDnsTargetIp4();
-        String targetIp6 = prefs.getDnsTargetIp6();
+        String virtualIp4 = settings.getDnsVirtualIp4();
+        String virtualIp6 = settings.getDnsVirtualIp6();
+        String targetIp4 = settings.getDnsTargetIp4();
+        String targetIp6 = settings.getDnsTargetIp6();
 
         // IPv4 pair - both must be set
         if (!virtualIp4.isEmpty() && !targetIp4.isEmpty()) {
@@ -152,29 +359,29 @@ public class ConfigGenerator {
 
     private void appendMapdnsSection() {
         config.append("mapdns:\n");
-        config.append("  address: ").append(prefs.getMapdnsAddress()).append("\n");
-        config.append("  address6: '").append(prefs.getMapdnsAddress6()).append("'\n");
-        config.append("  port: ").append(prefs.getMapdnsPort()).append("\n");
-        config.append("  network: ").append(prefs.getMapdnsNetwork()).append("\n");
-        config.append("  netmask: ").append(prefs.getMapdnsNetmask()).append("\n");
-        config.append("  network6: '").append(prefs.getMapdnsNetwork6()).append("'\n");
-        config.append("  prefixlen: ").append(prefs.getMapdnsPrefixlen()).append("\n");
-        config.append("  cache-size: ").append(prefs.getMapdnsCacheSize()).append("\n");
+        config.append("  address: ").append(settings.getMapdnsAddress()).append("\n");
+        config.append("  address6: '").append(settings.getMapdnsAddress6()).append("'\n");
+        config.append("  port: ").append(settings.getMapdnsPort()).append("\n");
+        config.append("  network: ").append(settings.getMapdnsNetwork()).append("\n");
+        config.append("  netmask: ").append(settings.getMapdnsNetmask()).append("\n");
+        config.append("  network6: '").append(settings.getMapdnsNetwork6()).append("'\n");
+        config.append("  prefixlen: ").append(settings.getMapdnsPrefixlen()).append("\n");
+        config.append("  cache-size: ").append(settings.getMapdnsCacheSize()).append("\n");
     }
 
     private void appendDnsLatencyOptimizeSection() {
         config.append("dns-latency-optimize:\n");
-        config.append("  enabled: ").append(prefs.getDnsLatencyOptimizeEnabled() ? "true" : "false").append("\n");
-        config.append("  timeout-ms: ").append(prefs.getDnsLatencyOptimizeTimeout()).append("\n");
+        config.append("  enabled: ").append(settings.getDnsLatencyOptimizeEnabled() ? "true" : "false").append("\n");
+        config.append("  timeout-ms: ").append(settings.getDnsLatencyOptimizeTimeout()).append("\n");
     }
 
     private void appendSmartProxySection() {
         config.append("smart-proxy:\n");
-        config.append("  enabled: ").append(prefs.getSmartProxyEnabled() ? "true" : "false").append("\n");
-        config.append("  timeout-ms: ").append(prefs.getSmartProxyTimeout()).append("\n");
-        config.append("  blocked-ip-expiry-minutes: ").append(prefs.getSmartProxyBlockedIpExpiry()).append("\n");
+        config.append("  enabled: ").append(settings.getSmartProxyEnabled() ? "true" : "false").append("\n");
+        config.append("  timeout-ms: ").append(settings.getSmartProxyTimeout()).append("\n");
+        config.append("  blocked-ip-expiry-minutes: ").append(settings.getSmartProxyBlockedIpExpiry()).append("\n");
         config.append("  probe-ports:\n");
-        java.util.List<Integer> ports = prefs.getSmartProxyProbePortsList();
+        java.util.List<Integer> ports = settings.getSmartProxyProbePortsList();
         for (int port : ports) {
             config.append("    - ").append(port).append("\n");
         }
@@ -182,44 +389,63 @@ public class ConfigGenerator {
 
     private void appendChnroutesSection() {
         config.append("chnroutes:\n");
-        config.append("  enabled: ").append(prefs.getChnroutesEnabled() ? "true" : "false").append("\n");
+        config.append("  enabled: ").append(settings.getChnroutesEnabled() ? "true" : "false").append("\n");
         config.append("  file-path: \"").append(new File(cacheDir, "chnroutes.txt").getAbsolutePath()).append("\"\n");
+        config.append("  table-path: \"").append(new File(cacheDir, RouteTable.FILE_NAME).getAbsolutePath()).append("\"\n");
     }
 
     private void appendAclSection() {
         config.append("acl:\n");
-        config.append("  enabled: ").append(prefs.getAclEnabled() ? "true" : "false").append("\n");
+        config.append("  enabled: ").append(settings.getAclEnabled() ? "true" : "false").append("\n");
         config.append("  file-path: \"").append(new File(cacheDir, "acl.txt").getAbsolutePath()).append("\"\n");
+        config.append("  table-path: \"").append(new File(cacheDir, AclTable.FILE_NAME).getAbsolutePath()).append("\"\n");
+    }
+
+    private void appendAppPolicySection() {
+        if (uidPolicies.size() == 0) {
+            return;
+        }
+        config.append("app-policy:\n");
+        for (int i = 0; i < uidPolicies.size(); i++) {
+            config.append("  - uid: ").append(uidPolicies.getUid(i)).append("\n");
+            config.append("    action: ").append(AppPolicy.getActionName(uidPolicies.getAction(i))).append("\n");
+            int profile = uidPolicies.getProfileIndex(i);
+            if (profile >= 0) {
+                String name = uidPolicies.getProfiles().get(profile);
+                config.append("    acl-file-path: \"").append(AppPolicy.getProfileFile(cacheDir, name).getAbsolutePath()).append("\"\n");
+                config.append("    acl-table-path: \"").append(AppPolicy.getProfileTableFile(cacheDir, name).getAbsolutePath()).append("\"\n");
+            }
+        }
     }
 
     private void appendMiscSection() {
         config.append("misc:\n");
-        config.append("  task-stack-size: ").append(prefs.getTaskStackSize()).append("\n");
+        config.append("  task-stack-size: ").append(settings.getTaskStackSize()).append("\n");
 
-        config.append("  tcp-buffer-size: ").append(prefs.getTcpBufferSize()).append("\n");
-        config.append("  udp-recv-buffer-size: ").append(prefs.getUdpRecvBufferSize()).append("\n");
-        config.append("  udp-copy-buffer-nums: ").append(prefs.getUdpCopyBufferNums()).append("\n");
+        config.append("  tcp-buffer-size: ").append(settings.getTcpBufferSize()).append("\n");
+        config.append("  udp-recv-buffer-size: ").append(settings.getUdpRecvBufferSize()).append("\n");
+        config.append("  udp-copy-buffer-nums: ").append(settings.getUdpCopyBufferNums()).append("\n");
 
-        int maxSessionCount = prefs.getMaxSessionCount();
+        int maxSessionCount = settings.getMaxSessionCount();
         if (maxSessionCount > 0) {
             config.append("  max-session-count: ").append(maxSessionCount).append("\n");
         }
 
-        config.append("  connect-timeout: ").append(prefs.getConnectTimeout()).append("\n");
-        config.append("  tcp-read-write-timeout: ").append(prefs.getTcpReadWriteTimeout()).append("\n");
-        config.append("  udp-read-write-timeout: ").append(prefs.getUdpReadWriteTimeout()).append("\n");
+        config.append("  connect-timeout: ").append(settings.getConnectTimeout()).append("\n");
+        config.append("  tcp-read-write-timeout: ").append(settings.getTcpReadWriteTimeout()).append("\n");
+        config.append("  udp-read-write-timeout: ").append(settings.getUdpReadWriteTimeout()).append("\n");
 
         config.append("  log-file: '").append(logFile.getAbsolutePath()).append("'\n");
-        config.append("  log-level: ").append(prefs.getLogLevel()).append("\n");
+        config.append("  log-level: ").append(settings.getLogLevel()).append("\n");
 
         // PID File: Not supported on Android
-        // String pidFile = prefs.getPidFile();
+        // String pidFile = settings.getPidFile();
         // if (!pidFile.isEmpty()) {
         //     config.append("  pid-file: '").append(pidFile).append("'\n");
         // }
 
         // Limit Nofile: Limited by Android sandbox
-        // int limitNofile = prefs.getLimitNofile();
+        // int limitNofile = settings.getLimitNofile();
         // if (limitNofile > 0) {
         //     config.append("  limit-nofile: ").append(limitNofile).append("\n");
         // }
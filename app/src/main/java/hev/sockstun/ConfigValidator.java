@@ -0,0 +1,734 @@
+/*
+ ============================================================================
+ Name        : ConfigValidator.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Pre-start Configuration Validator
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Checks the generated binary config and the rule files it points at
+ * before the native tunnel is started, so a bad setting is reported
+ * with its source instead of failing inside the tunnel.
+ *
+ * Only local checks are done (no DNS lookups, no connects); a full run
+ * over the bundled chnroutes.txt takes a few milliseconds, so it is
+ * cheap enough for every save.
+ */
+public class ConfigValidator {
+	public static final int MIN_MTU = 576;
+	public static final int MIN_MTU_IPV6 = 1280;
+	public static final int MAX_MTU = 65535;
+	public static final int MAX_KERNEL_BYPASS_BUDGET = 10000;
+
+	/* Per-file cap, the rest is summarized in one diagnostic */
+	private static final int MAX_FILE_DIAGNOSTICS = 20;
+
+	public static class Diagnostic {
+		public static final int WARNING = 1;
+		public static final int ERROR = 2;
+
+		public final int severity;
+		/* YAML key path or rule file name */
+		public final String source;
+		/* 1-based line in a rule file, 0 for settings */
+		public final int line;
+		public final String message;
+
+		Diagnostic(int severity, String source, int line, String message) {
+			this.severity = severity;
+			this.source = source;
+			this.line = line;
+			this.message = message;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(severity == ERROR ? "E " : "W ").append(source);
+			if (line > 0)
+			  sb.append(':').append(line);
+			return sb.append(": ").append(message).toString();
+		}
+	}
+
+	public static class Result {
+		private final ArrayList<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+		private int errorCount;
+
+		public List<Diagnostic> getDiagnostics() {
+			return diagnostics;
+		}
+
+		public boolean hasErrors() {
+			return errorCount > 0;
+		}
+
+		public int getErrorCount() {
+			return errorCount;
+		}
+
+		/**
+		 * @return the first error, or null if there is none
+		 */
+		public Diagnostic getFirstError() {
+			for (Diagnostic d : diagnostics) {
+				if (d.severity == Diagnostic.ERROR)
+				  return d;
+			}
+			return null;
+		}
+
+		void add(Diagnostic d) {
+			diagnostics.add(d);
+			if (d.severity == Diagnostic.ERROR)
+			  errorCount++;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Diagnostic d : diagnostics) {
+				if (sb.length() > 0)
+				  sb.append('\n');
+				sb.append(d);
+			}
+			return sb.toString();
+		}
+	}
+
+	private final Settings settings;
+	private Result result;
+	private HashMap<Integer, List<ByteBuffer>> entries;
+
+	public ConfigValidator(Settings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Validate a config produced by ConfigGenerator.generateBinary() for
+	 * the same settings, including the enabled rule files.
+	 */
+	public Result validate(ByteBuffer config) {
+		result = new Result();
+		entries = BinaryConfig.entries(config);
+		if (entries.isEmpty()) {
+			error("config", "malformed binary config");
+			return result;
+		}
+
+		checkTunnel();
+		checkSocks5();
+		checkDns();
+		checkMapdns();
+		checkTimeouts();
+		checkKernelBypass();
+
+		if (getBool(BinaryConfig.CHNROUTES_ENABLED))
+		  checkChnroutes(new File(getString(BinaryConfig.CHNROUTES_FILE_PATH)));
+		if (getBool(BinaryConfig.ACL_ENABLED))
+		  checkAcl(new File(getString(BinaryConfig.ACL_FILE_PATH)));
+		checkAppPolicy();
+
+		Result r = result;
+		result = null;
+		entries = null;
+		return r;
+	}
+
+	private void checkTunnel() {
+		if (!settings.getIpv4() && !settings.getIpv6())
+		  error("tunnel", "neither IPv4 nor IPv6 is enabled");
+
+		int mtu = getInt(BinaryConfig.TUNNEL_MTU);
+		int min = settings.getIpv6() ? MIN_MTU_IPV6 : MIN_MTU;
+		if (mtu < min || mtu > MAX_MTU)
+		  error("tunnel.mtu", "MTU " + mtu + " is outside " + min + ".." + MAX_MTU);
+		else if (getInt(BinaryConfig.MISC_UDP_RECV_BUFFER_SIZE) < mtu)
+		  warning("misc.udp-recv-buffer-size", "smaller than the MTU, large UDP datagrams will be dropped");
+
+		positive(BinaryConfig.MISC_TASK_STACK_SIZE, "misc.task-stack-size");
+		positive(BinaryConfig.MISC_TCP_BUFFER_SIZE, "misc.tcp-buffer-size");
+		positive(BinaryConfig.MISC_UDP_RECV_BUFFER_SIZE, "misc.udp-recv-buffer-size");
+		positive(BinaryConfig.MISC_UDP_COPY_BUFFER_NUMS, "misc.udp-copy-buffer-nums");
+		positive(BinaryConfig.MISC_MAX_SESSION_COUNT, "misc.max-session-count");
+
+		int metricsPort = settings.getMetricsPort();
+		if (metricsPort < 0 || metricsPort > 65535)
+		  error("metrics-port", "port " + metricsPort + " is out of range");
+	}
+
+	private void checkSocks5() {
+		checkEndpoint("socks5.tcp", getString(BinaryConfig.SOCKS5_TCP_ADDRESS),
+		              getInt(BinaryConfig.SOCKS5_TCP_PORT));
+		checkEndpoint("socks5.udp", getString(BinaryConfig.SOCKS5_UDP_ADDRESS),
+		              getInt(BinaryConfig.SOCKS5_UDP_PORT));
+	}
+
+	/**
+	 * The server must be a literal or a host name, and must not be an
+	 * address the tunnel itself answers for, or every packet to it would
+	 * loop back into the TUN.
+	 */
+	private void checkEndpoint(String source, String address, int port) {
+		if (port < 1 || port > 65535)
+		  error(source + ".port", "port " + port + " is out of range");
+		if (address.isEmpty()) {
+			error(source + ".address", "server address is empty");
+			return;
+		}
+
+		long v4 = parseIpv4(address);
+		byte[] v6 = v4 < 0 ? parseIpv6(address) : null;
+		if (v4 < 0 && v6 == null) {
+			if (!isHostName(address))
+			  error(source + ".address", "'" + address + "' is not an IP address or host name");
+			return;
+		}
+		if (v4 >= 0 && (v4 == parseIpv4(settings.getTunnelIpv4Address()) ||
+		                v4 == parseIpv4(settings.getMapdnsAddress()) || inMapdnsNetwork(v4)))
+		  error(source + ".address", address + " is routed back into the tunnel");
+		if (v6 != null && (sameAddress(v6, parseIpv6(settings.getTunnelIpv6Address())) ||
+		                   inMapdnsNetwork6(v6)))
+		  error(source + ".address", address + " is routed back into the tunnel");
+	}
+
+	private void checkDns() {
+		// Handed to VpnService.Builder, which throws on a bad address
+		if (!settings.getRemoteDns()) {
+			if (settings.getIpv4() && !settings.getDnsIpv4().isEmpty() && parseIpv4(settings.getDnsIpv4()) < 0)
+			  error("dns.ipv4", "'" + settings.getDnsIpv4() + "' is not an IPv4 address");
+			if (settings.getIpv6() && !settings.getDnsIpv6().isEmpty() && parseIpv6(settings.getDnsIpv6()) == null)
+			  error("dns.ipv6", "'" + settings.getDnsIpv6() + "' is not an IPv6 address");
+		}
+
+		if (getBool(BinaryConfig.DNS_SPLIT_TUNNEL_ENABLED)) {
+			List<ByteBuffer> servers = entries.get(BinaryConfig.DNS_SPLIT_TUNNEL_FOREIGN_DNS);
+			if (servers == null) {
+				warning("dns-split-tunnel.foreign-dns", "enabled without any server");
+			} else {
+				for (ByteBuffer b : servers) {
+					String server = BinaryConfig.stringValue(b);
+					if (parseIpv4(server) < 0 && parseIpv6(server) == null)
+					  error("dns-split-tunnel.foreign-dns", "'" + server + "' is not an IP address");
+				}
+			}
+		}
+
+		if (getBool(BinaryConfig.DNS_FORWARDER_ENABLED)) {
+			checkIpv4(BinaryConfig.DNS_FORWARDER_VIRTUAL_IP4, "dns-forwarder.virtual-ip4");
+			checkIpv4(BinaryConfig.DNS_FORWARDER_TARGET_IP4, "dns-forwarder.target-ip4");
+			checkIpv6(BinaryConfig.DNS_FORWARDER_VIRTUAL_IP6, "dns-forwarder.virtual-ip6");
+			checkIpv6(BinaryConfig.DNS_FORWARDER_TARGET_IP6, "dns-forwarder.target-ip6");
+		}
+	}
+
+	private void checkMapdns() {
+		long address = checkIpv4(BinaryConfig.MAPDNS_ADDRESS, "mapdns.address");
+		int port = getInt(BinaryConfig.MAPDNS_PORT);
+		if (port < 1 || port > 65535)
+		  error("mapdns.port", "port " + port + " is out of range");
+		positive(BinaryConfig.MAPDNS_CACHE_SIZE, "mapdns.cache-size");
+
+		long network = checkIpv4(BinaryConfig.MAPDNS_NETWORK, "mapdns.network");
+		long netmask = checkIpv4(BinaryConfig.MAPDNS_NETMASK, "mapdns.netmask");
+		if (netmask >= 0 && !isContiguousMask(netmask)) {
+			error("mapdns.netmask", getString(BinaryConfig.MAPDNS_NETMASK) + " is not a contiguous netmask");
+		} else if (network >= 0 && netmask >= 0) {
+			if ((network & ~netmask & 0xffffffffL) != 0)
+			  warning("mapdns.network", "host bits are set for this netmask");
+			long tunnel = parseIpv4(settings.getTunnelIpv4Address());
+			if (settings.getIpv4() && inMapdnsNetwork(tunnel))
+			  error("mapdns.network", "overlaps the tunnel address " + settings.getTunnelIpv4Address());
+			if (address >= 0 && inMapdnsNetwork(address))
+			  error("mapdns.network", "contains the mapdns address itself");
+		}
+
+		String address6 = getString(BinaryConfig.MAPDNS_ADDRESS6);
+		if (!address6.isEmpty() && parseIpv6(address6) == null)
+		  error("mapdns.address6", "'" + address6 + "' is not an IPv6 address");
+		int prefixlen = getInt(BinaryConfig.MAPDNS_PREFIXLEN);
+		if (prefixlen < 0 || prefixlen > 128) {
+			error("mapdns.prefixlen", "prefix length " + prefixlen + " is out of range");
+		} else if (checkIpv6(BinaryConfig.MAPDNS_NETWORK6, "mapdns.network6") != null) {
+			byte[] tunnel6 = parseIpv6(settings.getTunnelIpv6Address());
+			if (settings.getIpv6() && inMapdnsNetwork6(tunnel6))
+			  error("mapdns.network6", "overlaps the tunnel address " + settings.getTunnelIpv6Address());
+		}
+	}
+
+	private void checkTimeouts() {
+		positive(BinaryConfig.MISC_CONNECT_TIMEOUT, "misc.connect-timeout");
+		positive(BinaryConfig.MISC_TCP_READ_WRITE_TIMEOUT, "misc.tcp-read-write-timeout");
+		positive(BinaryConfig.MISC_UDP_READ_WRITE_TIMEOUT, "misc.udp-read-write-timeout");
+		if (getBool(BinaryConfig.DNS_LATENCY_OPTIMIZE_ENABLED))
+		  positive(BinaryConfig.DNS_LATENCY_OPTIMIZE_TIMEOUT_MS, "dns-latency-optimize.timeout-ms");
+
+		if (getBool(BinaryConfig.SMART_PROXY_ENABLED)) {
+			positive(BinaryConfig.SMART_PROXY_TIMEOUT_MS, "smart-proxy.timeout-ms");
+			positive(BinaryConfig.SMART_PROXY_BLOCKED_IP_EXPIRY_MINUTES, "smart-proxy.blocked-ip-expiry-minutes");
+			List<ByteBuffer> ports = entries.get(BinaryConfig.SMART_PROXY_PROBE_PORT);
+			if (ports != null) {
+				for (ByteBuffer b : ports) {
+					int port = BinaryConfig.intValue(b);
+					if (port < 1 || port > 65535)
+					  error("smart-proxy.probe-ports", "port " + port + " is out of range");
+				}
+			}
+		}
+	}
+
+	private void checkKernelBypass() {
+		if (!settings.getKernelBypass())
+		  return;
+		if (!settings.getChnroutesEnabled())
+		  warning("kernel-bypass", "has no effect while chnroutes is disabled");
+
+		int level = settings.getKernelBypassLevel();
+		if (level < 1 || level > 32)
+		  error("kernel-bypass.level", "level " + level + " is outside 1..32");
+		int budget = settings.getKernelBypassBudget();
+		// Without excludeRoute the budget also pays for one default
+		// route per family, which is never left out
+		int families = (settings.getIpv4() ? 1 : 0) + (settings.getIpv6() ? 1 : 0);
+		int min = Math.max(families, 1);
+		if (budget < min || budget > MAX_KERNEL_BYPASS_BUDGET)
+		  error("kernel-bypass.budget", "budget " + budget + " is outside " + min + ".." + MAX_KERNEL_BYPASS_BUDGET);
+	}
+
+	/**
+	 * Per-app policies: the parallel lists line up and every ACL profile
+	 * in use is a valid rule file.
+	 */
+	private void checkAppPolicy() {
+		List<ByteBuffer> uids = entries.get(BinaryConfig.APP_POLICY_UID);
+		if (uids == null)
+		  return;
+		List<ByteBuffer> actions = entries.get(BinaryConfig.APP_POLICY_ACTION);
+		List<ByteBuffer> profiles = entries.get(BinaryConfig.APP_POLICY_PROFILE);
+		List<ByteBuffer> files = entries.get(BinaryConfig.APP_POLICY_ACL_FILE);
+		int fileCount = files == null ? 0 : files.size();
+		if (actions == null || profiles == null || actions.size() != uids.size() || profiles.size() != uids.size()) {
+			error("app-policy", "UID, action and profile lists differ in length");
+			return;
+		}
+		boolean bypassOff = false;
+		for (int i = 0; i < uids.size(); i++) {
+			String source = "app-policy.uid " + BinaryConfig.intValue(uids.get(i));
+			int action = BinaryConfig.intValue(actions.get(i));
+			if (action < AppPolicy.DEFAULT || action > AppPolicy.BLOCK)
+			  error(source, "unknown action " + action);
+			int profile = BinaryConfig.intValue(profiles.get(i));
+			if (profile < -1 || profile >= fileCount)
+			  error(source, "profile " + profile + " is not in the profile list");
+			if (action == AppPolicy.DEFAULT && profile < 0)
+			  warning(source, "policy has no effect");
+			if ((action == AppPolicy.PROXY || action == AppPolicy.BLOCK) && settings.getKernelBypass())
+			  bypassOff = true;
+		}
+		if (bypassOff)
+		  warning("kernel-bypass", "not used while apps are forced through the proxy or blocked");
+		for (int i = 0; i < fileCount; i++)
+		  checkAcl(new File(BinaryConfig.stringValue(files.get(i))));
+	}
+
+	/**
+	 * One CIDR per line, '#' starts a comment.
+	 */
+	private void checkChnroutes(File file) {
+		String name = file.getName();
+		int[] count = new int[1];
+		List<String> lines = readRuleFile(file, name);
+		if (lines == null)
+		  return;
+
+		int routes = 0;
+		for (int i = 0; i < lines.size(); i++) {
+			String line = stripComment(lines.get(i));
+			if (line.isEmpty())
+			  continue;
+			int status = checkCidr(line);
+			if (status < 0)
+			  fileError(count, name, i + 1, "'" + line + "' is not a CIDR");
+			else if (status == 0)
+			  fileWarning(count, name, i + 1, "host bits are set in " + line);
+			routes++;
+		}
+		fileSummary(count, name);
+		if (routes == 0)
+		  warning(name, "enabled but contains no routes");
+	}
+
+	/**
+	 * Lines are "<allow|block> [port|cidr] <value>", where an untyped
+	 * value is a domain (optionally with '*'), an IP address or a CIDR.
+	 */
+	private void checkAcl(File file) {
+		String name = file.getName();
+		int[] count = new int[1];
+		List<String> lines = readRuleFile(file, name);
+		if (lines == null)
+		  return;
+
+		// Block rules the kernel bypass can't keep in the tunnel
+		int unbypassable = 0;
+		for (int i = 0; i < lines.size(); i++) {
+			String line = stripComment(lines.get(i));
+			if (line.isEmpty())
+			  continue;
+			String[] tokens = line.split("\\s+");
+			int lineNo = i + 1;
+			if (tokens.length < 2 || tokens.length > 3) {
+				fileError(count, name, lineNo, "expected '<allow|block> [port|cidr] <value>'");
+				continue;
+			}
+			if (!tokens[0].equals("allow") && !tokens[0].equals("block")) {
+				fileError(count, name, lineNo, "unknown action '" + tokens[0] + "'");
+				continue;
+			}
+
+			String value = tokens[tokens.length - 1];
+			String type = tokens.length == 3 ? tokens[1] : "";
+			if (type.equals("port")) {
+				int port = parsePort(value);
+				if (port < 1)
+				  fileError(count, name, lineNo, "'" + value + "' is not a port");
+				else if (tokens[0].equals("block"))
+				  unbypassable++;
+			} else if (type.equals("cidr") || (type.isEmpty() && value.indexOf('/') >= 0)) {
+				if (checkCidr(value) < 0)
+				  fileError(count, name, lineNo, "'" + value + "' is not a CIDR");
+			} else if (!type.isEmpty()) {
+				fileError(count, name, lineNo, "unknown type '" + type + "'");
+			} else if (parseIpv4(value) < 0 && parseIpv6(value) == null) {
+				if (!isDomainPattern(value))
+				  fileError(count, name, lineNo, "'" + value + "' is not a domain or IP address");
+				else if (tokens[0].equals("block"))
+				  unbypassable++;
+			}
+		}
+		fileSummary(count, name);
+		// Addresses are kept out of the bypass; a name or port isn't
+		// known until the connection reaches the router
+		if (unbypassable > 0 && settings.getKernelBypass() && settings.getChnroutesEnabled())
+		  warning(name, unbypassable + " domain or port block rules don't apply to destinations the kernel bypasses");
+	}
+
+	private List<String> readRuleFile(File file, String name) {
+		if (!file.exists()) {
+			warning(name, "enabled but the file does not exist");
+			return null;
+		}
+		ArrayList<String> lines = new ArrayList<String>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+				  lines.add(line);
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			error(name, "can't be read: " + e.getMessage());
+			return null;
+		}
+		return lines;
+	}
+
+	private static String stripComment(String line) {
+		int hash = line.indexOf('#');
+		if (hash >= 0)
+		  line = line.substring(0, hash);
+		return line.trim();
+	}
+
+	private void fileError(int[] count, String name, int line, String message) {
+		if (count[0]++ < MAX_FILE_DIAGNOSTICS)
+		  result.add(new Diagnostic(Diagnostic.ERROR, name, line, message));
+		else
+		  result.errorCount++;
+	}
+
+	private void fileWarning(int[] count, String name, int line, String message) {
+		if (count[0]++ < MAX_FILE_DIAGNOSTICS)
+		  result.add(new Diagnostic(Diagnostic.WARNING, name, line, message));
+	}
+
+	private void fileSummary(int[] count, String name) {
+		if (count[0] > MAX_FILE_DIAGNOSTICS)
+		  result.add(new Diagnostic(Diagnostic.WARNING, name, 0,
+		                            (count[0] - MAX_FILE_DIAGNOSTICS) + " more problems not shown"));
+	}
+
+	private void error(String source, String message) {
+		result.add(new Diagnostic(Diagnostic.ERROR, source, 0, message));
+	}
+
+	private void warning(String source, String message) {
+		result.add(new Diagnostic(Diagnostic.WARNING, source, 0, message));
+	}
+
+	private void positive(int key, String source) {
+		int value = getInt(key);
+		if (value <= 0)
+		  error(source, "must be greater than 0, got " + value);
+	}
+
+	private long checkIpv4(int key, String source) {
+		String value = getString(key);
+		if (value.isEmpty())
+		  return -1;
+		long addr = parseIpv4(value);
+		if (addr < 0)
+		  error(source, "'" + value + "' is not an IPv4 address");
+		return addr;
+	}
+
+	private byte[] checkIpv6(int key, String source) {
+		String value = getString(key);
+		if (value.isEmpty())
+		  return null;
+		byte[] addr = parseIpv6(value);
+		if (addr == null)
+		  error(source, "'" + value + "' is not an IPv6 address");
+		return addr;
+	}
+
+	private boolean inMapdnsNetwork(long addr) {
+		long network = parseIpv4(settings.getMapdnsNetwork());
+		long netmask = parseIpv4(settings.getMapdnsNetmask());
+		if (addr < 0 || network < 0 || netmask < 0)
+		  return false;
+		return (addr & netmask) == (network & netmask);
+	}
+
+	private boolean inMapdnsNetwork6(byte[] addr) {
+		byte[] network = parseIpv6(settings.getMapdnsNetwork6());
+		int prefixlen = settings.getMapdnsPrefixlen();
+		if (addr == null || network == null || prefixlen < 0 || prefixlen > 128)
+		  return false;
+		return prefixMatch(addr, network, prefixlen);
+	}
+
+	private int getInt(int key) {
+		List<ByteBuffer> list = entries.get(key);
+		return list == null ? 0 : BinaryConfig.intValue(list.get(0));
+	}
+
+	private boolean getBool(int key) {
+		return getInt(key) != 0;
+	}
+
+	private String getString(int key) {
+		List<ByteBuffer> list = entries.get(key);
+		return list == null ? "" : BinaryConfig.stringValue(list.get(0));
+	}
+
+	/**
+	 * Parse a dotted-quad IPv4 literal without any name lookup.
+	 * @return address as an unsigned 32-bit value, or -1 if malformed
+	 */
+	public static long parseIpv4(String s) {
+		long addr = 0;
+		int parts = 0;
+		int i = 0;
+		int len = s.length();
+		while (parts < 4) {
+			int start = i;
+			int value = 0;
+			while (i < len && i - start < 3 && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+			  value = value * 10 + (s.charAt(i++) - '0');
+			if (i == start || value > 255)
+			  return -1;
+			addr = (addr << 8) | value;
+			parts++;
+			if (parts < 4) {
+				if (i >= len || s.charAt(i) != '.')
+				  return -1;
+				i++;
+			}
+		}
+		return i == len ? addr : -1;
+	}
+
+	/**
+	 * Parse an IPv6 literal (with "::" and an optional dotted IPv4 tail)
+	 * without any name lookup.
+	 * @return the 16 address bytes, or null if malformed
+	 */
+	public static byte[] parseIpv6(String s) {
+		if (s.indexOf(':') < 0)
+		  return null;
+		byte[] addr = new byte[16];
+		int gap = -1;
+		int n = 0;
+		int i = 0;
+		int len = s.length();
+		if (s.startsWith("::")) {
+			gap = 0;
+			i = 2;
+			if (i == len)
+			  return addr;
+		} else if (s.startsWith(":")) {
+			return null;
+		}
+
+		while (i < len) {
+			int start = i;
+			int value = 0;
+			while (i < len && i - start < 4 && Character.digit(s.charAt(i), 16) >= 0)
+			  value = (value << 4) | Character.digit(s.charAt(i++), 16);
+			if (i < len && s.charAt(i) == '.') {
+				long v4 = parseIpv4(s.substring(start));
+				if (v4 < 0 || n > 12)
+				  return null;
+				for (int b = 3; b >= 0; b--)
+				  addr[n++] = (byte) (v4 >> (b * 8));
+				i = len;
+				break;
+			}
+			if (i == start || n > 14)
+			  return null;
+			addr[n++] = (byte) (value >> 8);
+			addr[n++] = (byte) value;
+			if (i == len)
+			  break;
+			if (s.charAt(i) != ':')
+			  return null;
+			i++;
+			if (i < len && s.charAt(i) == ':') {
+				if (gap >= 0)
+				  return null;
+				gap = n;
+				i++;
+			} else if (i == len) {
+				return null;
+			}
+		}
+
+		if (gap < 0)
+		  return n == 16 ? addr : null;
+		if (n == 16)
+		  return null;
+		int tail = n - gap;
+		System.arraycopy(addr, gap, addr, 16 - tail, tail);
+		for (int b = gap; b < 16 - tail; b++)
+		  addr[b] = 0;
+		return addr;
+	}
+
+	/**
+	 * @return 1 if s is a valid IPv4/IPv6 CIDR, 0 if valid but with host
+	 *         bits set, -1 if malformed
+	 */
+	public static int checkCidr(String s) {
+		int slash = s.indexOf('/');
+		if (slash < 0)
+		  return -1;
+		String addr = s.substring(0, slash);
+		int prefix = parsePrefix(s.substring(slash + 1));
+		long v4 = parseIpv4(addr);
+		if (v4 >= 0) {
+			if (prefix < 0 || prefix > 32)
+			  return -1;
+			long mask = prefix == 0 ? 0 : (0xffffffffL << (32 - prefix)) & 0xffffffffL;
+			return (v4 & ~mask & 0xffffffffL) == 0 ? 1 : 0;
+		}
+		byte[] v6 = parseIpv6(addr);
+		if (v6 == null || prefix < 0 || prefix > 128)
+		  return -1;
+		return hostBitsClear(v6, prefix) ? 1 : 0;
+	}
+
+	static int parsePrefix(String s) {
+		if (s.isEmpty() || s.length() > 3)
+		  return -1;
+		int value = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+			  return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	static int parsePort(String s) {
+		if (s.isEmpty() || s.length() > 5)
+		  return -1;
+		int value = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+			  return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value <= 65535 ? value : -1;
+	}
+
+	private static boolean hostBitsClear(byte[] addr, int prefix) {
+		for (int bit = prefix; bit < 128; bit++) {
+			if ((addr[bit >> 3] & (0x80 >> (bit & 7))) != 0)
+			  return false;
+		}
+		return true;
+	}
+
+	private static boolean prefixMatch(byte[] a, byte[] b, int prefix) {
+		for (int bit = 0; bit < prefix; bit++) {
+			int mask = 0x80 >> (bit & 7);
+			if ((a[bit >> 3] & mask) != (b[bit >> 3] & mask))
+			  return false;
+		}
+		return true;
+	}
+
+	private static boolean sameAddress(byte[] a, byte[] b) {
+		return a != null && b != null && prefixMatch(a, b, 128);
+	}
+
+	private static boolean isContiguousMask(long mask) {
+		long inverted = ~mask & 0xffffffffL;
+		return (inverted & (inverted + 1)) == 0;
+	}
+
+	private static boolean isHostName(String s) {
+		if (s.length() > 253)
+		  return false;
+		return isDomainPattern(s) && s.indexOf('*') < 0;
+	}
+
+	/**
+	 * Dot-separated labels of letters, digits, '-' and '_'; a label may
+	 * also be a '*' wildcard.
+	 */
+	static boolean isDomainPattern(String s) {
+		int labelLength = 0;
+		for (int i = 0; i <= s.length(); i++) {
+			char c = i < s.length() ? s.charAt(i) : '.';
+			if (c == '.') {
+				if (labelLength == 0 || labelLength > 63)
+				  return false;
+				labelLength = 0;
+			} else if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '*') {
+				labelLength++;
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ ============================================================================
+ Name        : ConnectionOwner.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Connection Owner UID Lookup
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.SystemClock;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Finds the UID that owns a flow seen on the TUN, for per-app policies.
+ *
+ * Called by the native router once per new flow it has no owner for.
+ * ConnectivityManager.getConnectionOwnerUid (API 29, only answers the
+ * active VPN app) is used where available, /proc/net/{tcp,udp}[6]
+ * otherwise. Answers are kept in a fixed-size table keyed by 5-tuple, so
+ * a flow the router asks about again (a UDP flow re-opened after its
+ * session expired, a retried SYN) costs one probe and no allocation.
+ *
+ * The cache is open addressing with a bounded probe: a full window
+ * overwrites its oldest entry. Entries expire after TTL_MS, since a port
+ * pair can be reused by another app.
+ */
+public class ConnectionOwner {
+	public static final int INVALID_UID = -1;
+
+	public static final int PROTOCOL_TCP = 6;
+	public static final int PROTOCOL_UDP = 17;
+
+	public static final int CACHE_SIZE = 1024;
+	public static final long TTL_MS = 60 * 1000;
+	private static final int PROBES = 8;
+
+	private static ConnectivityManager connectivity;
+
+	/* Cache slots; addresses as two longs, IPv4 mapped to ::ffff:0:0/96 */
+	private static final long[] localHi = new long[CACHE_SIZE];
+	private static final long[] localLo = new long[CACHE_SIZE];
+	private static final long[] remoteHi = new long[CACHE_SIZE];
+	private static final long[] remoteLo = new long[CACHE_SIZE];
+	/* protocol << 32 | local port << 16 | remote port, 0 = empty */
+	private static final long[] ports = new long[CACHE_SIZE];
+	private static final int[] owners = new int[CACHE_SIZE];
+	private static final long[] stamps = new long[CACHE_SIZE];
+
+	private static long lookups;
+	private static long hits;
+
+	/**
+	 * Called by the service before the tunnel starts; clears the cache.
+	 */
+	public static synchronized void init(Context context) {
+		connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		Arrays.fill(ports, 0);
+		lookups = 0;
+		hits = 0;
+	}
+
+	/**
+	 * @param protocol PROTOCOL_TCP or PROTOCOL_UDP
+	 * @param local source address of the flow on the TUN, 4 or 16 bytes
+	 * @param remote destination address, 4 or 16 bytes
+	 * @return the owner UID, or INVALID_UID if it can't be found
+	 */
+	public static synchronized int resolve(int protocol, byte[] local, int localPort,
+	                                       byte[] remote, int remotePort) {
+		long lHi = high(local), lLo = low(local);
+		long rHi = high(remote), rLo = low(remote);
+		long key = (long) protocol << 32 | (long) (localPort & 0xffff) << 16 | (remotePort & 0xffff);
+		long now = SystemClock.elapsedRealtime();
+		lookups++;
+
+		int start = hash(lHi, lLo, rHi, rLo, key);
+		int victim = start;
+		for (int p = 0; p < PROBES; p++) {
+			int i = (start + p) & (CACHE_SIZE - 1);
+			if (ports[i] == key && localLo[i] == lLo && localHi[i] == lHi &&
+			    remoteLo[i] == rLo && remoteHi[i] == rHi) {
+				if (now - stamps[i] < TTL_MS) {
+					hits++;
+					return owners[i];
+				}
+				victim = i;
+				break;
+			}
+			if (ports[i] == 0 || now - stamps[i] >= TTL_MS) {
+				victim = i;
+				break;
+			}
+			if (stamps[i] < stamps[victim])
+			  victim = i;
+		}
+
+		int uid = lookup(protocol, local, localPort, remote, remotePort);
+		// Misses are not cached, the socket may just not be visible yet
+		if (uid != INVALID_UID) {
+			localHi[victim] = lHi;
+			localLo[victim] = lLo;
+			remoteHi[victim] = rHi;
+			remoteLo[victim] = rLo;
+			ports[victim] = key;
+			owners[victim] = uid;
+			stamps[victim] = now;
+		}
+		return uid;
+	}
+
+	public static synchronized long getLookups() {
+		return lookups;
+	}
+
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	private static int lookup(int protocol, byte[] local, int localPort, byte[] remote, int remotePort) {
+		if (Build.VERSION.SDK_INT >= 29 && connectivity != null) {
+			try {
+				return connectivity.getConnectionOwnerUid(protocol,
+					new InetSocketAddress(InetAddress.getByAddress(local), localPort),
+					new InetSocketAddress(InetAddress.getByAddress(remote), remotePort));
+			} catch (UnknownHostException | SecurityException | IllegalArgumentException e) {
+				return INVALID_UID;
+			}
+		}
+		return lookupProc(protocol, local, localPort, remote, remotePort);
+	}
+
+	/**
+	 * Scan /proc/net for the socket; IPv4 sockets can also be listed as
+	 * v4-mapped in the IPv6 file. UDP sockets are often unconnected, so a
+	 * zero remote address matches any.
+	 */
+	private static int lookupProc(int protocol, byte[] local, int localPort, byte[] remote, int remotePort) {
+		String name = protocol == PROTOCOL_TCP ? "tcp" : "udp";
+		if (local.length == 4) {
+			int uid = scanProc("/proc/net/" + name, protocol, local, localPort, remote, remotePort);
+			if (uid != INVALID_UID)
+			  return uid;
+		}
+		return scanProc("/proc/net/" + name + "6", protocol, toV6(local), localPort, toV6(remote), remotePort);
+	}
+
+	private static int scanProc(String path, int protocol, byte[] local, int localPort, byte[] remote, int remotePort) {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(path));
+			try {
+				// Header: sl local_address rem_address st ... uid
+				String line = reader.readLine();
+				while ((line = reader.readLine()) != null) {
+					String[] tokens = line.trim().split("\\s+");
+					if (tokens.length < 8)
+					  continue;
+					if (!matches(tokens[1], local, localPort, true, false))
+					  continue;
+					if (!matches(tokens[2], remote, remotePort, false, protocol == PROTOCOL_UDP))
+					  continue;
+					try {
+						return Integer.parseInt(tokens[7]);
+					} catch (NumberFormatException e) {
+						return INVALID_UID;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			// Not readable on this release
+		}
+		return INVALID_UID;
+	}
+
+	/**
+	 * Compare a /proc/net "ADDR:PORT" field, where ADDR is the address in
+	 * 32-bit words printed in host byte order and PORT is hex.
+	 * @param unbound a zero address in the field matches (socket bound
+	 *                to any address)
+	 * @param unconnected a zero address and port in the field match
+	 */
+	private static boolean matches(String field, byte[] addr, int port, boolean unbound, boolean unconnected) {
+		int colon = field.indexOf(':');
+		if (colon != addr.length * 2)
+		  return false;
+		int fieldPort;
+		try {
+			fieldPort = Integer.parseInt(field.substring(colon + 1), 16);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		boolean little = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+		boolean zero = true;
+		boolean equal = true;
+		for (int w = 0; w < addr.length / 4; w++) {
+			long word;
+			try {
+				word = Long.parseLong(field.substring(w * 8, w * 8 + 8), 16);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			for (int b = 0; b < 4; b++) {
+				int shift = little ? b * 8 : (3 - b) * 8;
+				byte v = (byte) (word >>> shift);
+				zero &= v == 0;
+				equal &= v == addr[w * 4 + b];
+			}
+		}
+		if (unconnected && zero && fieldPort == 0)
+		  return true;
+		return (equal || (unbound && zero)) && fieldPort == port;
+	}
+
+	private static byte[] toV6(byte[] addr) {
+		if (addr.length == 16)
+		  return addr;
+		byte[] v6 = new byte[16];
+		v6[10] = (byte) 0xff;
+		v6[11] = (byte) 0xff;
+		System.arraycopy(addr, 0, v6, 12, 4);
+		return v6;
+	}
+
+	private static long high(byte[] addr) {
+		if (addr.length == 4)
+		  return 0;
+		long v = 0;
+		for (int i = 0; i < 8; i++)
+		  v = v << 8 | (addr[i] & 0xff);
+		return v;
+	}
+
+	private static long low(byte[] addr) {
+		if (addr.length == 4) {
+			long v = 0xffffL;
+			for (int i = 0; i < 4; i++)
+			  v = v << 8 | (addr[i] & 0xff);
+			return v;
+		}
+		long v = 0;
+		for (int i = 8; i < 16; i++)
+		  v = v << 8 | (addr[i] & 0xff);
+		return v;
+	}
+
+	private static int hash(long lHi, long lLo, long rHi, long rLo, long key) {
+		long h = lHi * 0x9e3779b97f4a7c15L ^ lLo;
+		h = h * 0x9e3779b97f4a7c15L ^ rHi;
+		h = h * 0x9e3779b97f4a7c15L ^ rLo;
+		h = h * 0x9e3779b97f4a7c15L ^ key;
+		h ^= h >>> 29;
+		return (int) h & (CACHE_SIZE - 1);
+	}
+}
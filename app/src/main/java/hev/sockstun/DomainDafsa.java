@@ -0,0 +1,382 @@
+/*
+ ============================================================================
+ Name        : DomainDafsa.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Minimal Automaton Over Reversed Domain Rules
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Exact and "*." domain rules as a minimal deterministic acyclic
+ * automaton (DAFSA), read in place from a mapped table.
+ *
+ * Each rule is a key of its domain spelled backwards followed by one
+ * marker byte for its kind and action ("*.example.com" block becomes
+ * "moc.elpmaxe" + WILDCARD_BLOCK). A trie shares the TLDs at the front of
+ * those keys; minimizing also merges identical tails, such as the many
+ * "ads." and "www." labels of a block list and the markers themselves,
+ * so a list of a few hundred thousand names takes a few bytes a name.
+ *
+ * The automaton is numbered: a branching state stores how many keys lie
+ * below each of its edges, so the edges skipped on the way to a marker
+ * add up to that key's rank in sorted order. The rank indexes a table of
+ * rule ids, which is how a match is credited to its line in acl.txt
+ * without giving up the merged tails.
+ *
+ * Layout, one record per state, root at offset 0:
+ *   u8  header: edge count, 0x80 if the last edge leads to the record
+ *       right after this one
+ *   u8  label[n], ascending
+ *   u32 keys before edge[n - 1], edges 1 to n - 1, only if n > 1
+ *   u32 target[n] (or n - 1 with 0x80), offsets from the automaton start
+ *
+ * Chains of single-edge states, the bulk of a block list, are laid out
+ * one after another and cost two bytes a character.
+ */
+public class DomainDafsa {
+	/* Marker bytes, below any character a domain can hold */
+	static final int EXACT_ALLOW = 0x01;
+	static final int EXACT_BLOCK = 0x02;
+	static final int WILDCARD_ALLOW = 0x05;
+	static final int WILDCARD_BLOCK = 0x06;
+	private static final int MARKER_LIMIT = 0x08;
+	private static final int KIND_WILDCARD = 0x04;
+	private static final int NEXT_FLAG = 0x80;
+
+	private DomainDafsa() {
+	}
+
+	/**
+	 * @param base offset of the automaton in buf
+	 * @param keyRules offset of the rule id of each key, by rank
+	 * @param host normalized name, see AclTable.normalizeDomain()
+	 * @param hits receives the matching rules, or null
+	 * @return action bits of the rules matching host
+	 */
+	static int match(ByteBuffer buf, int base, int keyRules, byte[] host, AclTable.Hits hits) {
+		int actions = 0;
+		int rank = 0;
+		int state = base;
+		for (int r = 0; ; r++) {
+			int header = buf.get(state) & 0xff;
+			int n = header & ~NEXT_FLAG;
+			if (r == host.length) {
+				actions |= markers(buf, state, n, 0, rank, keyRules, hits);
+				break;
+			}
+			byte c = host[host.length - 1 - r];
+			// A wildcard on the suffix read so far covers names with
+			// more labels in front of it
+			if (r == 0 || c == '.')
+			  actions |= markers(buf, state, n, KIND_WILDCARD, rank, keyRules, hits);
+
+			int edge = find(buf, state, n, c);
+			if (edge < 0)
+			  break;
+			rank += before(buf, state, n, edge);
+			int targets = state + 1 + n + (n > 1 ? 4 * (n - 1) : 0);
+			if (edge == n - 1 && (header & NEXT_FLAG) != 0)
+			  state = targets + 4 * (n - 1);
+			else
+			  state = base + buf.getInt(targets + 4 * edge);
+		}
+		return actions;
+	}
+
+	private static int markers(ByteBuffer buf, int state, int n, int kind, int rank, int keyRules, AclTable.Hits hits) {
+		int actions = 0;
+		for (int i = 0; i < n; i++) {
+			int label = buf.get(state + 1 + i);
+			if (label >= MARKER_LIMIT)
+			  break;
+			if ((label & KIND_WILDCARD) != kind)
+			  continue;
+			int action = label & (AclTable.ALLOW | AclTable.BLOCK);
+			actions |= action;
+			if (hits != null)
+			  hits.add(buf.getInt(keyRules + 4 * (rank + before(buf, state, n, i))), action);
+		}
+		return actions;
+	}
+
+	/* Index of the edge labelled c, or -1 */
+	private static int find(ByteBuffer buf, int state, int n, byte c) {
+		int lo = 0;
+		int hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int label = buf.get(state + 1 + mid);
+			if (label == c)
+			  return mid;
+			if (label < c)
+			  lo = mid + 1;
+			else
+			  hi = mid - 1;
+		}
+		return -1;
+	}
+
+	/* Keys below the edges in front of edge */
+	private static int before(ByteBuffer buf, int state, int n, int edge) {
+		return edge == 0 ? 0 : buf.getInt(state + 1 + n + 4 * (edge - 1));
+	}
+
+	/**
+	 * Collects keys in any order; build() sorts them and minimizes the
+	 * automaton as it goes (Daciuk et al., sorted input), so memory is
+	 * bounded by the minimal automaton plus the keys themselves.
+	 */
+	public static class Builder {
+		private final ArrayList<Key> keys = new ArrayList<Key>();
+		private int[] keyRules = new int[0];
+
+		// Frozen states: edges of state s are [start[s], start[s] + count[s])
+		private int[] start = new int[1024];
+		private int[] count = new int[1024];
+		private int[] below = new int[1024];
+		private int states = 0;
+		private byte[] labels = new byte[4096];
+		private int[] targets = new int[4096];
+		private int edges = 0;
+		// Open addressing over frozen states, 0 for an empty slot
+		private int[] register = new int[2048];
+
+		/**
+		 * @param domain normalized name without '*', empty for "*"
+		 * @param marker one of the marker bytes
+		 * @param rule id credited when the key matches; of equal keys
+		 *             the first added is kept
+		 */
+		void add(byte[] domain, int marker, int rule) {
+			byte[] key = new byte[domain.length + 1];
+			for (int i = 0; i < domain.length; i++)
+			  key[i] = domain[domain.length - 1 - i];
+			key[domain.length] = (byte) marker;
+			keys.add(new Key(key, rule));
+		}
+
+		int size() {
+			return keys.size();
+		}
+
+		/**
+		 * Rule id of each distinct key by rank, after build().
+		 */
+		int[] getKeyRules() {
+			return keyRules;
+		}
+
+		byte[] build() {
+			// Stable, so equal keys stay in the order they were added
+			Collections.sort(keys, new Comparator<Key>() {
+				@Override
+				public int compare(Key a, Key b) {
+					int n = Math.min(a.bytes.length, b.bytes.length);
+					for (int i = 0; i < n; i++) {
+						int c = (a.bytes[i] & 0xff) - (b.bytes[i] & 0xff);
+						if (c != 0)
+						  return c;
+					}
+					return a.bytes.length - b.bytes.length;
+				}
+			});
+
+			// State 0 is the final state every marker leads to
+			freeze(new Open());
+			keyRules = new int[keys.size()];
+			int ranks = 0;
+			ArrayList<Open> path = new ArrayList<Open>();
+			path.add(new Open());
+			byte[] prev = new byte[0];
+			for (Key k : keys) {
+				byte[] key = k.bytes;
+				if (Arrays.equals(key, prev))
+				  continue;
+				keyRules[ranks++] = k.rule;
+				int common = 0;
+				while (common < prev.length && common < key.length && prev[common] == key[common])
+				  common++;
+				for (int d = prev.length; d > common; d--)
+				  path.get(d - 1).setLast(freeze(path.get(d)));
+				for (int d = common; d < key.length; d++) {
+					path.get(d).add(key[d]);
+					if (path.size() <= d + 1)
+					  path.add(new Open());
+					else
+					  path.get(d + 1).reset();
+				}
+				prev = key;
+			}
+			for (int d = prev.length; d > 0; d--)
+			  path.get(d - 1).setLast(freeze(path.get(d)));
+			int root = freeze(path.get(0));
+			keyRules = Arrays.copyOf(keyRules, ranks);
+			keys.clear();
+			return layout(root);
+		}
+
+		/**
+		 * Place the states depth first, following each state with the
+		 * target of its last edge when that one is not placed yet.
+		 */
+		private byte[] layout(int root) {
+			int[] offset = new int[states];
+			Arrays.fill(offset, -1);
+			boolean[] next = new boolean[states];
+			int[] order = new int[states];
+			int placed = 0;
+			int size = 0;
+			ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+			stack.push(root);
+			while (!stack.isEmpty()) {
+				int s = stack.pop();
+				if (offset[s] >= 0)
+				  continue;
+				offset[s] = size;
+				order[placed++] = s;
+				int n = count[s];
+				int last = n > 0 ? targets[start[s] + n - 1] : -1;
+				next[s] = last >= 0 && offset[last] < 0;
+				size += 1 + n + (n > 1 ? 4 * (n - 1) : 0) + 4 * (next[s] ? n - 1 : n);
+				for (int i = n - 2; i >= 0; i--) {
+					if (offset[targets[start[s] + i]] < 0)
+					  stack.push(targets[start[s] + i]);
+				}
+				if (next[s])
+				  stack.push(last);
+			}
+
+			ByteBuffer out = ByteBuffer.allocate(size);
+			out.order(ByteOrder.nativeOrder());
+			for (int i = 0; i < placed; i++) {
+				int s = order[i];
+				int n = count[s];
+				out.put((byte) (n | (next[s] ? NEXT_FLAG : 0)));
+				out.put(labels, start[s], n);
+				int keysBefore = 0;
+				for (int e = 0; e < n - 1; e++) {
+					keysBefore += below[targets[start[s] + e]];
+					out.putInt(keysBefore);
+				}
+				for (int e = 0; e < (next[s] ? n - 1 : n); e++)
+				  out.putInt(offset[targets[start[s] + e]]);
+			}
+			return out.array();
+		}
+
+		/* Register open as a frozen state, reusing an equal one */
+		private int freeze(Open open) {
+			int hash = open.n;
+			for (int i = 0; i < open.n; i++)
+			  hash = hash * 31 + (open.labels[i] * 0x9e3779b1 ^ open.targets[i]);
+			int mask = register.length - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				int s = register[slot] - 1;
+				if (s < 0)
+				  break;
+				if (equal(s, open))
+				  return s;
+			}
+
+			if (states == start.length) {
+				start = Arrays.copyOf(start, states * 2);
+				count = Arrays.copyOf(count, states * 2);
+				below = Arrays.copyOf(below, states * 2);
+			}
+			if (edges + open.n > labels.length) {
+				int capacity = Math.max(labels.length * 2, edges + open.n);
+				labels = Arrays.copyOf(labels, capacity);
+				targets = Arrays.copyOf(targets, capacity);
+			}
+			System.arraycopy(open.labels, 0, labels, edges, open.n);
+			System.arraycopy(open.targets, 0, targets, edges, open.n);
+			start[states] = edges;
+			count[states] = open.n;
+			// The final state ends one key
+			int keysBelow = open.n == 0 ? 1 : 0;
+			for (int i = 0; i < open.n; i++)
+			  keysBelow += below[open.targets[i]];
+			below[states] = keysBelow;
+			edges += open.n;
+			int s = states++;
+			if (states * 2 > register.length)
+			  rehash();
+			insert(s, hash);
+			return s;
+		}
+
+		private boolean equal(int s, Open open) {
+			if (count[s] != open.n)
+			  return false;
+			for (int i = 0; i < open.n; i++) {
+				if (labels[start[s] + i] != open.labels[i] || targets[start[s] + i] != open.targets[i])
+				  return false;
+			}
+			return true;
+		}
+
+		private void insert(int s, int hash) {
+			int mask = register.length - 1;
+			int slot = hash & mask;
+			while (register[slot] != 0)
+			  slot = (slot + 1) & mask;
+			register[slot] = s + 1;
+		}
+
+		private void rehash() {
+			register = new int[register.length * 2];
+			for (int s = 0; s < states; s++) {
+				int hash = count[s];
+				for (int i = 0; i < count[s]; i++)
+				  hash = hash * 31 + (labels[start[s] + i] * 0x9e3779b1 ^ targets[start[s] + i]);
+				insert(s, hash);
+			}
+		}
+	}
+
+	private static class Key {
+		final byte[] bytes;
+		final int rule;
+
+		Key(byte[] bytes, int rule) {
+			this.bytes = bytes;
+			this.rule = rule;
+		}
+	}
+
+	/* State on the path of the last key, whose last edge may still change */
+	private static class Open {
+		byte[] labels = new byte[8];
+		int[] targets = new int[8];
+		int n = 0;
+
+		void add(byte label) {
+			if (n == labels.length) {
+				labels = Arrays.copyOf(labels, n * 2);
+				targets = Arrays.copyOf(targets, n * 2);
+			}
+			labels[n] = label;
+			targets[n] = -1;
+			n++;
+		}
+
+		void setLast(int target) {
+			targets[n - 1] = target;
+		}
+
+		void reset() {
+			n = 0;
+		}
+	}
+}
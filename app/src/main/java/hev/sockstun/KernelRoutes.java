@@ -0,0 +1,459 @@
+/*
+ ============================================================================
+ Name        : KernelRoutes.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Kernel Bypass Route Planner
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Turns the chnroutes table into TUN routes, so the kernel sends
+ * domestic destinations out of the default network and they never
+ * reach the userspace stack.
+ *
+ * With excludeRoute (API 33+) the bypassed prefixes are excluded from
+ * the default routes. Older releases only have addRoute, so the TUN is
+ * given the complement of the bypassed prefixes instead.
+ *
+ * The budget caps the routes the bypass adds: excluded prefixes, or the
+ * whole complement including the routes that replace the defaults.
+ * Prefixes longer than the aggregation level, and those past the route
+ * budget, stay in the tunnel, where the native chnroutes check still
+ * sends them direct; a smaller budget only moves work back to userspace.
+ */
+public class KernelRoutes {
+	// IPv6 allocations run about 16 bits longer than IPv4 ones of a
+	// similar size, so level 20 bypasses IPv6 prefixes down to /36
+	public static final int IPV6_LEVEL_OFFSET = 16;
+
+	public static class Prefix {
+		private final byte[] address;
+		private final int length;
+
+		Prefix(byte[] address, int length) {
+			this.address = address;
+			this.length = length;
+		}
+
+		public InetAddress getAddress() {
+			try {
+				return InetAddress.getByAddress(address);
+			} catch (UnknownHostException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public boolean isIpv6() {
+			return address.length == 16;
+		}
+
+		@Override
+		public String toString() {
+			return getAddress().getHostAddress() + "/" + length;
+		}
+	}
+
+	private final ArrayList<Prefix> excluded = new ArrayList<Prefix>();
+	private final ArrayList<Prefix> routes = new ArrayList<Prefix>();
+	/* Bypassed prefixes as { high, low, length, width } */
+	private final ArrayList<long[]> bypassed = new ArrayList<long[]>();
+	private int total;
+
+	private KernelRoutes() {
+	}
+
+	/**
+	 * @param blocked addresses and CIDRs that ACL rules block; they stay
+	 *                in the tunnel, where the rules are applied
+	 * @param complement true to describe the bypass with addRoute alone,
+	 *                   for releases without excludeRoute
+	 */
+	public static KernelRoutes plan(RouteTable table, Settings s, List<String> blocked, boolean complement) {
+		ArrayList<long[]> keep4 = new ArrayList<long[]>();
+		ArrayList<long[]> keep6 = new ArrayList<long[]>();
+		// DNS must keep reaching the tunnel even if it is a domestic address
+		String[] keep = {
+			s.getDnsIpv4(), s.getDnsIpv6(), s.getMappedDns(), s.getMapdnsAddress6(),
+			s.getDnsVirtualIp4(), s.getDnsVirtualIp6()
+		};
+		for (String addr : keep)
+		  addKeep(addr, keep4, keep6);
+		for (String addr : blocked)
+		  addKeep(addr, keep4, keep6);
+
+		ArrayList<long[]> ranges4 = new ArrayList<long[]>();
+		ArrayList<long[]> ranges6 = new ArrayList<long[]>();
+		if (s.getIpv4()) {
+			for (int i = 0; i < table.getIpv4Count(); i++)
+			  ranges4.add(new long[] { 0, table.getIpv4First(i), 0, table.getIpv4Last(i) });
+		}
+		if (s.getIpv6()) {
+			for (int i = 0; i < table.getIpv6Count(); i++) {
+				long[] range = new long[4];
+				table.getIpv6Range(i, range);
+				ranges6.add(range);
+			}
+		}
+		ranges4 = subtract(ranges4, keep4);
+		ranges6 = subtract(ranges6, keep6);
+
+		// Widest prefixes first; a stable sort keeps each family in
+		// address order among prefixes of one size
+		ArrayList<long[]> candidates = new ArrayList<long[]>();
+		KernelRoutes plan = new KernelRoutes();
+		plan.total += split(ranges4, 32, s.getKernelBypassLevel(), candidates);
+		plan.total += split(ranges6, 128, s.getKernelBypassLevel() + IPV6_LEVEL_OFFSET, candidates);
+		Collections.sort(candidates, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(normalizedLength(a), normalizedLength(b));
+			}
+		});
+
+		int budget = Math.max(s.getKernelBypassBudget(), 0);
+		if (!complement) {
+			int n = Math.min(budget, candidates.size());
+			for (int i = 0; i < n; i++)
+			  plan.excluded.add(toPrefix(candidates.get(i)));
+			plan.bypassed.addAll(candidates.subList(0, n));
+			return plan;
+		}
+
+		// The complement of more bypassed prefixes is usually, but not
+		// always, larger; search for the most that fit the budget. Here
+		// the budget counts every TUN route, and with nothing bypassed
+		// the complement is one default route per family, which is used
+		// even over budget (ConfigValidator rejects such a budget)
+		int lo = 0;
+		int hi = candidates.size();
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (complement(candidates, mid, s, null) <= budget)
+			  lo = mid;
+			else
+			  hi = mid - 1;
+		}
+		complement(candidates, lo, s, plan.routes);
+		plan.bypassed.addAll(candidates.subList(0, lo));
+		return plan;
+	}
+
+	/**
+	 * Fewest prefixes that cover the table exactly, IPv4 then IPv6, each
+	 * in address order.
+	 */
+	static List<Prefix> cover(RouteTable table) {
+		ArrayList<long[]> ranges4 = new ArrayList<long[]>();
+		ArrayList<long[]> ranges6 = new ArrayList<long[]>();
+		for (int i = 0; i < table.getIpv4Count(); i++)
+		  ranges4.add(new long[] { 0, table.getIpv4First(i), 0, table.getIpv4Last(i) });
+		for (int i = 0; i < table.getIpv6Count(); i++) {
+			long[] range = new long[4];
+			table.getIpv6Range(i, range);
+			ranges6.add(range);
+		}
+
+		ArrayList<long[]> prefixes = new ArrayList<long[]>();
+		split(ranges4, 32, 32, prefixes);
+		split(ranges6, 128, 128, prefixes);
+		ArrayList<Prefix> out = new ArrayList<Prefix>(prefixes.size());
+		for (long[] p : prefixes)
+		  out.add(toPrefix(p));
+		return out;
+	}
+
+	/**
+	 * Prefixes to pass to excludeRoute, on top of the default routes.
+	 */
+	public List<Prefix> getExcluded() {
+		return excluded;
+	}
+
+	/**
+	 * Routes that replace 0.0.0.0/0 and ::/0 in complement mode, empty
+	 * otherwise.
+	 */
+	public List<Prefix> getRoutes() {
+		return routes;
+	}
+
+	public boolean isComplement() {
+		return !routes.isEmpty();
+	}
+
+	/* Prefixes the kernel bypasses, out of getTotal() */
+	public int getBypassed() {
+		return bypassed.size();
+	}
+
+	/**
+	 * Whether every bypassed prefix is still domestic in table. If so the
+	 * routes stay correct after a table update; prefixes added by the
+	 * update are sent direct by the native check instead of the kernel.
+	 */
+	public boolean isCoveredBy(RouteTable table) {
+		for (long[] p : bypassed) {
+			long[] range = { p[0], p[1], p[0], p[1] };
+			orHostMask(range, (int) (p[3] - p[2]));
+			boolean covered = p[3] == 32 ? table.containsIpv4Range(range[1], range[3]) :
+				table.containsIpv6Range(range);
+			if (!covered)
+			  return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether no bypassed prefix overlaps blocked, as for plan(). If one
+	 * does, traffic to it would skip the ACL and the TUN is rebuilt.
+	 */
+	public boolean isClearOf(List<String> blocked) {
+		ArrayList<long[]> keep4 = new ArrayList<long[]>();
+		ArrayList<long[]> keep6 = new ArrayList<long[]>();
+		for (String addr : blocked)
+		  addKeep(addr, keep4, keep6);
+		for (long[] p : bypassed) {
+			long[] range = { p[0], p[1], p[0], p[1] };
+			orHostMask(range, (int) (p[3] - p[2]));
+			for (long[] k : p[3] == 32 ? keep4 : keep6) {
+				if (compare128(k[2], k[3], range[0], range[1]) >= 0 &&
+				    compare128(k[0], k[1], range[2], range[3]) <= 0)
+				  return false;
+			}
+		}
+		return true;
+	}
+
+	/* Prefixes the table splits into at any length */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Complement of the first count candidates, per enabled family.
+	 * @return number of routes
+	 */
+	private static int complement(List<long[]> candidates, int count, Settings s, List<Prefix> out) {
+		ArrayList<long[]> ranges4 = new ArrayList<long[]>();
+		ArrayList<long[]> ranges6 = new ArrayList<long[]>();
+		for (int i = 0; i < count; i++) {
+			long[] p = candidates.get(i);
+			long[] range = { p[0], p[1], p[0], p[1] };
+			orHostMask(range, (int) (p[3] - p[2]));
+			(p[3] == 32 ? ranges4 : ranges6).add(range);
+		}
+
+		ArrayList<long[]> prefixes = new ArrayList<long[]>();
+		if (s.getIpv4())
+		  split(gaps(ranges4, 0, 0xffffffffL), 32, 32, prefixes);
+		if (s.getIpv6())
+		  split(gaps(ranges6, -1L, -1L), 128, 128, prefixes);
+		if (out != null) {
+			for (long[] p : prefixes)
+			  out.add(toPrefix(p));
+		}
+		return prefixes.size();
+	}
+
+	/**
+	 * Uncovered parts of [0, max] around ranges, in address order.
+	 */
+	private static ArrayList<long[]> gaps(ArrayList<long[]> ranges, long maxHi, long maxLo) {
+		Collections.sort(ranges, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return compare128(a[0], a[1], b[0], b[1]);
+			}
+		});
+
+		ArrayList<long[]> gaps = new ArrayList<long[]>();
+		long nextHi = 0;
+		long nextLo = 0;
+		boolean done = false;
+		for (long[] r : ranges) {
+			if (compare128(nextHi, nextLo, r[0], r[1]) < 0) {
+				long[] gap = { nextHi, nextLo, r[0], r[1] };
+				decrement(gap, 2);
+				gaps.add(gap);
+			}
+			if (r[2] == maxHi && r[3] == maxLo) {
+				done = true;
+				break;
+			}
+			if (compare128(r[2], r[3], nextHi, nextLo) >= 0) {
+				nextHi = r[3] == -1L ? r[2] + 1 : r[2];
+				nextLo = r[3] + 1;
+			}
+		}
+		if (!done)
+		  gaps.add(new long[] { nextHi, nextLo, maxHi, maxLo });
+		return gaps;
+	}
+
+	/**
+	 * Cut ranges into the fewest prefixes and add those no longer than
+	 * maxLength to out as { high, low, length, width }.
+	 * @return number of prefixes at any length
+	 */
+	private static int split(List<long[]> ranges, int width, int maxLength, List<long[]> out) {
+		int count = 0;
+		for (long[] r : ranges) {
+			long hi = r[0];
+			long lo = r[1];
+			while (true) {
+				int bits = Math.min(trailingZeros(hi, lo), width);
+				long[] end = { 0, 0, hi, lo };
+				while (true) {
+					end[2] = hi;
+					end[3] = lo;
+					orHostMask(end, bits);
+					if (compare128(end[2], end[3], r[2], r[3]) <= 0)
+					  break;
+					bits--;
+				}
+				count++;
+				if (width - bits <= maxLength)
+				  out.add(new long[] { hi, lo, width - bits, width });
+				if (end[2] == r[2] && end[3] == r[3])
+				  break;
+				hi = end[3] == -1L ? end[2] + 1 : end[2];
+				lo = end[3] + 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Ranges minus every keep range.
+	 */
+	private static ArrayList<long[]> subtract(ArrayList<long[]> ranges, List<long[]> keep) {
+		for (long[] k : keep) {
+			ArrayList<long[]> rest = new ArrayList<long[]>(ranges.size() + 1);
+			for (long[] r : ranges) {
+				if (compare128(k[2], k[3], r[0], r[1]) < 0 || compare128(k[0], k[1], r[2], r[3]) > 0) {
+					rest.add(r);
+					continue;
+				}
+				if (compare128(r[0], r[1], k[0], k[1]) < 0) {
+					long[] left = { r[0], r[1], k[0], k[1] };
+					decrement(left, 2);
+					rest.add(left);
+				}
+				if (compare128(k[2], k[3], r[2], r[3]) < 0) {
+					long[] right = { k[2], k[3], r[2], r[3] };
+					right[0] = right[1] == -1L ? right[0] + 1 : right[0];
+					right[1] = right[1] + 1;
+					rest.add(right);
+				}
+			}
+			ranges = rest;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Add an address, or a CIDR, as a range to keep out of the bypass.
+	 * Anything else is ignored; ConfigValidator reports it.
+	 */
+	private static void addKeep(String addr, List<long[]> keep4, List<long[]> keep6) {
+		if (addr == null || addr.isEmpty())
+		  return;
+		int length = -1;
+		int slash = addr.indexOf('/');
+		if (slash >= 0) {
+			length = ConfigValidator.parsePrefix(addr.substring(slash + 1));
+			addr = addr.substring(0, slash);
+			if (length < 0)
+			  return;
+		}
+		long v4 = ConfigValidator.parseIpv4(addr);
+		if (v4 >= 0) {
+			if (length > 32)
+			  return;
+			int bits = length < 0 ? 0 : 32 - length;
+			long first = bits == 32 ? 0 : v4 & (0xffffffffL << bits) & 0xffffffffL;
+			long[] range = { 0, first, 0, first };
+			orHostMask(range, bits);
+			keep4.add(range);
+			return;
+		}
+		byte[] v6 = ConfigValidator.parseIpv6(addr);
+		if (v6 != null) {
+			if (length > 128)
+			  return;
+			long hi = 0;
+			long lo = 0;
+			for (int i = 0; i < 8; i++) {
+				hi = (hi << 8) | (v6[i] & 0xff);
+				lo = (lo << 8) | (v6[i + 8] & 0xff);
+			}
+			int bits = length < 0 ? 0 : 128 - length;
+			if (bits >= 64) {
+				lo = 0;
+				hi = bits == 128 ? 0 : hi & (-1L << (bits - 64));
+			} else if (bits > 0) {
+				lo &= -1L << bits;
+			}
+			long[] range = { hi, lo, hi, lo };
+			orHostMask(range, bits);
+			keep6.add(range);
+		}
+	}
+
+	private static Prefix toPrefix(long[] p) {
+		int width = (int) p[3];
+		byte[] addr = new byte[width / 8];
+		for (int i = 0; i < addr.length; i++) {
+			int shift = (addr.length - 1 - i) * 8;
+			addr[i] = (byte) (shift >= 64 ? p[0] >>> (shift - 64) : p[1] >>> shift);
+		}
+		return new Prefix(addr, (int) p[2]);
+	}
+
+	private static long normalizedLength(long[] p) {
+		return p[3] == 32 ? p[2] : p[2] - IPV6_LEVEL_OFFSET;
+	}
+
+	/* Set the low bits of the 128-bit value at v[2], v[3] */
+	private static void orHostMask(long[] v, int bits) {
+		if (bits >= 64) {
+			v[3] = -1L;
+			v[2] |= bits >= 128 ? -1L : (1L << (bits - 64)) - 1;
+		} else {
+			v[3] |= (1L << bits) - 1;
+		}
+	}
+
+	private static void decrement(long[] v, int index) {
+		if (v[index + 1] == 0)
+		  v[index]--;
+		v[index + 1]--;
+	}
+
+	private static int trailingZeros(long hi, long lo) {
+		if (lo != 0)
+		  return Long.numberOfTrailingZeros(lo);
+		if (hi != 0)
+		  return 64 + Long.numberOfTrailingZeros(hi);
+		return 128;
+	}
+
+	private static int compare128(long aHi, long aLo, long bHi, long bLo) {
+		int c = Long.compareUnsigned(aHi, bHi);
+		return c != 0 ? c : Long.compareUnsigned(aLo, bLo);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ ============================================================================
+ Name        : LatencyHistogram.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Connect Latency Histograms
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+/**
+ * Log-bucketed connect latency histograms, one per route class, as
+ * recorded by the native tunnel.
+ *
+ * Latencies are in microseconds. Values below 4 get their own bucket;
+ * every power of two above that is split into 4 linear sub-buckets, so
+ * the relative error of a bucket is at most 25%. The native side uses
+ * the same bucketOf() mapping and bumps counters with relaxed atomics.
+ *
+ * Route classes follow UidTraffic: direct connect, SOCKS5 handshake and
+ * smart-proxy probe.
+ */
+public class LatencyHistogram {
+	public static final int CLASS_DIRECT = UidTraffic.ROUTE_DIRECT;
+	public static final int CLASS_PROXY = UidTraffic.ROUTE_PROXY;
+	public static final int CLASS_SMART_PROXY = UidTraffic.ROUTE_SMART_PROXY;
+	public static final int CLASSES = 3;
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 24; // 2^24 us ~ 16.7 s
+	public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final long[] counts = new long[CLASSES * BUCKETS];
+
+	public static int bucketOf(long us) {
+		if (us < SUB_BUCKETS)
+		  return us < 0 ? 0 : (int) us;
+		int exp = 63 - Long.numberOfLeadingZeros(us);
+		if (exp >= MAX_EXPONENT)
+		  return BUCKETS - 1;
+		int sub = (int) (us >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	public static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+		  return bucket;
+		int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Raw counters, CLASSES * BUCKETS, filled by TProxyGetLatencyStats().
+	 */
+	public long[] getCounts() {
+		return counts;
+	}
+
+	public long getCount(int cls) {
+		long total = 0;
+		int base = cls * BUCKETS;
+		for (int i = 0; i < BUCKETS; i++)
+		  total += counts[base + i];
+		return total;
+	}
+
+	/**
+	 * Estimate a percentile by interpolating inside the matching bucket.
+	 * @param p fraction in (0, 1], e.g. 0.95
+	 * @return latency in microseconds, or -1 if the class has no samples
+	 */
+	public long percentile(int cls, double p) {
+		long total = getCount(cls);
+		if (total == 0)
+		  return -1;
+
+		double rank = p * total;
+		long seen = 0;
+		int base = cls * BUCKETS;
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = counts[base + i];
+			if (n == 0)
+			  continue;
+			if (seen + n >= rank) {
+				long lo = lowerBound(i);
+				long hi = (i + 1 < BUCKETS) ? lowerBound(i + 1) : lo * 2;
+				double frac = (rank - seen) / n;
+				return lo + (long) ((hi - lo) * frac);
+			}
+			seen += n;
+		}
+		return lowerBound(BUCKETS - 1);
+	}
+}
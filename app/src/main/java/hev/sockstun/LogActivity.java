@@ -323,7 +323,16 @@ public class LogActivity extends TabActivity implements View.OnClickListener {
 	private String readConfigFile() {
 		File configFile = new File(getCacheDir(), "tproxy.conf");
 		if (!configFile.exists()) {
-			return null;
+			// Started from the binary config, render it as YAML
+			Preferences prefs = new Preferences(this);
+			if (!prefs.getEnable()) {
+				return null;
+			}
+			File logFile = new File(getCacheDir(), "tunnel.log");
+			Settings settings = prefs.snapshot();
+			ConfigGenerator configGen = new ConfigGenerator(settings, logFile, getCacheDir());
+			configGen.setUidPolicies(UidPolicyTable.resolve(getPackageManager(), settings));
+			return configGen.generate();
 		}
 
 		try {
@@ -41,12 +41,13 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageInfo;
 import android.text.SpannableString;
 import android.text.Spanned;
+import android.text.format.Formatter;
 import android.text.style.ClickableSpan;
 import android.text.style.ForegroundColorSpan;
 import android.content.res.AssetManager;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.OutputStreamWriter;
@@ -81,6 +82,8 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 	private Button button_apps;
 	private Button button_logs;
 	private Button button_blacklist;
+	private Button button_stats;
+	private Button button_simulator;
 	private Button button_save;
 	private Button button_control;
 	private Spinner spinner_log_level;
@@ -95,6 +98,7 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 	private EditText edittext_max_session_count;
 	private EditText edittext_pid_file;
 	private EditText edittext_limit_nofile;
+	private EditText edittext_metrics_port;
 	private EditText edittext_tunnel_mtu;
 	private EditText edittext_tunnel_name;
 	private CheckBox checkbox_tunnel_multi_queue;
@@ -106,22 +110,29 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 	private CheckBox checkbox_chnroutes_enabled;
 	private Button button_chnroutes_upload;
 	private Button button_chnroutes_extract;
-	private Button button_chnroutes_clear;
+	private Button button_chnroutes_delta;
+	private Button button_chnroutes_edit;
 	private Button button_chnroutes_refresh;
-	private Button button_chnroutes_save;
-	private EditText edittext_chnroutes_content;
+	private TextView textview_chnroutes_summary;
 	private TextView textview_chnroutes_path_info;
 	private static final int CHNROUTES_UPLOAD_REQUEST_CODE = 100;
+	private static final int CHNROUTES_DELTA_REQUEST_CODE = 102;
+	// Held by the worker importing routes or applying a delta, so they
+	// don't interleave on chnroutes.txt
+	private final Object routeFiles = new Object();
 	private boolean chnroutesLoaded = false;
+	private CheckBox checkbox_kernel_bypass;
+	private EditText edittext_kernel_bypass_level;
+	private EditText edittext_kernel_bypass_budget;
 
 	// ACL
 	private CheckBox checkbox_acl_enabled;
 	private Button button_acl_upload;
 	private Button button_acl_extract;
-	private Button button_acl_clear;
+	private Button button_acl_edit;
 	private Button button_acl_refresh;
-	private Button button_acl_save;
-	private EditText edittext_acl_content;
+	private TextView textview_acl_summary;
+	private TextView textview_acl_table_summary;
 	private TextView textview_acl_path_info;
 	private static final int ACL_UPLOAD_REQUEST_CODE = 101;
 	private boolean aclLoaded = false;
@@ -160,6 +171,7 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 	private LinearLayout probe_ports_container;
 	private Button probe_port_add_button;
 	private java.util.List<EditText> probe_port_edit_texts = new java.util.ArrayList<EditText>();
+	private EditText savingField;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -243,6 +255,8 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		button_apps = (Button) findViewById(R.id.apps);
 		button_logs = (Button) findViewById(R.id.logs);
 		button_blacklist = (Button) findViewById(R.id.blacklist);
+		button_stats = (Button) findViewById(R.id.stats);
+		button_simulator = (Button) findViewById(R.id.simulator);
 		button_save = (Button) findViewById(R.id.save);
 		button_control = (Button) findViewById(R.id.control);
 		textview_socks_pass_toggle = (TextView) findViewById(R.id.socks_pass_toggle);
@@ -258,6 +272,7 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		edittext_max_session_count = (EditText) findViewById(R.id.max_session_count);
 		edittext_pid_file = (EditText) findViewById(R.id.pid_file);
 		edittext_limit_nofile = (EditText) findViewById(R.id.limit_nofile);
+		edittext_metrics_port = (EditText) findViewById(R.id.metrics_port);
 		edittext_tunnel_mtu = (EditText) findViewById(R.id.tunnel_mtu);
 		edittext_tunnel_name = (EditText) findViewById(R.id.tunnel_name);
 		checkbox_tunnel_multi_queue = (CheckBox) findViewById(R.id.tunnel_multi_queue);
@@ -270,20 +285,23 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		checkbox_chnroutes_enabled = (CheckBox) findViewById(R.id.chnroutes_enabled);
 		button_chnroutes_upload = (Button) findViewById(R.id.chnroutes_upload);
 		button_chnroutes_extract = (Button) findViewById(R.id.chnroutes_extract);
-		button_chnroutes_clear = (Button) findViewById(R.id.chnroutes_clear);
+		button_chnroutes_delta = (Button) findViewById(R.id.chnroutes_delta);
+		button_chnroutes_edit = (Button) findViewById(R.id.chnroutes_edit);
 		button_chnroutes_refresh = (Button) findViewById(R.id.chnroutes_refresh);
-		button_chnroutes_save = (Button) findViewById(R.id.chnroutes_save);
-		edittext_chnroutes_content = (EditText) findViewById(R.id.chnroutes_content);
+		textview_chnroutes_summary = (TextView) findViewById(R.id.chnroutes_summary);
 		textview_chnroutes_path_info = (TextView) findViewById(R.id.chnroutes_path_info);
+		checkbox_kernel_bypass = (CheckBox) findViewById(R.id.kernel_bypass);
+		edittext_kernel_bypass_level = (EditText) findViewById(R.id.kernel_bypass_level);
+		edittext_kernel_bypass_budget = (EditText) findViewById(R.id.kernel_bypass_budget);
 
 		// ACL UI elements
 		checkbox_acl_enabled = (CheckBox) findViewById(R.id.acl_enabled);
 		button_acl_upload = (Button) findViewById(R.id.acl_upload);
 		button_acl_extract = (Button) findViewById(R.id.acl_extract);
-		button_acl_clear = (Button) findViewById(R.id.acl_clear);
+		button_acl_edit = (Button) findViewById(R.id.acl_edit);
 		button_acl_refresh = (Button) findViewById(R.id.acl_refresh);
-		button_acl_save = (Button) findViewById(R.id.acl_save);
-		edittext_acl_content = (EditText) findViewById(R.id.acl_content);
+		textview_acl_summary = (TextView) findViewById(R.id.acl_summary);
+		textview_acl_table_summary = (TextView) findViewById(R.id.acl_table_summary);
 		textview_acl_path_info = (TextView) findViewById(R.id.acl_path_info);
 
 		// DNS Split Tunnel UI elements
@@ -330,9 +348,9 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		checkbox_chnroutes_enabled.setOnClickListener(this);
 		button_chnroutes_upload.setOnClickListener(this);
 		button_chnroutes_extract.setOnClickListener(this);
-		button_chnroutes_clear.setOnClickListener(this);
+		button_chnroutes_delta.setOnClickListener(this);
+		button_chnroutes_edit.setOnClickListener(this);
 		button_chnroutes_refresh.setOnClickListener(this);
-		button_chnroutes_save.setOnClickListener(this);
 
 		// Setup ACL path info
 		textview_acl_path_info.setText("File path: " + getCacheDir().getAbsolutePath() + "/acl.txt");
@@ -343,9 +361,8 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		checkbox_acl_enabled.setOnClickListener(this);
 		button_acl_upload.setOnClickListener(this);
 		button_acl_extract.setOnClickListener(this);
-		button_acl_clear.setOnClickListener(this);
+		button_acl_edit.setOnClickListener(this);
 		button_acl_refresh.setOnClickListener(this);
-		button_acl_save.setOnClickListener(this);
 
 		// Setup clickable GitHub link
 		textview_github_link = (TextView) findViewById(R.id.github_link);
@@ -392,6 +409,8 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		button_apps.setOnClickListener(this);
 		button_logs.setOnClickListener(this);
 		button_blacklist.setOnClickListener(this);
+		button_stats.setOnClickListener(this);
+		button_simulator.setOnClickListener(this);
 		button_save.setOnClickListener(this);
 		button_control.setOnClickListener(this);
 
@@ -416,6 +435,7 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 			@Override
 			public void onReceive(Context context, Intent intent) {
 				if ("hev.sockstun.VPN_STOPPED".equals(intent.getAction())) {
+					// A stop to apply settings is restarted by the service
 					updateUI();
 				}
 			}
@@ -481,12 +501,11 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		}
 		// Handle chnroutes file upload
 		if (request == CHNROUTES_UPLOAD_REQUEST_CODE && result == RESULT_OK && data != null) {
-			Uri uri = data.getData();
-			try {
-				copyFileFromUri(uri);
-			} catch (IOException e) {
-				Toast.makeText(this, getString(R.string.upload_failed, e.getMessage()), Toast.LENGTH_SHORT).show();
-			}
+			copyFileFromUri(data.getData());
+		}
+		// Handle chnroutes delta
+		if (request == CHNROUTES_DELTA_REQUEST_CODE && result == RESULT_OK && data != null) {
+			applyRouteDelta(data.getData());
 		}
 		// Handle ACL file upload
 		if (request == ACL_UPLOAD_REQUEST_CODE && result == RESULT_OK && data != null) {
@@ -499,6 +518,16 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		}
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		// Pick up saves made in RuleEditorActivity
+		if (chnroutesLoaded)
+		  loadChnroutesContent();
+		if (aclLoaded)
+		  loadAclContent();
+	}
+
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
@@ -511,18 +540,35 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 	@Override
 	public void onClick(View view) {
 		if (view == checkbox_global || view == checkbox_remote_dns || view == checkbox_chnroutes_enabled) {
-			savePrefs();
-			updateUI();
+			if (savePrefs() != null)
+			  updateUI();
 		} else if (view == button_apps) {
 			startActivity(new Intent(this, AppListActivity.class));
 		} else if (view == button_logs) {
 			startActivity(new Intent(this, LogActivity.class));
 		} else if (view == button_blacklist) {
 			startActivity(new Intent(this, BlacklistActivity.class));
+		} else if (view == button_stats) {
+			startActivity(new Intent(this, StatsActivity.class));
+		} else if (view == button_simulator) {
+			startActivity(new Intent(this, SimulatorActivity.class));
 		} else if (view == button_save) {
-			savePrefs();
+			java.util.Set<String> changed = savePrefs();
+			if (changed == null)
+			  return;
 			Context context = getApplicationContext();
 			Toast.makeText(context, getString(R.string.saved), Toast.LENGTH_SHORT).show();
+			final java.util.ArrayList<String> changedKeys = new java.util.ArrayList<String>(changed);
+			validatePrefs(new Runnable() {
+				@Override
+				public void run() {
+					if (!prefs.getEnable())
+					  return;
+					Intent intent = new Intent(MainActivity.this, TProxyService.class);
+					intent.putStringArrayListExtra(TProxyService.EXTRA_CHANGED_KEYS, changedKeys);
+					startService(intent.setAction(TProxyService.ACTION_RELOAD));
+				}
+			});
 		} else if (view == button_control) {
 			boolean isEnable = prefs.getEnable();
 			if (!isEnable) {
@@ -534,14 +580,19 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 				}
 			}
 			
-			prefs.setEnable(!isEnable);
-			savePrefs();
-			updateUI();
-			Intent intent = new Intent(this, TProxyService.class);
-			if (isEnable)
-			  startService(intent.setAction(TProxyService.ACTION_DISCONNECT));
-			else
-			  startService(intent.setAction(TProxyService.ACTION_CONNECT));
+			if (savePrefs() == null)
+			  return;
+			if (isEnable) {
+				setTunnelEnabled(false);
+				return;
+			}
+			validatePrefs(new Runnable() {
+				@Override
+				public void run() {
+					if (!prefs.getEnable())
+					  setTunnelEnabled(true);
+				}
+			});
 		} else if (view == button_chnroutes_upload) {
 			// Open file picker for uploading chnroutes file
 			Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
@@ -550,15 +601,19 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		} else if (view == button_chnroutes_extract) {
 			// Extract chnroutes.txt from APK assets
 			extractChnroutesFromAssets();
-		} else if (view == button_chnroutes_clear) {
-			// Clear the editor
-			edittext_chnroutes_content.setText("");
+		} else if (view == button_chnroutes_delta) {
+			// Pick a delta of added and removed prefixes
+			Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+			intent.setType("*/*");
+			startActivityForResult(intent, CHNROUTES_DELTA_REQUEST_CODE);
+		} else if (view == button_chnroutes_edit) {
+			// Edit the file line by line
+			Intent intent = new Intent(this, RuleEditorActivity.class);
+			intent.putExtra(RuleEditorActivity.EXTRA_FILE_NAME, "chnroutes.txt");
+			startActivity(intent);
 		} else if (view == button_chnroutes_refresh) {
-			// Refresh content from file
+			// Refresh summary from file
 			loadChnroutesContent();
-		} else if (view == button_chnroutes_save) {
-			// Save content to file
-			saveChnroutesContent();
 		} else if (view == button_acl_upload) {
 			// Upload ACL file
 			Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
@@ -567,15 +622,14 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		} else if (view == button_acl_extract) {
 			// Extract acl.txt from APK assets
 			extractAclFromAssets();
-		} else if (view == button_acl_clear) {
-			// Clear the editor
-			edittext_acl_content.setText("");
+		} else if (view == button_acl_edit) {
+			// Edit the file line by line
+			Intent intent = new Intent(this, RuleEditorActivity.class);
+			intent.putExtra(RuleEditorActivity.EXTRA_FILE_NAME, "acl.txt");
+			startActivity(intent);
 		} else if (view == button_acl_refresh) {
-			// Refresh content from file
+			// Refresh summary from file
 			loadAclContent();
-		} else if (view == button_acl_save) {
-			// Save content to file
-			saveAclContent();
 		} else if (view == dns_add_button) {
 			// Add new DNS entry
 			addDnsEntryView("", true);
@@ -624,6 +678,7 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		edittext_max_session_count.setText(Integer.toString(prefs.getMaxSessionCount()));
 		edittext_pid_file.setText(prefs.getPidFile());
 		edittext_limit_nofile.setText(Integer.toString(prefs.getLimitNofile()));
+		edittext_metrics_port.setText(Integer.toString(prefs.getMetricsPort()));
 
 		edittext_tunnel_mtu.setText(Integer.toString(prefs.getTunnelMtu()));
 		edittext_tunnel_name.setText(prefs.getTunnelName());
@@ -634,6 +689,9 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		edittext_tunnel_pre_down_script.setText(prefs.getTunnelPreDownScript());
 
 		checkbox_chnroutes_enabled.setChecked(prefs.getChnroutesEnabled());
+		checkbox_kernel_bypass.setChecked(prefs.getKernelBypass());
+		edittext_kernel_bypass_level.setText(Integer.toString(prefs.getKernelBypassLevel()));
+		edittext_kernel_bypass_budget.setText(Integer.toString(prefs.getKernelBypassBudget()));
 		checkbox_acl_enabled.setChecked(prefs.getAclEnabled());
 
 		// DNS Split Tunnel preferences
@@ -685,7 +743,8 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		checkbox_ipv6.setEnabled(editable);
 		checkbox_bypass_lan.setEnabled(editable && android.os.Build.VERSION.SDK_INT >= 33);
 		button_apps.setEnabled(editable);
-		button_save.setEnabled(editable);
+		// Hot-reloadable settings below stay editable while running
+		button_save.setEnabled(true);
 
 		// Tunnel options
 		edittext_tunnel_mtu.setEnabled(editable);
@@ -704,37 +763,40 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		edittext_tcp_buffer_size.setEnabled(editable);
 		edittext_udp_recv_buffer_size.setEnabled(editable);
 		edittext_udp_copy_buffer_nums.setEnabled(editable);
-		edittext_connect_timeout.setEnabled(editable);
-		edittext_tcp_read_write_timeout.setEnabled(editable);
-		edittext_udp_read_write_timeout.setEnabled(editable);
+		edittext_connect_timeout.setEnabled(true);
+		edittext_tcp_read_write_timeout.setEnabled(true);
+		edittext_udp_read_write_timeout.setEnabled(true);
 		edittext_max_session_count.setEnabled(editable);
 		// Not supported on Android
 		edittext_pid_file.setEnabled(false);
 		edittext_limit_nofile.setEnabled(false);
+		// Picked up by the running service when saved
+		edittext_metrics_port.setEnabled(true);
 
 		// Chnroutes elements
-		checkbox_chnroutes_enabled.setEnabled(editable);
-		button_chnroutes_upload.setEnabled(editable);
-		button_chnroutes_extract.setEnabled(editable);
-		button_chnroutes_clear.setEnabled(editable);
-		button_chnroutes_refresh.setEnabled(editable);
-		button_chnroutes_save.setEnabled(editable);
-		edittext_chnroutes_content.setEnabled(editable);
+		checkbox_chnroutes_enabled.setEnabled(true);
+		button_chnroutes_upload.setEnabled(true);
+		button_chnroutes_extract.setEnabled(true);
+		button_chnroutes_delta.setEnabled(true);
+		button_chnroutes_edit.setEnabled(true);
+		button_chnroutes_refresh.setEnabled(true);
+		// TUN routes; the service restarts the tunnel when they change
+		checkbox_kernel_bypass.setEnabled(true);
+		edittext_kernel_bypass_level.setEnabled(true);
+		edittext_kernel_bypass_budget.setEnabled(true);
 
 		// ACL elements
-		checkbox_acl_enabled.setEnabled(editable);
-		button_acl_upload.setEnabled(editable);
-		button_acl_extract.setEnabled(editable);
-		button_acl_clear.setEnabled(editable);
-		button_acl_refresh.setEnabled(editable);
-		button_acl_save.setEnabled(editable);
-		edittext_acl_content.setEnabled(editable);
+		checkbox_acl_enabled.setEnabled(true);
+		button_acl_upload.setEnabled(true);
+		button_acl_extract.setEnabled(true);
+		button_acl_edit.setEnabled(true);
+		button_acl_refresh.setEnabled(true);
 
 		// DNS Split Tunnel enable/disable
-		checkbox_dns_split_tunnel_enable.setEnabled(editable);
-		dns_add_button.setEnabled(editable);
+		checkbox_dns_split_tunnel_enable.setEnabled(true);
+		dns_add_button.setEnabled(true);
 		for (EditText edit : dns_entry_edit_texts) {
-			edit.setEnabled(editable);
+			edit.setEnabled(true);
 		}
 
 		// DNS Forwarder enable/disable
@@ -759,12 +821,12 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		edittext_dns_latency_optimize_timeout.setEnabled(editable);
 
 		// Smart Proxy enable/disable
-		checkbox_smart_proxy_enabled.setEnabled(editable);
-		edittext_smart_proxy_timeout.setEnabled(editable);
-		edittext_smart_proxy_blocked_ip_expiry.setEnabled(editable);
-		probe_port_add_button.setEnabled(editable);
+		checkbox_smart_proxy_enabled.setEnabled(true);
+		edittext_smart_proxy_timeout.setEnabled(true);
+		edittext_smart_proxy_blocked_ip_expiry.setEnabled(true);
+		probe_port_add_button.setEnabled(true);
 		for (EditText edit : probe_port_edit_texts) {
-			edit.setEnabled(editable);
+			edit.setEnabled(true);
 		}
 
 		if (editable)
@@ -933,22 +995,110 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		return dnsButton;
 	}
 
-	private void savePrefs() {
-		prefs.setSocksAddress(edittext_socks_addr.getText().toString());
-		prefs.setSocksUdpAddress(edittext_socks_udp_addr.getText().toString());
+	private void setTunnelEnabled(boolean enable) {
+		prefs.setEnable(enable);
+		updateUI();
+		Intent intent = new Intent(this, TProxyService.class);
+		if (enable)
+		  startService(intent.setAction(TProxyService.ACTION_CONNECT));
+		else
+		  startService(intent.setAction(TProxyService.ACTION_DISCONNECT));
+	}
 
-		String udpPortStr = edittext_socks_udp_port.getText().toString();
+	/**
+	 * Run the saved settings through ConfigValidator on a worker thread,
+	 * as it reads every enabled rule file, and show any diagnostics.
+	 * @param onValid run on the UI thread unless the tunnel would be
+	 *        started with errors
+	 */
+	private void validatePrefs(final Runnable onValid) {
+		final File log_file = new File(getCacheDir(), "tunnel.log");
+		final hev.sockstun.Settings settings = prefs.snapshot();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ConfigGenerator configGen = new ConfigGenerator(settings, log_file, getCacheDir());
+				configGen.setUidPolicies(UidPolicyTable.resolve(getPackageManager(), settings));
+				final ConfigValidator.Result result = new ConfigValidator(settings).validate(configGen.generateBinary());
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (isDestroyed())
+						  return;
+						if (!result.getDiagnostics().isEmpty()) {
+							AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
+							builder.setTitle(result.hasErrors() ? R.string.config_errors_title : R.string.config_warnings_title);
+							builder.setMessage(result.toString());
+							builder.setPositiveButton(android.R.string.ok, null);
+							builder.show();
+						}
+						if (!result.hasErrors())
+						  onValid.run();
+					}
+				});
+			}
+		}).start();
+	}
+
+	/**
+	 * Write all fields to the preferences in one batch.
+	 * @return keys whose value changed, or null if a field was rejected
+	 */
+	private java.util.Set<String> savePrefs() {
+		savingField = null;
+		prefs.beginBatch();
+		try {
+			writePrefs();
+		} catch (IllegalArgumentException e) {
+			// A field that doesn't parse or fit leaves every setting as it was
+			prefs.abortBatch();
+			showFieldError(e);
+			return null;
+		} catch (RuntimeException e) {
+			prefs.abortBatch();
+			throw e;
+		}
+		return prefs.commitBatch();
+	}
+
+	/**
+	 * Text of a field being saved; the field is remembered so a value
+	 * that is rejected can be marked on it.
+	 */
+	private String textOf(EditText edit) {
+		savingField = edit;
+		return edit.getText().toString();
+	}
+
+	private void showFieldError(IllegalArgumentException e) {
+		String message;
+		if (e instanceof SettingsStore.ValueTooLongException)
+		  message = getString(R.string.field_too_long, ((SettingsStore.ValueTooLongException) e).getCapacity());
+		else
+		  message = getString(R.string.field_not_a_number);
+		if (savingField != null) {
+			savingField.setError(message);
+			savingField.requestFocus();
+		}
+		Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+	}
+
+	private void writePrefs() {
+		prefs.setSocksAddress(textOf(edittext_socks_addr));
+		prefs.setSocksUdpAddress(textOf(edittext_socks_udp_addr));
+
+		String udpPortStr = textOf(edittext_socks_udp_port);
 		int udpPort = udpPortStr.isEmpty() ? 0 : Integer.parseInt(udpPortStr);
 		prefs.setSocksUdpPort(udpPort);
 
-		prefs.setSocksUdpUsername(edittext_socks_udp_user.getText().toString());
-		prefs.setSocksUdpPassword(edittext_socks_udp_pass.getText().toString());
+		prefs.setSocksUdpUsername(textOf(edittext_socks_udp_user));
+		prefs.setSocksUdpPassword(textOf(edittext_socks_udp_pass));
 
-		prefs.setSocksPort(Integer.parseInt(edittext_socks_port.getText().toString()));
-		prefs.setSocksUsername(edittext_socks_user.getText().toString());
-		prefs.setSocksPassword(edittext_socks_pass.getText().toString());
-		prefs.setDnsIpv4(edittext_dns_ipv4.getText().toString());
-		prefs.setDnsIpv6(edittext_dns_ipv6.getText().toString());
+		prefs.setSocksPort(Integer.parseInt(textOf(edittext_socks_port)));
+		prefs.setSocksUsername(textOf(edittext_socks_user));
+		prefs.setSocksPassword(textOf(edittext_socks_pass));
+		prefs.setDnsIpv4(textOf(edittext_dns_ipv4));
+		prefs.setDnsIpv6(textOf(edittext_dns_ipv6));
 		if (!checkbox_ipv4.isChecked() && !checkbox_ipv6.isChecked())
 		  checkbox_ipv4.setChecked(prefs.getIpv4());
 		prefs.setIpv4(checkbox_ipv4.isChecked());
@@ -958,31 +1108,35 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		prefs.setUdpInTcp(checkbox_udp_in_tcp.isChecked());
 		prefs.setRemoteDns(checkbox_remote_dns.isChecked());
 
-		prefs.setTaskStackSize(Integer.parseInt(edittext_task_stack_size.getText().toString()));
+		prefs.setTaskStackSize(Integer.parseInt(textOf(edittext_task_stack_size)));
 
 		// Save log level from spinner
 		String[] logLevelValues = getResources().getStringArray(R.array.log_level_values);
 		int selectedPosition = spinner_log_level.getSelectedItemPosition();
 		prefs.setLogLevel(logLevelValues[selectedPosition]);
-		prefs.setTcpBufferSize(Integer.parseInt(edittext_tcp_buffer_size.getText().toString()));
-		prefs.setUdpRecvBufferSize(Integer.parseInt(edittext_udp_recv_buffer_size.getText().toString()));
-		prefs.setUdpCopyBufferNums(Integer.parseInt(edittext_udp_copy_buffer_nums.getText().toString()));
-		prefs.setConnectTimeout(Integer.parseInt(edittext_connect_timeout.getText().toString()));
-		prefs.setTcpReadWriteTimeout(Integer.parseInt(edittext_tcp_read_write_timeout.getText().toString()));
-		prefs.setUdpReadWriteTimeout(Integer.parseInt(edittext_udp_read_write_timeout.getText().toString()));
-		prefs.setMaxSessionCount(Integer.parseInt(edittext_max_session_count.getText().toString()));
-		prefs.setPidFile(edittext_pid_file.getText().toString());
-		prefs.setLimitNofile(Integer.parseInt(edittext_limit_nofile.getText().toString()));
-
-		prefs.setTunnelMtu(Integer.parseInt(edittext_tunnel_mtu.getText().toString()));
-		prefs.setTunnelName(edittext_tunnel_name.getText().toString());
+		prefs.setTcpBufferSize(Integer.parseInt(textOf(edittext_tcp_buffer_size)));
+		prefs.setUdpRecvBufferSize(Integer.parseInt(textOf(edittext_udp_recv_buffer_size)));
+		prefs.setUdpCopyBufferNums(Integer.parseInt(textOf(edittext_udp_copy_buffer_nums)));
+		prefs.setConnectTimeout(Integer.parseInt(textOf(edittext_connect_timeout)));
+		prefs.setTcpReadWriteTimeout(Integer.parseInt(textOf(edittext_tcp_read_write_timeout)));
+		prefs.setUdpReadWriteTimeout(Integer.parseInt(textOf(edittext_udp_read_write_timeout)));
+		prefs.setMaxSessionCount(Integer.parseInt(textOf(edittext_max_session_count)));
+		prefs.setPidFile(textOf(edittext_pid_file));
+		prefs.setLimitNofile(Integer.parseInt(textOf(edittext_limit_nofile)));
+		prefs.setMetricsPort(Integer.parseInt(textOf(edittext_metrics_port)));
+
+		prefs.setTunnelMtu(Integer.parseInt(textOf(edittext_tunnel_mtu)));
+		prefs.setTunnelName(textOf(edittext_tunnel_name));
 		prefs.setTunnelMultiQueue(checkbox_tunnel_multi_queue.isChecked());
-		prefs.setTunnelIpv4(edittext_tunnel_ipv4.getText().toString());
-		prefs.setTunnelIpv6(edittext_tunnel_ipv6.getText().toString());
-		prefs.setTunnelPostUpScript(edittext_tunnel_post_up_script.getText().toString());
-		prefs.setTunnelPreDownScript(edittext_tunnel_pre_down_script.getText().toString());
+		prefs.setTunnelIpv4(textOf(edittext_tunnel_ipv4));
+		prefs.setTunnelIpv6(textOf(edittext_tunnel_ipv6));
+		prefs.setTunnelPostUpScript(textOf(edittext_tunnel_post_up_script));
+		prefs.setTunnelPreDownScript(textOf(edittext_tunnel_pre_down_script));
 
 		prefs.setChnroutesEnabled(checkbox_chnroutes_enabled.isChecked());
+		prefs.setKernelBypass(checkbox_kernel_bypass.isChecked());
+		prefs.setKernelBypassLevel(Integer.parseInt(textOf(edittext_kernel_bypass_level)));
+		prefs.setKernelBypassBudget(Integer.parseInt(textOf(edittext_kernel_bypass_budget)));
 		prefs.setAclEnabled(checkbox_acl_enabled.isChecked());
 
 		// DNS Split Tunnel preferences
@@ -991,34 +1145,34 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 
 		// DNS Forwarder preferences
 		prefs.setDnsForwarderEnabled(checkbox_dns_forwarder_enabled.isChecked());
-		prefs.setDnsVirtualIp4(edittext_dns_virtual_ip4.getText().toString());
-		prefs.setDnsVirtualIp6(edittext_dns_virtual_ip6.getText().toString());
-		prefs.setDnsTargetIp4(edittext_dns_target_ip4.getText().toString());
-		prefs.setDnsTargetIp6(edittext_dns_target_ip6.getText().toString());
+		prefs.setDnsVirtualIp4(textOf(edittext_dns_virtual_ip4));
+		prefs.setDnsVirtualIp6(textOf(edittext_dns_virtual_ip6));
+		prefs.setDnsTargetIp4(textOf(edittext_dns_target_ip4));
+		prefs.setDnsTargetIp6(textOf(edittext_dns_target_ip6));
 
 		// Mapped DNS preferences
-		prefs.setMapdnsAddress(edittext_mapdns_address.getText().toString());
-		prefs.setMapdnsAddress6(edittext_mapdns_address6.getText().toString());
-		prefs.setMapdnsPort(Integer.parseInt(edittext_mapdns_port.getText().toString()));
-		prefs.setMapdnsNetwork(edittext_mapdns_network.getText().toString());
-		prefs.setMapdnsNetmask(edittext_mapdns_netmask.getText().toString());
-		prefs.setMapdnsNetwork6(edittext_mapdns_network6.getText().toString());
-		prefs.setMapdnsPrefixlen(Integer.parseInt(edittext_mapdns_prefixlen.getText().toString()));
-		prefs.setMapdnsCacheSize(Integer.parseInt(edittext_mapdns_cache_size.getText().toString()));
+		prefs.setMapdnsAddress(textOf(edittext_mapdns_address));
+		prefs.setMapdnsAddress6(textOf(edittext_mapdns_address6));
+		prefs.setMapdnsPort(Integer.parseInt(textOf(edittext_mapdns_port)));
+		prefs.setMapdnsNetwork(textOf(edittext_mapdns_network));
+		prefs.setMapdnsNetmask(textOf(edittext_mapdns_netmask));
+		prefs.setMapdnsNetwork6(textOf(edittext_mapdns_network6));
+		prefs.setMapdnsPrefixlen(Integer.parseInt(textOf(edittext_mapdns_prefixlen)));
+		prefs.setMapdnsCacheSize(Integer.parseInt(textOf(edittext_mapdns_cache_size)));
 
 		// DNS Latency Optimize preferences
 		prefs.setDnsLatencyOptimizeEnabled(checkbox_dns_latency_optimize_enabled.isChecked());
-		prefs.setDnsLatencyOptimizeTimeout(Integer.parseInt(edittext_dns_latency_optimize_timeout.getText().toString()));
+		prefs.setDnsLatencyOptimizeTimeout(Integer.parseInt(textOf(edittext_dns_latency_optimize_timeout)));
 
 		// Smart Proxy preferences
 		prefs.setSmartProxyEnabled(checkbox_smart_proxy_enabled.isChecked());
-		prefs.setSmartProxyTimeout(Integer.parseInt(edittext_smart_proxy_timeout.getText().toString()));
-		prefs.setSmartProxyBlockedIpExpiry(Integer.parseInt(edittext_smart_proxy_blocked_ip_expiry.getText().toString()));
+		prefs.setSmartProxyTimeout(Integer.parseInt(textOf(edittext_smart_proxy_timeout)));
+		prefs.setSmartProxyBlockedIpExpiry(Integer.parseInt(textOf(edittext_smart_proxy_blocked_ip_expiry)));
 		saveProbePortEntries();
 	}
 
 	/**
-	 * Load chnroutes content from cache directory file
+	 * Load chnroutes summary from cache directory file
 	 */
 	private void loadChnroutesContent() {
 		File chnroutesFile = new File(getCacheDir(), "chnroutes.txt");
@@ -1027,32 +1181,21 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 			extractChnroutesFromAssets();
 			return;
 		}
-		StringBuilder content = new StringBuilder();
-		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(chnroutesFile), "UTF-8"));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				content.append(line).append("\n");
-			}
-			reader.close();
-			edittext_chnroutes_content.setText(content.toString());
-		} catch (IOException e) {
-			edittext_chnroutes_content.setText(getString(R.string.unable_to_read_file, e.getMessage()));
-		}
+		showRuleSummary(chnroutesFile, textview_chnroutes_summary);
 	}
 
 	/**
-	 * Save chnroutes content to cache directory file
+	 * Show the line count and size of a rule file. Only the line offsets
+	 * are read; editing happens in RuleEditorActivity.
 	 */
-	private void saveChnroutesContent() {
-		File chnroutesFile = new File(getCacheDir(), "chnroutes.txt");
+	private void showRuleSummary(File file, TextView summary) {
 		try {
-			OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(chnroutesFile), "UTF-8");
-			writer.write(edittext_chnroutes_content.getText().toString());
-			writer.close();
-			Toast.makeText(this, getString(R.string.saved_successfully), Toast.LENGTH_SHORT).show();
+			RuleFile rules = RuleFile.open(file);
+			rules.close();
+			summary.setText(getString(R.string.rule_file_summary, rules.size(),
+				Formatter.formatFileSize(this, file.length())));
 		} catch (IOException e) {
-			Toast.makeText(this, getString(R.string.save_failed, e.getMessage()), Toast.LENGTH_SHORT).show();
+			summary.setText(getString(R.string.unable_to_read_file, e.getMessage()));
 		}
 	}
 
@@ -1080,25 +1223,147 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 	}
 
 	/**
-	 * Copy file from URI to chnroutes.txt
+	 * Import routes from URI into chnroutes.txt and the compiled table on
+	 * a worker thread, then report what was merged and which lines were
+	 * skipped
 	 */
-	private void copyFileFromUri(Uri uri) throws IOException {
-		File chnroutesFile = new File(getCacheDir(), "chnroutes.txt");
-		BufferedReader reader = new BufferedReader(new InputStreamReader(getContentResolver().openInputStream(uri), "UTF-8"));
-		OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(chnroutesFile), "UTF-8");
-		String line;
-		while ((line = reader.readLine()) != null) {
-			writer.write(line);
-			writer.write("\n");
+	private void copyFileFromUri(final Uri uri) {
+		final File chnroutesFile = new File(getCacheDir(), "chnroutes.txt");
+		final File tableFile = new File(getCacheDir(), RouteTable.FILE_NAME);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				RouteImport result = null;
+				String error = null;
+				try {
+					synchronized (routeFiles) {
+						InputStream in = getContentResolver().openInputStream(uri);
+						if (in == null)
+						  throw new IOException(uri.toString());
+						try {
+							result = RouteImport.run(in, chnroutesFile, tableFile);
+						} finally {
+							in.close();
+						}
+					}
+				} catch (IOException e) {
+					error = e.getMessage();
+				}
+				final RouteImport report = result;
+				final String message = error;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (isDestroyed())
+						  return;
+						if (report == null) {
+							Toast.makeText(MainActivity.this, getString(R.string.upload_failed, message),
+							               Toast.LENGTH_SHORT).show();
+							return;
+						}
+						loadChnroutesContent();
+						showRouteImport(report);
+					}
+				});
+			}
+		}).start();
+	}
+
+	private void showRouteImport(RouteImport report) {
+		StringBuilder message = new StringBuilder();
+		message.append(getString(R.string.chnroutes_import_counts, report.getLines(),
+			report.getPrefixes(), report.getWritten()));
+		if (report.getHostBits() > 0) {
+			message.append("\n\n");
+			message.append(getString(R.string.chnroutes_import_host_bits, report.getHostBits()));
 		}
-		reader.close();
-		writer.close();
-		loadChnroutesContent();
-		Toast.makeText(this, getString(R.string.uploaded_successfully), Toast.LENGTH_SHORT).show();
+		appendRouteErrors(message, report.getInvalid(), report.getErrors());
+		new AlertDialog.Builder(this)
+			.setTitle(R.string.uploaded_successfully)
+			.setMessage(message.toString())
+			.setPositiveButton(android.R.string.ok, null)
+			.show();
+	}
+
+	/**
+	 * Apply a delta from URI to the compiled table and chnroutes.txt on a
+	 * worker thread, and once both are written let a running tunnel swap
+	 * the new table in
+	 */
+	private void applyRouteDelta(final Uri uri) {
+		final File chnroutesFile = new File(getCacheDir(), "chnroutes.txt");
+		final File tableFile = new File(getCacheDir(), RouteTable.FILE_NAME);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				RouteDelta result = null;
+				String error = null;
+				try {
+					synchronized (routeFiles) {
+						InputStream in = getContentResolver().openInputStream(uri);
+						if (in == null)
+						  throw new IOException(uri.toString());
+						try {
+							result = RouteDelta.run(in, chnroutesFile, tableFile);
+						} finally {
+							in.close();
+						}
+					}
+				} catch (IOException e) {
+					error = e.getMessage();
+				}
+				final RouteDelta delta = result;
+				final String message = error;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (delta != null && prefs.getEnable()) {
+							Intent intent = new Intent(MainActivity.this, TProxyService.class);
+							intent.putStringArrayListExtra(TProxyService.EXTRA_CHANGED_KEYS, new java.util.ArrayList<String>());
+							startService(intent.setAction(TProxyService.ACTION_RELOAD));
+						}
+						if (isDestroyed())
+						  return;
+						if (delta == null) {
+							Toast.makeText(MainActivity.this, getString(R.string.upload_failed, message),
+							               Toast.LENGTH_SHORT).show();
+							return;
+						}
+						loadChnroutesContent();
+						showRouteDelta(delta);
+					}
+				});
+			}
+		}).start();
+	}
+
+	private void showRouteDelta(RouteDelta delta) {
+		StringBuilder message = new StringBuilder();
+		message.append(getString(R.string.chnroutes_delta_counts, delta.getAdded(), delta.getRemoved(),
+			delta.getRangesBefore(), delta.getRangesAfter()));
+		appendRouteErrors(message, delta.getInvalid(), delta.getErrors());
+		new AlertDialog.Builder(this)
+			.setTitle(R.string.chnroutes_delta_applied)
+			.setMessage(message.toString())
+			.setPositiveButton(android.R.string.ok, null)
+			.show();
+	}
+
+	private void appendRouteErrors(StringBuilder message, int invalid, java.util.List<RouteImport.ParseError> errors) {
+		if (invalid == 0)
+		  return;
+		message.append("\n\n");
+		message.append(getString(R.string.chnroutes_import_invalid, invalid));
+		for (RouteImport.ParseError error : errors) {
+			message.append("\n");
+			message.append(getString(R.string.chnroutes_import_error_line, error.getLine(), error.getText()));
+		}
+		if (invalid > errors.size())
+		  message.append("\n…");
 	}
 
 	/**
-	 * Load ACL content from cache directory file
+	 * Load ACL summary from cache directory file
 	 */
 	private void loadAclContent() {
 		File aclFile = new File(getCacheDir(), "acl.txt");
@@ -1107,33 +1372,52 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 			extractAclFromAssets();
 			return;
 		}
-		StringBuilder content = new StringBuilder();
-		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(aclFile), "UTF-8"));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				content.append(line).append("\n");
-			}
-			reader.close();
-			edittext_acl_content.setText(content.toString());
-		} catch (IOException e) {
-			edittext_acl_content.setText(getString(R.string.unable_to_read_file, e.getMessage()));
-		}
+		showRuleSummary(aclFile, textview_acl_summary);
+		showAclTable(aclFile);
 	}
 
 	/**
-	 * Save ACL content to cache directory file
+	 * Compile acl.txt off the UI thread and show what the mapped table
+	 * costs, and from the service's counters how much of it is used. The
+	 * service then finds acl.bin up to date and maps it as is.
 	 */
-	private void saveAclContent() {
-		File aclFile = new File(getCacheDir(), "acl.txt");
-		try {
-			OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(aclFile), "UTF-8");
-			writer.write(edittext_acl_content.getText().toString());
-			writer.close();
-			Toast.makeText(this, getString(R.string.saved_successfully), Toast.LENGTH_SHORT).show();
-		} catch (IOException e) {
-			Toast.makeText(this, getString(R.string.save_failed, e.getMessage()), Toast.LENGTH_SHORT).show();
-		}
+	private void showAclTable(final File aclFile) {
+		textview_acl_table_summary.setText(R.string.acl_table_compiling);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String text;
+				try {
+					AclTable table = AclTable.compile(aclFile, new File(getCacheDir(), AclTable.FILE_NAME));
+					text = getString(R.string.acl_table_summary, table.getSourceRules(),
+						Formatter.formatFileSize(MainActivity.this, table.getSize()),
+						Formatter.formatFileSize(MainActivity.this, table.getDomainSize()));
+					if (table.getPatternCount() > 0)
+					  text += "\n" + getString(R.string.acl_table_patterns, table.getPatternCount());
+					AclCounters counters = AclCounters.open(getCacheDir());
+					if (counters != null && counters.isFor(table)) {
+						long[] hits = new long[counters.getRuleSlots()];
+						counters.readHits(hits);
+						int matched = 0;
+						for (long h : hits) {
+							if (h > 0)
+							  matched++;
+						}
+						text += "\n" + getString(R.string.acl_table_hits, matched,
+							table.getSourceRules() - matched, counters.getLookups());
+					}
+				} catch (IOException e) {
+					text = getString(R.string.unable_to_read_file, e.getMessage());
+				}
+				final String summary = text;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						textview_acl_table_summary.setText(summary);
+					}
+				});
+			}
+		}).start();
 	}
 
 	/**
@@ -1216,7 +1500,7 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 	private void saveDnsEntries() {
 		java.util.List<String> servers = new java.util.ArrayList<String>();
 		for (EditText edit : dns_entry_edit_texts) {
-			String value = edit.getText().toString().trim();
+			String value = textOf(edit).trim();
 			if (!value.isEmpty()) {
 				servers.add(value);
 			}
@@ -1248,7 +1532,8 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		editText.setInputType(android.text.InputType.TYPE_CLASS_TEXT);
 		editText.setSingleLine(true);
 
-		boolean editable = !prefs.getEnable();
+		// Hot reloadable, editable while running
+		boolean editable = true;
 		editText.setEnabled(editable);
 
 		Button removeButton = new Button(this);
@@ -1338,7 +1623,8 @@ public class MainActivity extends TabActivity implements View.OnClickListener {
 		editText.setInputType(android.text.InputType.TYPE_CLASS_NUMBER);
 		editText.setSingleLine(true);
 
-		boolean editable = !prefs.getEnable();
+		// Hot reloadable, editable while running
+		boolean editable = true;
 		editText.setEnabled(editable);
 
 		Button removeButton = new Button(this);
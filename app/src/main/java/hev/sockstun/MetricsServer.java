@@ -0,0 +1,323 @@
+/*
+ ============================================================================
+ Name        : MetricsServer.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Loopback Prometheus Metrics Endpoint
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves the tunnel counters in Prometheus text exposition format on
+ * 127.0.0.1, e.g. `curl http://127.0.0.1:9469/metrics`.
+ *
+ * When the service mirrors TProxyGetStats() into the region itself
+ * (older native libraries), its stats loop is paused while the screen is
+ * off, so each scrape first asks it to refresh the mirror. The age of the
+ * region is exported either way.
+ *
+ * Requests are handled one at a time on a single thread. The request,
+ * text and response buffers are reused for every scrape, so serving
+ * does not churn the heap of the :native process.
+ */
+public class MetricsServer implements Runnable {
+	public static final String PATH = "/metrics";
+
+	private static final int BACKLOG = 4;
+	private static final int READ_TIMEOUT_MS = 2000;
+	private static final String[] ROUTE_NAMES = { "direct", "proxy", "smart_proxy" };
+
+	private final File statsDir;
+	private final int port;
+	private final Runnable refresh;
+	private ServerSocket serverSocket;
+	private Thread thread;
+
+	private StatsRegion region;
+	private final long[] slots = new long[StatsRegion.SLOT_COUNT];
+	private final long[] uidEntries = new long[StatsRegion.UID_CAPACITY * UidTraffic.ENTRY_LONGS];
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final byte[] request = new byte[1024];
+	private final StringBuilder header = new StringBuilder(128);
+	private final StringBuilder text = new StringBuilder(16384);
+	private byte[] response = new byte[16384];
+
+	/**
+	 * @param refresh brings a Java-written region up to date, blocking
+	 *                for at most a short while
+	 */
+	public MetricsServer(File statsDir, int port, Runnable refresh) {
+		this.statsDir = statsDir;
+		this.port = port;
+		this.refresh = refresh;
+	}
+
+	/**
+	 * Bind the loopback socket and start serving.
+	 * @throws IOException if the port can't be bound
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+		thread = new Thread(this, "metrics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		try {
+			if (serverSocket != null)
+			  serverSocket.close();
+		} catch (IOException e) {
+		}
+		serverSocket = null;
+	}
+
+	@Override
+	public void run() {
+		ServerSocket ss = serverSocket;
+		while (ss != null && !ss.isClosed()) {
+			Socket s;
+			try {
+				s = ss.accept();
+			} catch (IOException e) {
+				break;
+			}
+			try {
+				s.setSoTimeout(READ_TIMEOUT_MS);
+				handle(s);
+			} catch (IOException e) {
+			} finally {
+				try {
+					s.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void handle(Socket s) throws IOException {
+		InputStream in = s.getInputStream();
+		OutputStream out = s.getOutputStream();
+
+		// Only the request line matters; read until the end of headers
+		// or until the buffer is full.
+		int len = 0;
+		while (len < request.length) {
+			int n = in.read(request, len, request.length - len);
+			if (n <= 0)
+			  break;
+			len += n;
+			if (endOfHeaders(len))
+			  break;
+		}
+
+		header.setLength(0);
+		text.setLength(0);
+		if (!isGet(len)) {
+			header.append("HTTP/1.0 405 Method Not Allowed\r\nContent-Length: 0\r\n\r\n");
+		} else if (!isMetricsPath(len)) {
+			header.append("HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+		} else {
+			renderBody();
+			header.append("HTTP/1.0 200 OK\r\n")
+			      .append("Content-Type: text/plain; version=0.0.4\r\n")
+			      .append("Content-Length: ").append(text.length()).append("\r\n\r\n");
+		}
+
+		int size = encode(header, 0);
+		size = encode(text, size);
+		out.write(response, 0, size);
+		out.flush();
+	}
+
+	private boolean endOfHeaders(int len) {
+		for (int i = 3; i < len; i++) {
+			if (request[i - 3] == '\r' && request[i - 2] == '\n' &&
+			    request[i - 1] == '\r' && request[i] == '\n')
+			  return true;
+		}
+		return false;
+	}
+
+	private boolean isGet(int len) {
+		return len >= 4 && request[0] == 'G' && request[1] == 'E' &&
+		       request[2] == 'T' && request[3] == ' ';
+	}
+
+	private boolean isMetricsPath(int len) {
+		int start = 4;
+		int end = start;
+		while (end < len && request[end] != ' ' && request[end] != '?' && request[end] != '\r')
+		  end++;
+		if (end - start == 1 && request[start] == '/')
+		  return true;
+		if (end - start != PATH.length())
+		  return false;
+		for (int i = 0; i < PATH.length(); i++) {
+			if (request[start + i] != PATH.charAt(i))
+			  return false;
+		}
+		return true;
+	}
+
+	private void renderBody() {
+		if (region == null || !region.isValid())
+		  region = StatsRegion.open(statsDir);
+
+		gauge("sockstun_up", "Whether the tunnel is publishing stats.");
+		text.append("sockstun_up ").append(region != null ? 1 : 0).append('\n');
+		if (region == null)
+		  return;
+		if (region.getWriter() == StatsRegion.WRITER_JAVA)
+		  refresh.run();
+		if (!region.read(slots))
+		  return;
+
+		gauge("sockstun_stats_age_seconds", "Time since the stats below were last published.");
+		text.append("sockstun_stats_age_seconds ");
+		appendSeconds(Math.max(System.currentTimeMillis() - region.getUpdateTime(), 0) * 1000);
+		text.append('\n');
+
+		counter("sockstun_tx_packets_total", "Packets sent through the tunnel.");
+		sample("sockstun_tx_packets_total", slots[StatsRegion.SLOT_TX_PACKETS]);
+		counter("sockstun_tx_bytes_total", "Bytes sent through the tunnel.");
+		sample("sockstun_tx_bytes_total", slots[StatsRegion.SLOT_TX_BYTES]);
+		counter("sockstun_rx_packets_total", "Packets received through the tunnel.");
+		sample("sockstun_rx_packets_total", slots[StatsRegion.SLOT_RX_PACKETS]);
+		counter("sockstun_rx_bytes_total", "Bytes received through the tunnel.");
+		sample("sockstun_rx_bytes_total", slots[StatsRegion.SLOT_RX_BYTES]);
+
+		TrafficHistory history = TProxyService.getTrafficHistory();
+		gauge("sockstun_peak_bytes_per_second", "Highest one-second throughput this session.");
+		text.append("sockstun_peak_bytes_per_second{direction=\"tx\"} ").append(history.getSessionPeakTx()).append('\n');
+		text.append("sockstun_peak_bytes_per_second{direction=\"rx\"} ").append(history.getSessionPeakRx()).append('\n');
+
+		// Session, DNS cache and smart-proxy counters only exist when the
+		// native tunnel publishes into the region itself.
+		if (region.getWriter() == StatsRegion.WRITER_NATIVE) {
+			gauge("sockstun_sessions", "Active sessions.");
+			text.append("sockstun_sessions{proto=\"tcp\"} ").append(slots[StatsRegion.SLOT_TCP_SESSIONS]).append('\n');
+			text.append("sockstun_sessions{proto=\"udp\"} ").append(slots[StatsRegion.SLOT_UDP_SESSIONS]).append('\n');
+			counter("sockstun_dns_cache_hits_total", "DNS queries answered from the cache.");
+			sample("sockstun_dns_cache_hits_total", slots[StatsRegion.SLOT_DNS_CACHE_HITS]);
+			counter("sockstun_dns_cache_misses_total", "DNS queries forwarded upstream.");
+			sample("sockstun_dns_cache_misses_total", slots[StatsRegion.SLOT_DNS_CACHE_MISSES]);
+			counter("sockstun_smart_proxy_decisions_total", "Smart-proxy probe outcomes.");
+			text.append("sockstun_smart_proxy_decisions_total{decision=\"direct\"} ").append(slots[StatsRegion.SLOT_SMART_DIRECT]).append('\n');
+			text.append("sockstun_smart_proxy_decisions_total{decision=\"proxy\"} ").append(slots[StatsRegion.SLOT_SMART_PROXY]).append('\n');
+		}
+
+		int count = region.readUidEntries(uidEntries);
+		if (count > 0) {
+			counter("sockstun_uid_bytes_total", "Bytes per app UID and route class (heaviest UIDs only).");
+			for (int i = 0; i < count; i++) {
+				int base = i * UidTraffic.ENTRY_LONGS;
+				uidSample(base, "tx", uidEntries[base + UidTraffic.FIELD_TX_BYTES]);
+				uidSample(base, "rx", uidEntries[base + UidTraffic.FIELD_RX_BYTES]);
+			}
+		}
+
+		if (TProxyService.readLatencyStats(latency)) {
+			text.append("# HELP sockstun_connect_latency_seconds Upstream connect latency.\n")
+			    .append("# TYPE sockstun_connect_latency_seconds histogram\n");
+			for (int cls = 0; cls < LatencyHistogram.CLASSES; cls++)
+			  latencyHistogram(cls);
+		}
+	}
+
+	private void counter(String name, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+		    .append("# TYPE ").append(name).append(" counter\n");
+	}
+
+	private void gauge(String name, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+		    .append("# TYPE ").append(name).append(" gauge\n");
+	}
+
+	private void sample(String name, long value) {
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private void uidSample(int base, String direction, long value) {
+		int route = (int) uidEntries[base + UidTraffic.FIELD_ROUTE];
+		text.append("sockstun_uid_bytes_total{uid=\"").append(uidEntries[base + UidTraffic.FIELD_UID])
+		    .append("\",route=\"").append(routeName(route))
+		    .append("\",direction=\"").append(direction).append("\"} ")
+		    .append(value).append('\n');
+	}
+
+	/**
+	 * Emit one class with a bucket per power of two. Cumulative counts are
+	 * exact at those bounds; the sum is estimated from bucket midpoints.
+	 */
+	private void latencyHistogram(int cls) {
+		long[] counts = latency.getCounts();
+		int base = cls * LatencyHistogram.BUCKETS;
+		String route = routeName(cls);
+		long cumulative = 0;
+		long sumUs = 0;
+
+		for (int b = 0; b < LatencyHistogram.BUCKETS; b++) {
+			long n = counts[base + b];
+			long lo = LatencyHistogram.lowerBound(b);
+			long hi = (b + 1 < LatencyHistogram.BUCKETS) ? LatencyHistogram.lowerBound(b + 1) : lo * 2;
+			cumulative += n;
+			sumUs += n * ((lo + hi) / 2);
+			if (b + 1 < LatencyHistogram.BUCKETS && (b + 1) % 4 == 0) {
+				text.append("sockstun_connect_latency_seconds_bucket{route=\"").append(route).append("\",le=\"");
+				appendSeconds(hi);
+				text.append("\"} ").append(cumulative).append('\n');
+			}
+		}
+		text.append("sockstun_connect_latency_seconds_bucket{route=\"").append(route)
+		    .append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+		text.append("sockstun_connect_latency_seconds_sum{route=\"").append(route).append("\"} ");
+		appendSeconds(sumUs);
+		text.append('\n');
+		text.append("sockstun_connect_latency_seconds_count{route=\"").append(route)
+		    .append("\"} ").append(cumulative).append('\n');
+	}
+
+	private void appendSeconds(long us) {
+		text.append(us / 1000000).append('.');
+		long frac = us % 1000000;
+		for (long d = 100000; d > 1 && frac < d; d /= 10)
+		  text.append('0');
+		text.append(frac);
+	}
+
+	private static String routeName(int route) {
+		if (route < 0 || route >= ROUTE_NAMES.length)
+		  return "unknown";
+		return ROUTE_NAMES[route];
+	}
+
+	/**
+	 * Copy sb into the reused response buffer at offset. Everything we
+	 * emit is ASCII, so each char maps to one byte.
+	 * @return offset after the copied bytes
+	 */
+	private int encode(StringBuilder sb, int offset) {
+		int size = offset + sb.length();
+		if (response.length < size) {
+			byte[] grown = new byte[Math.max(size, response.length * 2)];
+			System.arraycopy(response, 0, grown, 0, offset);
+			response = grown;
+		}
+		for (int i = 0; i < sb.length(); i++)
+		  response[offset + i] = (byte) sb.charAt(i);
+		return size;
+	}
+}
@@ -9,6 +9,10 @@
 
 package hev.sockstun;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import android.content.Context;
@@ -41,6 +45,7 @@ public class Preferences
 	public static final String UDP_IN_TCP = "UdpInTcp";
 	public static final String REMOTE_DNS = "RemoteDNS";
 	public static final String APPS = "Apps";
+	public static final String APP_POLICIES = "AppPolicies";
 	public static final String ENABLE = "Enable";
 	public static final String TASK_STACK_SIZE = "TaskStackSize";
 	public static final String LOG_LEVEL = "LogLevel";
@@ -76,11 +81,99 @@ public class Preferences
 	public static final String SMART_PROXY_BLOCKED_IP_EXPIRY = "SmartProxyBlockedIpExpiry";
 	public static final String SMART_PROXY_PROBE_PORTS = "SmartProxyProbePorts";
 	public static final String BYPASS_LAN = "BypassLan";
+	public static final String METRICS_PORT = "MetricsPort";
+	public static final String KERNEL_BYPASS = "KernelBypass";
+	public static final String KERNEL_BYPASS_LEVEL = "KernelBypassLevel";
+	public static final String KERNEL_BYPASS_BUDGET = "KernelBypassBudget";
 
 	private SharedPreferences prefs;
+	private Batch batch;
+	private Map<String, ?> batchBase;
 
 	public Preferences(Context context) {
-		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+		try {
+			prefs = SettingsStore.get(context);
+		} catch (IOException e) {
+			// Files directory unusable, keep working on the XML file
+			prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+		}
+	}
+
+	private Preferences(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+
+	/**
+	 * Read every setting at once into an immutable, parsed Settings.
+	 * getAll() is a consistent copy, so a concurrent save is either fully
+	 * in the snapshot or not at all.
+	 */
+	public Settings snapshot() {
+		return new Settings(new Preferences(new Frozen(prefs.getAll())));
+	}
+
+	/**
+	 * Called on the main thread when any process changes a setting.
+	 */
+	public void registerOnChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+		prefs.registerOnSharedPreferenceChangeListener(listener);
+	}
+
+	public void unregisterOnChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+		prefs.unregisterOnSharedPreferenceChangeListener(listener);
+	}
+
+	/**
+	 * Collect the following setter calls into one edit, written by
+	 * commitBatch(). Getters keep returning the stored values until then.
+	 */
+	public void beginBatch() {
+		if (batch != null)
+		  return;
+		batchBase = new HashMap<String, Object>(prefs.getAll());
+		batch = new Batch(prefs.edit(), batchBase);
+	}
+
+	/**
+	 * Apply the batch with a single write.
+	 * @return keys the batch set to a value other than the stored one;
+	 *         empty if the batch was a no-op, in which case nothing is
+	 *         written. Keys changed meanwhile by another process are not
+	 *         included, they get their own change notification.
+	 */
+	public Set<String> commitBatch() {
+		if (batch == null)
+		  return Collections.emptySet();
+		Batch editor = batch;
+		batch = null;
+		batchBase = null;
+
+		HashSet<String> changed = new HashSet<String>();
+		for (Map.Entry<String, Object> e : editor.values.entrySet()) {
+			Object old = editor.base.get(e.getKey());
+			if (old == null ? e.getValue() != null : !old.equals(e.getValue()))
+			  changed.add(e.getKey());
+		}
+		if (!changed.isEmpty())
+		  editor.apply();
+		return changed;
+	}
+
+	/**
+	 * Drop the batch, keeping every stored value as it was.
+	 */
+	public void abortBatch() {
+		batch = null;
+		batchBase = null;
+	}
+
+	private SharedPreferences.Editor edit() {
+		return batch != null ? batch : prefs.edit();
+	}
+
+	private void apply(SharedPreferences.Editor editor) {
+		if (editor != batch)
+		  editor.apply();
 	}
 
 	public String getSocksAddress() {
@@ -88,9 +181,9 @@ public class Preferences
 	}
 
 	public void setSocksAddress(String addr) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(SOCKS_ADDR, addr);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getSocksUdpAddress() {
@@ -98,9 +191,9 @@ public class Preferences
 	}
 
 	public void setSocksUdpAddress(String addr) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(SOCKS_UDP_ADDR, addr);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getSocksPort() {
@@ -108,9 +201,9 @@ public class Preferences
 	}
 
 	public void setSocksPort(int port) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(SOCKS_PORT, port);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getSocksUsername() {
@@ -118,9 +211,9 @@ public class Preferences
 	}
 
 	public void setSocksUsername(String user) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(SOCKS_USER, user);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getSocksPassword() {
@@ -128,9 +221,9 @@ public class Preferences
 	}
 
 	public void setSocksPassword(String pass) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(SOCKS_PASS, pass);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getDnsIpv4() {
@@ -138,9 +231,9 @@ public class Preferences
 	}
 
 	public void setDnsIpv4(String addr) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(DNS_IPV4, addr);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getDnsIpv6() {
@@ -148,9 +241,9 @@ public class Preferences
 	}
 
 	public void setDnsIpv6(String addr) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(DNS_IPV6, addr);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getMappedDns() {
@@ -158,9 +251,9 @@ public class Preferences
 	}
 
 	public void setMappedDns(String addr) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(MAPDNS_ADDRESS, addr);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getMapdnsAddress() {
@@ -168,9 +261,9 @@ public class Preferences
 	}
 
 	public void setMapdnsAddress(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(MAPDNS_ADDRESS, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getMapdnsAddress6() {
@@ -178,9 +271,9 @@ public class Preferences
 	}
 
 	public void setMapdnsAddress6(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(MAPDNS_ADDRESS6, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getMapdnsPort() {
@@ -188,9 +281,9 @@ public class Preferences
 	}
 
 	public void setMapdnsPort(int port) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(MAPDNS_PORT, port);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getMapdnsNetwork() {
@@ -198,9 +291,9 @@ public class Preferences
 	}
 
 	public void setMapdnsNetwork(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(MAPDNS_NETWORK, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getMapdnsNetmask() {
@@ -208,9 +301,9 @@ public class Preferences
 	}
 
 	public void setMapdnsNetmask(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(MAPDNS_NETMASK, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getMapdnsNetwork6() {
@@ -218,9 +311,9 @@ public class Preferences
 	}
 
 	public void setMapdnsNetwork6(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(MAPDNS_NETWORK6, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getMapdnsPrefixlen() {
@@ -228,9 +321,9 @@ public class Preferences
 	}
 
 	public void setMapdnsPrefixlen(int value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(MAPDNS_PREFIXLEN, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getMapdnsCacheSize() {
@@ -238,9 +331,9 @@ public class Preferences
 	}
 
 	public void setMapdnsCacheSize(int value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(MAPDNS_CACHE_SIZE, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getUdpInTcp() {
@@ -248,9 +341,9 @@ public class Preferences
 	}
 
 	public void setUdpInTcp(boolean enable) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(UDP_IN_TCP, enable);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getRemoteDns() {
@@ -258,9 +351,9 @@ public class Preferences
 	}
 
 	public void setRemoteDns(boolean enable) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(REMOTE_DNS, enable);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getIpv4() {
@@ -268,9 +361,9 @@ public class Preferences
 	}
 
 	public void setIpv4(boolean enable) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(IPV4, enable);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getIpv6() {
@@ -278,9 +371,9 @@ public class Preferences
 	}
 
 	public void setIpv6(boolean enable) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(IPV6, enable);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getGlobal() {
@@ -288,9 +381,9 @@ public class Preferences
 	}
 
 	public void setGlobal(boolean enable) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(GLOBAL, enable);
-		editor.apply();
+		apply(editor);
 	}
 
 	public Set<String> getApps() {
@@ -298,9 +391,36 @@ public class Preferences
 	}
 
 	public void setApps(Set<String> apps) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putStringSet(APPS, apps);
-		editor.apply();
+		apply(editor);
+	}
+
+	/**
+	 * Per-app policies, see AppPolicy. Malformed entries are skipped.
+	 */
+	public java.util.List<AppPolicy> getAppPolicies() {
+		java.util.List<AppPolicy> result = new java.util.ArrayList<AppPolicy>();
+		for (String entry : prefs.getStringSet(APP_POLICIES, new HashSet<String>())) {
+			AppPolicy policy = AppPolicy.parse(entry);
+			if (policy != null)
+			  result.add(policy);
+		}
+		return result;
+	}
+
+	/**
+	 * Store policies, dropping those that leave the app on the global rules.
+	 */
+	public void setAppPolicies(java.util.Collection<AppPolicy> policies) {
+		Set<String> entries = new HashSet<String>();
+		for (AppPolicy policy : policies) {
+			if (!policy.isDefault())
+			  entries.add(policy.toString());
+		}
+		SharedPreferences.Editor editor = edit();
+		editor.putStringSet(APP_POLICIES, entries);
+		apply(editor);
 	}
 
 	public boolean getEnable() {
@@ -308,9 +428,9 @@ public class Preferences
 	}
 
 	public void setEnable(boolean enable) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(ENABLE, enable);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getTunnelMtu() {
@@ -318,9 +438,9 @@ public class Preferences
 	}
 
 	public void setTunnelMtu(int mtu) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(TUNNEL_MTU, mtu);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getTunnelName() {
@@ -328,9 +448,9 @@ public class Preferences
 	}
 
 	public void setTunnelName(String name) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(TUNNEL_NAME, name);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getTunnelMultiQueue() {
@@ -338,9 +458,9 @@ public class Preferences
 	}
 
 	public void setTunnelMultiQueue(boolean enable) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(TUNNEL_MULTI_QUEUE, enable);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getTunnelIpv4() {
@@ -348,9 +468,9 @@ public class Preferences
 	}
 
 	public void setTunnelIpv4(String addr) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(TUNNEL_IPV4, addr);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getTunnelIpv6() {
@@ -358,9 +478,9 @@ public class Preferences
 	}
 
 	public void setTunnelIpv6(String addr) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(TUNNEL_IPV6, addr);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getTunnelPostUpScript() {
@@ -368,9 +488,9 @@ public class Preferences
 	}
 
 	public void setTunnelPostUpScript(String script) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(TUNNEL_POST_UP_SCRIPT, script);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getTunnelPreDownScript() {
@@ -378,9 +498,9 @@ public class Preferences
 	}
 
 	public void setTunnelPreDownScript(String script) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(TUNNEL_PRE_DOWN_SCRIPT, script);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getTunnelIpv4Address() {
@@ -404,9 +524,9 @@ public class Preferences
 	}
 
 	public void setTaskStackSize(int size) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(TASK_STACK_SIZE, size);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getLogLevel() {
@@ -414,9 +534,9 @@ public class Preferences
 	}
 
 	public void setLogLevel(String level) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(LOG_LEVEL, level);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getTcpBufferSize() {
@@ -424,9 +544,9 @@ public class Preferences
 	}
 
 	public void setTcpBufferSize(int size) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(TCP_BUFFER_SIZE, size);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getUdpRecvBufferSize() {
@@ -434,9 +554,9 @@ public class Preferences
 	}
 
 	public void setUdpRecvBufferSize(int size) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(UDP_RECV_BUFFER_SIZE, size);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getUdpCopyBufferNums() {
@@ -444,9 +564,9 @@ public class Preferences
 	}
 
 	public void setUdpCopyBufferNums(int nums) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(UDP_COPY_BUFFER_NUMS, nums);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getConnectTimeout() {
@@ -454,9 +574,9 @@ public class Preferences
 	}
 
 	public void setConnectTimeout(int timeout) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(CONNECT_TIMEOUT, timeout);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getTcpReadWriteTimeout() {
@@ -464,9 +584,9 @@ public class Preferences
 	}
 
 	public void setTcpReadWriteTimeout(int timeout) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(TCP_READ_WRITE_TIMEOUT, timeout);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getUdpReadWriteTimeout() {
@@ -474,9 +594,9 @@ public class Preferences
 	}
 
 	public void setUdpReadWriteTimeout(int timeout) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(UDP_READ_WRITE_TIMEOUT, timeout);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getSocksUdpPort() {
@@ -484,9 +604,9 @@ public class Preferences
 	}
 
 	public void setSocksUdpPort(int port) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(SOCKS_UDP_PORT, port);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getSocksUdpUsername() {
@@ -494,9 +614,9 @@ public class Preferences
 	}
 
 	public void setSocksUdpUsername(String user) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(SOCKS_UDP_USER, user);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getSocksUdpPassword() {
@@ -504,9 +624,9 @@ public class Preferences
 	}
 
 	public void setSocksUdpPassword(String pass) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(SOCKS_UDP_PASS, pass);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getMaxSessionCount() {
@@ -514,9 +634,9 @@ public class Preferences
 	}
 
 	public void setMaxSessionCount(int count) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(MAX_SESSION_COUNT, count);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getPidFile() {
@@ -524,9 +644,9 @@ public class Preferences
 	}
 
 	public void setPidFile(String path) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(PID_FILE, path);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getLimitNofile() {
@@ -534,9 +654,9 @@ public class Preferences
 	}
 
 	public void setLimitNofile(int limit) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(LIMIT_NOFILE, limit);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getChnroutesEnabled() {
@@ -544,9 +664,9 @@ public class Preferences
 	}
 
 	public void setChnroutesEnabled(boolean enabled) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(CHNROUTES_ENABLED, enabled);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getAclEnabled() {
@@ -554,9 +674,9 @@ public class Preferences
 	}
 
 	public void setAclEnabled(boolean enabled) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(ACL_ENABLED, enabled);
-		editor.apply();
+		apply(editor);
 	}
 
 	public boolean getDnsSplitTunnelEnabled() {
@@ -564,9 +684,9 @@ public class Preferences
 	}
 
 	public void setDnsSplitTunnelEnabled(boolean enabled) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(DNS_SPLIT_TUNNEL_ENABLED, enabled);
-		editor.apply();
+		apply(editor);
 	}
 
 	/**
@@ -581,9 +701,9 @@ public class Preferences
 	 * Set foreign DNS servers list as a JSON array string
 	 */
 	public void setDnsForeignServersJson(String json) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(DNS_FOREIGN_SERVERS, json);
-		editor.apply();
+		apply(editor);
 	}
 
 	/**
@@ -635,9 +755,9 @@ public class Preferences
 	}
 
 	public void setDnsVirtualIp4(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(DNS_VIRTUAL_IP4, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getDnsVirtualIp6() {
@@ -645,9 +765,9 @@ public class Preferences
 	}
 
 	public void setDnsVirtualIp6(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(DNS_VIRTUAL_IP6, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getDnsTargetIp4() {
@@ -655,9 +775,9 @@ public class Preferences
 	}
 
 	public void setDnsTargetIp4(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(DNS_TARGET_IP4, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getDnsTargetIp6() {
@@ -665,9 +785,9 @@ public class Preferences
 	}
 
 	public void setDnsTargetIp6(String value) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(DNS_TARGET_IP6, value);
-		editor.apply();
+		apply(editor);
 	}
 
 	// DNS Forwarder preferences
@@ -676,9 +796,9 @@ public class Preferences
 	}
 
 	public void setDnsForwarderEnabled(boolean enabled) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(DNS_FORWARDER_ENABLED, enabled);
-		editor.apply();
+		apply(editor);
 	}
 
 	// DNS Latency Optimize preferences
@@ -687,9 +807,9 @@ public class Preferences
 	}
 
 	public void setDnsLatencyOptimizeEnabled(boolean enabled) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(DNS_LATENCY_OPTIMIZE_ENABLED, enabled);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getDnsLatencyOptimizeTimeout() {
@@ -697,9 +817,9 @@ public class Preferences
 	}
 
 	public void setDnsLatencyOptimizeTimeout(int timeout) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(DNS_LATENCY_OPTIMIZE_TIMEOUT, timeout);
-		editor.apply();
+		apply(editor);
 	}
 
 	// Smart Proxy preferences
@@ -708,9 +828,9 @@ public class Preferences
 	}
 
 	public void setSmartProxyEnabled(boolean enabled) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(SMART_PROXY_ENABLED, enabled);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getSmartProxyTimeout() {
@@ -718,9 +838,9 @@ public class Preferences
 	}
 
 	public void setSmartProxyTimeout(int timeout) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(SMART_PROXY_TIMEOUT, timeout);
-		editor.apply();
+		apply(editor);
 	}
 
 	public int getSmartProxyBlockedIpExpiry() {
@@ -728,9 +848,9 @@ public class Preferences
 	}
 
 	public void setSmartProxyBlockedIpExpiry(int expiry) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putInt(SMART_PROXY_BLOCKED_IP_EXPIRY, expiry);
-		editor.apply();
+		apply(editor);
 	}
 
 	public String getSmartProxyProbePortsJson() {
@@ -738,9 +858,9 @@ public class Preferences
 	}
 
 	public void setSmartProxyProbePortsJson(String json) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putString(SMART_PROXY_PROBE_PORTS, json);
-		editor.apply();
+		apply(editor);
 	}
 
 	public java.util.List<Integer> getSmartProxyProbePortsList() {
@@ -782,8 +902,209 @@ public class Preferences
 	}
 
 	public void setBypassLan(boolean enabled) {
-		SharedPreferences.Editor editor = prefs.edit();
+		SharedPreferences.Editor editor = edit();
 		editor.putBoolean(BYPASS_LAN, enabled);
-		editor.apply();
+		apply(editor);
+	}
+
+	public int getMetricsPort() {
+		return prefs.getInt(METRICS_PORT, 0);
+	}
+
+	public void setMetricsPort(int port) {
+		SharedPreferences.Editor editor = edit();
+		editor.putInt(METRICS_PORT, port);
+		apply(editor);
+	}
+
+	public boolean getKernelBypass() {
+		return prefs.getBoolean(KERNEL_BYPASS, false);
+	}
+
+	public void setKernelBypass(boolean enabled) {
+		SharedPreferences.Editor editor = edit();
+		editor.putBoolean(KERNEL_BYPASS, enabled);
+		apply(editor);
+	}
+
+	public int getKernelBypassLevel() {
+		return prefs.getInt(KERNEL_BYPASS_LEVEL, 20);
+	}
+
+	public void setKernelBypassLevel(int level) {
+		SharedPreferences.Editor editor = edit();
+		editor.putInt(KERNEL_BYPASS_LEVEL, level);
+		apply(editor);
+	}
+
+	public int getKernelBypassBudget() {
+		return prefs.getInt(KERNEL_BYPASS_BUDGET, 2000);
+	}
+
+	public void setKernelBypassBudget(int budget) {
+		SharedPreferences.Editor editor = edit();
+		editor.putInt(KERNEL_BYPASS_BUDGET, budget);
+		apply(editor);
+	}
+
+	/**
+	 * Editor that remembers what it was given, so commitBatch() can tell
+	 * which keys the batch itself changed. A removed key maps to null.
+	 */
+	private static class Batch implements SharedPreferences.Editor {
+		private final SharedPreferences.Editor editor;
+		private final Map<String, ?> base;
+		private final HashMap<String, Object> values = new HashMap<String, Object>();
+
+		Batch(SharedPreferences.Editor editor, Map<String, ?> base) {
+			this.editor = editor;
+			this.base = base;
+		}
+
+		@Override
+		public SharedPreferences.Editor putString(String key, String value) {
+			values.put(key, value);
+			editor.putString(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putStringSet(String key, Set<String> values) {
+			this.values.put(key, values == null ? null : new HashSet<String>(values));
+			editor.putStringSet(key, values);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putInt(String key, int value) {
+			values.put(key, value);
+			editor.putInt(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putLong(String key, long value) {
+			values.put(key, value);
+			editor.putLong(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putFloat(String key, float value) {
+			values.put(key, value);
+			editor.putFloat(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putBoolean(String key, boolean value) {
+			values.put(key, value);
+			editor.putBoolean(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor remove(String key) {
+			values.put(key, null);
+			editor.remove(key);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor clear() {
+			// Applied before every put, whatever the call order
+			for (String key : base.keySet()) {
+				if (!values.containsKey(key))
+				  values.put(key, null);
+			}
+			editor.clear();
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			return editor.commit();
+		}
+
+		@Override
+		public void apply() {
+			editor.apply();
+		}
+	}
+
+	/**
+	 * Read-only SharedPreferences over a copied map, so snapshot() can
+	 * reuse the getters with their defaults and JSON parsing.
+	 */
+	private static class Frozen implements SharedPreferences {
+		private final Map<String, ?> values;
+
+		Frozen(Map<String, ?> values) {
+			this.values = values;
+		}
+
+		private Object get(String key) {
+			return values.get(key);
+		}
+
+		@Override
+		public Map<String, ?> getAll() {
+			return Collections.unmodifiableMap(values);
+		}
+
+		@Override
+		public String getString(String key, String defValue) {
+			Object v = get(key);
+			return v instanceof String ? (String) v : defValue;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Set<String> getStringSet(String key, Set<String> defValues) {
+			Object v = get(key);
+			return v instanceof Set ? (Set<String>) v : defValues;
+		}
+
+		@Override
+		public int getInt(String key, int defValue) {
+			Object v = get(key);
+			return v instanceof Integer ? (Integer) v : defValue;
+		}
+
+		@Override
+		public long getLong(String key, long defValue) {
+			Object v = get(key);
+			return v instanceof Long ? (Long) v : defValue;
+		}
+
+		@Override
+		public float getFloat(String key, float defValue) {
+			Object v = get(key);
+			return v instanceof Float ? (Float) v : defValue;
+		}
+
+		@Override
+		public boolean getBoolean(String key, boolean defValue) {
+			Object v = get(key);
+			return v instanceof Boolean ? (Boolean) v : defValue;
+		}
+
+		@Override
+		public boolean contains(String key) {
+			return values.containsKey(key);
+		}
+
+		@Override
+		public Editor edit() {
+			throw new UnsupportedOperationException("settings snapshot is read-only");
+		}
+
+		@Override
+		public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		}
+
+		@Override
+		public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		}
 	}
 }
@@ -0,0 +1,239 @@
+/*
+ ============================================================================
+ Name        : RouteDelta.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Incremental chnroutes Update
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change to the route list, applied to the compiled table instead of
+ * replacing chnroutes.txt.
+ *
+ * One prefix per line, "+" to add it and "-" to remove it:
+ *
+ *   # 2024-06 update
+ *   +43.224.0.0/22
+ *   -1.0.8.0/21
+ *
+ * Removals win over additions in the same delta. The result is merged
+ * with the current ranges in one linear pass, so applying a delta costs
+ * about as much as writing the table out again.
+ */
+public class RouteDelta {
+	private final RouteTable.Builder added = new RouteTable.Builder();
+	private final RouteTable.Builder removed = new RouteTable.Builder();
+	private int lines;
+	private int invalid;
+	private final ArrayList<RouteImport.ParseError> errors = new ArrayList<RouteImport.ParseError>();
+	private int rangesBefore;
+	private int rangesAfter;
+	private int written;
+
+	private RouteDelta() {
+	}
+
+	/**
+	 * Parse a delta as it streams in. in is not closed.
+	 * @throws IOException if in cannot be read or holds no valid change
+	 */
+	public static RouteDelta parse(InputStream in) throws IOException {
+		RouteDelta delta = new RouteDelta();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			delta.lines++;
+			int hashPos = line.indexOf('#');
+			String change = (hashPos >= 0 ? line.substring(0, hashPos) : line).trim();
+			if (change.isEmpty())
+			  continue;
+			int valid = -1;
+			if (change.charAt(0) == '+')
+			  valid = delta.added.add(change.substring(1).trim());
+			else if (change.charAt(0) == '-')
+			  valid = delta.removed.add(change.substring(1).trim());
+			if (valid < 0) {
+				delta.invalid++;
+				if (delta.errors.size() < RouteImport.MAX_ERRORS)
+				  delta.errors.add(new RouteImport.ParseError(delta.lines, change));
+			}
+		}
+		if (delta.added.size() + delta.removed.size() == 0)
+		  throw new IOException("no valid changes");
+		return delta;
+	}
+
+	/**
+	 * Apply in to the compiled table and rewrite chnroutes.txt from the
+	 * result, keyed like RouteImport so the service does not recompile.
+	 * @throws IOException if there is no table to update, the delta is
+	 *         empty, or the files cannot be written
+	 */
+	public static RouteDelta run(InputStream in, File text, File table) throws IOException {
+		if (!text.exists())
+		  throw new IOException("no route list to update");
+		RouteDelta delta = parse(in);
+		RouteTable base = RouteTable.compile(text, table);
+		RouteTable next = delta.apply(base);
+		delta.written = next.writeSource(text);
+		next.write(table);
+		return delta;
+	}
+
+	/**
+	 * @return a new table, base with the additions and without the
+	 *         removals; its source hash is unset until it is written out
+	 */
+	public RouteTable apply(RouteTable base) {
+		RouteTable add = added.build(new byte[32]);
+		RouteTable remove = removed.build(new byte[32]);
+		ArrayList<long[]> ranges4 = subtract(union(ranges(base, false), ranges(add, false)), ranges(remove, false));
+		ArrayList<long[]> ranges6 = subtract(union(ranges(base, true), ranges(add, true)), ranges(remove, true));
+		rangesBefore = base.getIpv4Count() + base.getIpv6Count();
+		rangesAfter = ranges4.size() + ranges6.size();
+		return RouteTable.fromRanges(ranges4, ranges6, new byte[32], base.getSourceRoutes() + added.size());
+	}
+
+	/* Lines read from the delta */
+	public int getLines() {
+		return lines;
+	}
+
+	public int getAdded() {
+		return added.size();
+	}
+
+	public int getRemoved() {
+		return removed.size();
+	}
+
+	/* Lines that were neither blank, a comment nor a valid change */
+	public int getInvalid() {
+		return invalid;
+	}
+
+	/**
+	 * The first RouteImport.MAX_ERRORS invalid lines.
+	 */
+	public List<RouteImport.ParseError> getErrors() {
+		return errors;
+	}
+
+	/* Merged ranges in the table before and after apply() */
+	public int getRangesBefore() {
+		return rangesBefore;
+	}
+
+	public int getRangesAfter() {
+		return rangesAfter;
+	}
+
+	/* Prefixes in the rewritten chnroutes.txt, after run() */
+	public int getWritten() {
+		return written;
+	}
+
+	private static ArrayList<long[]> ranges(RouteTable table, boolean ipv6) {
+		int count = ipv6 ? table.getIpv6Count() : table.getIpv4Count();
+		ArrayList<long[]> ranges = new ArrayList<long[]>(count);
+		for (int i = 0; i < count; i++) {
+			if (ipv6) {
+				long[] range = new long[4];
+				table.getIpv6Range(i, range);
+				ranges.add(range);
+			} else {
+				ranges.add(new long[] { 0, table.getIpv4First(i), 0, table.getIpv4Last(i) });
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Merge two sorted lists of disjoint ranges into one, joining ranges
+	 * that overlap or touch.
+	 */
+	private static ArrayList<long[]> union(List<long[]> a, List<long[]> b) {
+		ArrayList<long[]> out = new ArrayList<long[]>(a.size() + b.size());
+		int i = 0;
+		int j = 0;
+		while (i < a.size() || j < b.size()) {
+			long[] r;
+			if (j == b.size() || (i < a.size() && compare(a.get(i), 0, b.get(j), 0) <= 0))
+			  r = a.get(i++);
+			else
+			  r = b.get(j++);
+
+			long[] last = out.isEmpty() ? null : out.get(out.size() - 1);
+			if (last != null && touches(last, r)) {
+				if (compare(r, 2, last, 2) > 0) {
+					last[2] = r[2];
+					last[3] = r[3];
+				}
+			} else {
+				out.add(r.clone());
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Ranges minus removed, both sorted and disjoint.
+	 */
+	private static ArrayList<long[]> subtract(List<long[]> ranges, List<long[]> removed) {
+		ArrayList<long[]> out = new ArrayList<long[]>(ranges.size() + removed.size());
+		int j = 0;
+		for (long[] range : ranges) {
+			long[] cur = range.clone();
+			while (j < removed.size() && compare(removed.get(j), 2, cur, 0) < 0)
+			  j++;
+
+			boolean empty = false;
+			for (int k = j; k < removed.size() && compare(removed.get(k), 0, cur, 2) <= 0; k++) {
+				long[] r = removed.get(k);
+				if (compare(r, 0, cur, 0) > 0) {
+					long[] left = { cur[0], cur[1], r[0], r[1] };
+					if (left[3]-- == 0)
+					  left[2]--;
+					out.add(left);
+				}
+				if (compare(r, 2, cur, 2) >= 0) {
+					empty = true;
+					break;
+				}
+				cur[0] = r[3] == -1L ? r[2] + 1 : r[2];
+				cur[1] = r[3] + 1;
+			}
+			if (!empty)
+			  out.add(cur);
+		}
+		return out;
+	}
+
+	/* b starts at or before the address after a ends */
+	private static boolean touches(long[] a, long[] b) {
+		if (a[2] == -1L && a[3] == -1L)
+		  return true;
+		long nextLo = a[3] + 1;
+		long nextHi = nextLo == 0 ? a[2] + 1 : a[2];
+		int c = Long.compareUnsigned(b[0], nextHi);
+		return (c != 0 ? c : Long.compareUnsigned(b[1], nextLo)) <= 0;
+	}
+
+	/* Compare the 128-bit values at a[i] and b[j] */
+	private static int compare(long[] a, int i, long[] b, int j) {
+		int c = Long.compareUnsigned(a[i], b[j]);
+		return c != 0 ? c : Long.compareUnsigned(a[i + 1], b[j + 1]);
+	}
+}
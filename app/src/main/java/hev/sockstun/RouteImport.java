@@ -0,0 +1,143 @@
+/*
+ ============================================================================
+ Name        : RouteImport.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Normalizing chnroutes Import
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports an uploaded route list into chnroutes.txt and chnroutes.bin.
+ *
+ * The upload is parsed as it streams in. Comments and blank lines are
+ * dropped, host bits are masked, and duplicate, nested, overlapping and
+ * adjacent prefixes are merged. chnroutes.txt is rewritten as the fewest
+ * CIDRs covering the result, and the compiled table is written in the
+ * same pass, keyed to that text so the service does not compile it again.
+ *
+ * Nothing is replaced if the upload holds no valid prefix.
+ */
+public class RouteImport {
+	// Invalid lines kept for the report; the rest are only counted
+	public static final int MAX_ERRORS = 20;
+
+	public static class ParseError {
+		private final int line;
+		private final String text;
+
+		ParseError(int line, String text) {
+			this.line = line;
+			this.text = text;
+		}
+
+		/* 1-based line number in the upload */
+		public int getLine() {
+			return line;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	private int lines;
+	private int prefixes;
+	private int hostBits;
+	private int invalid;
+	private final ArrayList<ParseError> errors = new ArrayList<ParseError>();
+	private int written;
+	private RouteTable table;
+
+	private RouteImport() {
+	}
+
+	/**
+	 * Read routes from in and replace text and table with the normalized
+	 * list. in is not closed.
+	 * @throws IOException if in cannot be read, no line is a valid prefix,
+	 *         or the files cannot be written
+	 */
+	public static RouteImport run(InputStream in, File text, File table) throws IOException {
+		RouteImport result = new RouteImport();
+		RouteTable.Builder builder = new RouteTable.Builder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			result.lines++;
+			int hashPos = line.indexOf('#');
+			String cidr = (hashPos >= 0 ? line.substring(0, hashPos) : line).trim();
+			if (cidr.isEmpty())
+			  continue;
+			switch (builder.add(cidr)) {
+			case 1:
+				result.prefixes++;
+				break;
+			case 0:
+				result.prefixes++;
+				result.hostBits++;
+				break;
+			default:
+				result.invalid++;
+				if (result.errors.size() < MAX_ERRORS)
+				  result.errors.add(new ParseError(result.lines, cidr));
+				break;
+			}
+		}
+		if (result.prefixes == 0)
+		  throw new IOException("no valid routes");
+
+		RouteTable compiled = builder.build(new byte[32]);
+		result.written = compiled.writeSource(text);
+		compiled.write(table);
+		result.table = compiled;
+		return result;
+	}
+
+	/* Lines read from the upload */
+	public int getLines() {
+		return lines;
+	}
+
+	/* Valid prefixes in the upload, before merging */
+	public int getPrefixes() {
+		return prefixes;
+	}
+
+	/* Prefixes whose host bits were set and have been masked */
+	public int getHostBits() {
+		return hostBits;
+	}
+
+	/* Lines that were neither blank, a comment nor a valid prefix */
+	public int getInvalid() {
+		return invalid;
+	}
+
+	/**
+	 * The first MAX_ERRORS invalid lines.
+	 */
+	public List<ParseError> getErrors() {
+		return errors;
+	}
+
+	/* Prefixes in the rewritten chnroutes.txt */
+	public int getWritten() {
+		return written;
+	}
+
+	public RouteTable getTable() {
+		return table;
+	}
+}
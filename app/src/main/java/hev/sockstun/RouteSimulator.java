@@ -0,0 +1,487 @@
+/*
+ ============================================================================
+ Name        : RouteSimulator.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Offline Routing Decision Simulator
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import android.os.Build;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays the routing decision for a destination against the compiled
+ * rule tables, without a tunnel or any traffic, and records why each
+ * stage decided what it did and what it cost.
+ *
+ * A destination is "host [address] [port]": a name or an address, the
+ * address a name resolved to if it is known, and the TCP port. A name
+ * without an address is never resolved here, so the address stages report
+ * it as unknown, as the router would see a connection to a name it has
+ * not mapped.
+ *
+ * The stages follow the router's order:
+ *   1. LAN bypass: private ranges excluded from the TUN (API 33+)
+ *   2. ACL: acl.bin; block drops the connection, allow lets it through
+ *   3. chnroutes: chnroutes.bin; a domestic address goes direct
+ *   4. smart proxy: a blacklisted address or name goes to the proxy,
+ *      anything else tries direct first
+ *   5. the proxy
+ * DNS split is traced alongside for names, as it picks the resolver and
+ * not the route.
+ *
+ * The blacklist is the native tunnel's (TProxyService.getBlacklist()) at
+ * the time the simulator is made, so it is empty while the VPN is off.
+ */
+public class RouteSimulator {
+	/* Decisions */
+	public static final int DIRECT = 0;
+	public static final int PROXY = 1;
+	public static final int SMART_PROXY = 2;
+	public static final int BLOCK = 3;
+	public static final int DECISION_COUNT = 4;
+
+	/* Stage indexes for the timings */
+	public static final int STAGE_PARSE = 0;
+	public static final int STAGE_LAN = 1;
+	public static final int STAGE_ACL = 2;
+	public static final int STAGE_CHNROUTES = 3;
+	public static final int STAGE_BLACKLIST = 4;
+	public static final int STAGE_DNS = 5;
+	public static final int STAGE_COUNT = 6;
+
+	private static final String[] DECISION_NAMES = { "direct", "proxy", "smart-proxy", "block" };
+	private static final String[] STAGE_NAMES = { "parse", "lan", "acl", "chnroutes", "blacklist", "dns" };
+
+	// Excluded from the TUN by TProxyService when bypassing the LAN
+	private static final String[] LAN_ROUTES = { "10.0.0.0/8", "100.64.0.0/10", "127.0.0.0/8",
+		"169.254.0.0/16", "172.16.0.0/12", "192.168.0.0/16", "fc00::/7", "fe80::/10" };
+
+	private final Settings settings;
+	private final AclTable acl;
+	private final RouteTable routes;
+	private final RouteTable lan;
+	// Blacklisted address or name, lower case, to seconds left
+	private final HashMap<String, Long> blacklist = new HashMap<String, Long>();
+
+	/**
+	 * @param acl the compiled ACL, or null if it is off
+	 * @param routes the compiled chnroutes, or null if they are off
+	 * @param blacklist "type|value|seconds left|hits|reason" entries, or
+	 *        null
+	 */
+	public RouteSimulator(Settings settings, AclTable acl, RouteTable routes, String[] blacklist) {
+		this.settings = settings;
+		this.acl = settings.getAclEnabled() ? acl : null;
+		this.routes = settings.getChnroutesEnabled() ? routes : null;
+
+		RouteTable.Builder builder = new RouteTable.Builder();
+		if (settings.getBypassLan() && Build.VERSION.SDK_INT >= 33) {
+			for (String route : LAN_ROUTES)
+			  builder.add(route);
+		}
+		lan = builder.size() > 0 ? builder.build(new byte[32]) : null;
+
+		if (blacklist != null) {
+			for (String line : blacklist) {
+				String[] parts = line.split("\\|");
+				if (parts.length < 3)
+				  continue;
+				// Addresses are keyed in one spelling, whatever the native side prints
+				String value = parts[1].trim().toLowerCase(Locale.ROOT);
+				byte[] addr = parseAddress(value);
+				try {
+					this.blacklist.put(addr != null ? formatAddress(addr) : value, Long.parseLong(parts[2]));
+				} catch (NumberFormatException e) {
+					// Ignore invalid entries
+				}
+			}
+		}
+	}
+
+	public static String getDecisionName(int decision) {
+		return DECISION_NAMES[decision];
+	}
+
+	public static String getStageName(int stage) {
+		return STAGE_NAMES[stage];
+	}
+
+	/**
+	 * @param destination "host [address] [port]"
+	 * @return the trace, or null if destination can't be parsed
+	 */
+	public Trace simulate(String destination) {
+		Trace t = new Trace();
+		long start = System.nanoTime();
+		boolean parsed = parse(destination, t);
+		long now = System.nanoTime();
+		t.time(STAGE_PARSE, now - start);
+		if (!parsed)
+		  return null;
+
+		start = now;
+		boolean bypassed = lan != null && t.address != null && lan.contains(t.address);
+		now = System.nanoTime();
+		t.time(STAGE_LAN, now - start);
+		if (bypassed) {
+			t.decide(DIRECT, STAGE_LAN);
+			return t;
+		}
+
+		if (acl != null) {
+			start = now;
+			t.aclAction = acl.match(t.domain, t.address, t.port, t.aclHits);
+			now = System.nanoTime();
+			t.time(STAGE_ACL, now - start);
+			if (t.aclAction == AclTable.BLOCK) {
+				t.decide(BLOCK, STAGE_ACL);
+				return t;
+			}
+		}
+
+		if (routes != null && t.address != null) {
+			start = now;
+			t.domestic = routes.contains(t.address) ? 1 : 0;
+			now = System.nanoTime();
+			t.time(STAGE_CHNROUTES, now - start);
+		}
+
+		if (settings.getDnsSplitTunnelEnabled() && t.domain != null) {
+			start = now;
+			// A domestic answer is kept, anything else is asked abroad
+			if (t.domestic == 1)
+			  t.dns = "domestic";
+			else
+			  t.dns = "foreign " + settings.getDnsForeignServersList();
+			now = System.nanoTime();
+			t.time(STAGE_DNS, now - start);
+		}
+
+		if (t.domestic == 1) {
+			t.decide(DIRECT, STAGE_CHNROUTES);
+			return t;
+		}
+
+		if (settings.getSmartProxyEnabled() && settings.getSmartProxyTimeout() > 0) {
+			start = now;
+			Long left = null;
+			if (t.address != null)
+			  left = blacklist.get(formatAddress(t.address));
+			if (left == null && t.domain != null)
+			  left = blacklist.get(t.domain.toLowerCase(Locale.ROOT));
+			t.blacklistSeconds = left == null ? -1 : left;
+			t.sniffed = t.port > 0 && settings.getSmartProxyProbePortsList().contains(t.port);
+			now = System.nanoTime();
+			t.time(STAGE_BLACKLIST, now - start);
+			t.decide(left != null ? PROXY : SMART_PROXY, STAGE_BLACKLIST);
+			return t;
+		}
+
+		t.decide(PROXY, -1);
+		return t;
+	}
+
+	private static boolean parse(String destination, Trace t) {
+		String[] tokens = destination.trim().split("\\s+");
+		if (tokens.length == 0 || tokens.length > 3 || tokens[0].isEmpty())
+		  return false;
+		int n = tokens.length;
+		if (n > 1 && isNumber(tokens[n - 1])) {
+			t.port = ConfigValidator.parsePort(tokens[n - 1]);
+			if (t.port < 0)
+			  return false;
+			n--;
+		}
+		if (n > 2)
+		  return false;
+
+		t.address = parseAddress(tokens[0]);
+		if (t.address == null) {
+			if (!ConfigValidator.isDomainPattern(tokens[0]) || tokens[0].indexOf('*') >= 0)
+			  return false;
+			t.domain = tokens[0];
+			if (n == 2) {
+				t.address = parseAddress(tokens[1]);
+				if (t.address == null)
+				  return false;
+			}
+		} else if (n == 2) {
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isNumber(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9')
+			  return false;
+		}
+		return !s.isEmpty();
+	}
+
+	/* 4 or 16 bytes, or null */
+	private static byte[] parseAddress(String s) {
+		long v4 = ConfigValidator.parseIpv4(s);
+		if (v4 >= 0)
+		  return ByteBuffer.allocate(4).putInt((int) v4).array();
+		return ConfigValidator.parseIpv6(s);
+	}
+
+	/* Dotted quad, or eight uncompressed hex groups */
+	private static String formatAddress(byte[] addr) {
+		if (addr.length == 4)
+		  return (addr[0] & 0xff) + "." + (addr[1] & 0xff) + "." + (addr[2] & 0xff) + "." + (addr[3] & 0xff);
+		StringBuilder sb = new StringBuilder();
+		ByteBuffer b = ByteBuffer.wrap(addr);
+		for (int i = 0; i < 8; i++) {
+			if (i > 0)
+			  sb.append(':');
+			sb.append(Integer.toHexString(b.getShort() & 0xffff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Simulate every destination in in, one a line ('#' starts a
+	 * comment), and write one result line for each to out. in and out are
+	 * not closed.
+	 */
+	public Batch run(InputStream in, Writer out) throws IOException {
+		Batch batch = new Batch();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder();
+		String line;
+		long start = System.nanoTime();
+		while ((line = reader.readLine()) != null) {
+			batch.lines++;
+			int hashPos = line.indexOf('#');
+			String destination = (hashPos >= 0 ? line.substring(0, hashPos) : line).trim();
+			if (destination.isEmpty())
+			  continue;
+			Trace t = simulate(destination);
+			sb.setLength(0);
+			if (t == null) {
+				batch.invalid++;
+				if (batch.errors.size() < RouteImport.MAX_ERRORS)
+				  batch.errors.add(new RouteImport.ParseError(batch.lines, destination));
+				sb.append(destination).append("\tinvalid\n");
+			} else {
+				batch.add(t);
+				sb.append(destination).append('\t');
+				t.formatLine(sb);
+				sb.append('\n');
+			}
+			out.write(sb.toString());
+		}
+		batch.elapsed = System.nanoTime() - start;
+		return batch;
+	}
+
+	/**
+	 * The decision for one destination and how each stage got there.
+	 */
+	public static class Trace {
+		private String domain;
+		private byte[] address;
+		private int port = -1;
+		private int decision;
+		private int decidingStage = -1;
+		private int aclAction = 0;
+		private final AclTable.Hits aclHits = new AclTable.Hits();
+		// -1 unknown, 0 foreign, 1 domestic
+		private int domestic = -1;
+		private long blacklistSeconds = -1;
+		private boolean sniffed;
+		private String dns;
+		private final long[] nanos = new long[STAGE_COUNT];
+		// Bit per stage that ran
+		private int stages;
+
+		private void time(int stage, long ns) {
+			nanos[stage] = ns;
+			stages |= 1 << stage;
+		}
+
+		private boolean ran(int stage) {
+			return (stages & 1 << stage) != 0;
+		}
+
+		private void decide(int decision, int stage) {
+			this.decision = decision;
+			this.decidingStage = stage;
+		}
+
+		public int getDecision() {
+			return decision;
+		}
+
+		/* The stage that decided, or -1 for the default route */
+		public int getDecidingStage() {
+			return decidingStage;
+		}
+
+		/* AclTable.ALLOW, BLOCK or 0 */
+		public int getAclAction() {
+			return aclAction;
+		}
+
+		public AclTable.Hits getAclHits() {
+			return aclHits;
+		}
+
+		/* ns the stage took, 0 if it did not run */
+		public long getStageNanos(int stage) {
+			return nanos[stage];
+		}
+
+		public long getTotalNanos() {
+			long total = 0;
+			for (long ns : nanos)
+			  total += ns;
+			return total;
+		}
+
+		/**
+		 * One line a stage, for a person reading it.
+		 * @param aclLines acl.txt to quote the rules from, or null
+		 */
+		public void format(StringBuilder sb, RuleFile aclLines) {
+			sb.append("decision   ").append(DECISION_NAMES[decision]);
+			if (decidingStage >= 0)
+			  sb.append(" (").append(STAGE_NAMES[decidingStage]).append(')');
+			sb.append('\n');
+			sb.append("target     ").append(domain != null ? domain : formatAddress(address));
+			if (domain != null && address != null)
+			  sb.append(" [").append(formatAddress(address)).append(']');
+			if (port >= 0)
+			  sb.append(" port ").append(port);
+			sb.append('\n');
+			if (decidingStage == STAGE_LAN)
+			  sb.append("lan        excluded from the TUN\n");
+			if (ran(STAGE_ACL)) {
+				sb.append("acl        ").append(aclAction == AclTable.BLOCK ? "block" :
+					aclAction == AclTable.ALLOW ? "allow" : "no rule").append('\n');
+				for (int i = 0; i < aclHits.size(); i++) {
+					int rule = aclHits.getRule(i);
+					sb.append("             acl.txt:").append(rule + 1).append(' ')
+					  .append(aclHits.getAction(i) == AclTable.BLOCK ? "block" : "allow");
+					if (aclLines != null && rule < aclLines.size())
+					  sb.append("  ").append(aclLines.get(rule).trim());
+					sb.append('\n');
+				}
+			}
+			if (ran(STAGE_CHNROUTES))
+			  sb.append("chnroutes  ").append(domestic == 1 ? "domestic" : "foreign").append('\n');
+			else if (decidingStage != STAGE_LAN && decidingStage != STAGE_ACL && address == null)
+			  sb.append("chnroutes  unknown, no address\n");
+			if (dns != null)
+			  sb.append("dns        ").append(dns).append('\n');
+			if (ran(STAGE_BLACKLIST)) {
+				sb.append("blacklist  ");
+				if (blacklistSeconds >= 0)
+				  sb.append("listed, ").append(blacklistSeconds).append(" s left");
+				else
+				  sb.append("not listed, direct first");
+				if (sniffed)
+				  sb.append(", SNI/Host sniffed");
+				sb.append('\n');
+			}
+			sb.append("time      ");
+			for (int i = 0; i < STAGE_COUNT; i++) {
+				if (ran(i))
+				  sb.append(' ').append(STAGE_NAMES[i]).append(' ').append(nanos[i]).append(" ns");
+			}
+			sb.append('\n');
+		}
+
+		/* decision, deciding stage, ACL rules hit and total ns, tab separated */
+		public void formatLine(StringBuilder sb) {
+			sb.append(DECISION_NAMES[decision]).append('\t')
+			  .append(decidingStage >= 0 ? STAGE_NAMES[decidingStage] : "default").append('\t');
+			for (int i = 0; i < aclHits.size(); i++) {
+				if (i > 0)
+				  sb.append(',');
+				sb.append(aclHits.getRule(i) + 1);
+			}
+			if (aclHits.size() == 0)
+			  sb.append('-');
+			sb.append('\t').append(getTotalNanos());
+		}
+	}
+
+	/**
+	 * Totals of a batch run.
+	 */
+	public static class Batch {
+		private int lines;
+		private int simulated;
+		private int invalid;
+		private final ArrayList<RouteImport.ParseError> errors = new ArrayList<RouteImport.ParseError>();
+		private final int[] decisions = new int[DECISION_COUNT];
+		private final long[] stageNanos = new long[STAGE_COUNT];
+		private long elapsed;
+
+		private void add(Trace t) {
+			simulated++;
+			decisions[t.decision]++;
+			for (int i = 0; i < STAGE_COUNT; i++)
+			  stageNanos[i] += t.nanos[i];
+		}
+
+		/* Lines read */
+		public int getLines() {
+			return lines;
+		}
+
+		public int getSimulated() {
+			return simulated;
+		}
+
+		public int getInvalid() {
+			return invalid;
+		}
+
+		/**
+		 * The first RouteImport.MAX_ERRORS invalid lines.
+		 */
+		public List<RouteImport.ParseError> getErrors() {
+			return errors;
+		}
+
+		public int getDecisionCount(int decision) {
+			return decisions[decision];
+		}
+
+		/* ns spent in stage over the whole batch */
+		public long getStageNanos(int stage) {
+			return stageNanos[stage];
+		}
+
+		/* Wall time of the run, reading and writing included */
+		public long getElapsedNanos() {
+			return elapsed;
+		}
+
+		/* Decisions a second, stages only */
+		public double getDecisionsPerSecond() {
+			long total = 0;
+			for (long ns : stageNanos)
+			  total += ns;
+			return total == 0 ? 0 : simulated * 1e9 / total;
+		}
+	}
+}
@@ -0,0 +1,513 @@
+/*
+ ============================================================================
+ Name        : RouteTable.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Compiled chnroutes Interval Table
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * chnroutes.txt compiled into sorted, merged address ranges, so the
+ * native router can mmap it and binary search instead of parsing and
+ * building a tree on every start.
+ *
+ * Layout (native byte order):
+ *   0  u32 magic
+ *   4  u16 version
+ *   6  u16 header size
+ *   8  u32 IPv4 range count (n4)
+ *  12  u32 IPv6 range count (n6)
+ *  16  u8  source hash[32] (SHA-256 of the text file)
+ *  48  u32 routes read from the source
+ *  52  u32 reserved[3]
+ *  64  u32 IPv4 first[n4]
+ *      u32 IPv4 last[n4]
+ *      u64 IPv6 first[n6][2] (high half first)
+ *      u64 IPv6 last[n6][2]
+ *
+ * Ranges are inclusive, sorted, and neither overlap nor touch, so an
+ * address matches if the last range starting at or below it also ends
+ * at or above it. First and last addresses are kept in separate arrays
+ * to keep the search loop on one cache-dense array.
+ */
+public class RouteTable {
+	public static final String FILE_NAME = "chnroutes.bin";
+
+	public static final int MAGIC = 0x54524e43;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+
+	private static final int OFF_MAGIC = 0;
+	private static final int OFF_VERSION = 4;
+	private static final int OFF_HEADER_SIZE = 6;
+	private static final int OFF_V4_COUNT = 8;
+	private static final int OFF_V6_COUNT = 12;
+	private static final int OFF_SOURCE_HASH = 16;
+	private static final int OFF_SOURCE_ROUTES = 48;
+	private static final int HASH_SIZE = 32;
+
+	private final ByteBuffer buffer;
+	private final int v4Count;
+	private final int v6Count;
+	private final int v4First;
+	private final int v4Last;
+	private final int v6First;
+	private final int v6Last;
+
+	private RouteTable(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		buffer.order(ByteOrder.nativeOrder());
+		if (buffer.capacity() < HEADER_SIZE ||
+		    buffer.getInt(OFF_MAGIC) != MAGIC ||
+		    buffer.getShort(OFF_VERSION) != VERSION ||
+		    buffer.getShort(OFF_HEADER_SIZE) != HEADER_SIZE)
+		  throw new IOException("not a route table");
+
+		v4Count = buffer.getInt(OFF_V4_COUNT);
+		v6Count = buffer.getInt(OFF_V6_COUNT);
+		v4First = HEADER_SIZE;
+		v4Last = v4First + v4Count * 4;
+		v6First = v4Last + v4Count * 4;
+		v6Last = v6First + v6Count * 16;
+		if (v4Count < 0 || v6Count < 0 || (long) v6Last + v6Count * 16L != buffer.capacity())
+		  throw new IOException("truncated route table");
+	}
+
+	/**
+	 * Map a compiled table read-only.
+	 */
+	public static RouteTable load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new RouteTable(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Bring table up to date with text. The table is keyed by the hash
+	 * of the text, so an unchanged file costs one read and no parsing.
+	 * Lines that are not CIDRs are skipped; ConfigValidator reports them.
+	 */
+	public static RouteTable compile(File text, File table) throws IOException {
+		byte[] content = Files.readAllBytes(text.toPath());
+		byte[] hash = sha256(content);
+		if (table.exists()) {
+			try {
+				RouteTable cached = load(table);
+				if (Arrays.equals(cached.getSourceHash(), hash))
+				  return cached;
+			} catch (IOException e) {
+				// Rebuilt below
+			}
+		}
+
+		Builder builder = new Builder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int hashPos = line.indexOf('#');
+			if (hashPos >= 0)
+			  line = line.substring(0, hashPos);
+			line = line.trim();
+			if (!line.isEmpty())
+			  builder.add(line);
+		}
+
+		RouteTable compiled = builder.build(hash);
+		compiled.write(table);
+		return compiled;
+	}
+
+	/**
+	 * Write the table to file through a temporary file and a rename, so
+	 * a reader never maps a partial table. The temporary file is unique:
+	 * the service, the UI and the simulator compile from two processes.
+	 */
+	public void write(File file) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		FileOutputStream fos = new FileOutputStream(tmp, false);
+		try {
+			ByteBuffer src = buffer.duplicate();
+			src.clear();
+			fos.getChannel().write(src);
+			fos.getFD().sync();
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("rename " + tmp + " failed");
+		}
+	}
+
+	private void setSourceHash(byte[] hash) {
+		ByteBuffer dst = buffer.duplicate();
+		dst.position(OFF_SOURCE_HASH);
+		dst.put(hash, 0, HASH_SIZE);
+	}
+
+	public byte[] getSourceHash() {
+		byte[] hash = new byte[HASH_SIZE];
+		ByteBuffer src = buffer.duplicate();
+		src.position(OFF_SOURCE_HASH);
+		src.get(hash);
+		return hash;
+	}
+
+	/* Routes in the source, before merging */
+	public int getSourceRoutes() {
+		return buffer.getInt(OFF_SOURCE_ROUTES);
+	}
+
+	public int getIpv4Count() {
+		return v4Count;
+	}
+
+	public int getIpv6Count() {
+		return v6Count;
+	}
+
+	public int getSize() {
+		return buffer.capacity();
+	}
+
+	public long getIpv4First(int index) {
+		return ipv4At(v4First, index);
+	}
+
+	public long getIpv4Last(int index) {
+		return ipv4At(v4Last, index);
+	}
+
+	/**
+	 * @param range receives first high, first low, last high, last low
+	 */
+	public void getIpv6Range(int index, long[] range) {
+		range[0] = buffer.getLong(v6First + index * 16);
+		range[1] = buffer.getLong(v6First + index * 16 + 8);
+		range[2] = buffer.getLong(v6Last + index * 16);
+		range[3] = buffer.getLong(v6Last + index * 16 + 8);
+	}
+
+	/**
+	 * @param addr 4 or 16 address bytes
+	 */
+	public boolean contains(byte[] addr) {
+		if (addr.length == 4)
+		  return containsIpv4(ByteBuffer.wrap(addr).getInt() & 0xffffffffL);
+		if (addr.length == 16) {
+			ByteBuffer b = ByteBuffer.wrap(addr);
+			return containsIpv6(b.getLong(), b.getLong());
+		}
+		return false;
+	}
+
+	/**
+	 * @param addr address as an unsigned 32-bit value
+	 */
+	public boolean containsIpv4(long addr) {
+		return floorIpv4(addr) >= 0;
+	}
+
+	public boolean containsIpv6(long hi, long lo) {
+		return floorIpv6(hi, lo) >= 0;
+	}
+
+	/**
+	 * @return true if every address in [first, last] is in the table
+	 */
+	public boolean containsIpv4Range(long first, long last) {
+		int index = floorIpv4(first);
+		return index >= 0 && last <= ipv4At(v4Last, index);
+	}
+
+	/**
+	 * @param range first high, first low, last high, last low
+	 * @return true if every address in the range is in the table
+	 */
+	public boolean containsIpv6Range(long[] range) {
+		int index = floorIpv6(range[0], range[1]);
+		return index >= 0 && compareIpv6(v6Last, index, range[2], range[3]) >= 0;
+	}
+
+	/* Range holding addr, or -1 */
+	private int floorIpv4(long addr) {
+		int n = v4Count;
+		if (n == 0)
+		  return -1;
+		// The loop runs log2(n) times whatever the data; the select
+		// compiles to a conditional move
+		int base = 0;
+		while (n > 1) {
+			int half = n >>> 1;
+			base = ipv4At(v4First, base + half) <= addr ? base + half : base;
+			n -= half;
+		}
+		return ipv4At(v4First, base) <= addr && addr <= ipv4At(v4Last, base) ? base : -1;
+	}
+
+	private int floorIpv6(long hi, long lo) {
+		int n = v6Count;
+		if (n == 0)
+		  return -1;
+		int base = 0;
+		while (n > 1) {
+			int half = n >>> 1;
+			base = compareIpv6(v6First, base + half, hi, lo) <= 0 ? base + half : base;
+			n -= half;
+		}
+		return compareIpv6(v6First, base, hi, lo) <= 0 && compareIpv6(v6Last, base, hi, lo) >= 0 ? base : -1;
+	}
+
+	private long ipv4At(int array, int index) {
+		return buffer.getInt(array + index * 4) & 0xffffffffL;
+	}
+
+	private int compareIpv6(int array, int index, long hi, long lo) {
+		int off = array + index * 16;
+		int c = Long.compareUnsigned(buffer.getLong(off), hi);
+		return c != 0 ? c : Long.compareUnsigned(buffer.getLong(off + 8), lo);
+	}
+
+	/**
+	 * Encode sorted ranges that neither overlap nor touch, each as
+	 * { first high, first low, last high, last low }.
+	 */
+	static RouteTable fromRanges(List<long[]> ranges4, List<long[]> ranges6, byte[] sourceHash, int sourceRoutes) {
+		int n4 = ranges4.size();
+		int n6 = ranges6.size();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + n4 * 8 + n6 * 32);
+		buf.order(ByteOrder.nativeOrder());
+		buf.putInt(OFF_MAGIC, MAGIC);
+		buf.putShort(OFF_VERSION, (short) VERSION);
+		buf.putShort(OFF_HEADER_SIZE, (short) HEADER_SIZE);
+		buf.putInt(OFF_V4_COUNT, n4);
+		buf.putInt(OFF_V6_COUNT, n6);
+		buf.position(OFF_SOURCE_HASH);
+		buf.put(sourceHash, 0, HASH_SIZE);
+		buf.putInt(OFF_SOURCE_ROUTES, sourceRoutes);
+
+		buf.position(HEADER_SIZE);
+		for (long[] r : ranges4)
+		  buf.putInt((int) r[1]);
+		for (long[] r : ranges4)
+		  buf.putInt((int) r[3]);
+		for (long[] r : ranges6)
+		  buf.putLong(r[0]).putLong(r[1]);
+		for (long[] r : ranges6)
+		  buf.putLong(r[2]).putLong(r[3]);
+
+		try {
+			return new RouteTable(buf);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Write the table back out as text, one CIDR per line, through a
+	 * temporary file and a rename, and key the table to it.
+	 * @return number of CIDRs written
+	 */
+	int writeSource(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		List<KernelRoutes.Prefix> prefixes = KernelRoutes.cover(this);
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		FileOutputStream fos = new FileOutputStream(tmp, false);
+		try {
+			OutputStream out = new DigestOutputStream(new BufferedOutputStream(fos), digest);
+			for (KernelRoutes.Prefix p : prefixes)
+			  out.write((p.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("rename " + tmp + " failed");
+		}
+		setSourceHash(digest.digest());
+		return prefixes.size();
+	}
+
+	private static byte[] sha256(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Collects prefixes in any order; build() masks host bits, sorts and
+	 * merges overlapping and adjacent prefixes into ranges.
+	 */
+	public static class Builder {
+		// IPv4 prefixes packed as address << 6 | length, which sorts by
+		// address and puts the widest of equal addresses first
+		private long[] v4 = new long[1024];
+		private int v4Size = 0;
+		private final ArrayList<Prefix6> v6 = new ArrayList<Prefix6>();
+
+		/**
+		 * @return 1 if cidr is valid, 0 if it had host bits set (they are
+		 *         cleared), -1 if it is malformed and was skipped
+		 */
+		public int add(String cidr) {
+			int slash = cidr.indexOf('/');
+			if (slash < 0)
+			  return -1;
+			String addr = cidr.substring(0, slash);
+			int prefix = ConfigValidator.parsePrefix(cidr.substring(slash + 1));
+			long v4 = ConfigValidator.parseIpv4(addr);
+			if (v4 >= 0) {
+				if (prefix < 0 || prefix > 32)
+				  return -1;
+				return addIpv4(v4, prefix) ? 1 : 0;
+			}
+			byte[] v6 = ConfigValidator.parseIpv6(addr);
+			if (v6 == null || prefix < 0 || prefix > 128)
+			  return -1;
+			ByteBuffer b = ByteBuffer.wrap(v6);
+			return addIpv6(b.getLong(), b.getLong(), prefix) ? 1 : 0;
+		}
+
+		/**
+		 * @return false if addr had host bits set
+		 */
+		public boolean addIpv4(long addr, int prefix) {
+			long host = prefix == 32 ? 0 : 0xffffffffL >>> prefix;
+			if (v4Size == v4.length)
+			  v4 = Arrays.copyOf(v4, v4.length * 2);
+			v4[v4Size++] = ((addr & ~host) << 6) | prefix;
+			return (addr & host) == 0;
+		}
+
+		public boolean addIpv6(long hi, long lo, int prefix) {
+			long hostHi = prefix >= 64 ? 0 : -1L >>> prefix;
+			long hostLo = prefix >= 128 ? 0 : prefix <= 64 ? -1L : -1L >>> (prefix - 64);
+			v6.add(new Prefix6(hi & ~hostHi, lo & ~hostLo, hi | hostHi, lo | hostLo));
+			return (hi & hostHi) == 0 && (lo & hostLo) == 0;
+		}
+
+		public int size() {
+			return v4Size + v6.size();
+		}
+
+		public RouteTable build(byte[] sourceHash) {
+			long[] sorted = Arrays.copyOf(v4, v4Size);
+			Arrays.sort(sorted);
+			long[] first4 = new long[sorted.length];
+			long[] last4 = new long[sorted.length];
+			int n4 = 0;
+			for (long p : sorted) {
+				long first = p >>> 6;
+				long last = first + (1L << (32 - (int) (p & 63))) - 1;
+				if (n4 > 0 && first <= last4[n4 - 1] + 1) {
+					last4[n4 - 1] = Math.max(last4[n4 - 1], last);
+				} else {
+					first4[n4] = first;
+					last4[n4] = last;
+					n4++;
+				}
+			}
+
+			Collections.sort(v6);
+			ArrayList<Prefix6> ranges = new ArrayList<Prefix6>();
+			for (Prefix6 p : v6) {
+				Prefix6 cur = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+				if (cur != null && cur.touches(p)) {
+					if (Prefix6.compare(p.lastHi, p.lastLo, cur.lastHi, cur.lastLo) > 0) {
+						cur.lastHi = p.lastHi;
+						cur.lastLo = p.lastLo;
+					}
+				} else {
+					ranges.add(new Prefix6(p.firstHi, p.firstLo, p.lastHi, p.lastLo));
+				}
+			}
+
+			ArrayList<long[]> ranges4 = new ArrayList<long[]>(n4);
+			for (int i = 0; i < n4; i++)
+			  ranges4.add(new long[] { 0, first4[i], 0, last4[i] });
+			ArrayList<long[]> ranges6 = new ArrayList<long[]>(ranges.size());
+			for (Prefix6 r : ranges)
+			  ranges6.add(new long[] { r.firstHi, r.firstLo, r.lastHi, r.lastLo });
+			return fromRanges(ranges4, ranges6, sourceHash, size());
+		}
+	}
+
+	private static class Prefix6 implements Comparable<Prefix6> {
+		final long firstHi;
+		final long firstLo;
+		long lastHi;
+		long lastLo;
+
+		Prefix6(long firstHi, long firstLo, long lastHi, long lastLo) {
+			this.firstHi = firstHi;
+			this.firstLo = firstLo;
+			this.lastHi = lastHi;
+			this.lastLo = lastLo;
+		}
+
+		/* p starts at or before the address after this range ends */
+		boolean touches(Prefix6 p) {
+			if (lastHi == -1L && lastLo == -1L)
+			  return true;
+			long nextLo = lastLo + 1;
+			long nextHi = nextLo == 0 ? lastHi + 1 : lastHi;
+			return compare(p.firstHi, p.firstLo, nextHi, nextLo) <= 0;
+		}
+
+		@Override
+		public int compareTo(Prefix6 o) {
+			int c = compare(firstHi, firstLo, o.firstHi, o.firstLo);
+			return c != 0 ? c : compare(o.lastHi, o.lastLo, lastHi, lastLo);
+		}
+
+		static int compare(long aHi, long aLo, long bHi, long bLo) {
+			int c = Long.compareUnsigned(aHi, bHi);
+			return c != 0 ? c : Long.compareUnsigned(aLo, bLo);
+		}
+	}
+}
@@ -0,0 +1,530 @@
+/*
+ ============================================================================
+ Name        : RuleEditorActivity.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Rule File Editor Activity
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.InputType;
+import android.view.KeyEvent;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.inputmethod.EditorInfo;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+import android.window.OnBackInvokedCallback;
+import android.window.OnBackInvokedDispatcher;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Browse and edit a rule file in the cache directory one line at a time.
+ * The list only materializes the rows on screen, so a file of 100k lines
+ * opens as fast as its lines can be indexed.
+ */
+public class RuleEditorActivity extends Activity implements View.OnClickListener {
+	/* Name of the file in the cache directory, e.g. chnroutes.txt */
+	public static final String EXTRA_FILE_NAME = "file_name";
+
+	private EditText edittext_search;
+	private Button button_prev;
+	private Button button_next;
+	private TextView textview_status;
+	private ListView listview_rules;
+	private Button button_add;
+	private Button button_clear;
+	private Button button_save;
+
+	private Handler handler;
+	private RuleFile rules;
+	private final RuleAdapter adapter = new RuleAdapter();
+
+	// ACL hit counters by line, dropped on any edit as lines move;
+	// ns is -1 for rules without a cost of their own
+	private long[] ruleHits;
+	private long[] ruleNanos;
+	private long aclLookups;
+	// Read by the opening thread, handed over with the lines by post()
+	private long[] ruleHitsLoaded;
+	private long[] ruleNanosLoaded;
+	private long aclLookupsLoaded;
+
+	// Search results, dropped on any edit
+	private String searchQuery;
+	private int[] searchHits;
+	private int searchIndex = -1;
+	private boolean searching = false;
+	private boolean saving = false;
+	// Edit, insert or clear dialog on screen, dismissed when a save starts
+	private AlertDialog lineDialog;
+
+	private class RuleAdapter extends BaseAdapter {
+		@Override
+		public int getCount() {
+			return rules == null ? 0 : rules.size();
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return rules.get(position);
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			if (convertView == null)
+			  convertView = LayoutInflater.from(RuleEditorActivity.this).inflate(R.layout.rule_item, parent, false);
+
+			TextView lineView = (TextView) convertView.findViewById(R.id.rule_item_line);
+			TextView textView = (TextView) convertView.findViewById(R.id.rule_item_text);
+			lineView.setText(Integer.toString(position + 1));
+			textView.setText(rules.get(position));
+			TextView hitsView = (TextView) convertView.findViewById(R.id.rule_item_hits);
+			if (ruleHits != null && position < ruleHits.length) {
+				if (ruleNanos[position] >= 0)
+				  hitsView.setText(getString(R.string.rule_editor_hits_cost, ruleHits[position], ruleNanos[position]));
+				else
+				  hitsView.setText(getString(R.string.rule_editor_hits, ruleHits[position]));
+				hitsView.setVisibility(View.VISIBLE);
+			} else {
+				hitsView.setVisibility(View.GONE);
+			}
+			boolean current = searchHits != null && searchIndex >= 0 && searchHits[searchIndex] == position;
+			convertView.setBackgroundColor(current ? getResources().getColor(R.color.tab_background, null) : 0);
+			return convertView;
+		}
+	}
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.rule_editor);
+
+		final String name = getIntent().getStringExtra(EXTRA_FILE_NAME);
+		setTitle(name);
+
+		edittext_search = (EditText) findViewById(R.id.rule_search);
+		button_prev = (Button) findViewById(R.id.rule_search_prev);
+		button_next = (Button) findViewById(R.id.rule_search_next);
+		textview_status = (TextView) findViewById(R.id.rule_status);
+		listview_rules = (ListView) findViewById(R.id.rule_list);
+		button_add = (Button) findViewById(R.id.rule_add);
+		button_clear = (Button) findViewById(R.id.rule_clear);
+		button_save = (Button) findViewById(R.id.rule_save);
+
+		button_prev.setOnClickListener(this);
+		button_next.setOnClickListener(this);
+		button_add.setOnClickListener(this);
+		button_clear.setOnClickListener(this);
+		button_save.setOnClickListener(this);
+		edittext_search.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+			@Override
+			public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+				if (actionId != EditorInfo.IME_ACTION_SEARCH)
+				  return false;
+				findNext(1);
+				return true;
+			}
+		});
+
+		listview_rules.setAdapter(adapter);
+		listview_rules.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+			@Override
+			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+				if (!saving)
+				  editLine(position);
+			}
+		});
+		listview_rules.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+			@Override
+			public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+				if (!saving)
+				  insertLine(position + 1);
+				return true;
+			}
+		});
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+			getOnBackInvokedDispatcher().registerOnBackInvokedCallback(
+				OnBackInvokedDispatcher.PRIORITY_DEFAULT, new OnBackInvokedCallback() {
+					@Override
+					public void onBackInvoked() {
+						leave();
+					}
+				});
+		}
+
+		handler = new Handler(Looper.getMainLooper());
+		setEditable(false);
+		textview_status.setText(R.string.rule_editor_loading);
+
+		// Indexing is the only pass over the whole file
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				RuleFile opened = null;
+				String error = null;
+				try {
+					opened = RuleFile.open(new File(getCacheDir(), name));
+				} catch (IOException e) {
+					error = e.getMessage();
+				}
+				final RuleFile result = opened;
+				final String message = error;
+				if (name.equals("acl.txt"))
+				  loadAclCounters();
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (isFinishing()) {
+							if (result != null)
+							  result.close();
+							return;
+						}
+						if (result == null) {
+							textview_status.setText(getString(R.string.unable_to_read_file, message));
+							return;
+						}
+						rules = result;
+						ruleHits = ruleHitsLoaded;
+						ruleNanos = ruleNanosLoaded;
+						aclLookups = aclLookupsLoaded;
+						setEditable(true);
+						changed(false);
+					}
+				});
+			}
+		}).start();
+	}
+
+	/**
+	 * Read the counters the service keeps for acl.txt into
+	 * ruleHitsLoaded and friends, unless there are none or they were made
+	 * for another version of the file. Runs on the opening thread.
+	 */
+	private void loadAclCounters() {
+		AclCounters counters = AclCounters.open(getCacheDir());
+		if (counters == null)
+		  return;
+		AclTable table;
+		try {
+			table = AclTable.compile(new File(getCacheDir(), "acl.txt"), new File(getCacheDir(), AclTable.FILE_NAME));
+		} catch (IOException e) {
+			return;
+		}
+		if (!counters.isFor(table))
+		  return;
+
+		// Patterns are the only rules with a cost of their own
+		long sampled = counters.getSampled();
+		long[] patternNanos = new long[counters.getPatternCount()];
+		counters.readPatternNanos(patternNanos);
+		long[] hits = new long[counters.getRuleSlots()];
+		long[] nanos = new long[hits.length];
+		counters.readHits(hits);
+		Arrays.fill(nanos, -1);
+		for (int i = 0; i < patternNanos.length && sampled > 0; i++)
+		  nanos[table.getPatternRule(i)] = patternNanos[i] / sampled;
+		ruleHitsLoaded = hits;
+		ruleNanosLoaded = nanos;
+		aclLookupsLoaded = counters.getLookups();
+	}
+
+	@Override
+	protected void onDestroy() {
+		// A running save still reads the file, it closes it when done
+		if (rules != null && !saving)
+		  rules.close();
+		super.onDestroy();
+	}
+
+	/* Back key before API 33, or when back callbacks are not enabled */
+	@Override
+	public boolean onKeyDown(int keyCode, KeyEvent event) {
+		if (keyCode == KeyEvent.KEYCODE_BACK && event.getRepeatCount() == 0) {
+			leave();
+			return true;
+		}
+		return super.onKeyDown(keyCode, event);
+	}
+
+	/**
+	 * Finish, asking first if there are unsaved edits. Ignored while a
+	 * save is running.
+	 */
+	private void leave() {
+		if (saving)
+		  return;
+		if (rules == null || !rules.isModified()) {
+			finish();
+			return;
+		}
+		new AlertDialog.Builder(this)
+			.setMessage(R.string.rule_editor_discard)
+			.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					finish();
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
+	}
+
+	@Override
+	public void onClick(View view) {
+		if (view == button_next) {
+			findNext(1);
+		} else if (view == button_prev) {
+			findNext(-1);
+		} else if (view == button_add) {
+			insertLine(rules.size());
+		} else if (view == button_clear) {
+			lineDialog = new AlertDialog.Builder(this)
+				.setMessage(R.string.rule_editor_clear_confirm)
+				.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						if (saving)
+						  return;
+						rules.clear();
+						changed(true);
+					}
+				})
+				.setNegativeButton(android.R.string.cancel, null)
+				.show();
+		} else if (view == button_save) {
+			save();
+		}
+	}
+
+	/**
+	 * Write the file on a worker thread. The list keeps reading rules
+	 * meanwhile, edits wait until the saved file is adopted; an open edit
+	 * dialog is dismissed, as its lines may already be written. A running
+	 * search reads the open file, which the save replaces, so it has to
+	 * finish first.
+	 */
+	private void save() {
+		if (rules == null || saving || searching)
+		  return;
+		saving = true;
+		if (lineDialog != null && lineDialog.isShowing())
+		  lineDialog.dismiss();
+		lineDialog = null;
+		setEditable(false);
+		textview_status.setText(R.string.rule_editor_saving);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				RuleFile written = null;
+				String error = null;
+				try {
+					written = rules.saveCopy();
+				} catch (IOException e) {
+					error = e.getMessage();
+				}
+				final RuleFile saved = written;
+				final String message = error;
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						saving = false;
+						if (isDestroyed()) {
+							rules.close();
+							if (saved != null)
+							  saved.close();
+							return;
+						}
+						setEditable(true);
+						if (saved == null) {
+							updateStatus();
+							Toast.makeText(RuleEditorActivity.this, getString(R.string.save_failed, message),
+							               Toast.LENGTH_SHORT).show();
+							return;
+						}
+						rules.adopt(saved);
+						changed(true);
+						Toast.makeText(RuleEditorActivity.this, getString(R.string.saved_successfully),
+						               Toast.LENGTH_SHORT).show();
+					}
+				});
+			}
+		}).start();
+	}
+
+	private void editLine(final int position) {
+		final EditText input = newLineInput(rules.get(position));
+		lineDialog = new AlertDialog.Builder(this)
+			.setTitle(getString(R.string.rule_editor_edit_title, position + 1))
+			.setView(input)
+			.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					if (saving)
+					  return;
+					String text = input.getText().toString();
+					if (!text.equals(rules.get(position))) {
+						rules.set(position, text);
+						changed(true);
+					}
+				}
+			})
+			.setNeutralButton(R.string.rule_editor_delete, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					if (saving)
+					  return;
+					rules.remove(position);
+					changed(true);
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
+	}
+
+	private void insertLine(final int position) {
+		final EditText input = newLineInput("");
+		lineDialog = new AlertDialog.Builder(this)
+			.setTitle(getString(R.string.rule_editor_insert_title, position + 1))
+			.setView(input)
+			.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					if (saving)
+					  return;
+					rules.insert(position, input.getText().toString());
+					changed(true);
+					listview_rules.setSelection(position);
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
+	}
+
+	private EditText newLineInput(String text) {
+		EditText input = new EditText(this);
+		input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+		input.setSingleLine(true);
+		input.setText(text);
+		input.setSelection(text.length());
+		return input;
+	}
+
+	/**
+	 * Jump to the next (direction 1) or previous (-1) line matching the
+	 * search box. A new query is searched on a worker thread over a
+	 * snapshot; stepping through the hits after that is instant.
+	 */
+	private void findNext(final int direction) {
+		final String query = edittext_search.getText().toString().trim();
+		if (rules == null || searching || saving || query.isEmpty())
+		  return;
+		if (query.equals(searchQuery) && searchHits != null) {
+			stepHits(direction);
+			return;
+		}
+
+		searching = true;
+		textview_status.setText(R.string.rule_editor_searching);
+		final RuleFile snapshot = rules.snapshot();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final int[] hits = snapshot.search(query);
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						searching = false;
+						searchQuery = query;
+						searchHits = hits;
+						searchIndex = -1;
+						if (hits.length == 0) {
+							updateStatus();
+							return;
+						}
+						// Start from the first hit below the top of the list
+						int top = listview_rules.getFirstVisiblePosition();
+						searchIndex = direction > 0 ? hits.length - 1 : 0;
+						for (int i = 0; i < hits.length; i++) {
+							if (hits[i] >= top) {
+								searchIndex = direction > 0 ? i - 1 : i;
+								break;
+							}
+						}
+						stepHits(direction);
+					}
+				});
+			}
+		}).start();
+	}
+
+	private void stepHits(int direction) {
+		if (searchHits.length == 0) {
+			updateStatus();
+			return;
+		}
+		searchIndex = (searchIndex + direction + searchHits.length) % searchHits.length;
+		listview_rules.setSelection(searchHits[searchIndex]);
+		adapter.notifyDataSetChanged();
+		updateStatus();
+	}
+
+	private void changed(boolean edited) {
+		if (edited) {
+			ruleHits = null;
+			ruleNanos = null;
+			searchQuery = null;
+			searchHits = null;
+			searchIndex = -1;
+		}
+		adapter.notifyDataSetChanged();
+		updateStatus();
+	}
+
+	private void updateStatus() {
+		StringBuilder sb = new StringBuilder(getString(R.string.rule_editor_lines, rules.size()));
+		if (searchHits != null) {
+			sb.append(" · ");
+			if (searchHits.length == 0)
+			  sb.append(getString(R.string.rule_editor_no_match));
+			else
+			  sb.append(getString(R.string.rule_editor_matches, searchIndex + 1, searchHits.length));
+		}
+		if (ruleHits != null)
+		  sb.append(" · ").append(getString(R.string.rule_editor_lookups, aclLookups));
+		if (rules.isModified())
+		  sb.append(" · ").append(getString(R.string.rule_editor_modified));
+		textview_status.setText(sb.toString());
+	}
+
+	private void setEditable(boolean editable) {
+		button_prev.setEnabled(editable);
+		button_next.setEnabled(editable);
+		button_add.setEnabled(editable);
+		button_clear.setEnabled(editable);
+		button_save.setEnabled(editable);
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ ============================================================================
+ Name        : RuleFile.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Paged Rule File With Pending Edits
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A line-oriented rule file (chnroutes.txt, acl.txt) opened without
+ * reading it into memory.
+ *
+ * Opening scans the file once for line offsets; lines are decoded a
+ * page at a time on demand and a few recent pages are cached. Edits are
+ * kept as a piece list over the original lines (runs of unchanged lines
+ * and single new lines), so an edit costs O(edits), not O(lines), and
+ * save() copies unchanged runs from the old file with transferTo.
+ *
+ * The file stays open from indexing until the next save or close(), so
+ * lines are always read from the version the offsets describe, even
+ * after it has been replaced on disk.
+ *
+ * Not thread-safe; long reads such as search() go through a snapshot()
+ * on a worker thread, and save() can be split into saveCopy() on a
+ * worker and adopt() on the editing thread.
+ */
+public class RuleFile {
+	private static final int PAGE_LINES = 256;
+	private static final int CACHED_PAGES = 16;
+	private static final int SCAN_BUFFER = 64 * 1024;
+
+	private static class Piece {
+		final int first;
+		final int count;
+		final String text;
+
+		/* Unchanged lines [first, first + count) of the file */
+		Piece(int first, int count) {
+			this.first = first;
+			this.count = count;
+			this.text = null;
+		}
+
+		/* One new or edited line */
+		Piece(String text) {
+			this.first = -1;
+			this.count = 1;
+			this.text = text;
+		}
+	}
+
+	private final File file;
+	/* The indexed version of file, null if it was missing */
+	private RandomAccessFile source;
+	/* Start of each line in the file, plus the end of the file */
+	private long[] offsets;
+	private int lineCount;
+	private final ArrayList<Piece> pieces = new ArrayList<Piece>();
+	/* Position of the first line of each piece, plus size() */
+	private int[] starts = new int[] { 0 };
+	private boolean modified = false;
+
+	private final LinkedHashMap<Integer, String[]> pages =
+		new LinkedHashMap<Integer, String[]>(CACHED_PAGES, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+				return size() > CACHED_PAGES;
+			}
+		};
+
+	private RuleFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Index the lines of file. A missing file opens empty.
+	 */
+	public static RuleFile open(File file) throws IOException {
+		RuleFile rules = new RuleFile(file);
+		rules.index();
+		return rules;
+	}
+
+	private void index() throws IOException {
+		long[] found = new long[1024];
+		int n = 0;
+		long length = 0;
+		if (file.exists()) {
+			source = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = source.getChannel();
+				ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER);
+				boolean lineStart = true;
+				long pos = 0;
+				while (channel.read(buf) > 0) {
+					buf.flip();
+					int limit = buf.limit();
+					for (int i = 0; i < limit; i++) {
+						if (lineStart) {
+							if (n == found.length)
+							  found = Arrays.copyOf(found, n * 2);
+							found[n++] = pos + i;
+							lineStart = false;
+						}
+						if (buf.get(i) == '\n')
+						  lineStart = true;
+					}
+					pos += limit;
+					buf.clear();
+				}
+				length = pos;
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		offsets = Arrays.copyOf(found, n + 1);
+		offsets[n] = length;
+		lineCount = n;
+		pages.clear();
+		pieces.clear();
+		if (n > 0)
+		  pieces.add(new Piece(0, n));
+		updateStarts();
+		modified = false;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Release the file. Snapshots taken from this one can't be read
+	 * after this either.
+	 */
+	public void close() {
+		try {
+			if (source != null)
+			  source.close();
+		} catch (IOException e) {
+		}
+		source = null;
+	}
+
+	public int size() {
+		return starts[pieces.size()];
+	}
+
+	public boolean isModified() {
+		return modified;
+	}
+
+	public String get(int position) {
+		int index = pieceAt(position);
+		Piece p = pieces.get(index);
+		if (p.text != null)
+		  return p.text;
+		return readLine(p.first + position - starts[index]);
+	}
+
+	public void set(int position, String text) {
+		int index = split(position);
+		split(position + 1);
+		pieces.set(index, new Piece(text));
+		edited();
+	}
+
+	/**
+	 * Insert text so that it becomes line position.
+	 */
+	public void insert(int position, String text) {
+		pieces.add(split(position), new Piece(text));
+		edited();
+	}
+
+	public void remove(int position) {
+		int index = split(position);
+		split(position + 1);
+		pieces.remove(index);
+		edited();
+	}
+
+	public void clear() {
+		pieces.clear();
+		edited();
+	}
+
+	/**
+	 * Copy of the current lines that shares the index and the open file
+	 * but has its own page cache, so it can be read on another thread
+	 * while this one is edited. It is valid until this one is saved or
+	 * closed.
+	 */
+	public RuleFile snapshot() {
+		RuleFile copy = new RuleFile(file);
+		copy.source = source;
+		copy.offsets = offsets;
+		copy.lineCount = lineCount;
+		copy.pieces.addAll(pieces);
+		copy.updateStarts();
+		copy.modified = modified;
+		return copy;
+	}
+
+	/**
+	 * Positions of lines containing query, ignoring case, in order.
+	 */
+	public int[] search(String query) {
+		String needle = query.toLowerCase(Locale.ROOT);
+		int[] hits = new int[64];
+		int n = 0;
+		int size = size();
+		for (int i = 0; i < size; i++) {
+			if (get(i).toLowerCase(Locale.ROOT).contains(needle)) {
+				if (n == hits.length)
+				  hits = Arrays.copyOf(hits, n * 2);
+				hits[n++] = i;
+			}
+		}
+		return Arrays.copyOf(hits, n);
+	}
+
+	/**
+	 * Write the edited file through a temporary file and a rename.
+	 * Unchanged runs of lines are copied from the old file without being
+	 * decoded, and the line index is updated from what was written
+	 * instead of scanning the new file.
+	 */
+	public void save() throws IOException {
+		adopt(saveCopy());
+	}
+
+	/**
+	 * The writing half of save(). Only reads this file, so it may run on
+	 * a worker thread while the editing thread reads, but doesn't edit,
+	 * this one or its snapshots.
+	 * @return the saved file, unmodified, to pass to adopt()
+	 */
+	public RuleFile saveCopy() throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		long[] newOffsets = new long[size() + 1];
+		int line = 0;
+		long pos = 0;
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel dst = out.getChannel();
+			for (Piece p : pieces) {
+				if (p.text != null) {
+					newOffsets[line++] = pos;
+					byte[] bytes = (p.text + "\n").getBytes(StandardCharsets.UTF_8);
+					writeFully(dst, ByteBuffer.wrap(bytes), pos);
+					pos += bytes.length;
+					continue;
+				}
+
+				long from = offsets[p.first];
+				long to = offsets[p.first + p.count];
+				for (int i = p.first; i < p.first + p.count; i++)
+				  newOffsets[line++] = pos + offsets[i] - from;
+				dst.position(pos);
+				long copied = 0;
+				while (copied < to - from)
+				  copied += source.getChannel().transferTo(from + copied, to - from - copied, dst);
+				pos += to - from;
+				// The old last line may lack its newline
+				if (p.first + p.count == lineCount && !endsWithNewline()) {
+					writeFully(dst, ByteBuffer.wrap(new byte[] { '\n' }), pos);
+					pos++;
+				}
+			}
+			out.getFD().sync();
+			if (!tmp.renameTo(file))
+			  throw new IOException("rename " + tmp + " failed");
+		} catch (IOException e) {
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+
+		newOffsets[line] = pos;
+		RuleFile saved = new RuleFile(file);
+		saved.source = out;
+		saved.offsets = newOffsets;
+		saved.lineCount = line;
+		if (line > 0)
+		  saved.pieces.add(new Piece(0, line));
+		saved.updateStarts();
+		return saved;
+	}
+
+	/**
+	 * The second half of save(): take over the index and open file of
+	 * saved, from saveCopy() of this file, and drop the edits. Snapshots
+	 * taken before are no longer readable.
+	 */
+	public void adopt(RuleFile saved) {
+		close();
+		source = saved.source;
+		offsets = saved.offsets;
+		lineCount = saved.lineCount;
+		pages.clear();
+		pieces.clear();
+		pieces.addAll(saved.pieces);
+		updateStarts();
+		modified = false;
+	}
+
+	private static void writeFully(FileChannel dst, ByteBuffer src, long pos) throws IOException {
+		while (src.hasRemaining())
+		  pos += dst.write(src, pos);
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		long length = offsets[lineCount];
+		if (length == 0)
+		  return true;
+		ByteBuffer last = ByteBuffer.allocate(1);
+		readFully(last, length - 1);
+		return last.get(0) == '\n';
+	}
+
+	private String readLine(int line) {
+		int page = line / PAGE_LINES;
+		String[] lines = pages.get(page);
+		if (lines == null) {
+			try {
+				lines = readPage(page);
+			} catch (IOException e) {
+				return "";
+			}
+			pages.put(page, lines);
+		}
+		return lines[line - page * PAGE_LINES];
+	}
+
+	private String[] readPage(int page) throws IOException {
+		int first = page * PAGE_LINES;
+		int count = Math.min(PAGE_LINES, lineCount - first);
+		byte[] bytes = new byte[(int) (offsets[first + count] - offsets[first])];
+		readFully(ByteBuffer.wrap(bytes), offsets[first]);
+
+		String[] lines = new String[count];
+		long base = offsets[first];
+		for (int i = 0; i < count; i++) {
+			int start = (int) (offsets[first + i] - base);
+			int end = (int) (offsets[first + i + 1] - base);
+			if (end > start && bytes[end - 1] == '\n')
+			  end--;
+			if (end > start && bytes[end - 1] == '\r')
+			  end--;
+			lines[i] = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+		}
+		return lines;
+	}
+
+	/**
+	 * Positional read from the open file; safe on several threads at once.
+	 */
+	private void readFully(ByteBuffer dst, long pos) throws IOException {
+		if (source == null)
+		  throw new IOException("file is closed");
+		FileChannel channel = source.getChannel();
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, pos);
+			if (n < 0)
+			  throw new EOFException();
+			pos += n;
+		}
+	}
+
+	/**
+	 * Make position the first line of a piece.
+	 * @return index of that piece, or the piece count at the end
+	 */
+	private int split(int position) {
+		if (position >= size())
+		  return pieces.size();
+		int index = pieceAt(position);
+		int offset = position - starts[index];
+		if (offset == 0)
+		  return index;
+
+		Piece p = pieces.get(index);
+		pieces.set(index, new Piece(p.first, offset));
+		pieces.add(index + 1, new Piece(p.first + offset, p.count - offset));
+		updateStarts();
+		return index + 1;
+	}
+
+	private int pieceAt(int position) {
+		if (position < 0 || position >= size())
+		  throw new IndexOutOfBoundsException("line " + position + " of " + size());
+		int index = Arrays.binarySearch(starts, 0, pieces.size(), position);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	private void edited() {
+		updateStarts();
+		modified = true;
+	}
+
+	private void updateStarts() {
+		if (starts.length < pieces.size() + 1)
+		  starts = new int[pieces.size() * 2 + 1];
+		int position = 0;
+		for (int i = 0; i < pieces.size(); i++) {
+			starts[i] = position;
+			position += pieces.get(i).count;
+		}
+		starts[pieces.size()] = position;
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ ============================================================================
+ Name        : Settings.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Immutable Settings Snapshot
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Every setting the tunnel start path reads, taken at once from
+ * Preferences.snapshot() and fully parsed (list settings included).
+ *
+ * The builder setup, config generation, validation and notification of
+ * one start all read the same snapshot, so a save landing in the middle
+ * of a start can't mix old and new values.
+ */
+public final class Settings {
+	private final String socksAddress;
+	private final String socksUdpAddress;
+	private final int socksPort;
+	private final String socksUsername;
+	private final String socksPassword;
+	private final String dnsIpv4;
+	private final String dnsIpv6;
+	private final String mappedDns;
+	private final String mapdnsAddress;
+	private final String mapdnsAddress6;
+	private final int mapdnsPort;
+	private final String mapdnsNetwork;
+	private final String mapdnsNetmask;
+	private final String mapdnsNetwork6;
+	private final int mapdnsPrefixlen;
+	private final int mapdnsCacheSize;
+	private final boolean udpInTcp;
+	private final boolean remoteDns;
+	private final boolean ipv4;
+	private final boolean ipv6;
+	private final boolean global;
+	private final Set<String> apps;
+	private final List<AppPolicy> appPolicies;
+	private final int tunnelMtu;
+	private final String tunnelName;
+	private final boolean tunnelMultiQueue;
+	private final String tunnelIpv4;
+	private final String tunnelIpv6;
+	private final String tunnelPostUpScript;
+	private final String tunnelPreDownScript;
+	private final String tunnelIpv4Address;
+	private final int tunnelIpv4Prefix;
+	private final String tunnelIpv6Address;
+	private final int tunnelIpv6Prefix;
+	private final int taskStackSize;
+	private final String logLevel;
+	private final int tcpBufferSize;
+	private final int udpRecvBufferSize;
+	private final int udpCopyBufferNums;
+	private final int connectTimeout;
+	private final int tcpReadWriteTimeout;
+	private final int udpReadWriteTimeout;
+	private final int socksUdpPort;
+	private final String socksUdpUsername;
+	private final String socksUdpPassword;
+	private final int maxSessionCount;
+	private final String pidFile;
+	private final int limitNofile;
+	private final boolean chnroutesEnabled;
+	private final boolean aclEnabled;
+	private final boolean dnsSplitTunnelEnabled;
+	private final List<String> dnsForeignServersList;
+	private final String dnsVirtualIp4;
+	private final String dnsVirtualIp6;
+	private final String dnsTargetIp4;
+	private final String dnsTargetIp6;
+	private final boolean dnsForwarderEnabled;
+	private final boolean dnsLatencyOptimizeEnabled;
+	private final int dnsLatencyOptimizeTimeout;
+	private final boolean smartProxyEnabled;
+	private final int smartProxyTimeout;
+	private final int smartProxyBlockedIpExpiry;
+	private final List<Integer> smartProxyProbePortsList;
+	private final boolean bypassLan;
+	private final int metricsPort;
+	private final boolean kernelBypass;
+	private final int kernelBypassLevel;
+	private final int kernelBypassBudget;
+
+	Settings(Preferences prefs) {
+		socksAddress = prefs.getSocksAddress();
+		socksUdpAddress = prefs.getSocksUdpAddress();
+		socksPort = prefs.getSocksPort();
+		socksUsername = prefs.getSocksUsername();
+		socksPassword = prefs.getSocksPassword();
+		dnsIpv4 = prefs.getDnsIpv4();
+		dnsIpv6 = prefs.getDnsIpv6();
+		mappedDns = prefs.getMappedDns();
+		mapdnsAddress = prefs.getMapdnsAddress();
+		mapdnsAddress6 = prefs.getMapdnsAddress6();
+		mapdnsPort = prefs.getMapdnsPort();
+		mapdnsNetwork = prefs.getMapdnsNetwork();
+		mapdnsNetmask = prefs.getMapdnsNetmask();
+		mapdnsNetwork6 = prefs.getMapdnsNetwork6();
+		mapdnsPrefixlen = prefs.getMapdnsPrefixlen();
+		mapdnsCacheSize = prefs.getMapdnsCacheSize();
+		udpInTcp = prefs.getUdpInTcp();
+		remoteDns = prefs.getRemoteDns();
+		ipv4 = prefs.getIpv4();
+		ipv6 = prefs.getIpv6();
+		global = prefs.getGlobal();
+		apps = Collections.unmodifiableSet(new HashSet<String>(prefs.getApps()));
+		appPolicies = Collections.unmodifiableList(prefs.getAppPolicies());
+		tunnelMtu = prefs.getTunnelMtu();
+		tunnelName = prefs.getTunnelName();
+		tunnelMultiQueue = prefs.getTunnelMultiQueue();
+		tunnelIpv4 = prefs.getTunnelIpv4();
+		tunnelIpv6 = prefs.getTunnelIpv6();
+		tunnelPostUpScript = prefs.getTunnelPostUpScript();
+		tunnelPreDownScript = prefs.getTunnelPreDownScript();
+		tunnelIpv4Address = prefs.getTunnelIpv4Address();
+		tunnelIpv4Prefix = prefs.getTunnelIpv4Prefix();
+		tunnelIpv6Address = prefs.getTunnelIpv6Address();
+		tunnelIpv6Prefix = prefs.getTunnelIpv6Prefix();
+		taskStackSize = prefs.getTaskStackSize();
+		logLevel = prefs.getLogLevel();
+		tcpBufferSize = prefs.getTcpBufferSize();
+		udpRecvBufferSize = prefs.getUdpRecvBufferSize();
+		udpCopyBufferNums = prefs.getUdpCopyBufferNums();
+		connectTimeout = prefs.getConnectTimeout();
+		tcpReadWriteTimeout = prefs.getTcpReadWriteTimeout();
+		udpReadWriteTimeout = prefs.getUdpReadWriteTimeout();
+		socksUdpPort = prefs.getSocksUdpPort();
+		socksUdpUsername = prefs.getSocksUdpUsername();
+		socksUdpPassword = prefs.getSocksUdpPassword();
+		maxSessionCount = prefs.getMaxSessionCount();
+		pidFile = prefs.getPidFile();
+		limitNofile = prefs.getLimitNofile();
+		chnroutesEnabled = prefs.getChnroutesEnabled();
+		aclEnabled = prefs.getAclEnabled();
+		dnsSplitTunnelEnabled = prefs.getDnsSplitTunnelEnabled();
+		dnsForeignServersList = Collections.unmodifiableList(new ArrayList<String>(prefs.getDnsForeignServersList()));
+		dnsVirtualIp4 = prefs.getDnsVirtualIp4();
+		dnsVirtualIp6 = prefs.getDnsVirtualIp6();
+		dnsTargetIp4 = prefs.getDnsTargetIp4();
+		dnsTargetIp6 = prefs.getDnsTargetIp6();
+		dnsForwarderEnabled = prefs.getDnsForwarderEnabled();
+		dnsLatencyOptimizeEnabled = prefs.getDnsLatencyOptimizeEnabled();
+		dnsLatencyOptimizeTimeout = prefs.getDnsLatencyOptimizeTimeout();
+		smartProxyEnabled = prefs.getSmartProxyEnabled();
+		smartProxyTimeout = prefs.getSmartProxyTimeout();
+		smartProxyBlockedIpExpiry = prefs.getSmartProxyBlockedIpExpiry();
+		smartProxyProbePortsList = Collections.unmodifiableList(new ArrayList<Integer>(prefs.getSmartProxyProbePortsList()));
+		bypassLan = prefs.getBypassLan();
+		metricsPort = prefs.getMetricsPort();
+		kernelBypass = prefs.getKernelBypass();
+		kernelBypassLevel = prefs.getKernelBypassLevel();
+		kernelBypassBudget = prefs.getKernelBypassBudget();
+	}
+
+	public String getSocksAddress() {
+		return socksAddress;
+	}
+
+	public String getSocksUdpAddress() {
+		return socksUdpAddress;
+	}
+
+	public int getSocksPort() {
+		return socksPort;
+	}
+
+	public String getSocksUsername() {
+		return socksUsername;
+	}
+
+	public String getSocksPassword() {
+		return socksPassword;
+	}
+
+	public String getDnsIpv4() {
+		return dnsIpv4;
+	}
+
+	public String getDnsIpv6() {
+		return dnsIpv6;
+	}
+
+	public String getMappedDns() {
+		return mappedDns;
+	}
+
+	public String getMapdnsAddress() {
+		return mapdnsAddress;
+	}
+
+	public String getMapdnsAddress6() {
+		return mapdnsAddress6;
+	}
+
+	public int getMapdnsPort() {
+		return mapdnsPort;
+	}
+
+	public String getMapdnsNetwork() {
+		return mapdnsNetwork;
+	}
+
+	public String getMapdnsNetmask() {
+		return mapdnsNetmask;
+	}
+
+	public String getMapdnsNetwork6() {
+		return mapdnsNetwork6;
+	}
+
+	public int getMapdnsPrefixlen() {
+		return mapdnsPrefixlen;
+	}
+
+	public int getMapdnsCacheSize() {
+		return mapdnsCacheSize;
+	}
+
+	public boolean getUdpInTcp() {
+		return udpInTcp;
+	}
+
+	public boolean getRemoteDns() {
+		return remoteDns;
+	}
+
+	public boolean getIpv4() {
+		return ipv4;
+	}
+
+	public boolean getIpv6() {
+		return ipv6;
+	}
+
+	public boolean getGlobal() {
+		return global;
+	}
+
+	public Set<String> getApps() {
+		return apps;
+	}
+
+	public List<AppPolicy> getAppPolicies() {
+		return appPolicies;
+	}
+
+	public int getTunnelMtu() {
+		return tunnelMtu;
+	}
+
+	public String getTunnelName() {
+		return tunnelName;
+	}
+
+	public boolean getTunnelMultiQueue() {
+		return tunnelMultiQueue;
+	}
+
+	public String getTunnelIpv4() {
+		return tunnelIpv4;
+	}
+
+	public String getTunnelIpv6() {
+		return tunnelIpv6;
+	}
+
+	public String getTunnelPostUpScript() {
+		return tunnelPostUpScript;
+	}
+
+	public String getTunnelPreDownScript() {
+		return tunnelPreDownScript;
+	}
+
+	public String getTunnelIpv4Address() {
+		return tunnelIpv4Address;
+	}
+
+	public int getTunnelIpv4Prefix() {
+		return tunnelIpv4Prefix;
+	}
+
+	public String getTunnelIpv6Address() {
+		return tunnelIpv6Address;
+	}
+
+	public int getTunnelIpv6Prefix() {
+		return tunnelIpv6Prefix;
+	}
+
+	public int getTaskStackSize() {
+		return taskStackSize;
+	}
+
+	public String getLogLevel() {
+		return logLevel;
+	}
+
+	public int getTcpBufferSize() {
+		return tcpBufferSize;
+	}
+
+	public int getUdpRecvBufferSize() {
+		return udpRecvBufferSize;
+	}
+
+	public int getUdpCopyBufferNums() {
+		return udpCopyBufferNums;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getTcpReadWriteTimeout() {
+		return tcpReadWriteTimeout;
+	}
+
+	public int getUdpReadWriteTimeout() {
+		return udpReadWriteTimeout;
+	}
+
+	public int getSocksUdpPort() {
+		return socksUdpPort;
+	}
+
+	public String getSocksUdpUsername() {
+		return socksUdpUsername;
+	}
+
+	public String getSocksUdpPassword() {
+		return socksUdpPassword;
+	}
+
+	public int getMaxSessionCount() {
+		return maxSessionCount;
+	}
+
+	public String getPidFile() {
+		return pidFile;
+	}
+
+	public int getLimitNofile() {
+		return limitNofile;
+	}
+
+	public boolean getChnroutesEnabled() {
+		return chnroutesEnabled;
+	}
+
+	public boolean getAclEnabled() {
+		return aclEnabled;
+	}
+
+	public boolean getDnsSplitTunnelEnabled() {
+		return dnsSplitTunnelEnabled;
+	}
+
+	public List<String> getDnsForeignServersList() {
+		return dnsForeignServersList;
+	}
+
+	public String getDnsVirtualIp4() {
+		return dnsVirtualIp4;
+	}
+
+	public String getDnsVirtualIp6() {
+		return dnsVirtualIp6;
+	}
+
+	public String getDnsTargetIp4() {
+		return dnsTargetIp4;
+	}
+
+	public String getDnsTargetIp6() {
+		return dnsTargetIp6;
+	}
+
+	public boolean getDnsForwarderEnabled() {
+		return dnsForwarderEnabled;
+	}
+
+	public boolean getDnsLatencyOptimizeEnabled() {
+		return dnsLatencyOptimizeEnabled;
+	}
+
+	public int getDnsLatencyOptimizeTimeout() {
+		return dnsLatencyOptimizeTimeout;
+	}
+
+	public boolean getSmartProxyEnabled() {
+		return smartProxyEnabled;
+	}
+
+	public int getSmartProxyTimeout() {
+		return smartProxyTimeout;
+	}
+
+	public int getSmartProxyBlockedIpExpiry() {
+		return smartProxyBlockedIpExpiry;
+	}
+
+	public List<Integer> getSmartProxyProbePortsList() {
+		return smartProxyProbePortsList;
+	}
+
+	public boolean getBypassLan() {
+		return bypassLan;
+	}
+
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	public boolean getKernelBypass() {
+		return kernelBypass;
+	}
+
+	public int getKernelBypassLevel() {
+		return kernelBypassLevel;
+	}
+
+	public int getKernelBypassBudget() {
+		return kernelBypassBudget;
+	}
+}
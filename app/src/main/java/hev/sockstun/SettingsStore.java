@@ -0,0 +1,804 @@
+/*
+ ============================================================================
+ Name        : SettingsStore.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Memory-mapped Settings Store
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Typed settings shared by the UI and :native processes through one
+ * memory-mapped file, exposed as SharedPreferences so Preferences keeps
+ * its getters and setters.
+ *
+ * Layout (native byte order):
+ *   0  u32 magic
+ *   4  u32 version
+ *   8  u64 generation (odd while a commit is being written)
+ *  16  u32 record count
+ *  20  u32 file size
+ *  24  u64 reserved
+ *  32  records[], in SCHEMA order:
+ *        u32 sequence (odd while the record is being written)
+ *        u32 key hash (String.hashCode of the key)
+ *        u16 type
+ *        u16 flags (FLAG_SET once a value was stored)
+ *        u32 capacity
+ *        u32 length
+ *        payload[capacity]
+ *
+ * Every record is a seqlock of its own, so readers never block and never
+ * parse more than the value they ask for; the generation is a seqlock
+ * over the whole store, which getAll() uses for a consistent copy.
+ * Writers of both processes are serialized with a file lock. Records are self-describing, so a file of
+ * another version is migrated by key hash; the legacy XML preferences
+ * are imported once when no file exists.
+ *
+ * Commits that change something broadcast ACTION_CHANGED with the
+ * changed keys; registered OnSharedPreferenceChangeListeners are called
+ * from it in every process.
+ */
+public class SettingsStore implements SharedPreferences {
+	public static final String FILE_NAME = "settings.shm";
+	public static final String ACTION_CHANGED = "hev.sockstun.SETTINGS_CHANGED";
+	public static final String EXTRA_KEYS = "keys";
+
+	public static final int MAGIC = 0x53455453;
+	public static final int VERSION = 2;
+
+	public static final int TYPE_BOOLEAN = 1;
+	public static final int TYPE_INT = 2;
+	public static final int TYPE_STRING = 3;
+	public static final int TYPE_STRING_SET = 4;
+
+	private static final String TAG = "SettingsStore";
+
+	private static final int FLAG_SET = 1;
+
+	private static final int OFF_MAGIC = 0;
+	private static final int OFF_VERSION = 4;
+	private static final int OFF_GENERATION = 8;
+	private static final int OFF_RECORD_COUNT = 16;
+	private static final int OFF_SIZE = 20;
+	private static final int HEADER_SIZE = 32;
+
+	private static final int REC_SEQUENCE = 0;
+	private static final int REC_KEY_HASH = 4;
+	private static final int REC_TYPE = 8;
+	private static final int REC_FLAGS = 10;
+	private static final int REC_CAPACITY = 12;
+	private static final int REC_LENGTH = 16;
+	private static final int REC_HEADER_SIZE = 20;
+
+	private static final int MAX_READ_RETRIES = 64;
+
+	/*
+	 * Record sizes, large enough for any value a user can reasonably
+	 * enter (paths, scripts, long server lists); StoreEditor rejects
+	 * anything longer instead of truncating it.
+	 */
+	private static final int STRING = 1024;
+	private static final int SCRIPT = 16384;
+	private static final int LIST = 16384;
+	private static final int APPS = 65536;
+
+	/*
+	 * Append new keys at the end and bump VERSION; values of existing
+	 * keys are carried over by key hash.
+	 */
+	private static final Field[] SCHEMA = {
+		new Field(Preferences.SOCKS_ADDR, TYPE_STRING, STRING),
+		new Field(Preferences.SOCKS_UDP_ADDR, TYPE_STRING, STRING),
+		new Field(Preferences.SOCKS_UDP_PORT, TYPE_INT, 4),
+		new Field(Preferences.SOCKS_UDP_USER, TYPE_STRING, STRING),
+		new Field(Preferences.SOCKS_UDP_PASS, TYPE_STRING, STRING),
+		new Field(Preferences.SOCKS_PORT, TYPE_INT, 4),
+		new Field(Preferences.SOCKS_USER, TYPE_STRING, STRING),
+		new Field(Preferences.SOCKS_PASS, TYPE_STRING, STRING),
+		new Field(Preferences.DNS_IPV4, TYPE_STRING, STRING),
+		new Field(Preferences.DNS_IPV6, TYPE_STRING, STRING),
+		new Field(Preferences.MAPDNS_ADDRESS, TYPE_STRING, STRING),
+		new Field(Preferences.MAPDNS_ADDRESS6, TYPE_STRING, STRING),
+		new Field(Preferences.MAPDNS_PORT, TYPE_INT, 4),
+		new Field(Preferences.MAPDNS_NETWORK, TYPE_STRING, STRING),
+		new Field(Preferences.MAPDNS_NETMASK, TYPE_STRING, STRING),
+		new Field(Preferences.MAPDNS_NETWORK6, TYPE_STRING, STRING),
+		new Field(Preferences.MAPDNS_PREFIXLEN, TYPE_INT, 4),
+		new Field(Preferences.MAPDNS_CACHE_SIZE, TYPE_INT, 4),
+		new Field(Preferences.IPV4, TYPE_BOOLEAN, 4),
+		new Field(Preferences.IPV6, TYPE_BOOLEAN, 4),
+		new Field(Preferences.GLOBAL, TYPE_BOOLEAN, 4),
+		new Field(Preferences.UDP_IN_TCP, TYPE_BOOLEAN, 4),
+		new Field(Preferences.REMOTE_DNS, TYPE_BOOLEAN, 4),
+		new Field(Preferences.APPS, TYPE_STRING_SET, APPS),
+		new Field(Preferences.ENABLE, TYPE_BOOLEAN, 4),
+		new Field(Preferences.TASK_STACK_SIZE, TYPE_INT, 4),
+		new Field(Preferences.LOG_LEVEL, TYPE_STRING, STRING),
+		new Field(Preferences.TCP_BUFFER_SIZE, TYPE_INT, 4),
+		new Field(Preferences.UDP_RECV_BUFFER_SIZE, TYPE_INT, 4),
+		new Field(Preferences.UDP_COPY_BUFFER_NUMS, TYPE_INT, 4),
+		new Field(Preferences.CONNECT_TIMEOUT, TYPE_INT, 4),
+		new Field(Preferences.TCP_READ_WRITE_TIMEOUT, TYPE_INT, 4),
+		new Field(Preferences.UDP_READ_WRITE_TIMEOUT, TYPE_INT, 4),
+		new Field(Preferences.MAX_SESSION_COUNT, TYPE_INT, 4),
+		new Field(Preferences.PID_FILE, TYPE_STRING, STRING),
+		new Field(Preferences.LIMIT_NOFILE, TYPE_INT, 4),
+		new Field(Preferences.TUNNEL_MTU, TYPE_INT, 4),
+		new Field(Preferences.TUNNEL_NAME, TYPE_STRING, STRING),
+		new Field(Preferences.TUNNEL_MULTI_QUEUE, TYPE_BOOLEAN, 4),
+		new Field(Preferences.TUNNEL_IPV4, TYPE_STRING, STRING),
+		new Field(Preferences.TUNNEL_IPV6, TYPE_STRING, STRING),
+		new Field(Preferences.TUNNEL_POST_UP_SCRIPT, TYPE_STRING, SCRIPT),
+		new Field(Preferences.TUNNEL_PRE_DOWN_SCRIPT, TYPE_STRING, SCRIPT),
+		new Field(Preferences.CHNROUTES_ENABLED, TYPE_BOOLEAN, 4),
+		new Field(Preferences.ACL_ENABLED, TYPE_BOOLEAN, 4),
+		new Field(Preferences.DNS_SPLIT_TUNNEL_ENABLED, TYPE_BOOLEAN, 4),
+		new Field(Preferences.DNS_FOREIGN_SERVERS, TYPE_STRING, LIST),
+		new Field(Preferences.DNS_FORWARDER_ENABLED, TYPE_BOOLEAN, 4),
+		new Field(Preferences.DNS_VIRTUAL_IP4, TYPE_STRING, STRING),
+		new Field(Preferences.DNS_VIRTUAL_IP6, TYPE_STRING, STRING),
+		new Field(Preferences.DNS_TARGET_IP4, TYPE_STRING, STRING),
+		new Field(Preferences.DNS_TARGET_IP6, TYPE_STRING, STRING),
+		new Field(Preferences.DNS_LATENCY_OPTIMIZE_ENABLED, TYPE_BOOLEAN, 4),
+		new Field(Preferences.DNS_LATENCY_OPTIMIZE_TIMEOUT, TYPE_INT, 4),
+		new Field(Preferences.SMART_PROXY_ENABLED, TYPE_BOOLEAN, 4),
+		new Field(Preferences.SMART_PROXY_TIMEOUT, TYPE_INT, 4),
+		new Field(Preferences.SMART_PROXY_BLOCKED_IP_EXPIRY, TYPE_INT, 4),
+		new Field(Preferences.SMART_PROXY_PROBE_PORTS, TYPE_STRING, LIST),
+		new Field(Preferences.BYPASS_LAN, TYPE_BOOLEAN, 4),
+		new Field(Preferences.METRICS_PORT, TYPE_INT, 4),
+		new Field(Preferences.KERNEL_BYPASS, TYPE_BOOLEAN, 4),
+		new Field(Preferences.KERNEL_BYPASS_LEVEL, TYPE_INT, 4),
+		new Field(Preferences.KERNEL_BYPASS_BUDGET, TYPE_INT, 4),
+		new Field(Preferences.APP_POLICIES, TYPE_STRING_SET, APPS),
+	};
+
+	private static final HashMap<String, Field> FIELDS = new HashMap<String, Field>();
+	private static final int FILE_SIZE;
+
+	static {
+		int offset = HEADER_SIZE;
+		for (Field f : SCHEMA) {
+			f.offset = offset;
+			offset += REC_HEADER_SIZE + f.capacity;
+			FIELDS.put(f.key, f);
+		}
+		FILE_SIZE = offset;
+	}
+
+	/* Volatile accesses on ART emit the barriers the seqlock needs. */
+	private static volatile int fence;
+
+	private static SettingsStore instance;
+
+	private final Context context;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final ArrayList<OnSharedPreferenceChangeListener> listeners =
+		new ArrayList<OnSharedPreferenceChangeListener>();
+	private BroadcastReceiver changeReceiver;
+
+	private static class Field {
+		final String key;
+		final int type;
+		final int capacity;
+		int offset;
+
+		Field(String key, int type, int capacity) {
+			this.key = key;
+			this.type = type;
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * A value longer than the record of its key. The batch it was put in
+	 * is left unchanged.
+	 */
+	public static class ValueTooLongException extends IllegalArgumentException {
+		private final String key;
+		private final int capacity;
+
+		ValueTooLongException(String key, int capacity) {
+			super("value of " + key + " exceeds " + capacity + " bytes");
+			this.key = key;
+			this.capacity = capacity;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/** Longest value the key holds, in UTF-8 bytes */
+		public int getCapacity() {
+			return capacity;
+		}
+	}
+
+	private SettingsStore(Context context, FileChannel channel, MappedByteBuffer buffer) {
+		this.context = context;
+		this.channel = channel;
+		this.buffer = buffer;
+		buffer.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * The store of this process, created on first use.
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public static synchronized SettingsStore get(Context context) throws IOException {
+		if (instance != null)
+		  return instance;
+
+		Context app = context.getApplicationContext();
+		if (app == null)
+		  app = context;
+		File file = new File(app.getFilesDir(), FILE_NAME);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		FileLock lock = null;
+		boolean opened = false;
+		try {
+			lock = channel.lock();
+			Map<String, Object> migrated = null;
+			if (!isCurrent(channel)) {
+				migrated = readAny(channel);
+				if (migrated == null)
+				  migrated = importLegacy(app);
+				raf.setLength(FILE_SIZE);
+			}
+
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+			SettingsStore store = new SettingsStore(app, channel, buf);
+			if (migrated != null) {
+				store.format();
+				store.writeValues(migrated);
+				buf.force();
+			}
+			instance = store;
+			opened = true;
+			return store;
+		} finally {
+			release(lock);
+			// The channel stays open for the write locks of later commits
+			if (!opened)
+			  raf.close();
+		}
+	}
+
+	private static boolean isCurrent(FileChannel channel) throws IOException {
+		if (channel.size() != FILE_SIZE)
+		  return false;
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		buf.order(ByteOrder.nativeOrder());
+		return buf.getInt(OFF_MAGIC) == MAGIC && buf.getInt(OFF_VERSION) == VERSION &&
+		       buf.getInt(OFF_RECORD_COUNT) == SCHEMA.length && buf.getInt(OFF_SIZE) == FILE_SIZE;
+	}
+
+	/**
+	 * Values of a file written with any version, matched to the current
+	 * schema by key hash and type.
+	 * @return null if the file is not a settings store
+	 */
+	private static Map<String, Object> readAny(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < HEADER_SIZE)
+		  return null;
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		buf.order(ByteOrder.nativeOrder());
+		if (buf.getInt(OFF_MAGIC) != MAGIC)
+		  return null;
+
+		HashMap<Integer, Field> byHash = new HashMap<Integer, Field>();
+		for (Field f : SCHEMA)
+		  byHash.put(f.key.hashCode(), f);
+
+		HashMap<String, Object> values = new HashMap<String, Object>();
+		int count = buf.getInt(OFF_RECORD_COUNT);
+		long offset = HEADER_SIZE;
+		for (int i = 0; i < count && offset + REC_HEADER_SIZE <= size; i++) {
+			int off = (int) offset;
+			int capacity = buf.getInt(off + REC_CAPACITY);
+			int length = buf.getInt(off + REC_LENGTH);
+			if (capacity < 0 || length < 0 || length > capacity || off + REC_HEADER_SIZE + capacity > size)
+			  break;
+			Field f = byHash.get(buf.getInt(off + REC_KEY_HASH));
+			if (f != null && f.type == buf.getShort(off + REC_TYPE) &&
+			    (buf.getShort(off + REC_FLAGS) & FLAG_SET) != 0) {
+				byte[] payload = new byte[length];
+				for (int b = 0; b < length; b++)
+				  payload[b] = buf.get(off + REC_HEADER_SIZE + b);
+				values.put(f.key, decode(f.type, payload, length));
+			}
+			offset += REC_HEADER_SIZE + capacity;
+		}
+		return values;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Map<String, Object> importLegacy(Context context) {
+		SharedPreferences legacy = context.getSharedPreferences(Preferences.PREFS_NAME, Context.MODE_MULTI_PROCESS);
+		HashMap<String, Object> values = new HashMap<String, Object>();
+		for (Map.Entry<String, ?> e : legacy.getAll().entrySet()) {
+			Field f = FIELDS.get(e.getKey());
+			if (f != null && typeOf(e.getValue()) == f.type)
+			  values.put(f.key, e.getValue());
+		}
+		return values;
+	}
+
+	private void format() {
+		buffer.putInt(OFF_MAGIC, 0);
+		fullFence();
+		buffer.putInt(OFF_VERSION, VERSION);
+		buffer.putLong(OFF_GENERATION, 0);
+		buffer.putInt(OFF_RECORD_COUNT, SCHEMA.length);
+		buffer.putInt(OFF_SIZE, FILE_SIZE);
+		for (Field f : SCHEMA) {
+			buffer.putInt(f.offset + REC_SEQUENCE, 0);
+			buffer.putInt(f.offset + REC_KEY_HASH, f.key.hashCode());
+			buffer.putShort(f.offset + REC_TYPE, (short) f.type);
+			buffer.putShort(f.offset + REC_FLAGS, (short) 0);
+			buffer.putInt(f.offset + REC_CAPACITY, f.capacity);
+			buffer.putInt(f.offset + REC_LENGTH, 0);
+		}
+		fullFence();
+		buffer.putInt(OFF_MAGIC, MAGIC);
+	}
+
+	/**
+	 * Advanced by every commit that changes a value; comparing it is the
+	 * cheapest way to tell whether anything changed since a read.
+	 */
+	public long getGeneration() {
+		return buffer.getLong(OFF_GENERATION);
+	}
+
+	/**
+	 * Consistent copy of one record, or null if it holds no value.
+	 */
+	private Object read(Field f) {
+		for (int retry = 0; retry < MAX_READ_RETRIES; retry++) {
+			int seq = buffer.getInt(f.offset + REC_SEQUENCE);
+			if ((seq & 1) != 0)
+			  continue;
+			fullFence();
+			Object value = copy(f);
+			fullFence();
+			if (buffer.getInt(f.offset + REC_SEQUENCE) == seq)
+			  return value;
+		}
+
+		// Still odd: the writing process died halfway. No one else can
+		// write while we hold the lock, so close the record and take it.
+		synchronized (SettingsStore.class) {
+			FileLock lock = null;
+			try {
+				lock = channel.lock();
+				repair(f);
+			} catch (IOException e) {
+			} finally {
+				release(lock);
+			}
+			return copy(f);
+		}
+	}
+
+	private Object copy(Field f) {
+		if ((buffer.getShort(f.offset + REC_FLAGS) & FLAG_SET) == 0)
+		  return null;
+		int length = Math.max(0, Math.min(buffer.getInt(f.offset + REC_LENGTH), f.capacity));
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++)
+		  payload[i] = buffer.get(f.offset + REC_HEADER_SIZE + i);
+		return decode(f.type, payload, length);
+	}
+
+	private void repair(Field f) {
+		int seq = buffer.getInt(f.offset + REC_SEQUENCE);
+		if ((seq & 1) != 0)
+		  buffer.putInt(f.offset + REC_SEQUENCE, seq + 1);
+	}
+
+	private static void release(FileLock lock) {
+		try {
+			if (lock != null)
+			  lock.release();
+		} catch (IOException e) {
+		}
+	}
+
+	private static Object decode(int type, byte[] payload, int length) {
+		switch (type) {
+		case TYPE_BOOLEAN:
+			return length >= 4 && intOf(payload) != 0;
+		case TYPE_INT:
+			return length >= 4 ? intOf(payload) : 0;
+		case TYPE_STRING_SET:
+			HashSet<String> set = new HashSet<String>();
+			int start = 0;
+			for (int i = 0; i <= length; i++) {
+				if (i == length || payload[i] == 0) {
+					if (i > start)
+					  set.add(new String(payload, start, i - start, StandardCharsets.UTF_8));
+					start = i + 1;
+				}
+			}
+			return set;
+		default:
+			return new String(payload, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static byte[] encode(int type, Object value) {
+		switch (type) {
+		case TYPE_BOOLEAN:
+			return bytesOf(((Boolean) value) ? 1 : 0);
+		case TYPE_INT:
+			return bytesOf((Integer) value);
+		case TYPE_STRING_SET:
+			StringBuilder sb = new StringBuilder();
+			for (Object s : (Set<?>) value) {
+				if (sb.length() > 0)
+				  sb.append('\0');
+				sb.append(s);
+			}
+			return sb.toString().getBytes(StandardCharsets.UTF_8);
+		default:
+			return ((String) value).getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	private static int intOf(byte[] b) {
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		bb.order(ByteOrder.nativeOrder());
+		return bb.getInt(0);
+	}
+
+	private static byte[] bytesOf(int value) {
+		ByteBuffer bb = ByteBuffer.allocate(4);
+		bb.order(ByteOrder.nativeOrder());
+		bb.putInt(value);
+		return bb.array();
+	}
+
+	private static int typeOf(Object value) {
+		if (value instanceof Boolean)
+		  return TYPE_BOOLEAN;
+		if (value instanceof Integer)
+		  return TYPE_INT;
+		if (value instanceof String)
+		  return TYPE_STRING;
+		if (value instanceof Set)
+		  return TYPE_STRING_SET;
+		return 0;
+	}
+
+	/**
+	 * Write changed values (null removes one). The caller holds the file
+	 * lock. A value longer than its record is left out, so a migrated
+	 * value that no longer fits falls back to the default instead of
+	 * running into the next record.
+	 * @return keys whose value changed
+	 */
+	private ArrayList<String> writeValues(Map<String, Object> values) {
+		repairGeneration();
+		ArrayList<String> changed = new ArrayList<String>();
+		long generation = buffer.getLong(OFF_GENERATION) | 1;
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			Field f = FIELDS.get(e.getKey());
+			Object value = e.getValue();
+			byte[] payload = value == null ? new byte[0] : encode(f.type, value);
+			if (payload.length > f.capacity) {
+				Log.w(TAG, "dropping " + f.key + ": " + payload.length + " bytes exceed " + f.capacity);
+				continue;
+			}
+			repair(f);
+			Object old = copy(f);
+			if (value == null ? old == null : value.equals(old))
+			  continue;
+
+			if (changed.isEmpty()) {
+				buffer.putLong(OFF_GENERATION, generation);
+				fullFence();
+			}
+			int seq = buffer.getInt(f.offset + REC_SEQUENCE);
+			buffer.putInt(f.offset + REC_SEQUENCE, seq | 1);
+			fullFence();
+			buffer.putShort(f.offset + REC_FLAGS, (short) (value == null ? 0 : FLAG_SET));
+			for (int i = 0; i < payload.length; i++)
+			  buffer.put(f.offset + REC_HEADER_SIZE + i, payload[i]);
+			buffer.putInt(f.offset + REC_LENGTH, payload.length);
+			fullFence();
+			buffer.putInt(f.offset + REC_SEQUENCE, (seq | 1) + 1);
+			changed.add(f.key);
+		}
+		if (!changed.isEmpty()) {
+			fullFence();
+			buffer.putLong(OFF_GENERATION, generation + 1);
+		}
+		return changed;
+	}
+
+	private boolean apply(Map<String, Object> values, boolean clear, boolean sync) {
+		if (clear) {
+			for (Field f : SCHEMA) {
+				if (!values.containsKey(f.key))
+				  values.put(f.key, null);
+			}
+		}
+
+		ArrayList<String> changed;
+		synchronized (SettingsStore.class) {
+			FileLock lock = null;
+			try {
+				lock = channel.lock();
+				changed = writeValues(values);
+				if (sync && !changed.isEmpty())
+				  buffer.force();
+			} catch (IOException e) {
+				return false;
+			} finally {
+				release(lock);
+			}
+		}
+
+		if (!changed.isEmpty()) {
+			Intent intent = new Intent(ACTION_CHANGED);
+			intent.setPackage(context.getPackageName());
+			intent.putStringArrayListExtra(EXTRA_KEYS, changed);
+			context.sendBroadcast(intent);
+		}
+		return true;
+	}
+
+	private Field field(String key, int type) {
+		Field f = FIELDS.get(key);
+		if (f == null)
+		  throw new IllegalArgumentException("unknown settings key " + key);
+		if (f.type != type)
+		  throw new ClassCastException("settings key " + key + " has another type");
+		return f;
+	}
+
+	/**
+	 * Copy of every stored value, all from the same commit.
+	 */
+	@Override
+	public Map<String, ?> getAll() {
+		for (int retry = 0; retry < MAX_READ_RETRIES; retry++) {
+			long generation = buffer.getLong(OFF_GENERATION);
+			if ((generation & 1) != 0)
+			  continue;
+			fullFence();
+			Map<String, Object> all = readAll();
+			fullFence();
+			if (buffer.getLong(OFF_GENERATION) == generation)
+			  return all;
+		}
+
+		// A writer died in the middle of a commit, see read()
+		synchronized (SettingsStore.class) {
+			FileLock lock = null;
+			try {
+				lock = channel.lock();
+				repairGeneration();
+			} catch (IOException e) {
+			} finally {
+				release(lock);
+			}
+			return readAll();
+		}
+	}
+
+	private Map<String, Object> readAll() {
+		HashMap<String, Object> all = new HashMap<String, Object>();
+		for (Field f : SCHEMA) {
+			Object value = read(f);
+			if (value != null)
+			  all.put(f.key, value);
+		}
+		return all;
+	}
+
+	private void repairGeneration() {
+		long generation = buffer.getLong(OFF_GENERATION);
+		if ((generation & 1) != 0)
+		  buffer.putLong(OFF_GENERATION, generation + 1);
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		Object value = read(field(key, TYPE_STRING));
+		return value != null ? (String) value : defValue;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		Object value = read(field(key, TYPE_STRING_SET));
+		return value != null ? (Set<String>) value : defValues;
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		Object value = read(field(key, TYPE_INT));
+		return value != null ? (Integer) value : defValue;
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		throw new UnsupportedOperationException("settings store has no long values, key " + key);
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		throw new UnsupportedOperationException("settings store has no float values, key " + key);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		Object value = read(field(key, TYPE_BOOLEAN));
+		return value != null ? (Boolean) value : defValue;
+	}
+
+	@Override
+	public boolean contains(String key) {
+		Field f = FIELDS.get(key);
+		return f != null && read(f) != null;
+	}
+
+	@Override
+	public Editor edit() {
+		return new StoreEditor();
+	}
+
+	/**
+	 * Listeners are held strongly (unlike the framework implementation)
+	 * and called on the main thread for changes made by any process.
+	 */
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		synchronized (listeners) {
+			if (listeners.contains(listener))
+			  return;
+			listeners.add(listener);
+			if (changeReceiver != null)
+			  return;
+			changeReceiver = new BroadcastReceiver() {
+				@Override
+				public void onReceive(Context context, Intent intent) {
+					ArrayList<String> keys = intent.getStringArrayListExtra(EXTRA_KEYS);
+					if (keys != null)
+					  notifyListeners(keys);
+				}
+			};
+		}
+		context.registerReceiver(changeReceiver, new IntentFilter(ACTION_CHANGED), Context.RECEIVER_NOT_EXPORTED);
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		BroadcastReceiver receiver = null;
+		synchronized (listeners) {
+			listeners.remove(listener);
+			if (listeners.isEmpty()) {
+				receiver = changeReceiver;
+				changeReceiver = null;
+			}
+		}
+		if (receiver != null)
+		  context.unregisterReceiver(receiver);
+	}
+
+	private void notifyListeners(ArrayList<String> keys) {
+		OnSharedPreferenceChangeListener[] copy;
+		synchronized (listeners) {
+			copy = listeners.toArray(new OnSharedPreferenceChangeListener[listeners.size()]);
+		}
+		for (String key : keys) {
+			for (OnSharedPreferenceChangeListener l : copy)
+			  l.onSharedPreferenceChanged(this, key);
+		}
+	}
+
+	private class StoreEditor implements Editor {
+		private final HashMap<String, Object> pending = new HashMap<String, Object>();
+		private boolean clear;
+
+		/**
+		 * @throws ValueTooLongException if the value doesn't fit its record
+		 */
+		private Editor put(String key, int type, Object value) {
+			Field f = field(key, type);
+			if (value != null && encode(type, value).length > f.capacity)
+			  throw new ValueTooLongException(key, f.capacity);
+			pending.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putString(String key, String value) {
+			return put(key, TYPE_STRING, value);
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			return put(key, TYPE_STRING_SET, values == null ? null : new HashSet<String>(values));
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			return put(key, TYPE_INT, value);
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			throw new UnsupportedOperationException("settings store has no long values, key " + key);
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			throw new UnsupportedOperationException("settings store has no float values, key " + key);
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			return put(key, TYPE_BOOLEAN, value);
+		}
+
+		@Override
+		public Editor remove(String key) {
+			if (FIELDS.containsKey(key))
+			  pending.put(key, null);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			clear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			return SettingsStore.this.apply(pending, clear, true);
+		}
+
+		/* The write itself is a few memory stores; only the flush is skipped. */
+		@Override
+		public void apply() {
+			SettingsStore.this.apply(pending, clear, false);
+		}
+	}
+
+	private static void fullFence() {
+		fence = 0;
+		int ignored = fence;
+	}
+}
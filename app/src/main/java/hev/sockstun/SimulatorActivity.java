@@ -0,0 +1,244 @@
+/*
+ ============================================================================
+ Name        : SimulatorActivity.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Routing Decision Simulator Activity
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Ask why a destination would go direct, through the proxy or be
+ * blocked, or replay a file of destinations, against the rule tables the
+ * service would use. Runs in the :native process to see the smart proxy
+ * blacklist of a running tunnel.
+ */
+public class SimulatorActivity extends Activity implements View.OnClickListener {
+	/* Batch results in the cache directory, one line a destination */
+	public static final String RESULTS_FILE_NAME = "simulate.txt";
+
+	private static final int BATCH_REQUEST_CODE = 100;
+
+	private EditText edittext_destination;
+	private Button button_run;
+	private TextView textview_output;
+	private Button button_batch;
+	private Button button_results;
+
+	private Preferences prefs;
+	private Handler handler;
+	private boolean running = false;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.simulator);
+		setTitle(R.string.simulator);
+
+		prefs = new Preferences(this);
+		handler = new Handler(Looper.getMainLooper());
+		edittext_destination = (EditText) findViewById(R.id.simulator_destination);
+		button_run = (Button) findViewById(R.id.simulator_run);
+		textview_output = (TextView) findViewById(R.id.simulator_output);
+		button_batch = (Button) findViewById(R.id.simulator_batch);
+		button_results = (Button) findViewById(R.id.simulator_results);
+
+		button_run.setOnClickListener(this);
+		button_batch.setOnClickListener(this);
+		button_results.setOnClickListener(this);
+		button_results.setEnabled(new File(getCacheDir(), RESULTS_FILE_NAME).exists());
+		edittext_destination.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+			@Override
+			public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+				if (actionId != EditorInfo.IME_ACTION_GO)
+				  return false;
+				simulate(edittext_destination.getText().toString());
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public void onClick(View view) {
+		if (view == button_run) {
+			simulate(edittext_destination.getText().toString());
+		} else if (view == button_batch) {
+			// One destination a line
+			Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+			intent.setType("*/*");
+			startActivityForResult(intent, BATCH_REQUEST_CODE);
+		} else if (view == button_results) {
+			Intent intent = new Intent(this, RuleEditorActivity.class);
+			intent.putExtra(RuleEditorActivity.EXTRA_FILE_NAME, RESULTS_FILE_NAME);
+			startActivity(intent);
+		}
+	}
+
+	@Override
+	protected void onActivityResult(int request, int result, Intent data) {
+		if (request == BATCH_REQUEST_CODE && result == RESULT_OK && data != null)
+		  runBatch(data.getData());
+	}
+
+	private void simulate(final String destination) {
+		if (running || destination.trim().isEmpty())
+		  return;
+		start();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String text;
+				RouteSimulator.Trace trace = newSimulator().simulate(destination);
+				if (trace == null) {
+					text = getString(R.string.simulator_invalid);
+				} else {
+					StringBuilder sb = new StringBuilder();
+					RuleFile aclLines = openAclLines();
+					trace.format(sb, aclLines);
+					if (aclLines != null)
+					  aclLines.close();
+					text = sb.toString();
+				}
+				done(text);
+			}
+		}).start();
+	}
+
+	private void runBatch(final Uri uri) {
+		if (running)
+		  return;
+		start();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String text;
+				File results = new File(getCacheDir(), RESULTS_FILE_NAME);
+				try {
+					RouteSimulator simulator = newSimulator();
+					InputStream in = getContentResolver().openInputStream(uri);
+					if (in == null)
+					  throw new IOException(uri.toString());
+					BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(results), StandardCharsets.UTF_8));
+					RouteSimulator.Batch batch;
+					try {
+						batch = simulator.run(in, out);
+					} finally {
+						in.close();
+						out.close();
+					}
+					text = formatBatch(batch);
+				} catch (IOException e) {
+					text = getString(R.string.unable_to_read_file, e.getMessage());
+				}
+				done(text);
+			}
+		}).start();
+	}
+
+	private String formatBatch(RouteSimulator.Batch batch) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(getString(R.string.simulator_batch_summary, batch.getSimulated(), batch.getInvalid(),
+			batch.getDecisionsPerSecond(), batch.getElapsedNanos() / 1000000)).append("\n\n");
+		for (int d = 0; d < RouteSimulator.DECISION_COUNT; d++) {
+			sb.append(String.format(Locale.ROOT, "%-12s %d%n", RouteSimulator.getDecisionName(d),
+				batch.getDecisionCount(d)));
+		}
+		sb.append('\n');
+		// Average over every destination, stages that did not run count 0
+		for (int s = 0; s < RouteSimulator.STAGE_COUNT; s++) {
+			long avg = batch.getSimulated() == 0 ? 0 : batch.getStageNanos(s) / batch.getSimulated();
+			sb.append(String.format(Locale.ROOT, "%-12s %d ns%n", RouteSimulator.getStageName(s), avg));
+		}
+		for (RouteImport.ParseError error : batch.getErrors())
+		  sb.append('\n').append(getString(R.string.chnroutes_import_error_line, error.getLine(), error.getText()));
+		return sb.toString();
+	}
+
+	/**
+	 * A simulator over the tables the service would use now. Compiling
+	 * is a no-op when they are up to date.
+	 */
+	private RouteSimulator newSimulator() {
+		Settings settings = prefs.snapshot();
+		File cache = getCacheDir();
+		AclTable acl = null;
+		RouteTable routes = null;
+		try {
+			File text = new File(cache, "acl.txt");
+			if (settings.getAclEnabled() && text.exists())
+			  acl = AclTable.compile(text, new File(cache, AclTable.FILE_NAME));
+		} catch (IOException e) {
+			// Simulated without ACL
+		}
+		try {
+			File text = new File(cache, "chnroutes.txt");
+			if (settings.getChnroutesEnabled() && text.exists())
+			  routes = RouteTable.compile(text, new File(cache, RouteTable.FILE_NAME));
+		} catch (IOException e) {
+			// Simulated without chnroutes
+		}
+
+		String[] blacklist = null;
+		if (prefs.getEnable()) {
+			try {
+				blacklist = TProxyService.getBlacklist();
+			} catch (UnsatisfiedLinkError e) {
+				// No tunnel library, no blacklist
+			}
+		}
+		return new RouteSimulator(settings, acl, routes, blacklist);
+	}
+
+	/* acl.txt to quote the matching rules from, or null */
+	private RuleFile openAclLines() {
+		try {
+			return RuleFile.open(new File(getCacheDir(), "acl.txt"));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void start() {
+		running = true;
+		button_run.setEnabled(false);
+		button_batch.setEnabled(false);
+		textview_output.setText(R.string.simulator_running);
+	}
+
+	private void done(final String text) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				running = false;
+				button_run.setEnabled(true);
+				button_batch.setEnabled(true);
+				button_results.setEnabled(new File(getCacheDir(), RESULTS_FILE_NAME).exists());
+				textview_output.setText(text);
+			}
+		});
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ ============================================================================
+ Name        : StatsActivity.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Traffic Stats Activity
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+
+/**
+ * Throughput graphs backed by the service's TrafficHistory. Runs in the
+ * :native process so it can read the history directly.
+ */
+public class StatsActivity extends Activity {
+	private static final int REFRESH_INTERVAL_MS = 2000;
+	private static final int MONTH_TOP_APPS = 5;
+
+	private TextView textview_summary;
+	private TextView textview_msg;
+	private TextView textview_latency;
+	private TextView textview_month;
+	private TrafficGraphView graph;
+	private Preferences prefs;
+	private Handler refreshHandler;
+	private Runnable refreshRunnable;
+	private int tier = TrafficHistory.TIER_MINUTES;
+
+	private final float[] txSamples = new float[TrafficHistory.getTierSize(TrafficHistory.TIER_SECONDS)];
+	private final float[] rxSamples = new float[TrafficHistory.getTierSize(TrafficHistory.TIER_SECONDS)];
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.stats);
+		setTitle(R.string.stats);
+
+		prefs = new Preferences(this);
+		textview_summary = (TextView) findViewById(R.id.stats_summary);
+		textview_msg = (TextView) findViewById(R.id.stats_not_running_msg);
+		textview_latency = (TextView) findViewById(R.id.stats_latency);
+		textview_month = (TextView) findViewById(R.id.stats_month);
+		graph = (TrafficGraphView) findViewById(R.id.stats_graph);
+
+		RadioGroup tierGroup = (RadioGroup) findViewById(R.id.stats_tier_group);
+		tierGroup.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+			@Override
+			public void onCheckedChanged(RadioGroup group, int checkedId) {
+				if (checkedId == R.id.stats_tier_seconds) {
+					tier = TrafficHistory.TIER_SECONDS;
+				} else if (checkedId == R.id.stats_tier_hours) {
+					tier = TrafficHistory.TIER_HOURS;
+				} else {
+					tier = TrafficHistory.TIER_MINUTES;
+				}
+				refresh();
+			}
+		});
+
+		refreshHandler = new Handler(Looper.getMainLooper());
+		refreshRunnable = new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+				refreshHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+			}
+		};
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		refreshHandler.post(refreshRunnable);
+		refreshMonth();
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		refreshHandler.removeCallbacks(refreshRunnable);
+	}
+
+	private void refresh() {
+		if (!prefs.getEnable()) {
+			textview_msg.setVisibility(View.VISIBLE);
+			graph.setVisibility(View.GONE);
+			textview_summary.setText("");
+			textview_latency.setText("");
+			return;
+		}
+		textview_msg.setVisibility(View.GONE);
+		graph.setVisibility(View.VISIBLE);
+
+		TrafficHistory history = TProxyService.getTrafficHistory();
+		int count = history.copy(tier, txSamples, rxSamples);
+		graph.setData(txSamples, rxSamples, count, TrafficHistory.getTierSize(tier));
+
+		long curTx = count > 0 ? (long) txSamples[count - 1] : 0;
+		long curRx = count > 0 ? (long) rxSamples[count - 1] : 0;
+		textview_summary.setText(
+			getString(R.string.notif_upload_speed) + " " + TrafficFormat.formatSpeed(curTx) + "\n" +
+			getString(R.string.notif_download_speed) + " " + TrafficFormat.formatSpeed(curRx) + "\n" +
+			getString(R.string.stats_peak) + " ↑ " + TrafficFormat.formatSpeed(history.getPeakTx(tier)) +
+			"  ↓ " + TrafficFormat.formatSpeed(history.getPeakRx(tier)));
+
+		refreshLatency();
+	}
+
+	/**
+	 * Totals of the current calendar month from the persistent ledger.
+	 * Shown even while the VPN is off.
+	 */
+	private void refreshMonth() {
+		Calendar cal = Calendar.getInstance();
+		cal.set(Calendar.DAY_OF_MONTH, 1);
+		int fromDay = TrafficLedger.epochDay(cal.getTimeInMillis());
+		int toDay = TrafficLedger.epochDay(System.currentTimeMillis());
+
+		TrafficLedger.Summary summary;
+		try {
+			summary = TrafficLedger.summarize(getFilesDir(), fromDay, toDay);
+		} catch (IOException e) {
+			textview_month.setText("");
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder(getString(R.string.stats_month_title));
+		sb.append("\n↑ ").append(TrafficFormat.formatBytes(summary.txBytes))
+		  .append("  ↓ ").append(TrafficFormat.formatBytes(summary.rxBytes));
+		UidTraffic apps = summary.apps;
+		int top = Math.min(MONTH_TOP_APPS, apps.getTopCount());
+		for (int r = 0; r < top; r++) {
+			int i = apps.getTop(r);
+			sb.append("\n").append(UidTraffic.loadLabel(this, apps.getUid(i)))
+			  .append("  ↑ ").append(TrafficFormat.formatBytes(apps.getTxBytes(i)))
+			  .append("  ↓ ").append(TrafficFormat.formatBytes(apps.getRxBytes(i)));
+		}
+		textview_month.setText(sb.toString());
+	}
+
+	private void refreshLatency() {
+		if (!TProxyService.readLatencyStats(latency)) {
+			textview_latency.setText(getString(R.string.stats_latency_title) + "\n" +
+			                         getString(R.string.stats_latency_unavailable));
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder(getString(R.string.stats_latency_title));
+		appendLatency(sb, R.string.stats_latency_direct, LatencyHistogram.CLASS_DIRECT);
+		appendLatency(sb, R.string.stats_latency_proxy, LatencyHistogram.CLASS_PROXY);
+		appendLatency(sb, R.string.stats_latency_smart_proxy, LatencyHistogram.CLASS_SMART_PROXY);
+		textview_latency.setText(sb.toString());
+	}
+
+	private void appendLatency(StringBuilder sb, int labelRes, int cls) {
+		sb.append("\n").append(getString(labelRes)).append(": ");
+		long count = latency.getCount(cls);
+		if (count == 0) {
+			sb.append("--");
+			return;
+		}
+		sb.append(TrafficFormat.formatLatency(latency.percentile(cls, 0.50))).append(" / ")
+		  .append(TrafficFormat.formatLatency(latency.percentile(cls, 0.95))).append(" / ")
+		  .append(TrafficFormat.formatLatency(latency.percentile(cls, 0.99)))
+		  .append(" (n=").append(count).append(")");
+	}
+}
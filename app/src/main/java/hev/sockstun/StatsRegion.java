@@ -0,0 +1,244 @@
+/*
+ ============================================================================
+ Name        : StatsRegion.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Shared Memory Stats Region
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped counter region shared between the native tunnel, the
+ * service and the UI processes.
+ *
+ * Layout (native byte order):
+ *   0  u32 magic
+ *   4  u32 version
+ *   8  u64 sequence (odd while a write is in progress)
+ *  16  u32 slot count
+ *  20  u32 writer (WRITER_JAVA or WRITER_NATIVE)
+ *  24  u64 update time (ms since the epoch)
+ *  32  u64 slots[slot count]
+ * 1024  u32 uid entry count
+ * 1032  u64 uid entries[UID_CAPACITY][UidTraffic.ENTRY_LONGS]
+ *
+ * There is a single writer. Readers copy the slots and retry while the
+ * sequence is odd or has changed, so reading never blocks the writer.
+ */
+public class StatsRegion {
+	public static final String FILE_NAME = "stats.shm";
+
+	public static final int MAGIC = 0x53545354;
+	public static final int VERSION = 2;
+
+	public static final int WRITER_JAVA = 0;
+	public static final int WRITER_NATIVE = 1;
+
+	/* Slot indexes */
+	public static final int SLOT_TX_PACKETS = 0;
+	public static final int SLOT_TX_BYTES = 1;
+	public static final int SLOT_RX_PACKETS = 2;
+	public static final int SLOT_RX_BYTES = 3;
+	/* Published only when the native tunnel is the writer */
+	public static final int SLOT_TCP_SESSIONS = 4;
+	public static final int SLOT_UDP_SESSIONS = 5;
+	public static final int SLOT_DNS_CACHE_HITS = 6;
+	public static final int SLOT_DNS_CACHE_MISSES = 7;
+	public static final int SLOT_SMART_DIRECT = 8;
+	public static final int SLOT_SMART_PROXY = 9;
+	public static final int SLOT_COUNT = 64;
+
+	/* Heaviest (uid, route class) entries published for the UI */
+	public static final int UID_CAPACITY = 48;
+
+	private static final int OFF_MAGIC = 0;
+	private static final int OFF_VERSION = 4;
+	private static final int OFF_SEQUENCE = 8;
+	private static final int OFF_SLOT_COUNT = 16;
+	private static final int OFF_WRITER = 20;
+	private static final int OFF_UPDATE_TIME = 24;
+	private static final int OFF_SLOTS = 32;
+	private static final int OFF_UID_COUNT = 1024;
+	private static final int OFF_UID_ENTRIES = 1032;
+	private static final int REGION_SIZE = 4096;
+	private static final int MAX_READ_RETRIES = 16;
+
+	/* Volatile accesses on ART emit the barriers the seqlock needs. */
+	private static volatile int fence;
+
+	private final MappedByteBuffer buffer;
+
+	private StatsRegion(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		buffer.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Create (or reset) the region for writing. Called by the service.
+	 */
+	public static StatsRegion create(File dir) throws IOException {
+		File file = new File(dir, FILE_NAME);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(REGION_SIZE);
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+			StatsRegion region = new StatsRegion(buf);
+			region.reset();
+			return region;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Map an existing region read-only. Returns null if it does not exist
+	 * or was written by an incompatible version.
+	 */
+	public static StatsRegion open(File dir) {
+		File file = new File(dir, FILE_NAME);
+		if (file.length() < REGION_SIZE)
+		  return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, REGION_SIZE);
+				StatsRegion region = new StatsRegion(buf);
+				if (!region.isValid())
+				  return null;
+				return region;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The mapped memory, handed to the native tunnel so it can publish
+	 * directly into the region.
+	 */
+	public MappedByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public boolean isValid() {
+		return buffer.getInt(OFF_MAGIC) == MAGIC &&
+		       buffer.getInt(OFF_VERSION) == VERSION;
+	}
+
+	public int getWriter() {
+		return buffer.getInt(OFF_WRITER);
+	}
+
+	public void setWriter(int writer) {
+		buffer.putInt(OFF_WRITER, writer);
+	}
+
+	public long getUpdateTime() {
+		return buffer.getLong(OFF_UPDATE_TIME);
+	}
+
+	private void reset() {
+		buffer.putInt(OFF_MAGIC, 0);
+		fullFence();
+		buffer.putInt(OFF_VERSION, VERSION);
+		buffer.putLong(OFF_SEQUENCE, 0);
+		buffer.putInt(OFF_SLOT_COUNT, SLOT_COUNT);
+		buffer.putInt(OFF_WRITER, WRITER_JAVA);
+		buffer.putLong(OFF_UPDATE_TIME, 0);
+		for (int i = 0; i < SLOT_COUNT; i++)
+		  buffer.putLong(OFF_SLOTS + i * 8, 0);
+		buffer.putInt(OFF_UID_COUNT, 0);
+		fullFence();
+		buffer.putInt(OFF_MAGIC, MAGIC);
+	}
+
+	/**
+	 * Start a write. Slots may be updated with putSlot() until endWrite().
+	 */
+	public void beginWrite() {
+		long seq = buffer.getLong(OFF_SEQUENCE);
+		buffer.putLong(OFF_SEQUENCE, seq | 1);
+		fullFence();
+	}
+
+	public void putSlot(int index, long value) {
+		buffer.putLong(OFF_SLOTS + index * 8, value);
+	}
+
+	/**
+	 * Replace the per-UID table. Must be called between beginWrite() and
+	 * endWrite().
+	 */
+	public void putUidEntries(long[] entries, int count) {
+		count = Math.min(count, UID_CAPACITY);
+		int longs = count * UidTraffic.ENTRY_LONGS;
+		for (int i = 0; i < longs; i++)
+		  buffer.putLong(OFF_UID_ENTRIES + i * 8, entries[i]);
+		buffer.putInt(OFF_UID_COUNT, count);
+	}
+
+	public void endWrite(long time) {
+		buffer.putLong(OFF_UPDATE_TIME, time);
+		fullFence();
+		long seq = buffer.getLong(OFF_SEQUENCE);
+		buffer.putLong(OFF_SEQUENCE, (seq | 1) + 1);
+	}
+
+	/**
+	 * Copy the first out.length slots into out without allocating.
+	 * @return false if no consistent snapshot could be taken
+	 */
+	public boolean read(long[] out) {
+		int count = Math.min(out.length, buffer.getInt(OFF_SLOT_COUNT));
+		for (int retry = 0; retry < MAX_READ_RETRIES; retry++) {
+			long seq = buffer.getLong(OFF_SEQUENCE);
+			if ((seq & 1) != 0)
+			  continue;
+			fullFence();
+			for (int i = 0; i < count; i++)
+			  out[i] = buffer.getLong(OFF_SLOTS + i * 8);
+			fullFence();
+			if (buffer.getLong(OFF_SEQUENCE) == seq)
+			  return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the per-UID table into out (packed, UidTraffic layout).
+	 * @return number of entries copied, or -1 if no consistent snapshot
+	 */
+	public int readUidEntries(long[] out) {
+		for (int retry = 0; retry < MAX_READ_RETRIES; retry++) {
+			long seq = buffer.getLong(OFF_SEQUENCE);
+			if ((seq & 1) != 0)
+			  continue;
+			fullFence();
+			int count = Math.min(buffer.getInt(OFF_UID_COUNT), UID_CAPACITY);
+			count = Math.min(count, out.length / UidTraffic.ENTRY_LONGS);
+			int longs = count * UidTraffic.ENTRY_LONGS;
+			for (int i = 0; i < longs; i++)
+			  out[i] = buffer.getLong(OFF_UID_ENTRIES + i * 8);
+			fullFence();
+			if (buffer.getLong(OFF_SEQUENCE) == seq)
+			  return count;
+		}
+		return -1;
+	}
+
+	private static void fullFence() {
+		fence = 0;
+		int ignored = fence;
+	}
+}
@@ -10,40 +10,84 @@
 package hev.sockstun;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
-import android.app.Notification;
-import android.app.Notification.Builder;
-import android.app.PendingIntent;
 import android.content.Intent;
 import android.net.VpnService;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.ServiceInfo;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.widget.Toast;
 
-import androidx.core.app.NotificationCompat;
-
 public class TProxyService extends VpnService {
 	private static native void TProxyStartService(String config_path, int fd);
+	private static native void TProxyStartServiceBinary(ByteBuffer config, int fd);
 	private static native void TProxyStopService();
+	private static native boolean TProxyReloadConfig(ByteBuffer config, int sections);
+	private static native boolean TProxySwapRouteTable(String table_path);
 	private static native long[] TProxyGetStats();
+	private static native boolean TProxyAttachStats(ByteBuffer region);
+	private static native boolean TProxyAttachAclCounters(ByteBuffer region);
+	private static native int TProxyGetUidStats(long[] entries);
+	private static native boolean TProxyGetLatencyStats(long[] counts);
 	private static native String[] TProxyGetBlacklist();
 
 	public static String[] getBlacklist() {
 		return TProxyGetBlacklist();
 	}
 
+	public static TrafficHistory getTrafficHistory() {
+		return trafficHistory;
+	}
+
+	/**
+	 * Copy the native connect latency histograms into histogram.
+	 * @return false if the tunnel library doesn't record latencies
+	 */
+	public static boolean readLatencyStats(LatencyHistogram histogram) {
+		try {
+			return TProxyGetLatencyStats(histogram.getCounts());
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
+	}
+
 	public static final String ACTION_CONNECT = "hev.sockstun.CONNECT";
 	public static final String ACTION_DISCONNECT = "hev.sockstun.DISCONNECT";
+	public static final String ACTION_RELOAD = "hev.sockstun.RELOAD";
+	/*
+	 * VPN_STOPPED extra: the tunnel stopped to apply settings and the
+	 * service starts it again by itself. Also set on the ACTION_CONNECT
+	 * of that restart, which is dropped if the user disconnected since.
+	 */
+	public static final String EXTRA_RESTART = "restart";
+	/* ACTION_RELOAD extra: preference keys changed by the save, if known */
+	public static final String EXTRA_CHANGED_KEYS = "changed_keys";
 	private static final int STATS_UPDATE_INTERVAL_MS = 2000;
+	private static final int STATS_IDLE_INTERVAL_MS = 16000;
+	private static final int UID_STATS_CAPACITY = 512;
+	private static final int LEDGER_FLUSH_INTERVAL_MS = 5 * 60 * 1000;
+	private static final int MIRROR_REFRESH_TIMEOUT_MS = 500;
+	private static final int RESTART_DELAY_MS = 1000;
 
 	static {
 		System.loadLibrary("hev-socks5-tunnel");
@@ -52,17 +96,48 @@ public class TProxyService extends VpnService {
 	private ParcelFileDescriptor tunFd = null;
 	private String channelName = "socks5";
 	private Preferences prefs;
+	/* What the running tunnel was started (or last reloaded) with */
+	private Settings settings;
+
+	// Running configuration, for hot reload
+	private ByteBuffer runningConfig;
+	private String runningTunSignature;
+	private KernelRoutes runningBypass;
+	private long aclStamp;
+	private long chnroutesStamp;
+	private UidPolicyTable uidPolicies;
+	private long profilesStamp;
 
 	// Traffic stats
 	private Handler statsHandler;
 	private Runnable statsRunnable;
+	private BroadcastReceiver screenReceiver;
+	private TrafficNotifier notifier;
+	private MetricsServer metricsServer;
+	private SharedPreferences.OnSharedPreferenceChangeListener settingsListener;
+	private int statsInterval = STATS_UPDATE_INTERVAL_MS;
+	private boolean idleNotified = false;
+	private StatsRegion statsRegion;
+	private boolean nativeStats = false;
+	private final long[] statsSnapshot = new long[4];
+	private final long[] mirrorSnapshot = new long[4];
+	private AclTable aclTable;
+
+	// Per-UID stats
+	private boolean uidStatsSupported = true;
+	private UidTraffic sessionUidTraffic;
+	private final long[] uidTopEntries = new long[StatsRegion.UID_CAPACITY * UidTraffic.ENTRY_LONGS];
+	private final UidTraffic uidTraffic = new UidTraffic(StatsRegion.UID_CAPACITY);
+
+	// Persistent ledger
+	private TrafficLedger ledger;
+	private long lastLedgerFlush = 0;
 	private long lastTxPackets = 0;
 	private long lastTxBytes = 0;
 	private long lastRxPackets = 0;
 	private long lastRxBytes = 0;
 	private long lastTime = 0;
-	private long totalTxBytes = 0;
-	private long totalRxBytes = 0;
+	private static final TrafficHistory trafficHistory = new TrafficHistory();
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
@@ -70,15 +145,22 @@ public class TProxyService extends VpnService {
 			stopService();
 			return START_NOT_STICKY;
 		}
+		if (intent != null && ACTION_RELOAD.equals(intent.getAction())) {
+			reloadConfig(intent.getStringArrayListExtra(EXTRA_CHANGED_KEYS));
+			return START_STICKY;
+		}
+		if (intent != null && intent.getBooleanExtra(EXTRA_RESTART, false) &&
+		    tunFd == null && !new Preferences(this).getEnable()) {
+			stopSelf();
+			return START_NOT_STICKY;
+		}
 		startService();
 		return START_STICKY;
 	}
 
 	@Override
 	public void onDestroy() {
-		if (statsHandler != null && statsRunnable != null) {
-			statsHandler.removeCallbacks(statsRunnable);
-		}
+		stopStatsUpdate();
 		super.onDestroy();
 	}
 
@@ -100,25 +182,43 @@ public class TProxyService extends VpnService {
 		lastRxPackets = 0;
 		lastRxBytes = 0;
 		lastTime = 0;
-		totalTxBytes = 0;
-		totalRxBytes = 0;
+		idleNotified = false;
+		trafficHistory.reset();
 
 		prefs = new Preferences(this);
+		settings = prefs.snapshot();
+		RouteTable routes = compileRoutes(settings);
+		aclTable = compileAcl(settings);
+		uidPolicies = compileAppPolicies(settings);
+		runningTunSignature = getTunSignature(settings, routes, uidPolicies);
+
+		/* Reject a bad config before the TUN is established */
+		File log_file = new File(getCacheDir(), "tunnel.log");
+		ConfigGenerator configGen = new ConfigGenerator(settings, log_file, getCacheDir());
+		configGen.setUidPolicies(uidPolicies);
+		ConfigValidator.Result result = new ConfigValidator(settings).validate(configGen.generateBinary());
+		if (result.hasErrors()) {
+			showToast("配置无效: " + result.getFirstError());
+			prefs.setEnable(false);
+			sendBroadcast(new Intent("hev.sockstun.VPN_STOPPED"));
+			stopSelf();
+			return;
+		}
 
 		/* VPN */
 		VpnService.Builder builder = new VpnService.Builder();
 		builder.setBlocking(false);
-		builder.setMtu(prefs.getTunnelMtu());
+		builder.setMtu(settings.getTunnelMtu());
 
 		// Bypass LAN routes (API 33+) - MUST be called before addRoute
 		// Use reflection for IpPrefix class (added in API 28) to maintain minSdk 24
-		if (Build.VERSION.SDK_INT >= 33 && prefs.getBypassLan()) {
+		if (Build.VERSION.SDK_INT >= 33 && settings.getBypassLan()) {
 			try {
 				Class<?> ipPrefixClass = Class.forName("android.net.IpPrefix");
 				java.lang.reflect.Method excludeRouteMethod = VpnService.Builder.class.getMethod("excludeRoute", ipPrefixClass);
 
 				// IPv4 private/local routes
-				if (prefs.getIpv4()) {
+				if (settings.getIpv4()) {
 					String[] ipv4Routes = {"10.0.0.0/8", "100.64.0.0/10", "127.0.0.0/8",
 					                      "169.254.0.0/16", "172.16.0.0/12", "192.168.0.0/16"};
 					for (String route : ipv4Routes) {
@@ -131,7 +231,7 @@ public class TProxyService extends VpnService {
 					}
 				}
 				// IPv6 private/local routes
-				if (prefs.getIpv6()) {
+				if (settings.getIpv6()) {
 					String[] ipv6Routes = {"::1/128", "::ffff:0:0/96", "fc00::/7", "fe80::/10"};
 					for (String route : ipv6Routes) {
 						try {
@@ -147,31 +247,48 @@ public class TProxyService extends VpnService {
 			}
 		}
 
-		if (prefs.getIpv4()) {
-			String addr = prefs.getTunnelIpv4Address();
-			int prefix = prefs.getTunnelIpv4Prefix();
-			String dns = prefs.getDnsIpv4();
+		// Kernel bypass: domestic destinations leave through the
+		// underlying network and never enter the TUN
+		KernelRoutes bypass = null;
+		if (routes != null && settings.getKernelBypass() && !uidPolicies.needsAllTraffic()) {
+			bypass = KernelRoutes.plan(routes, settings, getBlockedAddresses(settings, uidPolicies),
+			                           Build.VERSION.SDK_INT < 33);
+			if (!bypass.isComplement())
+			  excludeRoutes(builder, bypass.getExcluded());
+		}
+		runningBypass = bypass;
+
+		if (settings.getIpv4()) {
+			String addr = settings.getTunnelIpv4Address();
+			int prefix = settings.getTunnelIpv4Prefix();
+			String dns = settings.getDnsIpv4();
 			builder.addAddress(addr, prefix);
-			builder.addRoute("0.0.0.0", 0);
-			if (!prefs.getRemoteDns() && !dns.isEmpty())
+			if (bypass == null || !bypass.isComplement())
+			  builder.addRoute("0.0.0.0", 0);
+			if (!settings.getRemoteDns() && !dns.isEmpty())
 			  builder.addDnsServer(dns);
 		}
-		if (prefs.getIpv6()) {
-			String addr = prefs.getTunnelIpv6Address();
-			int prefix = prefs.getTunnelIpv6Prefix();
-			String dns = prefs.getDnsIpv6();
+		if (settings.getIpv6()) {
+			String addr = settings.getTunnelIpv6Address();
+			int prefix = settings.getTunnelIpv6Prefix();
+			String dns = settings.getDnsIpv6();
 			builder.addAddress(addr, prefix);
-			builder.addRoute("::", 0);
-			if (!prefs.getRemoteDns() && !dns.isEmpty())
+			if (bypass == null || !bypass.isComplement())
+			  builder.addRoute("::", 0);
+			if (!settings.getRemoteDns() && !dns.isEmpty())
 			  builder.addDnsServer(dns);
 		}
-		if (prefs.getRemoteDns()) {
+		if (bypass != null && bypass.isComplement()) {
+			for (KernelRoutes.Prefix route : bypass.getRoutes())
+			  builder.addRoute(route.getAddress(), route.getLength());
+		}
+		if (settings.getRemoteDns()) {
 			// Add mapped DNS servers based on enabled IP versions
-			if (prefs.getIpv4()) {
-				builder.addDnsServer(prefs.getMappedDns());
+			if (settings.getIpv4()) {
+				builder.addDnsServer(settings.getMappedDns());
 			}
-			if (prefs.getIpv6()) {
-				String mappedDns6 = prefs.getMapdnsAddress6();
+			if (settings.getIpv6()) {
+				String mappedDns6 = settings.getMapdnsAddress6();
 				if (!mappedDns6.isEmpty()) {
 					builder.addDnsServer(mappedDns6);
 				}
@@ -179,9 +296,12 @@ public class TProxyService extends VpnService {
 		}
 
 		boolean disallowSelf = true;
-		if (prefs.getGlobal()) {
-			// In global mode, exclude selected apps (blacklist)
-			for (String appName : prefs.getApps()) {
+		if (settings.getGlobal()) {
+			// In global mode, exclude selected apps (blacklist) and apps
+			// forced direct, which need nothing from the router
+			java.util.TreeSet<String> excluded = new java.util.TreeSet<String>(settings.getApps());
+			excluded.addAll(uidPolicies.getExcludedPackages());
+			for (String appName : excluded) {
 				try {
 					builder.addDisallowedApplication(appName);
 				} catch (NameNotFoundException e) {
@@ -189,7 +309,7 @@ public class TProxyService extends VpnService {
 			}
 		} else {
 			// In per-app mode, only selected apps use VPN (whitelist)
-			for (String appName : prefs.getApps()) {
+			for (String appName : settings.getApps()) {
 				try {
 					builder.addAllowedApplication(appName);
 					disallowSelf = false;
@@ -214,33 +334,28 @@ public class TProxyService extends VpnService {
 		}
 
 		/* TProxy */
-		File log_file = new File(getCacheDir(), "tunnel.log");
 		File tproxy_file = new File(getCacheDir(), "tproxy.conf");
-		try {
-			tproxy_file.createNewFile();
-			FileOutputStream fos = new FileOutputStream(tproxy_file, false);
-
-			ConfigGenerator configGen = new ConfigGenerator(prefs, log_file, getCacheDir());
-			String tproxy_conf = configGen.generate();
-
-			fos.write(tproxy_conf.getBytes());
-			fos.close();
-		} catch (IOException e) {
-			return;
-		}
 
 		try {
 			// Create notification FIRST (before starting native process)
 			// Android requires startForeground() to be called within 5 seconds
 			// or the system will kill the service
-			initNotificationChannel(channelName);
-			createNotification(channelName);
+			notifier = new TrafficNotifier(this, channelName, settings);
+			notifier.startForeground();
+
+			// Shared stats region (must exist before the tunnel starts)
+			openStatsRegion();
+			openAclCounters(aclTable);
+			openLedger();
+			ConnectionOwner.init(this);
 
 			// Start native service
-			TProxyStartService(tproxy_file.getAbsolutePath(), tunFd.getFd());
+			startTunnel(configGen, tproxy_file);
 
 			// Start traffic stats update
 			startStatsUpdate();
+			startMetricsServer(settings.getMetricsPort());
+			watchSettings();
 
 			// Set enable flag LAST (only if all previous steps succeeded)
 			// This ensures state consistency if any step fails
@@ -251,14 +366,317 @@ public class TProxyService extends VpnService {
 		}
 	}
 	
+	/**
+	 * Start the tunnel from the binary config, or from a YAML file if the
+	 * native library predates TProxyStartServiceBinary.
+	 */
+	private void startTunnel(ConfigGenerator configGen, File tproxy_file) throws IOException {
+		ByteBuffer config = configGen.generateBinary();
+		runningConfig = config;
+		aclStamp = getFileStamp("acl.txt");
+		chnroutesStamp = getFileStamp("chnroutes.txt");
+		profilesStamp = getProfilesStamp(uidPolicies);
+		try {
+			TProxyStartServiceBinary(config, tunFd.getFd());
+			// A stale YAML file would not match the running config; the
+			// log view regenerates it from preferences instead.
+			tproxy_file.delete();
+			return;
+		} catch (UnsatisfiedLinkError e) {
+		}
+
+		configGen.writeIfChanged(tproxy_file);
+		TProxyStartService(tproxy_file.getAbsolutePath(), tunFd.getFd());
+	}
+
+	/**
+	 * Apply changed settings to the running tunnel. Sections that can be
+	 * swapped in place go through TProxyReloadConfig and keep every live
+	 * session; anything else (or an older native library) restarts.
+	 * @param changedKeys preference keys the sender changed, or null to
+	 *                    find out by comparing configs
+	 */
+	private void reloadConfig(List<String> changedKeys) {
+		if (tunFd == null)
+		  return;
+
+		// Nothing saved and no rule file touched
+		if (changedKeys != null && changedKeys.isEmpty() &&
+		    getFileStamp("acl.txt") == aclStamp && getFileStamp("chnroutes.txt") == chnroutesStamp &&
+		    getProfilesStamp(uidPolicies) == profilesStamp)
+		  return;
+
+		Settings next = prefs.snapshot();
+		RouteTable routes = compileRoutes(next);
+		AclTable acl = compileAcl(next);
+		UidPolicyTable policies = compileAppPolicies(next);
+		File log_file = new File(getCacheDir(), "tunnel.log");
+		ConfigGenerator configGen = new ConfigGenerator(next, log_file, getCacheDir());
+		configGen.setUidPolicies(policies);
+		ByteBuffer config = configGen.generateBinary();
+		// Keep the running tunnel rather than restart into a bad config
+		ConfigValidator.Result result = new ConfigValidator(next).validate(config);
+		if (result.hasErrors()) {
+			showToast("配置无效，未加载: " + result.getFirstError());
+			return;
+		}
+
+		if (!getTunSignature(next, routes, policies).equals(runningTunSignature)) {
+			stopService(true);
+			return;
+		}
+		// The TUN keeps its bypass routes across a table update, which is
+		// only safe while the new table still holds all of them and no
+		// new ACL rule blocks an address inside them
+		if (runningBypass != null && (routes == null || !runningBypass.isCoveredBy(routes) ||
+		    !runningBypass.isClearOf(getBlockedAddresses(next, policies)))) {
+			stopService(true);
+			return;
+		}
+
+		int sections = BinaryConfig.diff(runningConfig, config);
+
+		// Rule files are re-read when their section is reloaded
+		long aclFileStamp = getFileStamp("acl.txt");
+		long chnroutes = getFileStamp("chnroutes.txt");
+		long profiles = getProfilesStamp(policies);
+		if (aclFileStamp != aclStamp)
+		  sections |= 1 << BinaryConfig.SECTION_ACL;
+		if (chnroutes != chnroutesStamp)
+		  sections |= 1 << BinaryConfig.SECTION_CHNROUTES;
+		if (profiles != profilesStamp)
+		  sections |= 1 << BinaryConfig.SECTION_APP_POLICY;
+
+		if (sections == 0)
+		  return;
+		// Only the route list changed: publish the new table to the
+		// running router instead of reloading the section
+		if (sections == 1 << BinaryConfig.SECTION_CHNROUTES && routes != null &&
+		    BinaryConfig.diff(runningConfig, config) == 0 && swapRouteTable()) {
+			chnroutesStamp = chnroutes;
+			showToast("路由表已更新");
+			return;
+		}
+		if ((sections & BinaryConfig.DIFF_COLD) != 0) {
+			stopService(true);
+			return;
+		}
+
+		boolean reloaded;
+		try {
+			reloaded = TProxyReloadConfig(config, sections);
+		} catch (UnsatisfiedLinkError e) {
+			reloaded = false;
+		}
+		if (!reloaded) {
+			stopService(true);
+			return;
+		}
+
+		// Rule ids moved with the new acl.txt, count into fresh counters
+		if ((sections & 1 << BinaryConfig.SECTION_ACL) != 0 && !sameTable(acl, aclTable))
+		  openAclCounters(acl);
+		aclTable = acl;
+		uidPolicies = policies;
+
+		settings = next;
+		runningConfig = config;
+		aclStamp = aclFileStamp;
+		chnroutesStamp = chnroutes;
+		profilesStamp = profiles;
+		showToast("配置已热加载");
+	}
+
+	/**
+	 * Everything VpnService.Builder is fed; a change needs a new TUN.
+	 * Kernel bypass routes are checked against the table separately.
+	 */
+	private String getTunSignature(Settings s, RouteTable routes, UidPolicyTable policies) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(s.getTunnelMtu()).append('|')
+		  .append(s.getIpv4()).append('|').append(s.getIpv6()).append('|')
+		  .append(s.getTunnelIpv4()).append('|').append(s.getTunnelIpv6()).append('|')
+		  .append(s.getDnsIpv4()).append('|').append(s.getDnsIpv6()).append('|')
+		  .append(s.getRemoteDns()).append('|').append(s.getMappedDns()).append('|')
+		  .append(s.getMapdnsAddress6()).append('|')
+		  .append(s.getBypassLan()).append('|').append(s.getGlobal()).append('|')
+		  .append(new java.util.TreeSet<String>(s.getApps())).append('|')
+		  .append(policies.getExcludedPackages());
+		if (routes != null && s.getKernelBypass() && !policies.needsAllTraffic()) {
+			sb.append('|').append(s.getKernelBypassLevel()).append('|').append(s.getKernelBypassBudget())
+			  .append('|').append(s.getDnsVirtualIp4()).append('|').append(s.getDnsVirtualIp6());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Bring chnroutes.bin up to date before the config points the native
+	 * router at it. Without a table the router parses chnroutes.txt.
+	 * @return the table, or null if chnroutes is off or unusable
+	 */
+	private RouteTable compileRoutes(Settings s) {
+		File text = new File(getCacheDir(), "chnroutes.txt");
+		File table = new File(getCacheDir(), RouteTable.FILE_NAME);
+		if (!s.getChnroutesEnabled())
+		  return null;
+		if (!text.exists()) {
+			table.delete();
+			return null;
+		}
+		try {
+			return RouteTable.compile(text, table);
+		} catch (IOException e) {
+			table.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Bring acl.bin up to date before the config points the native side
+	 * at it. Without a table the rules are read from acl.txt.
+	 * @return the table, or null if ACL is off or unusable
+	 */
+	private AclTable compileAcl(Settings s) {
+		File text = new File(getCacheDir(), "acl.txt");
+		File table = new File(getCacheDir(), AclTable.FILE_NAME);
+		if (!s.getAclEnabled())
+		  return null;
+		if (!text.exists()) {
+			table.delete();
+			return null;
+		}
+		try {
+			return AclTable.compile(text, table);
+		} catch (IOException e) {
+			table.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Resolve the per-app policies to UIDs and bring the acl-<profile>.bin
+	 * of every profile in use up to date, like compileAcl(). Profiles
+	 * apply whether or not the global ACL is enabled.
+	 */
+	private UidPolicyTable compileAppPolicies(Settings s) {
+		UidPolicyTable policies = UidPolicyTable.resolve(getPackageManager(), s);
+		for (String profile : policies.getProfiles()) {
+			File text = AppPolicy.getProfileFile(getCacheDir(), profile);
+			File table = AppPolicy.getProfileTableFile(getCacheDir(), profile);
+			if (!text.exists()) {
+				table.delete();
+				continue;
+			}
+			try {
+				AclTable.compile(text, table);
+			} catch (IOException e) {
+				table.delete();
+			}
+		}
+		return policies;
+	}
+
+	/**
+	 * Addresses blocked by acl.txt and the profiles in use, which the
+	 * kernel bypass must leave in the tunnel.
+	 */
+	private List<String> getBlockedAddresses(Settings s, UidPolicyTable policies) {
+		ArrayList<File> files = new ArrayList<File>();
+		if (s.getAclEnabled())
+		  files.add(new File(getCacheDir(), "acl.txt"));
+		for (String profile : policies.getProfiles())
+		  files.add(AppPolicy.getProfileFile(getCacheDir(), profile));
+
+		ArrayList<String> blocked = new ArrayList<String>();
+		for (File file : files) {
+			if (!file.exists())
+			  continue;
+			try {
+				blocked.addAll(AclTable.readBlockedAddresses(file));
+			} catch (IOException e) {
+				// Not compiled either, so no rule applies
+			}
+		}
+		return blocked;
+	}
+
+	/* Changes when any profile file in use is edited */
+	private long getProfilesStamp(UidPolicyTable policies) {
+		long stamp = 0;
+		for (String profile : policies.getProfiles())
+		  stamp = stamp * 31 + getFileStamp(AppPolicy.getProfileFile(getCacheDir(), profile).getName());
+		return stamp;
+	}
+
+	private static boolean sameTable(AclTable a, AclTable b) {
+		if (a == null || b == null)
+		  return a == b;
+		return Arrays.equals(a.getSourceHash(), b.getSourceHash());
+	}
+
+	/**
+	 * Hand the freshly written chnroutes.bin to the running router, which
+	 * maps it and publishes it with one pointer store; lookups in flight
+	 * finish on the old table. No session is touched.
+	 * @return false if the native library can't swap tables
+	 */
+	private boolean swapRouteTable() {
+		File table = new File(getCacheDir(), RouteTable.FILE_NAME);
+		try {
+			return TProxySwapRouteTable(table.getPath());
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * VpnService.Builder.excludeRoute (API 33) through reflection, like
+	 * the LAN bypass above.
+	 */
+	private static void excludeRoutes(VpnService.Builder builder, List<KernelRoutes.Prefix> prefixes) {
+		try {
+			Class<?> ipPrefixClass = Class.forName("android.net.IpPrefix");
+			java.lang.reflect.Constructor<?> ctor = ipPrefixClass.getConstructor(java.net.InetAddress.class, int.class);
+			java.lang.reflect.Method excludeRouteMethod = VpnService.Builder.class.getMethod("excludeRoute", ipPrefixClass);
+			for (KernelRoutes.Prefix prefix : prefixes) {
+				try {
+					excludeRouteMethod.invoke(builder, ctor.newInstance(prefix.getAddress(), prefix.getLength()));
+				} catch (Exception e) {
+					// Left to the native chnroutes check
+				}
+			}
+		} catch (Exception e) {
+		}
+	}
+
+	private long getFileStamp(String name) {
+		File file = new File(getCacheDir(), name);
+		return file.lastModified() * 31 + file.length();
+	}
+
 	public void stopService() {
+		stopService(false);
+	}
+
+	private void stopService(boolean restart) {
 		if (tunFd == null) {
 			showToast("服务未运行");
 			return;
 		}
 
-		// Stop traffic stats update
+		// Stop traffic stats update, then record what is left of this
+		// session before the process exits
 		stopStatsUpdate();
+		if (readStats(statsSnapshot))
+		  flushLedger();
+		if (settingsListener != null) {
+			prefs.unregisterOnChangeListener(settingsListener);
+			settingsListener = null;
+		}
+		if (metricsServer != null) {
+			metricsServer.stop();
+			metricsServer = null;
+		}
 
 		// Immediately remove notification and clear foreground state
 		stopForeground(true);
@@ -276,93 +694,28 @@ public class TProxyService extends VpnService {
 		}
 		tunFd = null;
 
-		sendBroadcast(new Intent("hev.sockstun.VPN_STOPPED"));
+		if (restart)
+		  scheduleRestart();
+		Intent stopped = new Intent("hev.sockstun.VPN_STOPPED");
+		stopped.putExtra(EXTRA_RESTART, restart);
+		sendBroadcast(stopped);
 		//stopSelf();
 		System.exit(0);
 	}
 
-	private void createNotification(String channelName) {
-		String modeInfo = getModeInfoString();
-		createNotification(channelName, "[" + modeInfo + "] ↑ --  ↓ --", null, null, null, null, true);
-	}
-
-	private String getModeInfoString() {
-		if (prefs == null) return "";
-		
-		String mode = prefs.getGlobal() ? getString(R.string.notif_mode_global) : getString(R.string.notif_mode_per_app);
-		String stack = "";
-		boolean v4 = prefs.getIpv4();
-		boolean v6 = prefs.getIpv6();
-		
-		if (v4 && v6) stack = getString(R.string.notif_stack_dual);
-		else if (v4) stack = getString(R.string.notif_stack_v4);
-		else if (v6) stack = getString(R.string.notif_stack_v6);
-		
-		return mode + " " + stack;
-	}
-
-	private void createNotification(String channelName, String contentText,
-	                                String bigText, String totalTx, String totalRx,
-	                                String packetInfo, boolean isFirstTime) {
-		Intent i = new Intent(this, MainActivity.class);
-		i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-		PendingIntent pi = PendingIntent.getActivity(this, 0, i, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-
-		// Logs Action
-		Intent logsIntent = new Intent(this, LogActivity.class);
-		logsIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-		PendingIntent logsPi = PendingIntent.getActivity(this, 1, logsIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-
-		// Blacklist Action
-		Intent blacklistIntent = new Intent(this, BlacklistActivity.class);
-		blacklistIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-		PendingIntent blacklistPi = PendingIntent.getActivity(this, 2, blacklistIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-
-		NotificationCompat.Builder notification = new NotificationCompat.Builder(this, channelName);
-
-		notification
-				.setContentTitle(getString(R.string.app_name))
-				.setContentText(contentText)
-				.setSmallIcon(android.R.drawable.sym_def_app_icon)
-				.setContentIntent(pi)
-				.setOngoing(true)
-				.setOnlyAlertOnce(true)
-				.addAction(0, getString(R.string.logs), logsPi)
-				.addAction(0, getString(R.string.blacklist), blacklistPi);
-
-		// Add big text style if detailed info is available
-		if (bigText != null) {
-			NotificationCompat.BigTextStyle bigTextStyle = new NotificationCompat.BigTextStyle();
-			bigTextStyle.bigText(bigText);
-			notification.setStyle(bigTextStyle);
-		}
-
-		Notification notify = notification.build();
-
-		if (isFirstTime) {
-			// First time - use startForeground
-			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-				startForeground(1, notify);
-			} else {
-				startForeground(1, notify, ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
-			}
-		} else {
-			// Update - use NotificationManager (no sound)
-			NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-			notificationManager.notify(1, notify);
-		}
-	}
-
-	// create NotificationChannel
-	private void initNotificationChannel(String channelName) {
-		NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-			CharSequence name = getString(R.string.app_name);
-			NotificationChannel channel = new NotificationChannel(channelName, name, NotificationManager.IMPORTANCE_LOW);
-			channel.setSound(null, null);
-			channel.enableVibration(false);
-			notificationManager.createNotificationChannel(channel);
-		}
+	/**
+	 * Connect again shortly after this process exits. The native tunnel
+	 * only starts once per process, so the restart can't happen here, and
+	 * it must not depend on MainActivity being around to do it.
+	 */
+	private void scheduleRestart() {
+		Intent intent = new Intent(this, TProxyService.class);
+		intent.setAction(ACTION_CONNECT);
+		intent.putExtra(EXTRA_RESTART, true);
+		PendingIntent pending = PendingIntent.getForegroundService(this, 0, intent,
+			PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+		AlarmManager alarms = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		alarms.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + RESTART_DELAY_MS, pending);
 	}
 
 	private void startStatsUpdate() {
@@ -371,95 +724,283 @@ public class TProxyService extends VpnService {
 			@Override
 			public void run() {
 				updateTrafficStats();
-				statsHandler.postDelayed(this, STATS_UPDATE_INTERVAL_MS);
+				statsHandler.postDelayed(this, statsInterval);
+			}
+		};
+
+		// Nobody can see the notification while the screen is off, so
+		// stop polling until it comes back on.
+		screenReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				statsHandler.removeCallbacks(statsRunnable);
+				if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+					statsInterval = STATS_UPDATE_INTERVAL_MS;
+					statsHandler.post(statsRunnable);
+				} else if (readStats(statsSnapshot)) {
+					flushLedger();
+				}
 			}
 		};
-		statsHandler.post(statsRunnable);
+		IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+		filter.addAction(Intent.ACTION_SCREEN_ON);
+		registerReceiver(screenReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+
+		statsInterval = STATS_UPDATE_INTERVAL_MS;
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		if (pm == null || pm.isInteractive())
+		  statsHandler.post(statsRunnable);
 	}
 
 	private void stopStatsUpdate() {
 		if (statsHandler != null && statsRunnable != null) {
 			statsHandler.removeCallbacks(statsRunnable);
 		}
+		if (screenReceiver != null) {
+			unregisterReceiver(screenReceiver);
+			screenReceiver = null;
+		}
 	}
 
-	private void updateTrafficStats() {
-		long[] stats = TProxyGetStats();
-		if (stats == null || stats.length < 4) {
+	/**
+	 * Apply settings that need no reload as soon as they are saved.
+	 */
+	private void watchSettings() {
+		settingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+			@Override
+			public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+				if (!Preferences.METRICS_PORT.equals(key))
+				  return;
+				if (metricsServer != null) {
+					metricsServer.stop();
+					metricsServer = null;
+				}
+				startMetricsServer(prefs.getMetricsPort());
+			}
+		};
+		prefs.registerOnChangeListener(settingsListener);
+	}
+
+	private void startMetricsServer(int port) {
+		if (port <= 0 || port > 65535)
+		  return;
+		metricsServer = new MetricsServer(getCacheDir(), port, new Runnable() {
+			@Override
+			public void run() {
+				refreshStatsMirror();
+			}
+		});
+		try {
+			metricsServer.start();
+		} catch (IOException e) {
+			// Metrics are optional, keep the tunnel running
+			metricsServer = null;
+			showToast("指标服务启动失败: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Bring the mirrored region up to date for a scrape. Called on the
+	 * metrics thread; the mirror is written on the main thread like the
+	 * stats loop, which is paused while the screen is off and backs off
+	 * to STATS_IDLE_INTERVAL_MS when idle.
+	 */
+	private void refreshStatsMirror() {
+		Handler handler = statsHandler;
+		if (nativeStats || statsRegion == null || handler == null)
+		  return;
+		FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return readStats(mirrorSnapshot);
+			}
+		});
+		handler.post(task);
+		try {
+			task.get(MIRROR_REFRESH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			// Served from the last mirror, its age is exported
+			task.cancel(false);
+		}
+	}
+
+	private void openStatsRegion() {
+		try {
+			statsRegion = StatsRegion.create(getCacheDir());
+		} catch (IOException e) {
+			statsRegion = null;
+			nativeStats = false;
+			return;
+		}
+
+		// Older native libraries can't publish into the region, fall back
+		// to mirroring TProxyGetStats() from here.
+		try {
+			nativeStats = TProxyAttachStats(statsRegion.getBuffer());
+		} catch (UnsatisfiedLinkError e) {
+			nativeStats = false;
+		}
+		statsRegion.setWriter(nativeStats ? StatsRegion.WRITER_NATIVE : StatsRegion.WRITER_JAVA);
+	}
+
+	/**
+	 * Map acl.shm for table and let the native tunnel count rule hits
+	 * into it. Counters nobody writes would show every rule as dead, so
+	 * without native support the file is removed.
+	 */
+	private void openAclCounters(AclTable table) {
+		File file = new File(getCacheDir(), AclCounters.FILE_NAME);
+		if (table == null) {
+			file.delete();
 			return;
 		}
 
-		long curTxPackets = stats[0];
-		long curTxBytes = stats[1];
-		long curRxPackets = stats[2];
-		long curRxBytes = stats[3];
-		long currentTime = System.currentTimeMillis();
-
-		String contentText;
-		String bigText = null;
-		String totalTx = null;
-		String totalRx = null;
-		String packetInfo = null;
-		String modeInfo = getModeInfoString();
-
-		if (lastTime > 0) {
-			long timeDelta = (currentTime - lastTime) / 1000;
-			if (timeDelta > 0) {
-				long txSpeed = (curTxBytes - lastTxBytes) / timeDelta;
-				long rxSpeed = (curRxBytes - lastRxBytes) / timeDelta;
-				long txPacketsRate = (curTxPackets - lastTxPackets) / timeDelta;
-				long rxPacketsRate = (curRxPackets - lastRxPackets) / timeDelta;
-
-				contentText = "[" + modeInfo + "] ↑ " + formatSpeed(txSpeed) + "  ↓ " + formatSpeed(rxSpeed);
-
-				// Build big text with detailed info
-				totalTx = formatBytes(curTxBytes);
-				totalRx = formatBytes(curRxBytes);
-				packetInfo = curTxPackets + " / " + curRxPackets;
-
-				bigText = getString(R.string.notif_upload_speed) + " " + formatSpeed(txSpeed) + "\n" +
-				          getString(R.string.notif_sent_data) + " " + totalTx + "\n" +
-				          getString(R.string.notif_sent_packets) + " " + curTxPackets + "\n\n" +
-				          getString(R.string.notif_download_speed) + " " + formatSpeed(rxSpeed) + "\n" +
-				          getString(R.string.notif_received_data) + " " + totalRx + "\n" +
-				          getString(R.string.notif_received_packets) + " " + curRxPackets;
-			} else {
-				contentText = "[" + modeInfo + "] ↑ --  ↓ --";
+		boolean attached;
+		try {
+			attached = TProxyAttachAclCounters(AclCounters.create(getCacheDir(), table).getBuffer());
+		} catch (IOException e) {
+			attached = false;
+		} catch (UnsatisfiedLinkError e) {
+			attached = false;
+		}
+		if (!attached)
+		  file.delete();
+	}
+
+	private void openLedger() {
+		try {
+			TrafficLedger.compact(getFilesDir(), System.currentTimeMillis());
+		} catch (IOException e) {
+			// Keep appending to the uncompacted ledger
+		}
+		ledger = new TrafficLedger(getFilesDir(), UID_STATS_CAPACITY);
+		lastLedgerFlush = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Append the traffic since the last flush (as of statsSnapshot) to
+	 * the persistent ledger.
+	 */
+	private void flushLedger() {
+		if (ledger == null)
+		  return;
+		lastLedgerFlush = SystemClock.elapsedRealtime();
+		boolean uids = refreshUidStats();
+		try {
+			ledger.append(TrafficLedger.epochDay(System.currentTimeMillis()),
+			              statsSnapshot[StatsRegion.SLOT_TX_BYTES],
+			              statsSnapshot[StatsRegion.SLOT_RX_BYTES],
+			              uids ? sessionUidTraffic : null);
+		} catch (IOException e) {
+			// Retried with the accumulated deltas on the next flush
+		}
+	}
+
+	private boolean readStats(long[] out) {
+		if (statsRegion == null || !nativeStats) {
+			long[] stats = TProxyGetStats();
+			if (stats == null || stats.length < 4)
+			  return false;
+			if (statsRegion == null) {
+				System.arraycopy(stats, 0, out, 0, 4);
+				return true;
 			}
-		} else {
-			contentText = "[" + modeInfo + "] ↑ --  ↓ --";
+			int uidEntries = collectUidStats();
+			statsRegion.beginWrite();
+			statsRegion.putSlot(StatsRegion.SLOT_TX_PACKETS, stats[0]);
+			statsRegion.putSlot(StatsRegion.SLOT_TX_BYTES, stats[1]);
+			statsRegion.putSlot(StatsRegion.SLOT_RX_PACKETS, stats[2]);
+			statsRegion.putSlot(StatsRegion.SLOT_RX_BYTES, stats[3]);
+			if (uidEntries >= 0)
+			  statsRegion.putUidEntries(uidTopEntries, uidEntries);
+			statsRegion.endWrite(System.currentTimeMillis());
 		}
 
-		lastTxPackets = curTxPackets;
-		lastTxBytes = curTxBytes;
-		lastRxPackets = curRxPackets;
-		lastRxBytes = curRxBytes;
-		lastTime = currentTime;
+		return statsRegion.read(out);
+	}
 
-		// Update notification with big text
-		createNotification(channelName, contentText, bigText, totalTx, totalRx, packetInfo, false);
+	/**
+	 * Fetch the native per-UID table and keep the heaviest entries in
+	 * uidTopEntries for publishing.
+	 * @return number of entries, or -1 if the native side has no UID stats
+	 */
+	private int collectUidStats() {
+		if (!refreshUidStats())
+		  return -1;
+		return sessionUidTraffic.packTop(uidTopEntries, StatsRegion.UID_CAPACITY);
 	}
 
-	private String formatSpeed(long bytesPerSecond) {
-		if (bytesPerSecond < 1024) {
-			return bytesPerSecond + " B/s";
-		} else if (bytesPerSecond < 1024 * 1024) {
-			return String.format("%.1f KB/s", bytesPerSecond / 1024.0);
-		} else {
-			return String.format("%.1f MB/s", bytesPerSecond / (1024.0 * 1024.0));
+	/**
+	 * Refill sessionUidTraffic from the native per-UID table.
+	 * @return false if the native side has no UID stats
+	 */
+	private boolean refreshUidStats() {
+		if (!uidStatsSupported)
+		  return false;
+		if (sessionUidTraffic == null)
+		  sessionUidTraffic = new UidTraffic(UID_STATS_CAPACITY);
+
+		int count;
+		try {
+			count = TProxyGetUidStats(sessionUidTraffic.getEntries());
+		} catch (UnsatisfiedLinkError e) {
+			uidStatsSupported = false;
+			return false;
 		}
+		sessionUidTraffic.aggregate(count);
+		return true;
 	}
 
-	private String formatBytes(long bytes) {
-		if (bytes < 1024) {
-			return bytes + " B";
-		} else if (bytes < 1024 * 1024) {
-			return String.format("%.1f KB", bytes / 1024.0);
-		} else if (bytes < 1024 * 1024 * 1024) {
-			return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
-		} else {
-			return String.format("%.1f GB", bytes / (1024.0 * 1024.0 * 1024.0));
+	private UidTraffic readTopApps() {
+		if (statsRegion == null)
+		  return null;
+		int count = statsRegion.readUidEntries(uidTraffic.getEntries());
+		if (count <= 0)
+		  return null;
+		uidTraffic.aggregate(count);
+		return uidTraffic;
+	}
+
+	private void updateTrafficStats() {
+		if (!readStats(statsSnapshot)) {
+			return;
+		}
+
+		long curTxPackets = statsSnapshot[StatsRegion.SLOT_TX_PACKETS];
+		long curTxBytes = statsSnapshot[StatsRegion.SLOT_TX_BYTES];
+		long curRxPackets = statsSnapshot[StatsRegion.SLOT_RX_PACKETS];
+		long curRxBytes = statsSnapshot[StatsRegion.SLOT_RX_BYTES];
+		long currentTime = SystemClock.elapsedRealtime();
+		trafficHistory.addSample(currentTime, curTxBytes, curRxBytes);
+
+		// Back off while idle, snap back as soon as bytes move again
+		boolean changed = curTxBytes != lastTxBytes || curRxBytes != lastRxBytes;
+		if (changed)
+		  statsInterval = STATS_UPDATE_INTERVAL_MS;
+		else
+		  statsInterval = Math.min(statsInterval * 2, STATS_IDLE_INTERVAL_MS);
+
+		long timeDelta = currentTime - lastTime;
+		if (lastTime > 0 && timeDelta > 0) {
+			// An idle notification (zero rates, same totals) only needs
+			// to be posted once.
+			if (changed || !idleNotified) {
+				long txSpeed = (curTxBytes - lastTxBytes) * 1000 / timeDelta;
+				long rxSpeed = (curRxBytes - lastRxBytes) * 1000 / timeDelta;
+				notifier.update(txSpeed, rxSpeed, curTxBytes, curRxBytes,
+				                curTxPackets, curRxPackets, trafficHistory, readTopApps());
+				idleNotified = !changed;
+			}
 		}
+
+		lastTxPackets = curTxPackets;
+		lastTxBytes = curTxBytes;
+		lastRxPackets = curRxPackets;
+		lastRxBytes = curRxBytes;
+		lastTime = currentTime;
+
+		if (currentTime - lastLedgerFlush >= LEDGER_FLUSH_INTERVAL_MS)
+		  flushLedger();
 	}
 
 	private void showToast(final String message) {
@@ -0,0 +1,74 @@
+/*
+ ============================================================================
+ Name        : TrafficFormat.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Traffic Formatting Helpers
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+/**
+ * Human readable byte and rate formatting shared by the service and the UI.
+ * Kept free of native dependencies so UI processes can use it without
+ * loading the tunnel library.
+ */
+public final class TrafficFormat {
+	private TrafficFormat() {
+	}
+
+	private static final long KB = 1024;
+	private static final long MB = 1024 * KB;
+	private static final long GB = 1024 * MB;
+
+	public static String formatSpeed(long bytesPerSecond) {
+		return appendSpeed(new StringBuilder(16), bytesPerSecond).toString();
+	}
+
+	/**
+	 * Append a rate such as "12.3 KB/s" without going through
+	 * String.format, so hot paths can reuse one buffer.
+	 */
+	public static StringBuilder appendSpeed(StringBuilder sb, long bytesPerSecond) {
+		if (bytesPerSecond < KB) {
+			return sb.append(bytesPerSecond).append(" B/s");
+		} else if (bytesPerSecond < MB) {
+			return appendTenths(sb, bytesPerSecond, KB).append(" KB/s");
+		} else {
+			return appendTenths(sb, bytesPerSecond, MB).append(" MB/s");
+		}
+	}
+
+	public static String formatLatency(long us) {
+		if (us < 1000) {
+			return us + " µs";
+		} else if (us < 1000 * 1000) {
+			return String.format("%.1f ms", us / 1000.0);
+		} else {
+			return String.format("%.2f s", us / (1000.0 * 1000.0));
+		}
+	}
+
+	public static String formatBytes(long bytes) {
+		return appendBytes(new StringBuilder(16), bytes).toString();
+	}
+
+	public static StringBuilder appendBytes(StringBuilder sb, long bytes) {
+		if (bytes < KB) {
+			return sb.append(bytes).append(" B");
+		} else if (bytes < MB) {
+			return appendTenths(sb, bytes, KB).append(" KB");
+		} else if (bytes < GB) {
+			return appendTenths(sb, bytes, MB).append(" MB");
+		} else {
+			return appendTenths(sb, bytes, GB).append(" GB");
+		}
+	}
+
+	/* value / unit rounded to one decimal, e.g. "1.5" */
+	private static StringBuilder appendTenths(StringBuilder sb, long value, long unit) {
+		long tenths = (value * 10 + unit / 2) / unit;
+		return sb.append(tenths / 10).append('.').append((char) ('0' + tenths % 10));
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ ============================================================================
+ Name        : TrafficGraphView.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Throughput Graph View
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Draws upload/download rate lines from caller-owned sample arrays.
+ * Paths and paints are reused across frames.
+ */
+public class TrafficGraphView extends View {
+	private static final int COLOR_TX = 0xFFFF9800;
+	private static final int COLOR_RX = 0xFF2196F3;
+	private static final int COLOR_GRID = 0x40808080;
+	private static final int GRID_LINES = 4;
+
+	private final Paint txPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint rxPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint gridPaint = new Paint();
+	private final Path txPath = new Path();
+	private final Path rxPath = new Path();
+
+	private float[] tx;
+	private float[] rx;
+	private int count;
+	private int capacity;
+
+	public TrafficGraphView(Context context) {
+		super(context);
+		init();
+	}
+
+	public TrafficGraphView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	private void init() {
+		float density = getResources().getDisplayMetrics().density;
+		txPaint.setColor(COLOR_TX);
+		txPaint.setStyle(Paint.Style.STROKE);
+		txPaint.setStrokeWidth(1.5f * density);
+		rxPaint.setColor(COLOR_RX);
+		rxPaint.setStyle(Paint.Style.STROKE);
+		rxPaint.setStrokeWidth(1.5f * density);
+		gridPaint.setColor(COLOR_GRID);
+		gridPaint.setStrokeWidth(density);
+	}
+
+	/**
+	 * @param capacity number of samples spanning the full width
+	 */
+	public void setData(float[] tx, float[] rx, int count, int capacity) {
+		this.tx = tx;
+		this.rx = rx;
+		this.count = count;
+		this.capacity = capacity;
+		invalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+
+		float w = getWidth() - getPaddingLeft() - getPaddingRight();
+		float h = getHeight() - getPaddingTop() - getPaddingBottom();
+		float left = getPaddingLeft();
+		float top = getPaddingTop();
+
+		for (int i = 0; i <= GRID_LINES; i++) {
+			float y = top + h * i / GRID_LINES;
+			canvas.drawLine(left, y, left + w, y, gridPaint);
+		}
+
+		if (tx == null || count < 2 || capacity < 2)
+		  return;
+
+		float max = 1;
+		for (int i = 0; i < count; i++) {
+			if (tx[i] > max)
+			  max = tx[i];
+			if (rx[i] > max)
+			  max = rx[i];
+		}
+
+		// Newest sample is at the right edge
+		float step = w / (capacity - 1);
+		float x0 = left + w - step * (count - 1);
+		buildPath(txPath, tx, x0, step, top, h, max);
+		buildPath(rxPath, rx, x0, step, top, h, max);
+		canvas.drawPath(rxPath, rxPaint);
+		canvas.drawPath(txPath, txPaint);
+	}
+
+	private void buildPath(Path path, float[] values, float x0, float step,
+	                       float top, float h, float max) {
+		path.rewind();
+		for (int i = 0; i < count; i++) {
+			float x = x0 + step * i;
+			float y = top + h - (values[i] / max) * h;
+			if (i == 0)
+			  path.moveTo(x, y);
+			else
+			  path.lineTo(x, y);
+		}
+	}
+}
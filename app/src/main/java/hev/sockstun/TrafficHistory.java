@@ -0,0 +1,216 @@
+/*
+ ============================================================================
+ Name        : TrafficHistory.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Fixed-size Throughput Time-series
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+/**
+ * Constant-memory throughput history with three tiers:
+ * per-second (last 5 minutes), per-minute (last hour) and per-hour
+ * (last day). Every full bucket of a tier is averaged into the next one.
+ *
+ * All storage is allocated up front; addSample() never allocates.
+ */
+public class TrafficHistory {
+	public static final int TIER_SECONDS = 0;
+	public static final int TIER_MINUTES = 1;
+	public static final int TIER_HOURS = 2;
+
+	private static final int[] TIER_SIZES = { 300, 60, 24 };
+	private static final int BUCKET_FANOUT = 60;
+
+	private static class Tier {
+		final long[] tx;
+		final long[] rx;
+		final long[] txPeak;
+		final long[] rxPeak;
+		int head;
+		int count;
+
+		// Accumulator for the bucket being built from the tier below
+		long accTx;
+		long accRx;
+		long accTxPeak;
+		long accRxPeak;
+		int accCount;
+
+		Tier(int size) {
+			tx = new long[size];
+			rx = new long[size];
+			txPeak = new long[size];
+			rxPeak = new long[size];
+		}
+
+		void push(long txRate, long rxRate, long txMax, long rxMax) {
+			tx[head] = txRate;
+			rx[head] = rxRate;
+			txPeak[head] = txMax;
+			rxPeak[head] = rxMax;
+			head = (head + 1) % tx.length;
+			if (count < tx.length)
+			  count++;
+		}
+
+		void clear() {
+			head = 0;
+			count = 0;
+			accTx = accRx = accTxPeak = accRxPeak = 0;
+			accCount = 0;
+		}
+	}
+
+	private final Tier[] tiers;
+
+	private long lastTime;
+	private long lastTxBytes;
+	private long lastRxBytes;
+	private long carryMillis;
+	private long peakTx;
+	private long peakRx;
+
+	public TrafficHistory() {
+		tiers = new Tier[TIER_SIZES.length];
+		for (int i = 0; i < tiers.length; i++)
+		  tiers[i] = new Tier(TIER_SIZES[i]);
+	}
+
+	public synchronized void reset() {
+		for (Tier t : tiers)
+		  t.clear();
+		lastTime = 0;
+		lastTxBytes = 0;
+		lastRxBytes = 0;
+		carryMillis = 0;
+		peakTx = 0;
+		peakRx = 0;
+	}
+
+	/**
+	 * Feed cumulative byte counters sampled at timeMs. The rate since the
+	 * previous sample is spread over every whole second that elapsed, so
+	 * irregular sampling intervals still produce one slot per second.
+	 */
+	public synchronized void addSample(long timeMs, long txBytes, long rxBytes) {
+		if (lastTime == 0 || timeMs <= lastTime || txBytes < lastTxBytes || rxBytes < lastRxBytes) {
+			lastTime = timeMs;
+			lastTxBytes = txBytes;
+			lastRxBytes = rxBytes;
+			carryMillis = 0;
+			return;
+		}
+
+		long elapsed = timeMs - lastTime + carryMillis;
+		long seconds = elapsed / 1000;
+		if (seconds == 0) {
+			return;
+		}
+
+		long txRate = (txBytes - lastTxBytes) / seconds;
+		long rxRate = (rxBytes - lastRxBytes) / seconds;
+		if (txRate > peakTx)
+		  peakTx = txRate;
+		if (rxRate > peakRx)
+		  peakRx = rxRate;
+
+		// Gaps longer than the whole history only need to fill it once
+		long max = (long) TIER_SIZES[TIER_HOURS] * BUCKET_FANOUT * BUCKET_FANOUT;
+		for (long i = Math.min(seconds, max); i > 0; i--)
+		  pushSecond(txRate, rxRate);
+
+		carryMillis = elapsed % 1000;
+		lastTime = timeMs;
+		lastTxBytes = txBytes;
+		lastRxBytes = rxBytes;
+	}
+
+	private void pushSecond(long txRate, long rxRate) {
+		tiers[TIER_SECONDS].push(txRate, rxRate, txRate, rxRate);
+		cascade(TIER_SECONDS, txRate, rxRate, txRate, rxRate);
+	}
+
+	private void cascade(int level, long txRate, long rxRate, long txMax, long rxMax) {
+		if (level + 1 >= tiers.length)
+		  return;
+		Tier up = tiers[level + 1];
+		up.accTx += txRate;
+		up.accRx += rxRate;
+		if (txMax > up.accTxPeak)
+		  up.accTxPeak = txMax;
+		if (rxMax > up.accRxPeak)
+		  up.accRxPeak = rxMax;
+		if (++up.accCount < BUCKET_FANOUT)
+		  return;
+
+		long tx = up.accTx / BUCKET_FANOUT;
+		long rx = up.accRx / BUCKET_FANOUT;
+		long txPeak = up.accTxPeak;
+		long rxPeak = up.accRxPeak;
+		up.push(tx, rx, txPeak, rxPeak);
+		up.accTx = up.accRx = up.accTxPeak = up.accRxPeak = 0;
+		up.accCount = 0;
+		cascade(level + 1, tx, rx, txPeak, rxPeak);
+	}
+
+	public static int getTierSize(int tier) {
+		return TIER_SIZES[tier];
+	}
+
+	public synchronized int getCount(int tier) {
+		return tiers[tier].count;
+	}
+
+	/**
+	 * Copy a tier, oldest first, into caller-owned arrays sized
+	 * getTierSize(tier).
+	 * @return number of valid samples
+	 */
+	public synchronized int copy(int tier, float[] tx, float[] rx) {
+		Tier t = tiers[tier];
+		int size = t.tx.length;
+		int start = (t.head - t.count + size) % size;
+		for (int i = 0; i < t.count; i++) {
+			int idx = (start + i) % size;
+			tx[i] = t.tx[idx];
+			rx[i] = t.rx[idx];
+		}
+		return t.count;
+	}
+
+	/**
+	 * Highest per-second upload rate over the span of a tier.
+	 */
+	public synchronized long getPeakTx(int tier) {
+		Tier t = tiers[tier];
+		return Math.max(maxOf(t.txPeak, t.count), t.accTxPeak);
+	}
+
+	public synchronized long getPeakRx(int tier) {
+		Tier t = tiers[tier];
+		return Math.max(maxOf(t.rxPeak, t.count), t.accRxPeak);
+	}
+
+	private static long maxOf(long[] values, int count) {
+		long max = 0;
+		for (int i = 0; i < count; i++) {
+			if (values[i] > max)
+			  max = values[i];
+		}
+		return max;
+	}
+
+	/**
+	 * Highest per-second rates since the last reset().
+	 */
+	public synchronized long getSessionPeakTx() {
+		return peakTx;
+	}
+
+	public synchronized long getSessionPeakRx() {
+		return peakRx;
+	}
+}
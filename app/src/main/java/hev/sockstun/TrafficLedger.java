@@ -0,0 +1,412 @@
+/*
+ ============================================================================
+ Name        : TrafficLedger.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Persistent Traffic Ledger
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Append-only binary ledger of traffic per local day and per app, kept
+ * in the files directory so it survives the service's System.exit().
+ *
+ * Layout (little-endian):
+ *   0  u32 magic
+ *   4  u32 version
+ *   8  u64 file size after the last compaction, 0 if never compacted
+ *  16  records[], RECORD_SIZE bytes each:
+ *        i32 day (days since epoch, local time)
+ *        i32 uid (UID_TOTAL for the whole tunnel)
+ *        i32 route class
+ *        i32 reserved
+ *        i64 tx bytes
+ *        i64 rx bytes
+ *
+ * Records hold deltas since the previous append, so summing the records
+ * of a day range gives its totals. The writer turns the cumulative
+ * session counters into deltas and writes each batch with one call.
+ *
+ * compact() keeps the file in proportion to what it holds: it runs once
+ * the file has grown GROWTH_RATIO times past its last compacted size,
+ * merges records and drops whole months older than RETENTION_MONTHS.
+ */
+public class TrafficLedger {
+	public static final String FILE_NAME = "traffic.ledger";
+	public static final int UID_TOTAL = -1;
+
+	private static final int MAGIC = 0x5447444c;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 32;
+	private static final int READ_CHUNK = RECORD_SIZE * 2048;
+	private static final long MIN_COMPACT_SIZE = 64 * 1024;
+	private static final int GROWTH_RATIO = 2;
+	/* Whole months kept before the current one */
+	public static final int RETENTION_MONTHS = 12;
+	private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+	private final File file;
+	private final ByteBuffer batch;
+
+	// Cumulative counters covered by the records written so far
+	private long flushedTx;
+	private long flushedRx;
+	private final int[] flushedUids;
+	private final int[] flushedRoutes;
+	private final long[] flushedUidTx;
+	private final long[] flushedUidRx;
+	private int flushedCount;
+
+	/**
+	 * @param capacity maximum (uid, route class) pairs tracked per session
+	 */
+	public TrafficLedger(File dir, int capacity) {
+		file = new File(dir, FILE_NAME);
+		batch = ByteBuffer.allocate(HEADER_SIZE + (capacity + 1) * RECORD_SIZE);
+		batch.order(ByteOrder.LITTLE_ENDIAN);
+		flushedUids = new int[capacity];
+		flushedRoutes = new int[capacity];
+		flushedUidTx = new long[capacity];
+		flushedUidRx = new long[capacity];
+	}
+
+	public static int epochDay(long timeMs) {
+		return (int) ((timeMs + TimeZone.getDefault().getOffset(timeMs)) / DAY_MS);
+	}
+
+	/**
+	 * First day kept by compact(): the first of the month RETENTION_MONTHS
+	 * before the one of timeMs.
+	 */
+	public static int retentionStart(long timeMs) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(timeMs);
+		cal.set(Calendar.DAY_OF_MONTH, 1);
+		cal.add(Calendar.MONTH, -RETENTION_MONTHS);
+		return epochDay(cal.getTimeInMillis());
+	}
+
+	/**
+	 * Append the traffic accumulated since the last call.
+	 * @param txBytes cumulative tunnel tx bytes of this session
+	 * @param rxBytes cumulative tunnel rx bytes of this session
+	 * @param uids cumulative per-UID session counters, or null
+	 */
+	public void append(int day, long txBytes, long rxBytes, UidTraffic uids) throws IOException {
+		batch.clear();
+		long length = file.length();
+		boolean fresh = length < HEADER_SIZE;
+		if (fresh) {
+			batch.putInt(MAGIC);
+			batch.putInt(VERSION);
+			batch.putLong(0);
+		}
+
+		// Counters only go backwards when the tunnel restarted
+		if (txBytes < flushedTx || rxBytes < flushedRx)
+		  flushedTx = flushedRx = 0;
+		putRecord(day, UID_TOTAL, 0, txBytes - flushedTx, rxBytes - flushedRx);
+		flushedTx = txBytes;
+		flushedRx = rxBytes;
+
+		if (uids != null) {
+			long[] entries = uids.getEntries();
+			for (int i = 0; i < uids.getEntryCount(); i++) {
+				int base = i * UidTraffic.ENTRY_LONGS;
+				int uid = (int) entries[base + UidTraffic.FIELD_UID];
+				int route = (int) entries[base + UidTraffic.FIELD_ROUTE];
+				long tx = entries[base + UidTraffic.FIELD_TX_BYTES];
+				long rx = entries[base + UidTraffic.FIELD_RX_BYTES];
+
+				int idx = indexOf(uid, route);
+				if (idx < 0) {
+					if (flushedCount == flushedUids.length)
+					  continue;
+					idx = flushedCount++;
+					flushedUids[idx] = uid;
+					flushedRoutes[idx] = route;
+					flushedUidTx[idx] = 0;
+					flushedUidRx[idx] = 0;
+				}
+				if (tx < flushedUidTx[idx] || rx < flushedUidRx[idx])
+				  flushedUidTx[idx] = flushedUidRx[idx] = 0;
+				putRecord(day, uid, route, tx - flushedUidTx[idx], rx - flushedUidRx[idx]);
+				flushedUidTx[idx] = tx;
+				flushedUidRx[idx] = rx;
+			}
+		}
+
+		if (batch.position() == (fresh ? HEADER_SIZE : 0))
+		  return;
+		batch.flip();
+		FileOutputStream fos = new FileOutputStream(file, !fresh);
+		try {
+			FileChannel channel = fos.getChannel();
+			// Drop a record torn by a crash so later ones stay aligned
+			long torn = fresh ? 0 : (length - HEADER_SIZE) % RECORD_SIZE;
+			if (torn != 0)
+			  channel.truncate(length - torn);
+			while (batch.hasRemaining())
+			  channel.write(batch);
+		} finally {
+			fos.close();
+		}
+	}
+
+	private void putRecord(int day, int uid, int route, long tx, long rx) {
+		if (tx == 0 && rx == 0)
+		  return;
+		batch.putInt(day);
+		batch.putInt(uid);
+		batch.putInt(route);
+		batch.putInt(0);
+		batch.putLong(tx);
+		batch.putLong(rx);
+	}
+
+	private int indexOf(int uid, int route) {
+		for (int i = 0; i < flushedCount; i++) {
+			if (flushedUids[i] == uid && flushedRoutes[i] == route)
+			  return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Totals over a range of days.
+	 */
+	public static class Summary {
+		public long txBytes;
+		public long rxBytes;
+		/* Per-UID totals, sorted by total bytes */
+		public UidTraffic apps;
+	}
+
+	private interface RecordVisitor {
+		void visit(int day, int uid, int route, long tx, long rx);
+	}
+
+	/**
+	 * Sum all records with fromDay <= day <= toDay.
+	 */
+	public static Summary summarize(File dir, final int fromDay, final int toDay) throws IOException {
+		final Summary summary = new Summary();
+		final Rows rows = new Rows();
+
+		scan(new File(dir, FILE_NAME), new RecordVisitor() {
+			@Override
+			public void visit(int day, int uid, int route, long tx, long rx) {
+				if (day < fromDay || day > toDay)
+				  return;
+				if (uid == UID_TOTAL) {
+					summary.txBytes += tx;
+					summary.rxBytes += rx;
+					return;
+				}
+				rows.add(((long) uid << 32) | (route & 0xffffffffL), 0, uid, route, tx, rx);
+			}
+		});
+
+		int count = rows.size();
+		summary.apps = new UidTraffic(Math.max(count, 1));
+		long[] entries = summary.apps.getEntries();
+		for (int i = 0; i < count; i++) {
+			int base = i * UidTraffic.ENTRY_LONGS;
+			int row = i * Rows.ROW_LONGS;
+			entries[base + UidTraffic.FIELD_UID] = rows.values[row + Rows.UID];
+			entries[base + UidTraffic.FIELD_ROUTE] = rows.values[row + Rows.ROUTE];
+			entries[base + UidTraffic.FIELD_TX_BYTES] = rows.values[row + Rows.TX];
+			entries[base + UidTraffic.FIELD_RX_BYTES] = rows.values[row + Rows.RX];
+		}
+		summary.apps.aggregate(count);
+		return summary;
+	}
+
+	/**
+	 * Merge records of the same (day, uid, route class) and drop days
+	 * before retentionStart(nowMs), once the file has grown GROWTH_RATIO
+	 * times past its size after the last compaction (and MIN_COMPACT_SIZE).
+	 * Totals over any kept day range are unchanged. A ledger with an
+	 * unknown header is dropped so appends stay readable.
+	 */
+	public static void compact(File dir, long nowMs) throws IOException {
+		File src = new File(dir, FILE_NAME);
+		long length = src.length();
+		if (length < HEADER_SIZE)
+		  return;
+		long compacted = readCompactedSize(src);
+		if (compacted < 0) {
+			src.delete();
+			return;
+		}
+		if (length < Math.max(compacted * GROWTH_RATIO, MIN_COMPACT_SIZE))
+		  return;
+
+		final int horizon = retentionStart(nowMs);
+		final Rows rows = new Rows();
+		scan(src, new RecordVisitor() {
+			@Override
+			public void visit(int day, int uid, int route, long tx, long rx) {
+				if (day < horizon)
+				  return;
+				// uid in the high bits, then day, then the 2-bit route class
+				long key = ((long) uid << 32) | ((long) (day & 0x3fffffff) << 2) | (route & 3);
+				rows.add(key, day, uid, route, tx, rx);
+			}
+		});
+
+		File tmp = new File(dir, FILE_NAME + ".tmp");
+		ByteBuffer buf = ByteBuffer.allocate(READ_CHUNK);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		FileOutputStream fos = new FileOutputStream(tmp, false);
+		try {
+			FileChannel channel = fos.getChannel();
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putLong(HEADER_SIZE + (long) rows.size() * RECORD_SIZE);
+			for (int i = 0; i < rows.size(); i++) {
+				if (buf.remaining() < RECORD_SIZE) {
+					buf.flip();
+					while (buf.hasRemaining())
+					  channel.write(buf);
+					buf.clear();
+				}
+				int row = i * Rows.ROW_LONGS;
+				buf.putInt((int) rows.values[row + Rows.DAY]);
+				buf.putInt((int) rows.values[row + Rows.UID]);
+				buf.putInt((int) rows.values[row + Rows.ROUTE]);
+				buf.putInt(0);
+				buf.putLong(rows.values[row + Rows.TX]);
+				buf.putLong(rows.values[row + Rows.RX]);
+			}
+			buf.flip();
+			while (buf.hasRemaining())
+			  channel.write(buf);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(src))
+		  throw new IOException("rename " + tmp + " failed");
+	}
+
+	/**
+	 * @return the compacted size from the header, or -1 if the file has
+	 *         an unknown header
+	 */
+	private static long readCompactedSize(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			FileChannel channel = fis.getChannel();
+			while (buf.hasRemaining()) {
+				if (channel.read(buf) <= 0)
+				  break;
+			}
+			if (buf.position() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+			  return -1;
+			return buf.getLong(8);
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Feed every record to visitor.
+	 * @return false if the file is missing or has an unknown header
+	 */
+	private static boolean scan(File file, RecordVisitor visitor) throws IOException {
+		if (!file.exists())
+		  return false;
+
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(READ_CHUNK);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+
+			buf.limit(HEADER_SIZE);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf) <= 0)
+				  break;
+			}
+			if (buf.position() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+			  return false;
+
+			buf.clear();
+			while (channel.read(buf) > 0) {
+				buf.flip();
+				while (buf.remaining() >= RECORD_SIZE) {
+					int day = buf.getInt();
+					int uid = buf.getInt();
+					int route = buf.getInt();
+					buf.getInt();
+					long tx = buf.getLong();
+					long rx = buf.getLong();
+					visitor.visit(day, uid, route, tx, rx);
+				}
+				// A partial record waits for the next read; a torn one at
+				// the end of the file is ignored.
+				buf.compact();
+			}
+		} finally {
+			fis.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Growable table of records merged by key.
+	 */
+	private static class Rows {
+		static final int DAY = 0;
+		static final int UID = 1;
+		static final int ROUTE = 2;
+		static final int TX = 3;
+		static final int RX = 4;
+		static final int ROW_LONGS = 5;
+
+		private final HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+		long[] values = new long[64 * ROW_LONGS];
+		private int count;
+
+		int size() {
+			return count;
+		}
+
+		void add(long key, int day, int uid, int route, long tx, long rx) {
+			Integer idx = index.get(key);
+			if (idx == null) {
+				if ((count + 1) * ROW_LONGS > values.length) {
+					long[] grown = new long[values.length * 2];
+					System.arraycopy(values, 0, grown, 0, values.length);
+					values = grown;
+				}
+				idx = count++;
+				index.put(key, idx);
+				int row = idx * ROW_LONGS;
+				values[row + DAY] = day;
+				values[row + UID] = uid;
+				values[row + ROUTE] = route;
+			}
+			int row = idx * ROW_LONGS;
+			values[row + TX] += tx;
+			values[row + RX] += rx;
+		}
+	}
+}
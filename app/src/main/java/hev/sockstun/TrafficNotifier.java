@@ -0,0 +1,199 @@
+/*
+ ============================================================================
+ Name        : TrafficNotifier.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Foreground Traffic Notification
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import java.util.HashMap;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+
+import androidx.core.app.NotificationCompat;
+
+/**
+ * Owns the foreground notification of TProxyService.
+ *
+ * The builder, pending intents, style and resource strings are created
+ * once per session. Each update formats into two reused buffers and
+ * compares them with the texts last posted; only a change builds and
+ * posts a notification, with immutable copies of the texts since the
+ * builder keeps what it is given.
+ */
+public class TrafficNotifier {
+	private static final int NOTIFICATION_ID = 1;
+	private static final int TOP_APPS = 3;
+
+	private final Service service;
+	private final NotificationManager notificationManager;
+	private final NotificationCompat.Builder builder;
+	private final NotificationCompat.BigTextStyle bigTextStyle;
+
+	private final StringBuilder contentText = new StringBuilder(64);
+	private final StringBuilder bigText = new StringBuilder(512);
+	private String postedContentText;
+	private String postedBigText;
+	private final HashMap<Integer, String> uidLabels = new HashMap<Integer, String>();
+
+	private final String modeInfo;
+	private final String uploadSpeed;
+	private final String sentData;
+	private final String sentPackets;
+	private final String downloadSpeed;
+	private final String receivedData;
+	private final String receivedPackets;
+	private final String peak;
+	private final String topApps;
+
+	public TrafficNotifier(Service service, String channelName, Settings settings) {
+		this.service = service;
+		notificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+			CharSequence name = service.getString(R.string.app_name);
+			NotificationChannel channel = new NotificationChannel(channelName, name, NotificationManager.IMPORTANCE_LOW);
+			channel.setSound(null, null);
+			channel.enableVibration(false);
+			notificationManager.createNotificationChannel(channel);
+		}
+
+		modeInfo = getModeInfoString(settings);
+		uploadSpeed = service.getString(R.string.notif_upload_speed);
+		sentData = service.getString(R.string.notif_sent_data);
+		sentPackets = service.getString(R.string.notif_sent_packets);
+		downloadSpeed = service.getString(R.string.notif_download_speed);
+		receivedData = service.getString(R.string.notif_received_data);
+		receivedPackets = service.getString(R.string.notif_received_packets);
+		peak = service.getString(R.string.stats_peak);
+		topApps = service.getString(R.string.notif_top_apps);
+
+		Intent i = new Intent(service, MainActivity.class);
+		i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+		PendingIntent pi = PendingIntent.getActivity(service, 0, i, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+		builder = new NotificationCompat.Builder(service, channelName);
+		builder.setContentTitle(service.getString(R.string.app_name))
+		       .setSmallIcon(android.R.drawable.sym_def_app_icon)
+		       .setContentIntent(pi)
+		       .setOngoing(true)
+		       .setOnlyAlertOnce(true)
+		       .setShowWhen(false)
+		       .addAction(0, service.getString(R.string.logs), activityIntent(LogActivity.class, 1))
+		       .addAction(0, service.getString(R.string.blacklist), activityIntent(BlacklistActivity.class, 2))
+		       .addAction(0, service.getString(R.string.stats), activityIntent(StatsActivity.class, 3));
+
+		bigTextStyle = new NotificationCompat.BigTextStyle();
+	}
+
+	private PendingIntent activityIntent(Class<?> cls, int requestCode) {
+		Intent intent = new Intent(service, cls);
+		intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+		return PendingIntent.getActivity(service, requestCode, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+	}
+
+	private String getModeInfoString(Settings settings) {
+		String mode = settings.getGlobal() ? service.getString(R.string.notif_mode_global) : service.getString(R.string.notif_mode_per_app);
+		String stack = "";
+		boolean v4 = settings.getIpv4();
+		boolean v6 = settings.getIpv6();
+
+		if (v4 && v6) stack = service.getString(R.string.notif_stack_dual);
+		else if (v4) stack = service.getString(R.string.notif_stack_v4);
+		else if (v6) stack = service.getString(R.string.notif_stack_v6);
+
+		return mode + " " + stack;
+	}
+
+	/**
+	 * Post the placeholder notification with startForeground().
+	 */
+	public void startForeground() {
+		contentText.setLength(0);
+		contentText.append('[').append(modeInfo).append("] ↑ --  ↓ --");
+		postedContentText = contentText.toString();
+		postedBigText = null;
+		builder.setContentText(postedContentText);
+		builder.setStyle(null);
+
+		Notification notify = builder.build();
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+			service.startForeground(NOTIFICATION_ID, notify);
+		} else {
+			service.startForeground(NOTIFICATION_ID, notify, ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
+		}
+	}
+
+	/**
+	 * Refresh the notification with current rates and totals, unless its
+	 * text would stay the same.
+	 * @param topTraffic aggregated per-UID traffic, or null if unavailable
+	 */
+	public void update(long txSpeed, long rxSpeed, long txBytes, long rxBytes,
+	                   long txPackets, long rxPackets, TrafficHistory history,
+	                   UidTraffic topTraffic) {
+		contentText.setLength(0);
+		contentText.append('[').append(modeInfo).append("] ↑ ");
+		TrafficFormat.appendSpeed(contentText, txSpeed).append("  ↓ ");
+		TrafficFormat.appendSpeed(contentText, rxSpeed);
+
+		bigText.setLength(0);
+		bigText.append(uploadSpeed).append(' ');
+		TrafficFormat.appendSpeed(bigText, txSpeed).append('\n');
+		bigText.append(sentData).append(' ');
+		TrafficFormat.appendBytes(bigText, txBytes).append('\n');
+		bigText.append(sentPackets).append(' ').append(txPackets).append("\n\n");
+		bigText.append(downloadSpeed).append(' ');
+		TrafficFormat.appendSpeed(bigText, rxSpeed).append('\n');
+		bigText.append(receivedData).append(' ');
+		TrafficFormat.appendBytes(bigText, rxBytes).append('\n');
+		bigText.append(receivedPackets).append(' ').append(rxPackets).append("\n\n");
+		bigText.append(peak).append(" ↑ ");
+		TrafficFormat.appendSpeed(bigText, history.getPeakTx(TrafficHistory.TIER_MINUTES)).append("  ↓ ");
+		TrafficFormat.appendSpeed(bigText, history.getPeakRx(TrafficHistory.TIER_MINUTES));
+
+		if (topTraffic != null && topTraffic.getUidCount() > 0) {
+			bigText.append("\n\n").append(topApps);
+			int top = Math.min(TOP_APPS, topTraffic.getTopCount());
+			for (int r = 0; r < top; r++) {
+				int i = topTraffic.getTop(r);
+				bigText.append('\n').append(getUidLabel(topTraffic.getUid(i))).append("  ↑ ");
+				TrafficFormat.appendBytes(bigText, topTraffic.getTxBytes(i)).append("  ↓ ");
+				TrafficFormat.appendBytes(bigText, topTraffic.getRxBytes(i));
+			}
+		}
+
+		if (postedBigText != null && postedBigText.contentEquals(bigText) &&
+		    postedContentText.contentEquals(contentText))
+		  return;
+		postedContentText = contentText.toString();
+		postedBigText = bigText.toString();
+		builder.setContentText(postedContentText);
+		bigTextStyle.bigText(postedBigText);
+		builder.setStyle(bigTextStyle);
+
+		// Update - use NotificationManager (no sound)
+		notificationManager.notify(NOTIFICATION_ID, builder.build());
+	}
+
+	private String getUidLabel(int uid) {
+		String label = uidLabels.get(uid);
+		if (label != null)
+		  return label;
+
+		label = UidTraffic.loadLabel(service, uid);
+		uidLabels.put(uid, label);
+		return label;
+	}
+}
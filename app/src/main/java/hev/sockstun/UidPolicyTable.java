@@ -0,0 +1,182 @@
+/*
+ ============================================================================
+ Name        : UidPolicyTable.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Per-UID Routing Policy Table
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * AppPolicy entries resolved to the UIDs the router sees, sorted by UID
+ * for a binary search per new flow.
+ *
+ * Packages sharing a UID can't be told apart on the wire; the strictest
+ * action wins (block, then proxy, then direct) and the profile comes from
+ * the first package, by name, that has one.
+ */
+public class UidPolicyTable {
+	public static final UidPolicyTable EMPTY = new UidPolicyTable(new TreeMap<Integer, AppPolicy>(),
+		new ArrayList<String>());
+
+	private final int[] uids;
+	private final int[] actions;
+	/* Index into profiles, or -1 for acl.txt */
+	private final int[] profileIndexes;
+	private final List<String> profiles;
+	private final List<String> excluded;
+
+	private UidPolicyTable(TreeMap<Integer, AppPolicy> byUid, List<String> excluded) {
+		int n = byUid.size();
+		uids = new int[n];
+		actions = new int[n];
+		profileIndexes = new int[n];
+		ArrayList<String> names = new ArrayList<String>();
+		int i = 0;
+		for (Map.Entry<Integer, AppPolicy> e : byUid.entrySet()) {
+			AppPolicy policy = e.getValue();
+			uids[i] = e.getKey();
+			actions[i] = policy.getAction();
+			String profile = policy.getProfile();
+			int index = profile.isEmpty() ? -1 : names.indexOf(profile);
+			if (!profile.isEmpty() && index < 0) {
+				index = names.size();
+				names.add(profile);
+			}
+			profileIndexes[i] = index;
+			i++;
+		}
+		profiles = Collections.unmodifiableList(names);
+		this.excluded = Collections.unmodifiableList(excluded);
+	}
+
+	/**
+	 * Look up the UID of every package with a policy. Packages that are
+	 * not installed are skipped.
+	 */
+	public static UidPolicyTable resolve(PackageManager pm, Settings settings) {
+		List<AppPolicy> policies = new ArrayList<AppPolicy>(settings.getAppPolicies());
+		if (policies.isEmpty())
+		  return EMPTY;
+		Collections.sort(policies, new Comparator<AppPolicy>() {
+			public int compare(AppPolicy a, AppPolicy b) {
+				return a.getPackageName().compareTo(b.getPackageName());
+			}
+		});
+
+		TreeMap<Integer, AppPolicy> byUid = new TreeMap<Integer, AppPolicy>();
+		TreeMap<Integer, List<String>> packages = new TreeMap<Integer, List<String>>();
+		for (AppPolicy policy : policies) {
+			int uid;
+			try {
+				uid = pm.getApplicationInfo(policy.getPackageName(), 0).uid;
+			} catch (NameNotFoundException e) {
+				continue;
+			}
+			AppPolicy merged = merge(byUid.get(uid), policy);
+			byUid.put(uid, merged);
+			List<String> names = packages.get(uid);
+			if (names == null) {
+				names = new ArrayList<String>();
+				packages.put(uid, names);
+			}
+			names.add(policy.getPackageName());
+		}
+
+		// Forced direct without a profile needs nothing from the router:
+		// in global mode the app can leave the TUN altogether
+		ArrayList<String> excluded = new ArrayList<String>();
+		if (settings.getGlobal()) {
+			for (Map.Entry<Integer, AppPolicy> e : byUid.entrySet()) {
+				AppPolicy policy = e.getValue();
+				if (policy.getAction() == AppPolicy.DIRECT && policy.getProfile().isEmpty())
+				  excluded.addAll(packages.get(e.getKey()));
+			}
+		}
+		return new UidPolicyTable(byUid, excluded);
+	}
+
+	private static AppPolicy merge(AppPolicy current, AppPolicy next) {
+		if (current == null)
+		  return next;
+		int action = strictness(next.getAction()) > strictness(current.getAction()) ?
+			next.getAction() : current.getAction();
+		String profile = current.getProfile().isEmpty() ? next.getProfile() : current.getProfile();
+		return new AppPolicy(current.getPackageName(), action, profile);
+	}
+
+	private static int strictness(int action) {
+		switch (action) {
+		case AppPolicy.BLOCK:
+			return 3;
+		case AppPolicy.PROXY:
+			return 2;
+		case AppPolicy.DIRECT:
+			return 1;
+		}
+		return 0;
+	}
+
+	public int size() {
+		return uids.length;
+	}
+
+	public int getUid(int i) {
+		return uids[i];
+	}
+
+	public int getAction(int i) {
+		return actions[i];
+	}
+
+	/* Index into getProfiles(), or -1 for acl.txt */
+	public int getProfileIndex(int i) {
+		return profileIndexes[i];
+	}
+
+	/* Profile names in first-use order */
+	public List<String> getProfiles() {
+		return profiles;
+	}
+
+	/**
+	 * @return the index of uid, or -1 if it has no policy
+	 */
+	public int indexOf(int uid) {
+		int i = Arrays.binarySearch(uids, uid);
+		return i < 0 ? -1 : i;
+	}
+
+	/**
+	 * Whether some UID is forced through the proxy or blocked. The router
+	 * then has to see its domestic destinations too, so the kernel bypass,
+	 * which can't tell apps apart, is not used.
+	 */
+	public boolean needsAllTraffic() {
+		for (int action : actions) {
+			if (action == AppPolicy.PROXY || action == AppPolicy.BLOCK)
+			  return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Packages to pass to VpnService.Builder.addDisallowedApplication:
+	 * forced direct, no profile, global mode.
+	 */
+	public List<String> getExcludedPackages() {
+		return excluded;
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ ============================================================================
+ Name        : UidTraffic.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : Per-UID Traffic Table
+ ============================================================================
+ */
+
+package hev.sockstun;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import java.util.Arrays;
+
+/**
+ * Per-UID traffic counters as exported by the native session manager.
+ *
+ * Entries are packed into a flat long[] (ENTRY_LONGS per entry), one entry
+ * per (uid, route class) pair. aggregate() sorts them by UID once, folds
+ * them into per-UID totals in UID order, and selects the TOP_UIDS
+ * heaviest UIDs with a bounded heap, reusing the same arrays on every
+ * call: O(n log n) a tick, however many apps are active.
+ */
+public class UidTraffic {
+	public static final int ROUTE_DIRECT = 0;
+	public static final int ROUTE_PROXY = 1;
+	public static final int ROUTE_SMART_PROXY = 2;
+
+	/* Packed entry: uid, route class, tx packets, tx bytes, rx packets, rx bytes */
+	public static final int ENTRY_LONGS = 6;
+	public static final int FIELD_UID = 0;
+	public static final int FIELD_ROUTE = 1;
+	public static final int FIELD_TX_PACKETS = 2;
+	public static final int FIELD_TX_BYTES = 3;
+	public static final int FIELD_RX_PACKETS = 4;
+	public static final int FIELD_RX_BYTES = 5;
+
+	// Every UID packTop() can publish has at least one entry
+	public static final int TOP_UIDS = StatsRegion.UID_CAPACITY;
+
+	private final long[] entries;
+	private int entryCount;
+	/* uid << 32 | entry index, sorted */
+	private final long[] order;
+
+	/* Per-UID totals in UID order; the entries of UID i are order[starts[i]..starts[i + 1]) */
+	private final int[] uids;
+	private final long[] txBytes;
+	private final long[] rxBytes;
+	private final int[] starts;
+	private int uidCount;
+
+	/* Indexes of the heaviest UIDs, heaviest first */
+	private final int[] top;
+	private int topCount;
+
+	public UidTraffic(int capacity) {
+		entries = new long[capacity * ENTRY_LONGS];
+		order = new long[capacity];
+		uids = new int[capacity];
+		txBytes = new long[capacity];
+		rxBytes = new long[capacity];
+		starts = new int[capacity + 1];
+		top = new int[Math.min(capacity, TOP_UIDS)];
+	}
+
+	/**
+	 * Raw packed buffer, filled by TProxyGetUidStats() or a StatsRegion.
+	 */
+	public long[] getEntries() {
+		return entries;
+	}
+
+	public int getCapacity() {
+		return uids.length;
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Set the number of valid packed entries and rebuild the per-UID totals
+	 * and the top UIDs.
+	 */
+	public void aggregate(int count) {
+		entryCount = Math.max(0, Math.min(count, uids.length));
+		for (int i = 0; i < entryCount; i++)
+		  order[i] = (entries[i * ENTRY_LONGS + FIELD_UID] << 32) | i;
+		Arrays.sort(order, 0, entryCount);
+
+		uidCount = 0;
+		for (int i = 0; i < entryCount; i++) {
+			int uid = (int) (order[i] >> 32);
+			int base = (int) order[i] * ENTRY_LONGS;
+			if (uidCount == 0 || uids[uidCount - 1] != uid) {
+				uids[uidCount] = uid;
+				txBytes[uidCount] = 0;
+				rxBytes[uidCount] = 0;
+				starts[uidCount] = i;
+				uidCount++;
+			}
+			txBytes[uidCount - 1] += entries[base + FIELD_TX_BYTES];
+			rxBytes[uidCount - 1] += entries[base + FIELD_RX_BYTES];
+		}
+		starts[uidCount] = entryCount;
+
+		// Min-heap of the heaviest so far, then heap-sorted in place
+		topCount = 0;
+		for (int i = 0; i < uidCount; i++) {
+			if (topCount < top.length) {
+				top[topCount++] = i;
+				siftUp(topCount - 1);
+			} else if (heavier(i, top[0])) {
+				top[0] = i;
+				siftDown(0, topCount);
+			}
+		}
+		for (int n = topCount - 1; n > 0; n--) {
+			int lightest = top[0];
+			top[0] = top[n];
+			top[n] = lightest;
+			siftDown(0, n);
+		}
+	}
+
+	/* Heavier by total bytes, ties to the lower UID */
+	private boolean heavier(int a, int b) {
+		long ta = txBytes[a] + rxBytes[a];
+		long tb = txBytes[b] + rxBytes[b];
+		return ta != tb ? ta > tb : uids[a] < uids[b];
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!heavier(top[parent], top[i]))
+			  break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int n) {
+		while (true) {
+			int child = i * 2 + 1;
+			if (child >= n)
+			  break;
+			if (child + 1 < n && heavier(top[child], top[child + 1]))
+			  child++;
+			if (!heavier(top[i], top[child]))
+			  break;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int t = top[a];
+		top[a] = top[b];
+		top[b] = t;
+	}
+
+	/**
+	 * Copy the packed entries of the heaviest UIDs into dst, up to
+	 * maxEntries entries. Must be called after aggregate().
+	 * @return number of entries written
+	 */
+	public int packTop(long[] dst, int maxEntries) {
+		int written = 0;
+		for (int r = 0; r < topCount && written < maxEntries; r++) {
+			int u = top[r];
+			for (int i = starts[u]; i < starts[u + 1] && written < maxEntries; i++) {
+				System.arraycopy(entries, (int) order[i] * ENTRY_LONGS, dst, written * ENTRY_LONGS, ENTRY_LONGS);
+				written++;
+			}
+		}
+		return written;
+	}
+
+	/* UIDs with traffic; indexes below are in UID order */
+	public int getUidCount() {
+		return uidCount;
+	}
+
+	public int getUid(int index) {
+		return uids[index];
+	}
+
+	public long getTxBytes(int index) {
+		return txBytes[index];
+	}
+
+	public long getRxBytes(int index) {
+		return rxBytes[index];
+	}
+
+	public int indexOfUid(int uid) {
+		int i = Arrays.binarySearch(uids, 0, uidCount, uid);
+		return i < 0 ? -1 : i;
+	}
+
+	/* Number of top UIDs, at most TOP_UIDS */
+	public int getTopCount() {
+		return topCount;
+	}
+
+	/**
+	 * @param rank 0 for the heaviest UID
+	 * @return its index for getUid() and friends
+	 */
+	public int getTop(int rank) {
+		return top[rank];
+	}
+
+	/**
+	 * Human readable name of a UID: the label of its first package, or
+	 * the raw UID for system UIDs without one.
+	 */
+	public static String loadLabel(Context context, int uid) {
+		PackageManager pm = context.getPackageManager();
+		String[] pkgs = pm.getPackagesForUid(uid);
+		if (pkgs == null || pkgs.length == 0)
+		  return context.getString(R.string.uid_prefix) + uid;
+		try {
+			return pm.getApplicationLabel(pm.getApplicationInfo(pkgs[0], 0)).toString();
+		} catch (NameNotFoundException e) {
+			return pkgs[0];
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ ============================================================================
+ Name        : AclBench.java
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : ACL Domain List Benchmark
+ ============================================================================
+ */
+
+import hev.sockstun.AclTable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compiles a large domain list through AclTable, the same path acl.txt
+ * takes in the app, and reports what it costs:
+ *
+ *   - compile time, cold and with the table already up to date
+ *   - the mapped table and the domain automaton, in total and per rule,
+ *     against the heap a HashMap of the same names takes
+ *   - ns/lookup for hits and misses, against a HashMap suffix walk
+ *
+ * Every lookup is checked against the HashMap; a mismatch is an error.
+ *
+ * A list is an acl.txt, or one domain per line (hosts files too: the
+ * last field is used), each taken as "block"; a leading "*." keeps its
+ * wildcard meaning. Without a list, synthetic names are generated.
+ *
+ * Usage: AclBench [-n synthetic names] [-l lookups] [-s seed] [list ...]
+ */
+public class AclBench {
+	private static final String[] TLDS = { "com", "net", "org", "cn", "io", "ru", "de", "info", "xyz", "top" };
+	private static final String[] HOSTS = { "www", "ads", "ad", "track", "stats", "cdn", "img", "api", "pixel", "log" };
+
+	private final HashMap<String, Integer> exact = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> wildcard = new HashMap<String, Integer>();
+	private final ArrayList<String> names = new ArrayList<String>();
+
+	public static void main(String[] args) throws IOException {
+		int synthetic = 500000;
+		int lookups = 1 << 21;
+		long seed = 1;
+		ArrayList<String> lists = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n") && i + 1 < args.length)
+			  synthetic = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-l") && i + 1 < args.length)
+			  lookups = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-s") && i + 1 < args.length)
+			  seed = Long.parseLong(args[++i]);
+			else if (args[i].startsWith("-"))
+			  usage();
+			else
+			  lists.add(args[i]);
+		}
+
+		AclBench bench = new AclBench();
+		Random random = new Random(seed);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "acl-bench");
+		dir.mkdirs();
+		File text = new File(dir, "acl.txt");
+		File table = new File(dir, AclTable.FILE_NAME);
+		table.delete();
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(text), StandardCharsets.UTF_8);
+		try {
+			if (lists.isEmpty()) {
+				bench.synthesize(out, synthetic, random);
+			} else {
+				for (String list : lists)
+				  bench.read(out, new File(list));
+			}
+		} finally {
+			out.close();
+		}
+
+		long heapBefore = usedHeap();
+		// A fresh copy, so the names are counted too
+		HashMap<String, Integer> copy = new HashMap<String, Integer>();
+		for (String name : bench.exact.keySet())
+		  copy.put(new String(name.toCharArray()), bench.exact.get(name));
+		for (String name : bench.wildcard.keySet())
+		  copy.put(new String(name.toCharArray()), bench.wildcard.get(name));
+		long heap = usedHeap() - heapBefore;
+
+		long t0 = System.nanoTime();
+		AclTable.compile(text, table);
+		long t1 = System.nanoTime();
+		AclTable.compile(text, table);
+		long t2 = System.nanoTime();
+		AclTable acl = AclTable.load(table);
+		int rules = acl.getSourceRules();
+
+		System.out.printf(Locale.ROOT, "rules            %d (%d exact, %d wildcard, %d patterns)%n",
+			rules, bench.exact.size(), bench.wildcard.size(), acl.getPatternCount());
+		System.out.printf(Locale.ROOT, "acl.txt          %s%n", size(text.length(), rules));
+		System.out.printf(Locale.ROOT, "acl.bin          %s%n", size(acl.getSize(), rules));
+		System.out.printf(Locale.ROOT, "  domains        %s%n", size(acl.getDomainSize(), rules));
+		System.out.printf(Locale.ROOT, "HashMap heap     %s (approx.)%n", size(heap, rules));
+		System.out.printf(Locale.ROOT, "compile          %.0f ms, %.0f ms when up to date%n",
+			(t1 - t0) / 1e6, (t2 - t1) / 1e6);
+		copy.clear();
+
+		String[] hits = bench.queries(lookups, random, true);
+		String[] misses = bench.queries(lookups, random, false);
+		int errors = bench.verify(acl, hits) + bench.verify(acl, misses);
+		System.out.printf(Locale.ROOT, "%-16s %10s %10s%n", "lookup", "hit", "miss");
+		System.out.printf(Locale.ROOT, "%-16s %7.1f ns %7.1f ns%n", "acl.bin",
+			bench.timeTable(acl, hits), bench.timeTable(acl, misses));
+		System.out.printf(Locale.ROOT, "%-16s %7.1f ns %7.1f ns%n", "HashMap",
+			bench.timeMap(hits), bench.timeMap(misses));
+		if (errors > 0) {
+			System.err.println(errors + " lookups disagree");
+			System.exit(1);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: AclBench [-n synthetic names] [-l lookups] [-s seed] [list ...]");
+		System.exit(2);
+	}
+
+	private void synthesize(Writer out, int count, Random random) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (names.size() < count) {
+			// Registered domains with a few well-known hosts below them,
+			// as block lists are
+			sb.setLength(0);
+			int length = 4 + random.nextInt(10);
+			for (int i = 0; i < length; i++)
+			  sb.append((char) ('a' + random.nextInt(26)));
+			String domain = sb.append('.').append(TLDS[random.nextInt(TLDS.length)]).toString();
+			if (random.nextInt(4) == 0) {
+				add(out, "block *." + domain);
+				continue;
+			}
+			add(out, "block " + domain);
+			for (int n = random.nextInt(3); n > 0; n--)
+			  add(out, "block " + HOSTS[random.nextInt(HOSTS.length)] + "." + domain);
+		}
+	}
+
+	private void read(Writer out, File list) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(list), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int hashPos = line.indexOf('#');
+				if (hashPos >= 0)
+				  line = line.substring(0, hashPos);
+				String[] tokens = line.trim().split("\\s+");
+				if (tokens[0].isEmpty())
+				  continue;
+				if (tokens[0].equals("allow") || tokens[0].equals("block"))
+				  add(out, line.trim());
+				else
+				  add(out, "block " + tokens[tokens.length - 1]);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/* Keep the domain rules of line for the reference map */
+	private void add(Writer out, String line) throws IOException {
+		out.write(line);
+		out.write('\n');
+		String[] tokens = line.split("\\s+");
+		if (tokens.length != 2 || tokens[1].indexOf('/') >= 0)
+		  return;
+		int action = tokens[0].equals("block") ? AclTable.BLOCK : AclTable.ALLOW;
+		String name = tokens[1].toLowerCase(Locale.ROOT);
+		if (name.startsWith("*.") && name.indexOf('*', 1) < 0) {
+			name = name.substring(2);
+			Integer old = wildcard.get(name);
+			wildcard.put(name, old == null ? action : old | action);
+		} else if (name.indexOf('*') < 0) {
+			Integer old = exact.get(name);
+			exact.put(name, old == null ? action : old | action);
+		} else {
+			return;
+		}
+		names.add(name);
+	}
+
+	/* Names on the list or just below a wildcard, or random names */
+	private String[] queries(int count, Random random, boolean hit) {
+		String[] queries = new String[count];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (hit && !names.isEmpty()) {
+				String name = names.get(random.nextInt(names.size()));
+				queries[i] = wildcard.containsKey(name) ? "x" + i % 97 + "." + name : name;
+				continue;
+			}
+			sb.setLength(0);
+			sb.append(HOSTS[random.nextInt(HOSTS.length)]).append('.');
+			for (int n = 5 + random.nextInt(8); n > 0; n--)
+			  sb.append((char) ('a' + random.nextInt(26)));
+			queries[i] = sb.append('.').append(TLDS[random.nextInt(TLDS.length)]).toString();
+		}
+		return queries;
+	}
+
+	private int matchMap(String name) {
+		Integer actions = exact.get(name);
+		int result = actions == null ? 0 : actions;
+		for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+			actions = wildcard.get(name.substring(dot + 1));
+			if (actions != null)
+			  result |= actions;
+		}
+		actions = wildcard.get("");
+		return actions == null ? result : result | actions;
+	}
+
+	private int verify(AclTable acl, String[] queries) {
+		int errors = 0;
+		for (String q : queries) {
+			if (acl.matchDomain(q) != matchMap(q) && errors++ < 5)
+			  System.err.println("mismatch: " + q + " table " + acl.matchDomain(q) + " map " + matchMap(q));
+		}
+		return errors;
+	}
+
+	/* Best of five rounds, after one to warm up */
+	private double timeTable(AclTable acl, String[] queries) {
+		double best = Double.MAX_VALUE;
+		int sink = 0;
+		for (int round = 0; round < 6; round++) {
+			long start = System.nanoTime();
+			for (String q : queries)
+			  sink += acl.matchDomain(q);
+			long time = System.nanoTime() - start;
+			if (round > 0)
+			  best = Math.min(best, (double) time / queries.length);
+		}
+		if (sink == 42)
+		  System.out.print("");
+		return best;
+	}
+
+	private double timeMap(String[] queries) {
+		double best = Double.MAX_VALUE;
+		int sink = 0;
+		for (int round = 0; round < 6; round++) {
+			long start = System.nanoTime();
+			for (String q : queries)
+			  sink += matchMap(q);
+			long time = System.nanoTime() - start;
+			if (round > 0)
+			  best = Math.min(best, (double) time / queries.length);
+		}
+		if (sink == 42)
+		  System.out.print("");
+		return best;
+	}
+
+	private static String size(long bytes, int rules) {
+		return String.format(Locale.ROOT, "%8.2f MB  %6.1f B/rule", bytes / 1048576.0,
+			rules == 0 ? 0.0 : (double) bytes / rules);
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		  System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,885 @@
+/*
+ ============================================================================
+ Name        : route-bench.c
+ Author      : hev <r@hev.cc>
+ Copyright   : Copyright (c) 2024 xyz
+ Description : chnroutes Lookup Benchmark
+ ============================================================================
+ */
+
+/*
+ * Measures how fast a destination is classified against chnroutes with
+ * the lookup structures a router could use:
+ *
+ *   range        branchless binary search over merged ranges, the
+ *                chnroutes.bin lookup (RouteTable.java / table-path)
+ *   range-branch the same table with a textbook early-exit search
+ *   radix        path-compressed binary trie over the original prefixes
+ *   poptrie      16-bit direct pointing plus 6-bit popcount-compressed
+ *                nodes (Asai & Ohara, SIGCOMM 2015)
+ *
+ * Each runs against the bundled list and a synthetic table, with a
+ * uniform and a Zipf-skewed destination mix, and reports the best
+ * ns/lookup over several rounds and the memory each structure takes.
+ * All matchers must agree on every lookup; a mismatch is an error.
+ *
+ * IPv4 only: the IPv6 part of chnroutes is about 2,000 prefixes and is
+ * skipped.
+ *
+ * Usage: route-bench [-f chnroutes.txt] [-n synthetic prefixes]
+ *                    [-l lookups] [-r rounds] [-s seed]
+ */
+
+#include <errno.h>
+#include <math.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#define DEFAULT_FILE "app/src/main/assets/chnroutes.txt"
+#define DEFAULT_SYNTHETIC (1 << 20)
+#define DEFAULT_LOOKUPS (1 << 22)
+#define DEFAULT_ROUNDS 5
+
+#define HOT_DESTINATIONS 4096
+#define ZIPF_EXPONENT 1.1
+
+typedef struct _Prefix Prefix;
+typedef struct _Prefixes Prefixes;
+typedef struct _RangeTable RangeTable;
+typedef struct _RadixNode RadixNode;
+typedef struct _Radix Radix;
+typedef struct _PoptrieNode PoptrieNode;
+typedef struct _Poptrie Poptrie;
+
+struct _Prefix
+{
+    uint32_t addr;
+    uint32_t len;
+};
+
+struct _Prefixes
+{
+    Prefix *v;
+    size_t n;
+    size_t cap;
+    size_t skipped;
+};
+
+/* Sorted, disjoint, non-adjacent inclusive ranges */
+struct _RangeTable
+{
+    uint32_t *first;
+    uint32_t *last;
+    size_t n;
+};
+
+struct _RadixNode
+{
+    uint32_t key;
+    uint8_t len;
+    uint8_t route;
+    uint32_t child[2];
+};
+
+struct _Radix
+{
+    RadixNode *nodes;
+    size_t n;
+    size_t cap;
+};
+
+struct _PoptrieNode
+{
+    uint64_t vector;  /* bit i: child i is a node */
+    uint64_t leafvec; /* bit i: a run of equal leaves starts at child i */
+    uint32_t base0;   /* first leaf */
+    uint32_t base1;   /* first child node */
+};
+
+#define POPTRIE_LEAF 0x80000000u
+
+struct _Poptrie
+{
+    uint32_t *dir; /* top 16 bits: node index, or POPTRIE_LEAF | value */
+    PoptrieNode *nodes;
+    size_t n;
+    size_t cap;
+    uint8_t *leaves;
+    size_t nleaves;
+    size_t leaves_cap;
+};
+
+static uint64_t rng_state;
+
+static uint64_t
+rng_next (void)
+{
+    /* xorshift64* */
+    rng_state ^= rng_state >> 12;
+    rng_state ^= rng_state << 25;
+    rng_state ^= rng_state >> 27;
+    return rng_state * 0x2545F4914F6CDD1DULL;
+}
+
+static void *
+xrealloc (void *p, size_t size)
+{
+    p = realloc (p, size);
+    if (!p) {
+        fprintf (stderr, "out of memory\n");
+        exit (1);
+    }
+    return p;
+}
+
+static uint64_t
+now_ns (void)
+{
+    struct timespec ts;
+
+    clock_gettime (CLOCK_MONOTONIC, &ts);
+    return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static uint32_t
+mask_of (uint32_t len)
+{
+    return len ? ~0u << (32 - len) : 0;
+}
+
+static void
+prefixes_add (Prefixes *p, uint32_t addr, uint32_t len)
+{
+    if (p->n == p->cap) {
+        p->cap = p->cap ? p->cap * 2 : 1024;
+        p->v = xrealloc (p->v, p->cap * sizeof (Prefix));
+    }
+    p->v[p->n].addr = addr & mask_of (len);
+    p->v[p->n].len = len;
+    p->n++;
+}
+
+static int
+parse_ipv4 (const char *s, uint32_t *addr, uint32_t *len)
+{
+    unsigned int a, b, c, d, l;
+    char tail;
+
+    if (sscanf (s, "%u.%u.%u.%u/%u%c", &a, &b, &c, &d, &l, &tail) != 5)
+        return -1;
+    if (a > 255 || b > 255 || c > 255 || d > 255 || l > 32)
+        return -1;
+    *addr = (a << 24) | (b << 16) | (c << 8) | d;
+    *len = l;
+    return 0;
+}
+
+static int
+load_file (const char *path, Prefixes *p)
+{
+    char line[256];
+    FILE *fp;
+
+    fp = fopen (path, "r");
+    if (!fp) {
+        fprintf (stderr, "%s: %s\n", path, strerror (errno));
+        return -1;
+    }
+
+    while (fgets (line, sizeof (line), fp)) {
+        char *s = line;
+        char *end;
+        uint32_t addr, len;
+
+        end = strchr (s, '#');
+        if (end)
+            *end = '\0';
+        while (*s == ' ' || *s == '\t')
+            s++;
+        end = s + strlen (s);
+        while (end > s && (end[-1] == '\n' || end[-1] == '\r' ||
+                           end[-1] == ' ' || end[-1] == '\t'))
+            *--end = '\0';
+        if (!*s)
+            continue;
+
+        if (parse_ipv4 (s, &addr, &len) == 0)
+            prefixes_add (p, addr, len);
+        else
+            p->skipped++;
+    }
+
+    fclose (fp);
+    return 0;
+}
+
+/*
+ * Random unicast prefixes with a length mix close to a full BGP table:
+ * mostly /24, few short allocations, so the table stays fragmented the
+ * way a million real routes are instead of merging into a few ranges.
+ */
+static void
+make_synthetic (Prefixes *p, size_t count)
+{
+    static const struct
+    {
+        uint32_t len;
+        uint32_t permille;
+    } mix[] = {
+        { 24, 650 }, { 23, 80 }, { 22, 90 }, { 21, 40 }, { 20, 20 },
+        { 19, 8 },   { 18, 4 },  { 16, 1 },  { 25, 20 }, { 26, 20 },
+        { 27, 15 },  { 28, 15 }, { 29, 15 }, { 30, 10 }, { 32, 12 },
+    };
+    size_t i;
+
+    for (i = 0; i < count; i++) {
+        uint32_t pick = rng_next () % 1000;
+        uint32_t len = 24;
+        uint32_t addr;
+        size_t m;
+
+        for (m = 0; m < sizeof (mix) / sizeof (mix[0]); m++) {
+            if (pick < mix[m].permille) {
+                len = mix[m].len;
+                break;
+            }
+            pick -= mix[m].permille;
+        }
+
+        /* 1.0.0.0 - 223.255.255.255 */
+        addr = 0x01000000u + (uint32_t)(rng_next () % 0xDF000000u);
+        prefixes_add (p, addr, len);
+    }
+}
+
+static int
+prefix_cmp (const void *a, const void *b)
+{
+    const Prefix *x = a;
+    const Prefix *y = b;
+
+    if (x->addr != y->addr)
+        return x->addr < y->addr ? -1 : 1;
+    return (int)x->len - (int)y->len;
+}
+
+static void
+range_build (RangeTable *t, const Prefixes *p)
+{
+    Prefix *sorted;
+    size_t i;
+
+    sorted = xrealloc (NULL, p->n * sizeof (Prefix) + 1);
+    memcpy (sorted, p->v, p->n * sizeof (Prefix));
+    qsort (sorted, p->n, sizeof (Prefix), prefix_cmp);
+
+    t->first = xrealloc (NULL, p->n * sizeof (uint32_t) + 1);
+    t->last = xrealloc (NULL, p->n * sizeof (uint32_t) + 1);
+    t->n = 0;
+    for (i = 0; i < p->n; i++) {
+        uint64_t first = sorted[i].addr;
+        uint64_t last = first + (1ULL << (32 - sorted[i].len)) - 1;
+
+        if (t->n && first <= (uint64_t)t->last[t->n - 1] + 1) {
+            if (last > t->last[t->n - 1])
+                t->last[t->n - 1] = last;
+        } else {
+            t->first[t->n] = first;
+            t->last[t->n] = last;
+            t->n++;
+        }
+    }
+
+    free (sorted);
+}
+
+/* Last range starting at or below addr, or -1 */
+static long
+range_floor (const RangeTable *t, uint32_t addr)
+{
+    size_t lo = 0;
+    size_t hi = t->n;
+
+    while (lo < hi) {
+        size_t mid = (lo + hi) / 2;
+        if (t->first[mid] <= addr)
+            lo = mid + 1;
+        else
+            hi = mid;
+    }
+    return (long)lo - 1;
+}
+
+static inline int
+range_lookup (const RangeTable *t, uint32_t addr)
+{
+    const uint32_t *base = t->first;
+    size_t n = t->n;
+
+    if (!n)
+        return 0;
+
+    while (n > 1) {
+        size_t half = n / 2;
+        base = (base[half] <= addr) ? base + half : base;
+        n -= half;
+    }
+    return *base <= addr && addr <= t->last[base - t->first];
+}
+
+static inline int
+range_lookup_branchy (const RangeTable *t, uint32_t addr)
+{
+    size_t lo = 0;
+    size_t hi = t->n;
+
+    while (lo < hi) {
+        size_t mid = (lo + hi) / 2;
+        if (addr < t->first[mid])
+            hi = mid;
+        else if (addr > t->last[mid])
+            lo = mid + 1;
+        else
+            return 1;
+    }
+    return 0;
+}
+
+/* 1 if [lo, hi] is all in the table, 0 if none of it is, 2 if mixed */
+static int
+range_span (const RangeTable *t, uint32_t lo, uint32_t hi)
+{
+    long i = range_floor (t, lo);
+
+    if (i >= 0 && t->last[i] >= lo)
+        return t->last[i] >= hi ? 1 : 2;
+    if ((size_t)(i + 1) < t->n && t->first[i + 1] <= hi)
+        return 2;
+    return 0;
+}
+
+static uint32_t
+radix_new (Radix *r, uint32_t key, uint32_t len, int route)
+{
+    RadixNode *node;
+
+    if (r->n == r->cap) {
+        r->cap = r->cap ? r->cap * 2 : 1024;
+        r->nodes = xrealloc (r->nodes, r->cap * sizeof (RadixNode));
+    }
+    node = &r->nodes[r->n];
+    node->key = key;
+    node->len = len;
+    node->route = route;
+    node->child[0] = 0;
+    node->child[1] = 0;
+    return r->n++;
+}
+
+static uint32_t
+bit_at (uint32_t key, uint32_t pos)
+{
+    return (key >> (31 - pos)) & 1;
+}
+
+static void
+radix_insert (Radix *r, uint32_t key, uint32_t len)
+{
+    uint32_t node = 0;
+
+    for (;;) {
+        RadixNode *n = &r->nodes[node];
+        uint32_t b, c, common, x;
+
+        if (n->len == len) {
+            n->route = 1;
+            return;
+        }
+
+        b = bit_at (key, n->len);
+        c = n->child[b];
+        if (!c) {
+            uint32_t leaf = radix_new (r, key, len, 1);
+            r->nodes[node].child[b] = leaf;
+            return;
+        }
+
+        x = r->nodes[c].key ^ key;
+        common = x ? __builtin_clz (x) : 32;
+        if (common > r->nodes[c].len)
+            common = r->nodes[c].len;
+        if (common > len)
+            common = len;
+
+        if (common == r->nodes[c].len) {
+            node = c;
+        } else if (common == len) {
+            uint32_t mid = radix_new (r, key, len, 1);
+            r->nodes[mid].child[bit_at (r->nodes[c].key, len)] = c;
+            r->nodes[node].child[b] = mid;
+            return;
+        } else {
+            uint32_t split = radix_new (r, key & mask_of (common), common, 0);
+            uint32_t leaf = radix_new (r, key, len, 1);
+            r->nodes[split].child[bit_at (r->nodes[c].key, common)] = c;
+            r->nodes[split].child[bit_at (key, common)] = leaf;
+            r->nodes[node].child[b] = split;
+            return;
+        }
+    }
+}
+
+static void
+radix_build (Radix *r, const Prefixes *p)
+{
+    size_t i;
+
+    radix_new (r, 0, 0, 0);
+    for (i = 0; i < p->n; i++)
+        radix_insert (r, p->v[i].addr, p->v[i].len);
+}
+
+static inline int
+radix_lookup (const Radix *r, uint32_t addr)
+{
+    const RadixNode *n = &r->nodes[0];
+
+    for (;;) {
+        uint32_t c;
+
+        if (n->route)
+            return 1;
+        if (n->len == 32)
+            return 0;
+        c = n->child[bit_at (addr, n->len)];
+        if (!c)
+            return 0;
+        n = &r->nodes[c];
+        if ((addr ^ n->key) & mask_of (n->len))
+            return 0;
+    }
+}
+
+static uint32_t
+poptrie_index (uint32_t addr, int depth)
+{
+    int shift = 32 - depth - 6;
+
+    return (shift >= 0 ? addr >> shift : addr << -shift) & 63;
+}
+
+static void
+poptrie_child_span (uint32_t base, int depth, uint32_t i, uint32_t *lo,
+                    uint32_t *hi)
+{
+    int shift = 32 - depth - 6;
+
+    if (shift >= 0) {
+        *lo = base + (i << shift);
+        *hi = *lo + ((1u << shift) - 1);
+    } else {
+        /* Past bit 32 the low index bits are padding */
+        *lo = *hi = base + (i >> -shift);
+    }
+}
+
+static uint32_t
+poptrie_alloc (Poptrie *p, size_t count)
+{
+    uint32_t first = p->n;
+
+    while (p->n + count > p->cap) {
+        p->cap = p->cap ? p->cap * 2 : 1024;
+        p->nodes = xrealloc (p->nodes, p->cap * sizeof (PoptrieNode));
+    }
+    p->n += count;
+    return first;
+}
+
+static void
+poptrie_leaf (Poptrie *p, uint8_t value)
+{
+    if (p->nleaves == p->leaves_cap) {
+        p->leaves_cap = p->leaves_cap ? p->leaves_cap * 2 : 4096;
+        p->leaves = xrealloc (p->leaves, p->leaves_cap);
+    }
+    p->leaves[p->nleaves++] = value;
+}
+
+static void
+poptrie_build_node (Poptrie *p, const RangeTable *t, uint32_t base, int depth,
+                    uint32_t index)
+{
+    uint8_t state[64];
+    uint64_t vector = 0;
+    uint64_t leafvec = 0;
+    uint32_t base0 = p->nleaves;
+    uint32_t base1;
+    int prev = -1;
+    int internal = 0;
+    uint32_t i;
+
+    for (i = 0; i < 64; i++) {
+        uint32_t lo, hi;
+
+        poptrie_child_span (base, depth, i, &lo, &hi);
+        state[i] = range_span (t, lo, hi);
+        if (state[i] == 2) {
+            vector |= 1ULL << i;
+            internal++;
+        } else {
+            if (state[i] != prev) {
+                leafvec |= 1ULL << i;
+                poptrie_leaf (p, state[i]);
+            }
+            prev = state[i];
+        }
+    }
+
+    /* Children of one node are contiguous, so allocate them together */
+    base1 = poptrie_alloc (p, internal);
+    p->nodes[index].vector = vector;
+    p->nodes[index].leafvec = leafvec;
+    p->nodes[index].base0 = base0;
+    p->nodes[index].base1 = base1;
+
+    for (i = 0; i < 64; i++) {
+        uint32_t lo, hi;
+
+        if (state[i] != 2)
+            continue;
+        poptrie_child_span (base, depth, i, &lo, &hi);
+        poptrie_build_node (p, t, lo, depth + 6, base1++);
+    }
+}
+
+static void
+poptrie_build (Poptrie *p, const RangeTable *t)
+{
+    uint32_t k;
+
+    p->dir = xrealloc (NULL, 65536 * sizeof (uint32_t));
+    for (k = 0; k < 65536; k++) {
+        uint32_t lo = k << 16;
+        int state = range_span (t, lo, lo + 0xffff);
+
+        if (state != 2) {
+            p->dir[k] = POPTRIE_LEAF | state;
+        } else {
+            uint32_t index = poptrie_alloc (p, 1);
+            p->dir[k] = index;
+            poptrie_build_node (p, t, lo, 16, index);
+        }
+    }
+}
+
+static inline int
+poptrie_lookup (const Poptrie *p, uint32_t addr)
+{
+    uint32_t e = p->dir[addr >> 16];
+    const PoptrieNode *n;
+    int depth = 16;
+
+    if (e & POPTRIE_LEAF)
+        return e & 1;
+
+    n = &p->nodes[e];
+    for (;;) {
+        uint64_t bit = 1ULL << poptrie_index (addr, depth);
+
+        if (!(n->vector & bit))
+            return p->leaves[n->base0 +
+                             __builtin_popcountll (n->leafvec &
+                                                   (bit | (bit - 1))) -
+                             1];
+        n = &p->nodes[n->base1 + __builtin_popcountll (n->vector & (bit - 1))];
+        depth += 6;
+    }
+}
+
+static void
+make_uniform (uint32_t *dst, size_t count)
+{
+    size_t i;
+
+    for (i = 0; i < count; i++)
+        dst[i] = rng_next ();
+}
+
+/*
+ * A few thousand hot destinations, half of them domestic, drawn with a
+ * Zipf distribution: the shape of real traffic, where a handful of CDN
+ * and API addresses take most new flows.
+ */
+static void
+make_skewed (uint32_t *dst, size_t count, const RangeTable *t)
+{
+    uint32_t hot[HOT_DESTINATIONS];
+    double cdf[HOT_DESTINATIONS];
+    double sum = 0;
+    size_t i;
+
+    for (i = 0; i < HOT_DESTINATIONS; i++) {
+        if ((i & 1) && t->n) {
+            size_t r = rng_next () % t->n;
+            uint64_t span = (uint64_t)t->last[r] - t->first[r] + 1;
+            hot[i] = t->first[r] + (uint32_t)(rng_next () % span);
+        } else {
+            hot[i] = rng_next ();
+        }
+        sum += 1.0 / pow (i + 1, ZIPF_EXPONENT);
+        cdf[i] = sum;
+    }
+
+    for (i = 0; i < count; i++) {
+        double u = (double)(rng_next () >> 11) / (1ULL << 53) * sum;
+        size_t lo = 0;
+        size_t hi = HOT_DESTINATIONS - 1;
+
+        while (lo < hi) {
+            size_t mid = (lo + hi) / 2;
+            if (cdf[mid] < u)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        dst[i] = hot[lo];
+    }
+}
+
+typedef struct
+{
+    const char *name;
+    int kind;
+} Matcher;
+
+enum
+{
+    KIND_RANGE,
+    KIND_RANGE_BRANCHY,
+    KIND_RADIX,
+    KIND_POPTRIE,
+};
+
+static const Matcher matchers[] = {
+    { "range", KIND_RANGE },
+    { "range-branch", KIND_RANGE_BRANCHY },
+    { "radix", KIND_RADIX },
+    { "poptrie", KIND_POPTRIE },
+};
+
+#define MATCHER_COUNT (sizeof (matchers) / sizeof (matchers[0]))
+
+/* One timed pass; the loop is per kind so the lookup inlines */
+static size_t
+run_pass (int kind, const RangeTable *t, const Radix *r, const Poptrie *p,
+          const uint32_t *dst, size_t count)
+{
+    size_t hits = 0;
+    size_t i;
+
+    switch (kind) {
+    case KIND_RANGE:
+        for (i = 0; i < count; i++)
+            hits += range_lookup (t, dst[i]);
+        break;
+    case KIND_RANGE_BRANCHY:
+        for (i = 0; i < count; i++)
+            hits += range_lookup_branchy (t, dst[i]);
+        break;
+    case KIND_RADIX:
+        for (i = 0; i < count; i++)
+            hits += radix_lookup (r, dst[i]);
+        break;
+    case KIND_POPTRIE:
+        for (i = 0; i < count; i++)
+            hits += poptrie_lookup (p, dst[i]);
+        break;
+    }
+    return hits;
+}
+
+static size_t
+memory_of (int kind, const RangeTable *t, const Radix *r, const Poptrie *p)
+{
+    switch (kind) {
+    case KIND_RANGE:
+    case KIND_RANGE_BRANCHY:
+        return t->n * 2 * sizeof (uint32_t);
+    case KIND_RADIX:
+        return r->n * sizeof (RadixNode);
+    case KIND_POPTRIE:
+        return 65536 * sizeof (uint32_t) + p->n * sizeof (PoptrieNode) +
+               p->nleaves;
+    }
+    return 0;
+}
+
+static void
+print_size (size_t bytes)
+{
+    if (bytes >= 10 * 1024 * 1024)
+        printf ("%9.1f MiB", bytes / 1048576.0);
+    else
+        printf ("%9.1f KiB", bytes / 1024.0);
+}
+
+/* Check every matcher against the range table on each destination */
+static size_t
+verify (const RangeTable *t, const Radix *r, const Poptrie *p,
+        const uint32_t *dst, size_t count)
+{
+    size_t bad = 0;
+    size_t i;
+
+    for (i = 0; i < count; i++) {
+        int want = range_lookup (t, dst[i]);
+
+        if (range_lookup_branchy (t, dst[i]) != want ||
+            radix_lookup (r, dst[i]) != want ||
+            poptrie_lookup (p, dst[i]) != want)
+            bad++;
+    }
+    return bad;
+}
+
+static int
+bench_table (const char *label, const Prefixes *prefixes, size_t lookups,
+             int rounds)
+{
+    RangeTable table = { 0 };
+    Radix radix = { 0 };
+    Poptrie poptrie = { 0 };
+    uint32_t *mixes[2];
+    size_t bad = 0;
+    uint64_t start;
+    size_t m;
+    int k;
+
+    start = now_ns ();
+    range_build (&table, prefixes);
+    radix_build (&radix, prefixes);
+    poptrie_build (&poptrie, &table);
+
+    printf ("%s: %zu IPv4 prefixes", label, prefixes->n);
+    if (prefixes->skipped)
+        printf (" (%zu other lines skipped)", prefixes->skipped);
+    printf (", %zu merged ranges, built in %.1f ms\n", table.n,
+            (now_ns () - start) / 1e6);
+
+    mixes[0] = xrealloc (NULL, lookups * sizeof (uint32_t));
+    mixes[1] = xrealloc (NULL, lookups * sizeof (uint32_t));
+    make_uniform (mixes[0], lookups);
+    make_skewed (mixes[1], lookups, &table);
+    for (k = 0; k < 2; k++)
+        bad += verify (&table, &radix, &poptrie, mixes[k], lookups);
+
+    printf ("  %-14s %13s %12s %12s %10s\n", "matcher", "memory",
+            "uniform ns", "skewed ns", "hit rate");
+    for (m = 0; m < MATCHER_COUNT; m++) {
+        double best[2];
+        size_t hits = 0;
+
+        for (k = 0; k < 2; k++) {
+            int round;
+
+            best[k] = 0;
+            for (round = 0; round < rounds; round++) {
+                uint64_t t0 = now_ns ();
+                size_t h = run_pass (matchers[m].kind, &table, &radix,
+                                     &poptrie, mixes[k], lookups);
+                double ns = (double)(now_ns () - t0) / lookups;
+
+                if (round == 0 || ns < best[k])
+                    best[k] = ns;
+                if (k == 0)
+                    hits = h;
+            }
+        }
+
+        printf ("  %-14s ", matchers[m].name);
+        print_size (memory_of (matchers[m].kind, &table, &radix, &poptrie));
+        printf (" %12.2f %12.2f %9.1f%%\n", best[0], best[1],
+                100.0 * hits / lookups);
+    }
+    printf ("\n");
+
+    free (mixes[0]);
+    free (mixes[1]);
+    free (table.first);
+    free (table.last);
+    free (radix.nodes);
+    free (poptrie.dir);
+    free (poptrie.nodes);
+    free (poptrie.leaves);
+
+    if (bad) {
+        fprintf (stderr, "%s: %zu lookups disagree between matchers\n",
+                 label, bad);
+        return -1;
+    }
+    return 0;
+}
+
+int
+main (int argc, char *argv[])
+{
+    const char *file = DEFAULT_FILE;
+    size_t synthetic = DEFAULT_SYNTHETIC;
+    size_t lookups = DEFAULT_LOOKUPS;
+    int rounds = DEFAULT_ROUNDS;
+    Prefixes bundled = { 0 };
+    Prefixes generated = { 0 };
+    char label[64];
+    int res = 0;
+    int opt;
+
+    rng_state = 0x9E3779B97F4A7C15ULL;
+    while ((opt = getopt (argc, argv, "f:n:l:r:s:")) != -1) {
+        switch (opt) {
+        case 'f':
+            file = optarg;
+            break;
+        case 'n':
+            synthetic = strtoul (optarg, NULL, 0);
+            break;
+        case 'l':
+            lookups = strtoul (optarg, NULL, 0);
+            break;
+        case 'r':
+            rounds = atoi (optarg);
+            break;
+        case 's':
+            rng_state = strtoull (optarg, NULL, 0) | 1;
+            break;
+        default:
+            fprintf (stderr,
+                     "Usage: %s [-f chnroutes.txt] [-n synthetic prefixes] "
+                     "[-l lookups] [-r rounds] [-s seed]\n",
+                     argv[0]);
+            return 1;
+        }
+    }
+    if (!lookups || rounds < 1) {
+        fprintf (stderr, "lookups and rounds must be positive\n");
+        return 1;
+    }
+
+    if (load_file (file, &bundled) < 0)
+        return 1;
+    res |= bench_table (file, &bundled, lookups, rounds);
+
+    if (synthetic) {
+        make_synthetic (&generated, synthetic);
+        snprintf (label, sizeof (label), "synthetic");
+        res |= bench_table (label, &generated, lookups, rounds);
+    }
+
+    free (bundled.v);
+    free (generated.v);
+    return res ? 1 : 0;
+}